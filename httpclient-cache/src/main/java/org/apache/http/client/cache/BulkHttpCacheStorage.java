@@ -0,0 +1,61 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.client.cache;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * {@link HttpCacheStorage} that is able to retrieve or remove several cache
+ * entries with a single operation. Storage backends for which every lookup
+ * involves a network round trip should implement this interface, so that the
+ * {@link org.apache.http.impl.client.cache.CachingHttpClient} can retrieve
+ * all variants of a resource at once and invalidate all entries related to
+ * a resource at once.
+ *
+ * @since 4.3
+ */
+public interface BulkHttpCacheStorage extends HttpCacheStorage {
+
+    /**
+     * Retrieves the cache entries stored under the given keys.
+     * @param keys cache keys
+     * @return a map from cache key to {@link HttpCacheEntry} containing
+     *   only those keys for which an entry exists; never {@code null}
+     * @throws IOException
+     */
+    Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException;
+
+    /**
+     * Deletes the cache entries stored under the given keys, if they exist.
+     * @param keys cache keys
+     * @throws IOException
+     */
+    void removeEntries(Collection<String> keys) throws IOException;
+
+}
@@ -0,0 +1,307 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.client.cache;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.annotation.Immutable;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.HeaderGroup;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Pre-parsed view of the response headers of an {@link HttpCacheEntry}
+ * that drive freshness and validation decisions. The descriptor is
+ * computed once when the entry is created, so cache lookups do not have
+ * to re-parse dates and re-tokenize <code>Cache-Control</code> headers
+ * on every hit.
+ *
+ * @since 4.3
+ */
+@Immutable
+public final class CacheEntryFreshness {
+
+    /**
+     * Value returned by the date accessors when the corresponding header
+     * is absent or malformed.
+     */
+    public static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * Value of <code>Age</code> assumed for malformed or negative
+     * <code>Age</code> headers.
+     */
+    public static final long MAX_AGE = 2147483648L;
+
+    private final long date;
+    private final long lastModified;
+    private final long expires;
+    private final long age;
+    private final long maxAge;
+    private final long staleWhileRevalidate;
+    private final long staleIfError;
+    private final boolean hasContentLength;
+    private final long contentLength;
+    private final String etag;
+    private final Set<String> directives;
+
+    CacheEntryFreshness(final HeaderGroup headers) {
+        super();
+        this.date = parseDate(headers.getFirstHeader(HTTP.DATE_HEADER));
+        this.lastModified = parseDate(headers.getFirstHeader(HeaderConstants.LAST_MODIFIED));
+        this.expires = parseDate(headers.getFirstHeader(HeaderConstants.EXPIRES));
+
+        long ageValue = 0;
+        for (Header hdr : headers.getHeaders(HeaderConstants.AGE)) {
+            long hdrAge;
+            try {
+                hdrAge = Long.parseLong(hdr.getValue());
+                if (hdrAge < 0) {
+                    hdrAge = MAX_AGE;
+                }
+            } catch (NumberFormatException nfe) {
+                hdrAge = MAX_AGE;
+            }
+            ageValue = (hdrAge > ageValue) ? hdrAge : ageValue;
+        }
+        this.age = ageValue;
+
+        long maxage = -1;
+        long swr = -1;
+        long sie = -1;
+        Set<String> names = null;
+        for (Header hdr : headers.getHeaders(HeaderConstants.CACHE_CONTROL)) {
+            for (HeaderElement elt : hdr.getElements()) {
+                String name = elt.getName();
+                if (names == null) {
+                    names = new HashSet<String>();
+                }
+                names.add(name.toLowerCase(Locale.US));
+                if (HeaderConstants.CACHE_CONTROL_MAX_AGE.equals(name)
+                        || "s-maxage".equals(name)) {
+                    try {
+                        long currMaxAge = Long.parseLong(elt.getValue());
+                        if (maxage == -1 || currMaxAge < maxage) {
+                            maxage = currMaxAge;
+                        }
+                    } catch (NumberFormatException nfe) {
+                        // be conservative if can't parse
+                        maxage = 0;
+                    }
+                } else if (HeaderConstants.STALE_WHILE_REVALIDATE.equalsIgnoreCase(name)) {
+                    swr = Math.max(swr, parseSeconds(elt.getValue()));
+                } else if (HeaderConstants.STALE_IF_ERROR.equals(name)) {
+                    sie = Math.max(sie, parseSeconds(elt.getValue()));
+                }
+            }
+        }
+        this.maxAge = maxage;
+        this.staleWhileRevalidate = swr;
+        this.staleIfError = sie;
+        this.directives = names != null
+            ? Collections.unmodifiableSet(names)
+            : Collections.<String>emptySet();
+
+        Header cl = headers.getFirstHeader(HTTP.CONTENT_LEN);
+        this.hasContentLength = cl != null;
+        long len = -1;
+        if (cl != null) {
+            try {
+                len = Long.parseLong(cl.getValue());
+            } catch (NumberFormatException ex) {
+                len = -1;
+            }
+        }
+        this.contentLength = len;
+
+        Header etagHeader = headers.getFirstHeader(HeaderConstants.ETAG);
+        this.etag = etagHeader != null ? etagHeader.getValue() : null;
+    }
+
+    private static long parseDate(final Header header) {
+        if (header == null) {
+            return NO_DATE;
+        }
+        try {
+            return DateUtils.parseDate(header.getValue()).getTime();
+        } catch (DateParseException dpe) {
+            // ignore malformed date
+        }
+        return NO_DATE;
+    }
+
+    private static long parseSeconds(final String s) {
+        if (s == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException nfe) {
+            // skip malformed directive
+            return -1;
+        }
+    }
+
+    private static Date toDate(final long time) {
+        return time != NO_DATE ? new Date(time) : null;
+    }
+
+    /**
+     * Returns the value of the <code>Date</code> header in milliseconds
+     * since the epoch or {@link #NO_DATE}.
+     */
+    public long getDate() {
+        return this.date;
+    }
+
+    /**
+     * Returns the value of the <code>Date</code> header or <code>null</code>.
+     */
+    public Date getDateValue() {
+        return toDate(this.date);
+    }
+
+    /**
+     * Returns the value of the <code>Last-Modified</code> header in
+     * milliseconds since the epoch or {@link #NO_DATE}.
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * Returns the value of the <code>Last-Modified</code> header or
+     * <code>null</code>.
+     */
+    public Date getLastModifiedValue() {
+        return toDate(this.lastModified);
+    }
+
+    /**
+     * Returns the value of the <code>Expires</code> header in milliseconds
+     * since the epoch or {@link #NO_DATE}.
+     */
+    public long getExpires() {
+        return this.expires;
+    }
+
+    /**
+     * Returns the value of the <code>Expires</code> header or
+     * <code>null</code>.
+     */
+    public Date getExpiresValue() {
+        return toDate(this.expires);
+    }
+
+    /**
+     * Returns the largest <code>Age</code> header value in seconds,
+     * <code>0</code> if there is none.
+     */
+    public long getAge() {
+        return this.age;
+    }
+
+    /**
+     * Returns the smallest of the <code>max-age</code> and
+     * <code>s-maxage</code> directives in seconds, <code>-1</code> if
+     * neither is present.
+     */
+    public long getMaxAge() {
+        return this.maxAge;
+    }
+
+    /**
+     * Returns the largest <code>stale-while-revalidate</code> directive in
+     * seconds, <code>-1</code> if there is none.
+     */
+    public long getStaleWhileRevalidate() {
+        return this.staleWhileRevalidate;
+    }
+
+    /**
+     * Returns the largest <code>stale-if-error</code> directive in seconds,
+     * <code>-1</code> if there is none.
+     */
+    public long getStaleIfError() {
+        return this.staleIfError;
+    }
+
+    /**
+     * Returns <code>true</code> if the response carried a
+     * <code>Content-Length</code> header.
+     */
+    public boolean hasContentLength() {
+        return this.hasContentLength;
+    }
+
+    /**
+     * Returns the value of the <code>Content-Length</code> header,
+     * <code>-1</code> if absent or malformed.
+     */
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    /**
+     * Returns the value of the <code>ETag</code> header or <code>null</code>.
+     */
+    public String getETag() {
+        return this.etag;
+    }
+
+    /**
+     * Returns <code>true</code> if the <code>Cache-Control</code> headers
+     * contain the given directive (compared case-insensitively).
+     */
+    public boolean hasCacheControlDirective(final String directive) {
+        return this.directives.contains(directive.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Returns <code>true</code> if the <code>must-revalidate</code>
+     * directive is present.
+     */
+    public boolean isMustRevalidate() {
+        return hasCacheControlDirective(HeaderConstants.CACHE_CONTROL_MUST_REVALIDATE);
+    }
+
+    /**
+     * Returns <code>true</code> if the <code>proxy-revalidate</code>
+     * directive is present.
+     */
+    public boolean isProxyRevalidate() {
+        return hasCacheControlDirective(HeaderConstants.CACHE_CONTROL_PROXY_REVALIDATE);
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.client.cache;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@link HttpCacheStorage} that is able to list all of its entries, for
+ * instance so that they can be written to a snapshot.
+ *
+ * @since 4.3
+ */
+public interface EnumerableHttpCacheStorage extends HttpCacheStorage {
+
+    /**
+     * Returns all cache entries currently held by the storage.
+     * @return a point-in-time copy of the mapping from cache key to
+     *   {@link HttpCacheEntry}; later changes to the storage are not
+     *   reflected in it
+     * @throws IOException
+     */
+    Map<String, HttpCacheEntry> getAllEntries() throws IOException;
+
+}
@@ -26,6 +26,8 @@
  */
 package org.apache.http.client.cache;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.Date;
@@ -58,6 +60,7 @@ public class HttpCacheEntry implements Serializable {
     private final HeaderGroup responseHeaders;
     private final Resource resource;
     private final Map<String,String> variantMap;
+    private transient CacheEntryFreshness freshness;
 
     /**
      * Create a new {@link HttpCacheEntry} with variants.
@@ -106,6 +109,7 @@ public class HttpCacheEntry implements Serializable {
         this.variantMap = variantMap != null
             ? new HashMap<String,String>(variantMap)
             : null;
+        this.freshness = new CacheEntryFreshness(this.responseHeaders);
     }
 
     /**
@@ -225,9 +229,28 @@ public class HttpCacheEntry implements Serializable {
      * the "parent" entry to hold this index of the other variants.
      */
     public Map<String, String> getVariantMap() {
+        if (variantMap == null) {
+            return Collections.emptyMap();
+        }
         return Collections.unmodifiableMap(variantMap);
     }
 
+    /**
+     * Returns the freshness related response headers of this entry in
+     * pre-parsed form.
+     *
+     * @since 4.3
+     */
+    public CacheEntryFreshness getFreshness() {
+        return this.freshness;
+    }
+
+    private void readObject(final ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.freshness = new CacheEntryFreshness(this.responseHeaders);
+    }
+
     /**
      * Provides a string representation of this instance suitable for
      * human consumption.
@@ -0,0 +1,122 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.client.cache;
+
+import java.util.Set;
+
+/**
+ * Read-only view of the counters maintained by a caching HTTP client.
+ * All counters are cumulative since the client was created.
+ *
+ * @since 4.3
+ */
+public interface HttpCacheStatistics {
+
+    /**
+     * Returns the number of requests for which a cache entry was found.
+     */
+    long getCacheHits();
+
+    /**
+     * Returns the number of requests for which no cache entry was found.
+     */
+    long getCacheMisses();
+
+    /**
+     * Returns the number of stale cache entries that were successfully
+     * revalidated with the origin.
+     */
+    long getCacheUpdates();
+
+    /**
+     * Returns the number of revalidations that failed because the origin
+     * could not be reached.
+     */
+    long getRevalidationFailures();
+
+    /**
+     * Returns the number of stale responses served from the cache.
+     */
+    long getStaleResponses();
+
+    /**
+     * Returns the number of requests that ended with the given status.
+     */
+    long getResponseCount(CacheResponseStatus status);
+
+    /**
+     * Returns the number of entries evicted from the cache storage to make
+     * room for new ones, or <code>-1</code> if the storage does not report
+     * evictions.
+     */
+    long getEvictions();
+
+    /**
+     * Returns the number of cache entries stored.
+     */
+    long getEntriesStored();
+
+    /**
+     * Returns the total size in bytes of all response bodies stored.
+     */
+    long getBytesStored();
+
+    /**
+     * Returns the upper bounds (exclusive) of the buckets of the object
+     * size histogram. The last bucket of the histogram has no upper bound.
+     */
+    long[] getObjectSizeBucketLimits();
+
+    /**
+     * Returns the number of stored response bodies per size bucket, see
+     * {@link #getObjectSizeBucketLimits()}. The returned array has one more
+     * element than the array of bucket limits.
+     */
+    long[] getObjectSizeHistogram();
+
+    /**
+     * Returns the number of asynchronous revalidations that are scheduled
+     * but not yet complete.
+     */
+    int getRevalidationQueueDepth();
+
+    /**
+     * Returns the target hosts for which per-host statistics are available.
+     */
+    Set<String> getHosts();
+
+    /**
+     * Returns the statistics of requests to the given target host, or
+     * <code>null</code> if there are none. Storage related counters of the
+     * returned instance cover the entries of that host only; evictions and
+     * the revalidation queue are not tracked per host.
+     *
+     * @param host target host in <code>host:port</code> notation
+     */
+    HttpCacheStatistics getHostStatistics(String host);
+
+}
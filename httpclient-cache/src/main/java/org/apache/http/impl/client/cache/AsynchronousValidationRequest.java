@@ -27,10 +27,15 @@
 package org.apache.http.impl.client.cache;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolException;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.protocol.HttpContext;
@@ -48,6 +53,11 @@ class AsynchronousValidationRequest implements Runnable {
     private final HttpCacheEntry cacheEntry;
     private final String identifier;
 
+    private final AtomicInteger demand;
+    private final AtomicBoolean claimed;
+    private volatile int attempts;
+    private volatile long readyAt;
+
     private final Log log = LogFactory.getLog(getClass());
 
     /**
@@ -73,20 +83,69 @@ class AsynchronousValidationRequest implements Runnable {
         this.context = context;
         this.cacheEntry = cacheEntry;
         this.identifier = identifier;
+        this.demand = new AtomicInteger(1);
+        this.claimed = new AtomicBoolean(false);
     }
 
     public void run() {
+        boolean failed = false;
         try {
-            cachingClient.revalidateCacheEntry(target, request, context, cacheEntry);
+            HttpResponse response = cachingClient.revalidateCacheEntry(target, request, context, cacheEntry);
+            failed = response != null
+                && response.getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
         } catch (IOException ioe) {
+            failed = true;
             log.debug("Asynchronous revalidation failed due to exception: " + ioe);
         } catch (ProtocolException pe) {
             log.error("ProtocolException thrown during asynchronous revalidation: " + pe);
         } finally {
-            parent.markComplete(identifier);
+            if (!(failed && parent.retry(this))) {
+                parent.markComplete(identifier);
+            }
         }
     }
 
+    /**
+     * Records further requests for this revalidation while it is pending.
+     */
+    void addDemand(final int count) {
+        demand.addAndGet(count);
+    }
+
+    int getDemand() {
+        return demand.get();
+    }
+
+    /**
+     * Claims this revalidation for execution; only one caller succeeds
+     * until {@link #release(long)} is called.
+     */
+    boolean claim() {
+        return claimed.compareAndSet(false, true);
+    }
+
+    boolean isClaimed() {
+        return claimed.get();
+    }
+
+    /**
+     * Makes this revalidation available for another attempt once the given
+     * time has been reached.
+     */
+    void release(final long readyAt) {
+        this.attempts++;
+        this.readyAt = readyAt;
+        claimed.set(false);
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    long getReadyAt() {
+        return readyAt;
+    }
+
     String getIdentifier() {
         return identifier;
     }
@@ -27,11 +27,13 @@
 package org.apache.http.impl.client.cache;
 
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -39,18 +41,34 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
+import org.apache.http.annotation.ThreadSafe;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.protocol.HttpContext;
 
 /**
  * Class used for asynchronous revalidations to be used when the "stale-
  * while-revalidate" directive is present
+ * <p>
+ * When created with a {@link ScheduledExecutorService}, revalidations are
+ * kept in a bounded set of pending jobs rather than in the executor queue.
+ * Each scheduled task runs the pending revalidation that was requested the
+ * most times, and a revalidation that failed because of an I/O error or a
+ * server error from the origin is retried with an exponential backoff.
  */
+@ThreadSafe
 class AsynchronousValidator {
+
+    private static final int MAX_BACKOFF_SHIFT = 10;
+
     private final CachingHttpClient cachingClient;
     private final ExecutorService executor;
-    private final Set<String> queued;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, AsynchronousValidationRequest> queued;
     private final CacheKeyGenerator cacheKeyGenerator;
+    private final int maxQueued;
+    private final int maxRetries;
+    private final long retryDelay;
+    private final Runnable runNext;
 
     private final Log log = LogFactory.getLog(getClass());
 
@@ -88,8 +106,42 @@ class AsynchronousValidator {
             ExecutorService executor) {
         this.cachingClient = cachingClient;
         this.executor = executor;
-        this.queued = new HashSet<String>();
+        this.scheduler = null;
+        this.queued = new ConcurrentHashMap<String, AsynchronousValidationRequest>();
         this.cacheKeyGenerator = new CacheKeyGenerator();
+        this.maxQueued = Integer.MAX_VALUE;
+        this.maxRetries = 0;
+        this.retryDelay = 0;
+        this.runNext = null;
+    }
+
+    /**
+     * Create AsynchronousValidator which will make revalidation requests
+     * using the supplied {@link CachingHttpClient} on the threads of the
+     * given {@link ScheduledExecutorService}. The executor is not shut
+     * down by the validator.
+     * @param cachingClient used to execute asynchronous requests
+     * @param scheduler runs revalidations and delayed retries
+     * @param config specifies the maximum number of pending revalidations
+     * and the retry policy. See {@link CacheConfig#getRevalidationQueueSize()},
+     * {@link CacheConfig#getRevalidationRetriesMax()} and
+     * {@link CacheConfig#getRevalidationRetryDelayMillis()}.
+     */
+    AsynchronousValidator(CachingHttpClient cachingClient,
+            ScheduledExecutorService scheduler, CacheConfig config) {
+        this.cachingClient = cachingClient;
+        this.executor = scheduler;
+        this.scheduler = scheduler;
+        this.queued = new ConcurrentHashMap<String, AsynchronousValidationRequest>();
+        this.cacheKeyGenerator = new CacheKeyGenerator();
+        this.maxQueued = config.getRevalidationQueueSize();
+        this.maxRetries = config.getRevalidationRetriesMax();
+        this.retryDelay = config.getRevalidationRetryDelayMillis();
+        this.runNext = new Runnable() {
+            public void run() {
+                runNextRevalidation();
+            }
+        };
     }
 
     /**
@@ -100,25 +152,108 @@ class AsynchronousValidator {
      * @param context
      * @param entry
      */
-    public synchronized void revalidateCacheEntry(HttpHost target,
+    public void revalidateCacheEntry(HttpHost target,
             HttpRequest request, HttpContext context, HttpCacheEntry entry) {
+        revalidateCacheEntry(target, request, context, entry, 1);
+    }
+
+    /**
+     * Schedules an asynchronous revalidation on behalf of the given number
+     * of requests; revalidations with a higher demand are run first.
+     */
+    void revalidateCacheEntry(HttpHost target,
+            HttpRequest request, HttpContext context, HttpCacheEntry entry,
+            int demand) {
         // getVariantURI will fall back on getURI if no variants exist
         String uri = cacheKeyGenerator.getVariantURI(target, request, entry);
 
-        if (!queued.contains(uri)) {
-            AsynchronousValidationRequest revalidationRequest =
-                new AsynchronousValidationRequest(this, cachingClient, target,
-                        request, context, entry, uri);
+        AsynchronousValidationRequest existing = queued.get(uri);
+        if (existing != null) {
+            existing.addDemand(demand);
+            return;
+        }
+        if (queued.size() >= maxQueued) {
+            log.debug("Revalidation for [" + uri + "] not scheduled: too many pending revalidations");
+            return;
+        }
+        AsynchronousValidationRequest revalidationRequest =
+            new AsynchronousValidationRequest(this, cachingClient, target,
+                    request, context, entry, uri);
+        if (demand > 1) {
+            revalidationRequest.addDemand(demand - 1);
+        }
+        existing = queued.putIfAbsent(uri, revalidationRequest);
+        if (existing != null) {
+            existing.addDemand(demand);
+            return;
+        }
+        schedule(revalidationRequest, 0);
+    }
 
-            try {
+    private boolean schedule(AsynchronousValidationRequest revalidationRequest, long delay) {
+        try {
+            if (scheduler == null) {
                 executor.execute(revalidationRequest);
-                queued.add(uri);
-            } catch (RejectedExecutionException ree) {
-                log.debug("Revalidation for [" + uri + "] not scheduled: " + ree);
+            } else if (delay > 0) {
+                scheduler.schedule(runNext, delay, TimeUnit.MILLISECONDS);
+            } else {
+                scheduler.execute(runNext);
+            }
+            return true;
+        } catch (RejectedExecutionException ree) {
+            String identifier = revalidationRequest.getIdentifier();
+            queued.remove(identifier, revalidationRequest);
+            log.debug("Revalidation for [" + identifier + "] not scheduled: " + ree);
+            return false;
+        }
+    }
+
+    /**
+     * Runs the pending revalidation that is ready and has been requested
+     * the most times. Every pending revalidation is backed by one
+     * scheduled call of this method, due no earlier than the
+     * revalidation becomes ready.
+     */
+    private void runNextRevalidation() {
+        long now = System.currentTimeMillis();
+        for (;;) {
+            AsynchronousValidationRequest next = null;
+            for (AsynchronousValidationRequest candidate : queued.values()) {
+                if (candidate.isClaimed() || candidate.getReadyAt() > now) {
+                    continue;
+                }
+                if (next == null || candidate.getDemand() > next.getDemand()) {
+                    next = candidate;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            if (next.claim()) {
+                next.run();
+                return;
             }
         }
     }
 
+    /**
+     * Reschedules a revalidation that failed because the origin could not
+     * be reached or responded with a server error. Called by
+     * {@link AsynchronousValidationRequest#run()}.
+     * @return {@code true} if the revalidation will be retried and must
+     *   therefore not be {@link #markComplete(String) marked complete}
+     */
+    boolean retry(AsynchronousValidationRequest revalidationRequest) {
+        if (scheduler == null || revalidationRequest.getAttempts() >= maxRetries) {
+            return false;
+        }
+        long delay = retryDelay << Math.min(revalidationRequest.getAttempts(), MAX_BACKOFF_SHIFT);
+        revalidationRequest.release(System.currentTimeMillis() + delay);
+        log.debug("Retrying revalidation for [" + revalidationRequest.getIdentifier()
+                + "] in " + delay + " ms");
+        return schedule(revalidationRequest, delay);
+    }
+
     /**
      * Removes an identifier from the internal list of revalidation jobs in
      * progress.  This is meant to be called by
@@ -126,12 +261,20 @@ class AsynchronousValidator {
      * complete, using the identifier passed in during constructions.
      * @param identifier
      */
-    synchronized void markComplete(String identifier) {
+    void markComplete(String identifier) {
         queued.remove(identifier);
     }
 
+    /**
+     * Returns the number of revalidations that are currently scheduled or
+     * running.
+     */
+    int getQueueDepth() {
+        return queued.size();
+    }
+
     Set<String> getScheduledIdentifiers() {
-        return Collections.unmodifiableSet(queued);
+        return Collections.unmodifiableSet(queued.keySet());
     }
 
     ExecutorService getExecutor() {
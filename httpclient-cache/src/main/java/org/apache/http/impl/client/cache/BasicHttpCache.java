@@ -26,40 +26,59 @@
  */
 package org.apache.http.impl.client.cache;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
 import org.apache.http.client.cache.HeaderConstants;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
 import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.cache.InputLimit;
 import org.apache.http.client.cache.Resource;
 import org.apache.http.client.cache.ResourceFactory;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.message.HeaderGroup;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 
 class BasicHttpCache implements HttpCache {
 
+    private static final String PARTIAL_KEY_PREFIX = "{partial}";
+
     private final CacheKeyGenerator uriExtractor;
     private final ResourceFactory resourceFactory;
     private final long maxObjectSizeBytes;
+    private final boolean streamingCacheFill;
+    private final boolean rangeSupport;
     private final CacheEntryUpdater cacheEntryUpdater;
     private final CachedHttpResponseGenerator responseGenerator;
     private final CacheInvalidator cacheInvalidator;
+    private final CacheInvalidationIndex invalidationIndex;
     private final HttpCacheStorage storage;
 
+    private volatile CacheStatisticsCollector statistics;
+
     private final Log log = LogFactory.getLog(getClass());
 
     public BasicHttpCache(ResourceFactory resourceFactory, HttpCacheStorage storage, CacheConfig config) {
@@ -67,9 +86,13 @@ class BasicHttpCache implements HttpCache {
         this.uriExtractor = new CacheKeyGenerator();
         this.cacheEntryUpdater = new CacheEntryUpdater(resourceFactory);
         this.maxObjectSizeBytes = config.getMaxObjectSize();
+        this.streamingCacheFill = config.isStreamingCacheFillEnabled();
+        this.rangeSupport = config.isRangeSupportEnabled();
         this.responseGenerator = new CachedHttpResponseGenerator();
         this.storage = storage;
-        this.cacheInvalidator = new CacheInvalidator(this.uriExtractor, this.storage);
+        this.invalidationIndex = new CacheInvalidationIndex(config.getMaxCacheEntries());
+        this.cacheInvalidator = new CacheInvalidator(this.uriExtractor, this.storage,
+                this.invalidationIndex);
     }
 
     public BasicHttpCache(CacheConfig config) {
@@ -80,10 +103,18 @@ class BasicHttpCache implements HttpCache {
         this(new CacheConfig());
     }
 
+    void setStatisticsCollector(final CacheStatisticsCollector statistics) {
+        this.statistics = statistics;
+        statistics.setStorage(this.storage);
+    }
+
     public void flushCacheEntriesFor(HttpHost host, HttpRequest request)
             throws IOException {
         String uri = uriExtractor.getURI(host, request);
         storage.removeEntry(uri);
+        if (rangeSupport) {
+            storage.removeEntry(getPartialKey(uri));
+        }
     }
 
     public void flushInvalidatedCacheEntriesFor(HttpHost host, HttpRequest request, HttpResponse response) {
@@ -97,6 +128,12 @@ class BasicHttpCache implements HttpCache {
         } else {
             storeNonVariantEntry(target, request, entry);
         }
+        indexContentLocation(uriExtractor.getURI(target, request), entry);
+        final CacheStatisticsCollector collector = this.statistics;
+        if (collector != null) {
+            final Resource resource = entry.getResource();
+            collector.recordEntryStored(target, resource != null ? resource.length() : -1);
+        }
     }
 
     void storeNonVariantEntry(
@@ -112,6 +149,7 @@ class BasicHttpCache implements HttpCache {
         final String parentURI = uriExtractor.getURI(target, req);
         final String variantURI = uriExtractor.getVariantURI(target, req, entry);
         storage.putEntry(variantURI, entry);
+        invalidationIndex.addRelatedKey(parentURI, variantURI);
 
         HttpCacheUpdateCallback callback = new HttpCacheUpdateCallback() {
 
@@ -151,6 +189,30 @@ class BasicHttpCache implements HttpCache {
         } catch (HttpCacheUpdateException e) {
             log.warn("Could not update key [" + parentCacheKey + "]", e);
         }
+        invalidationIndex.addRelatedKey(parentCacheKey, variantCacheKey);
+    }
+
+    /**
+     * Records the entry stored under the given key as an alias of the
+     * resource named by its {@code Content-Location}, so that it is
+     * invalidated together with that resource.
+     */
+    private void indexContentLocation(String uri, HttpCacheEntry entry) {
+        Header contentLocation = entry.getFirstHeader("Content-Location");
+        if (contentLocation == null) {
+            return;
+        }
+        try {
+            URL base = new URL(uri);
+            URL location = new URL(base, contentLocation.getValue());
+            if (!base.getAuthority().equalsIgnoreCase(location.getAuthority())) {
+                return;
+            }
+            invalidationIndex.addRelatedKey(
+                    uriExtractor.canonicalizeUri(location.toString()), uri);
+        } catch (MalformedURLException ex) {
+            // not an alias that can be invalidated
+        }
     }
 
     boolean isIncompleteResponse(HttpResponse resp, Resource resource) {
@@ -196,7 +258,8 @@ class BasicHttpCache implements HttpCache {
             src = entry;
         }
 
-        Resource resource = resourceFactory.copy(requestId, src.getResource());
+        // The variant map is the only thing that changes here; the response
+        // body is immutable and can safely be shared with the existing entry
         Map<String,String> variantMap = new HashMap<String,String>(src.getVariantMap());
         variantMap.put(variantKey, variantCacheKey);
         return new HttpCacheEntry(
@@ -204,7 +267,7 @@ class BasicHttpCache implements HttpCache {
                 src.getResponseDate(),
                 src.getStatusLine(),
                 src.getAllHeaders(),
-                resource,
+                src.getResource(),
                 variantMap);
     }
 
@@ -238,6 +301,15 @@ class BasicHttpCache implements HttpCache {
             HttpResponse originResponse, Date requestSent, Date responseReceived)
             throws IOException {
 
+        if (rangeSupport
+                && originResponse.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+            return cachePartialAndReturnResponse(host, request, originResponse,
+                    requestSent, responseReceived);
+        }
+        if (streamingCacheFill && originResponse.getEntity() != null) {
+            return streamAndCacheResponse(host, request, originResponse,
+                    requestSent, responseReceived);
+        }
         SizeLimitedResponseReader responseReader = getResponseReader(request, originResponse);
         try {
             responseReader.readResponse();
@@ -268,6 +340,211 @@ class BasicHttpCache implements HttpCache {
         }
     }
 
+    /**
+     * Reads a 206 response and stores it as a fragment of the requested
+     * resource. A fragment is merged with the stored one if both carry the
+     * same strong entity tag and their ranges overlap or are adjacent; once
+     * the fragment covers the whole representation it is stored as a
+     * regular 200 entry instead.
+     */
+    HttpResponse cachePartialAndReturnResponse(HttpHost host, HttpRequest request,
+            HttpResponse originResponse, Date requestSent, Date responseReceived)
+            throws IOException {
+        SizeLimitedResponseReader responseReader = getResponseReader(request, originResponse);
+        try {
+            responseReader.readResponse();
+
+            if (responseReader.isLimitReached()) {
+                return responseReader.getReconstructedResponse();
+            }
+
+            Resource resource = responseReader.getResource();
+            if (isIncompleteResponse(originResponse, resource)) {
+                return generateIncompleteResponseError(originResponse, resource);
+            }
+
+            HttpCacheEntry fragment = new HttpCacheEntry(
+                    requestSent,
+                    responseReceived,
+                    originResponse.getStatusLine(),
+                    originResponse.getAllHeaders(),
+                    resource);
+            ByteRange range = getContentRange(fragment);
+            if (range != null && isStorableFragment(fragment, range)) {
+                storePartialEntry(host, request, fragment, range);
+            }
+            return responseGenerator.generateResponse(fragment);
+        } catch (IOException ex) {
+            EntityUtils.consume(originResponse.getEntity());
+            throw ex;
+        } catch (RuntimeException ex) {
+            EntityUtils.consumeQuietly(originResponse.getEntity());
+            throw ex;
+        }
+    }
+
+    private ByteRange getContentRange(HttpCacheEntry entry) {
+        Header hdr = entry.getFirstHeader(HeaderConstants.CONTENT_RANGE);
+        return hdr != null ? ByteRange.parseContentRange(hdr.getValue()) : null;
+    }
+
+    private boolean isStorableFragment(HttpCacheEntry fragment, ByteRange range) {
+        String etag = fragment.getFreshness().getETag();
+        return etag != null && !etag.startsWith("W/")
+            && !fragment.hasVariants()
+            && fragment.getResource() != null
+            && fragment.getResource().length() == range.getLength();
+    }
+
+    void storePartialEntry(HttpHost host, HttpRequest request,
+            HttpCacheEntry fragment, ByteRange range) throws IOException {
+        String uri = uriExtractor.getURI(host, request);
+        String partialKey = getPartialKey(uri);
+
+        HttpCacheEntry merged = fragment;
+        ByteRange mergedRange = range;
+        HttpCacheEntry existing = storage.getEntry(partialKey);
+        ByteRange existingRange = existing != null ? getContentRange(existing) : null;
+        if (existingRange != null && canMerge(existing, existingRange, fragment, range)) {
+            long first = Math.min(existingRange.getFirst(), range.getFirst());
+            long last = Math.max(existingRange.getLast(), range.getLast());
+            if (last - first + 1 <= maxObjectSizeBytes) {
+                mergedRange = new ByteRange(first, last, range.getInstanceLength());
+                merged = mergeFragments(request, existing, existingRange,
+                        fragment, range, mergedRange);
+            }
+        }
+
+        if (mergedRange.isComplete()) {
+            storeInCache(host, request, toCompleteEntry(merged, mergedRange));
+            storage.removeEntry(partialKey);
+        } else {
+            storage.putEntry(partialKey, merged);
+        }
+    }
+
+    private boolean canMerge(HttpCacheEntry existing, ByteRange existingRange,
+            HttpCacheEntry fragment, ByteRange range) {
+        String etag = fragment.getFreshness().getETag();
+        return etag.equals(existing.getFreshness().getETag())
+            && existingRange.getInstanceLength() == range.getInstanceLength()
+            && range.getFirst() <= existingRange.getLast() + 1
+            && existingRange.getFirst() <= range.getLast() + 1
+            && existing.getResource() != null;
+    }
+
+    private HttpCacheEntry mergeFragments(HttpRequest request,
+            HttpCacheEntry existing, ByteRange existingRange,
+            HttpCacheEntry fragment, ByteRange range,
+            ByteRange mergedRange) throws IOException {
+        byte[] body = new byte[(int) mergedRange.getLength()];
+        readFully(existing.getResource(), body,
+                (int) (existingRange.getFirst() - mergedRange.getFirst()));
+        // the newer fragment wins where the two overlap
+        readFully(fragment.getResource(), body,
+                (int) (range.getFirst() - mergedRange.getFirst()));
+        Resource resource = resourceFactory.generate(
+                request.getRequestLine().getUri(),
+                new ByteArrayInputStream(body),
+                new InputLimit(maxObjectSizeBytes));
+
+        HeaderGroup headers = new HeaderGroup();
+        headers.setHeaders(fragment.getAllHeaders());
+        headers.updateHeader(new BasicHeader(HeaderConstants.CONTENT_RANGE,
+                mergedRange.toContentRange()));
+        headers.updateHeader(new BasicHeader(HTTP.CONTENT_LEN,
+                Long.toString(mergedRange.getLength())));
+        return new HttpCacheEntry(
+                fragment.getRequestDate(),
+                fragment.getResponseDate(),
+                fragment.getStatusLine(),
+                headers.getAllHeaders(),
+                resource);
+    }
+
+    private void readFully(Resource resource, byte[] dst, int off) throws IOException {
+        InputStream instream = resource.getInputStream();
+        try {
+            int remaining = (int) resource.length();
+            while (remaining > 0) {
+                int n = instream.read(dst, off, remaining);
+                if (n == -1) {
+                    throw new IOException("Unexpected end of cached fragment");
+                }
+                off += n;
+                remaining -= n;
+            }
+        } finally {
+            instream.close();
+        }
+    }
+
+    private HttpCacheEntry toCompleteEntry(HttpCacheEntry fragment, ByteRange range) {
+        HeaderGroup headers = new HeaderGroup();
+        headers.setHeaders(fragment.getAllHeaders());
+        for (Header hdr : headers.getHeaders(HeaderConstants.CONTENT_RANGE)) {
+            headers.removeHeader(hdr);
+        }
+        headers.updateHeader(new BasicHeader(HTTP.CONTENT_LEN,
+                Long.toString(range.getInstanceLength())));
+        return new HttpCacheEntry(
+                fragment.getRequestDate(),
+                fragment.getResponseDate(),
+                new BasicStatusLine(fragment.getProtocolVersion(), HttpStatus.SC_OK, "OK"),
+                headers.getAllHeaders(),
+                fragment.getResource());
+    }
+
+    /**
+     * Returns the origin response to the caller right away and copies its
+     * body into a cache entry as the caller reads it. The entry is stored
+     * only if the body is read to the end within the maximum object size.
+     */
+    HttpResponse streamAndCacheResponse(final HttpHost host, final HttpRequest request,
+            final HttpResponse originResponse, final Date requestSent,
+            final Date responseReceived) {
+        HttpEntity entity = originResponse.getEntity();
+        if (entity.getContentLength() > maxObjectSizeBytes) {
+            return originResponse;
+        }
+        HttpResponse response = new BasicHttpResponse(originResponse.getStatusLine());
+        response.setHeaders(originResponse.getAllHeaders());
+        response.setEntity(new CacheFillingEntity(entity, maxObjectSizeBytes) {
+
+            @Override
+            void bodyComplete(byte[] body, int len) {
+                storeStreamedResponse(host, request, originResponse,
+                        requestSent, responseReceived, body, len);
+            }
+
+        });
+        return response;
+    }
+
+    void storeStreamedResponse(HttpHost host, HttpRequest request,
+            HttpResponse originResponse, Date requestSent, Date responseReceived,
+            byte[] body, int len) {
+        try {
+            Resource resource = resourceFactory.generate(
+                    request.getRequestLine().getUri(),
+                    new ByteArrayInputStream(body, 0, len),
+                    new InputLimit(maxObjectSizeBytes));
+            if (isIncompleteResponse(originResponse, resource)) {
+                resource.dispose();
+                return;
+            }
+            HttpCacheEntry entry = new HttpCacheEntry(
+                    requestSent,
+                    responseReceived,
+                    originResponse.getStatusLine(),
+                    originResponse.getAllHeaders(),
+                    resource);
+            storeInCache(host, request, entry);
+        } catch (IOException ex) {
+            log.warn("Unable to store streamed response in cache", ex);
+        }
+    }
+
     SizeLimitedResponseReader getResponseReader(HttpRequest request, HttpResponse backEndResponse) {
         return new SizeLimitedResponseReader(
                 resourceFactory, maxObjectSizeBytes, request, backEndResponse);
@@ -284,7 +561,25 @@ class BasicHttpCache implements HttpCache {
 
     public void flushInvalidatedCacheEntriesFor(HttpHost host,
             HttpRequest request) throws IOException {
-        cacheInvalidator.flushInvalidatedCacheEntries(host, request);
+        Collection<String> extraKeys;
+        if (rangeSupport) {
+            extraKeys = Collections.singleton(getPartialKey(uriExtractor.getURI(host, request)));
+        } else {
+            extraKeys = Collections.emptySet();
+        }
+        cacheInvalidator.flushInvalidatedCacheEntries(host, request, extraKeys);
+    }
+
+    public HttpCacheEntry getPartialCacheEntry(HttpHost host, HttpRequest request)
+            throws IOException {
+        if (!rangeSupport) {
+            return null;
+        }
+        return storage.getEntry(getPartialKey(uriExtractor.getURI(host, request)));
+    }
+
+    private String getPartialKey(String uri) {
+        return PARTIAL_KEY_PREFIX + uri;
     }
 
     public Map<String, Variant> getVariantCacheEntriesWithEtags(HttpHost host, HttpRequest request)
@@ -292,18 +587,34 @@ class BasicHttpCache implements HttpCache {
         Map<String,Variant> variants = new HashMap<String,Variant>();
         HttpCacheEntry root = storage.getEntry(uriExtractor.getURI(host, request));
         if (root == null || !root.hasVariants()) return variants;
-        for(Map.Entry<String, String> variant : root.getVariantMap().entrySet()) {
+        Map<String, String> variantMap = root.getVariantMap();
+        Map<String, HttpCacheEntry> entries = getEntries(variantMap.values());
+        for(Map.Entry<String, String> variant : variantMap.entrySet()) {
             String variantKey = variant.getKey();
             String variantCacheKey = variant.getValue();
-            addVariantWithEtag(variantKey, variantCacheKey, variants);
+            addVariantWithEtag(variantKey, variantCacheKey,
+                    entries.get(variantCacheKey), variants);
         }
         return variants;
     }
 
+    private Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException {
+        if (storage instanceof BulkHttpCacheStorage) {
+            return ((BulkHttpCacheStorage) storage).getEntries(keys);
+        }
+        Map<String, HttpCacheEntry> entries = new HashMap<String, HttpCacheEntry>();
+        for (String key : keys) {
+            HttpCacheEntry entry = storage.getEntry(key);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        return entries;
+    }
+
     private void addVariantWithEtag(String variantKey,
-            String variantCacheKey, Map<String, Variant> variants)
-            throws IOException {
-        HttpCacheEntry entry = storage.getEntry(variantCacheKey);
+            String variantCacheKey, HttpCacheEntry entry,
+            Map<String, Variant> variants) {
         if (entry == null) return;
         Header etagHeader = entry.getFirstHeader(HeaderConstants.ETAG);
         if (etagHeader == null) return;
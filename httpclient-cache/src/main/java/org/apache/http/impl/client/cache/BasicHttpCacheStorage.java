@@ -27,11 +27,17 @@
 package org.apache.http.impl.client.cache;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
+import org.apache.http.client.cache.EnumerableHttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheStorageStatistics;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
 
 /**
@@ -45,7 +51,8 @@ import org.apache.http.client.cache.HttpCacheUpdateCallback;
  * @since 4.1
  */
 @ThreadSafe
-public class BasicHttpCacheStorage implements HttpCacheStorage {
+public class BasicHttpCacheStorage implements BulkHttpCacheStorage, EnumerableHttpCacheStorage,
+        HttpCacheStorageStatistics {
 
     private final CacheMap entries;
 
@@ -77,6 +84,24 @@ public class BasicHttpCacheStorage implements HttpCacheStorage {
         return entries.get(url);
     }
 
+    /**
+     * Gets the entries stored under the given keys, if they exist
+     *
+     * @param urls
+     *            Urls that are the cache keys
+     * @return map of the cache keys to the HttpCacheEntries found
+     */
+    public synchronized Map<String, HttpCacheEntry> getEntries(Collection<String> urls) throws IOException {
+        Map<String, HttpCacheEntry> result = new HashMap<String, HttpCacheEntry>();
+        for (String url : urls) {
+            HttpCacheEntry entry = entries.get(url);
+            if (entry != null) {
+                result.put(url, entry);
+            }
+        }
+        return result;
+    }
+
     /**
      * Removes a HttpCacheEntry from the cache
      *
@@ -87,6 +112,29 @@ public class BasicHttpCacheStorage implements HttpCacheStorage {
         entries.remove(url);
     }
 
+    /**
+     * Removes the entries stored under the given keys, if they exist
+     *
+     * @param urls
+     *            Urls that identify the cache entries
+     */
+    public synchronized void removeEntries(Collection<String> urls) throws IOException {
+        for (String url : urls) {
+            entries.remove(url);
+        }
+    }
+
+    /**
+     * Returns a copy of all entries in the cache
+     *
+     * @return map of the cache keys to the HttpCacheEntries
+     *
+     * @since 4.3
+     */
+    public synchronized Map<String, HttpCacheEntry> getAllEntries() throws IOException {
+        return new LinkedHashMap<String, HttpCacheEntry>(entries);
+    }
+
     public synchronized void updateEntry(
             String url,
             HttpCacheUpdateCallback callback) throws IOException {
@@ -94,4 +142,13 @@ public class BasicHttpCacheStorage implements HttpCacheStorage {
         entries.put(url, callback.update(existingEntry));
     }
 
+    /**
+     * Returns the number of least recently used entries evicted so far.
+     *
+     * @since 4.3
+     */
+    public synchronized long getEvictionCount() {
+        return entries.getEvictionCount();
+    }
+
 }
@@ -0,0 +1,413 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.annotation.Immutable;
+import org.apache.http.client.cache.HeaderConstants;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializationException;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * {@link HttpCacheEntrySerializer} implementation that uses a compact,
+ * versioned binary format instead of Java serialization. Header names
+ * commonly found on cacheable responses are encoded as a single byte,
+ * all other strings are length-prefixed UTF-8, and the response body is
+ * streamed directly to and from the {@link Resource} without an intermediate
+ * copy of the entire entry. Bodies compressed by a
+ * {@link CompressingResourceFactory} are written in their compressed form
+ * and read back as compressed resources, so they take up no more room in
+ * the storage backend than they do in memory.
+ * <p>
+ * This is the recommended serializer for storage backends that keep cache
+ * entries out of process, such as
+ * {@link org.apache.http.impl.client.cache.ehcache.EhcacheHttpCacheStorage} and
+ * {@link org.apache.http.impl.client.cache.memcached.MemcachedHttpCacheStorage}.
+ * Note that the binary format is not compatible with the one produced by
+ * {@link DefaultHttpCacheEntrySerializer}.
+ *
+ * @since 4.3
+ */
+@Immutable
+public class BinaryHttpCacheEntrySerializer implements HttpCacheEntrySerializer {
+
+    private static final int MAGIC = 0x48434501; // 'H' 'C' 'E' 0x01
+    private static final int VERSION = 2;
+
+    private static final String[] COMMON_HEADERS = {
+        HTTP.DATE_HEADER,
+        HTTP.CONTENT_TYPE,
+        HTTP.CONTENT_LEN,
+        HTTP.CONTENT_ENCODING,
+        HTTP.TRANSFER_ENCODING,
+        HTTP.SERVER_HEADER,
+        HTTP.CONN_DIRECTIVE,
+        HTTP.CONN_KEEP_ALIVE,
+        HeaderConstants.CACHE_CONTROL,
+        HeaderConstants.ETAG,
+        HeaderConstants.LAST_MODIFIED,
+        HeaderConstants.EXPIRES,
+        HeaderConstants.AGE,
+        HeaderConstants.VARY,
+        HeaderConstants.VIA,
+        HeaderConstants.WARNING,
+        HeaderConstants.PRAGMA,
+        HeaderConstants.ALLOW,
+        HeaderConstants.CONTENT_RANGE,
+        "Accept-Ranges",
+        "Content-Language",
+        "Content-Location",
+        "Content-MD5",
+        "Location",
+        "Set-Cookie",
+        "X-Powered-By"
+    };
+
+    private static final Map<String, Integer> COMMON_HEADER_CODES;
+
+    static {
+        COMMON_HEADER_CODES = new HashMap<String, Integer>(COMMON_HEADERS.length * 2);
+        for (int i = 0; i < COMMON_HEADERS.length; i++) {
+            COMMON_HEADER_CODES.put(COMMON_HEADERS[i], Integer.valueOf(i + 1));
+        }
+    }
+
+    private static final int LITERAL_HEADER = 0;
+
+    /**
+     * Upper bound for the length of strings read from a stored entry, so
+     * that a corrupt length prefix cannot trigger a huge allocation.
+     */
+    static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private static final int NO_RESOURCE = 0;
+    private static final int RESOURCE = 1;
+    private static final int COMPRESSED_RESOURCE = 2;
+
+    private final ResourceFactory resourceFactory;
+
+    /**
+     * Creates a serializer that reconstructs response bodies using the
+     * given {@link ResourceFactory}.
+     */
+    public BinaryHttpCacheEntrySerializer(final ResourceFactory resourceFactory) {
+        super();
+        if (resourceFactory == null) {
+            throw new IllegalArgumentException("Resource factory may not be null");
+        }
+        this.resourceFactory = resourceFactory;
+    }
+
+    /**
+     * Creates a serializer that reconstructs response bodies on the heap.
+     */
+    public BinaryHttpCacheEntrySerializer() {
+        this(new HeapResourceFactory());
+    }
+
+    public void writeTo(final HttpCacheEntry entry, final OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(entry.getRequestDate().getTime());
+        out.writeLong(entry.getResponseDate().getTime());
+
+        StatusLine statusLine = entry.getStatusLine();
+        ProtocolVersion ver = statusLine.getProtocolVersion();
+        writeString(out, ver.getProtocol());
+        writeVarInt(out, ver.getMajor());
+        writeVarInt(out, ver.getMinor());
+        writeVarInt(out, statusLine.getStatusCode());
+        writeNullableString(out, statusLine.getReasonPhrase());
+
+        Header[] headers = entry.getAllHeaders();
+        writeVarInt(out, headers.length);
+        for (Header header : headers) {
+            Integer code = COMMON_HEADER_CODES.get(header.getName());
+            if (code != null) {
+                out.writeByte(code.intValue());
+            } else {
+                out.writeByte(LITERAL_HEADER);
+                writeString(out, header.getName());
+            }
+            writeString(out, header.getValue());
+        }
+
+        Map<String, String> variantMap = entry.getVariantMap();
+        writeVarInt(out, variantMap.size());
+        for (Map.Entry<String, String> variant : variantMap.entrySet()) {
+            writeString(out, variant.getKey());
+            writeString(out, variant.getValue());
+        }
+
+        Resource resource = entry.getResource();
+        if (resource == null) {
+            out.writeByte(NO_RESOURCE);
+        } else if (resource instanceof CompressedResource) {
+            // Keep the body deflated; only its decompressed length is recorded
+            out.writeByte(COMPRESSED_RESOURCE);
+            out.writeLong(resource.length());
+            writeResource(out, ((CompressedResource) resource).getCompressedResource());
+        } else {
+            out.writeByte(RESOURCE);
+            writeResource(out, resource);
+        }
+        out.flush();
+    }
+
+    private static void writeResource(
+            final DataOutputStream out, final Resource resource) throws IOException {
+        long len = resource.length();
+        out.writeLong(len);
+        InputStream instream = resource.getInputStream();
+        try {
+            byte[] buf = new byte[2048];
+            long remaining = len;
+            while (remaining > 0) {
+                int l = instream.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (l == -1) {
+                    throw new HttpCacheEntrySerializationException(
+                            "Resource shorter than its declared length");
+                }
+                out.write(buf, 0, l);
+                remaining -= l;
+            }
+        } finally {
+            instream.close();
+        }
+    }
+
+    public HttpCacheEntry readFrom(final InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new HttpCacheEntrySerializationException("Unrecognized cache entry format");
+            }
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > VERSION) {
+                throw new HttpCacheEntrySerializationException(
+                        "Unsupported cache entry format version: " + version);
+            }
+            Date requestDate = new Date(in.readLong());
+            Date responseDate = new Date(in.readLong());
+
+            String protocol = readString(in);
+            int major = readVarInt(in);
+            int minor = readVarInt(in);
+            int statusCode = readVarInt(in);
+            String reasonPhrase = readNullableString(in);
+            ProtocolVersion ver;
+            if (HttpVersion.HTTP.equals(protocol) && major == 1 && minor == 1) {
+                ver = HttpVersion.HTTP_1_1;
+            } else if (HttpVersion.HTTP.equals(protocol) && major == 1 && minor == 0) {
+                ver = HttpVersion.HTTP_1_0;
+            } else {
+                ver = new ProtocolVersion(protocol, major, minor);
+            }
+            StatusLine statusLine = new BasicStatusLine(ver, statusCode, reasonPhrase);
+
+            int headerCount = readVarInt(in);
+            // sized as headers are actually read rather than by the declared count
+            List<Header> headers = new ArrayList<Header>(Math.min(headerCount, 32));
+            for (int i = 0; i < headerCount; i++) {
+                int code = in.readUnsignedByte();
+                String name;
+                if (code == LITERAL_HEADER) {
+                    name = readString(in);
+                } else if (code <= COMMON_HEADERS.length) {
+                    name = COMMON_HEADERS[code - 1];
+                } else {
+                    throw new HttpCacheEntrySerializationException(
+                            "Invalid header name code: " + code);
+                }
+                headers.add(new BasicHeader(name, readString(in)));
+            }
+
+            int variantCount = readVarInt(in);
+            Map<String, String> variantMap = new HashMap<String, String>(
+                    Math.min(variantCount, 32) * 2);
+            for (int i = 0; i < variantCount; i++) {
+                String variantKey = readString(in);
+                variantMap.put(variantKey, readString(in));
+            }
+
+            Resource resource = null;
+            int resourceType = in.readUnsignedByte();
+            if (resourceType == RESOURCE) {
+                resource = readResource(in, statusLine.toString());
+            } else if (resourceType == COMPRESSED_RESOURCE) {
+                long length = in.readLong();
+                resource = new CompressedResource(
+                        readResource(in, statusLine.toString()), length);
+            } else if (resourceType != NO_RESOURCE) {
+                throw new HttpCacheEntrySerializationException(
+                        "Invalid resource type: " + resourceType);
+            }
+            return new HttpCacheEntry(requestDate, responseDate, statusLine,
+                    headers.toArray(new Header[headers.size()]), resource, variantMap);
+        } catch (IllegalArgumentException ex) {
+            throw new HttpCacheEntrySerializationException("Invalid cache entry: " + ex.getMessage(), ex);
+        }
+    }
+
+    private Resource readResource(
+            final DataInputStream in, final String requestId) throws IOException {
+        long len = in.readLong();
+        if (len < 0) {
+            throw new HttpCacheEntrySerializationException("Invalid resource length: " + len);
+        }
+        BoundedInputStream body = new BoundedInputStream(in, len);
+        Resource resource = this.resourceFactory.generate(requestId, body, null);
+        if (body.getRemaining() > 0) {
+            throw new EOFException("Truncated cache entry body");
+        }
+        return resource;
+    }
+
+    private static void writeVarInt(final DataOutputStream out, final int value) throws IOException {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarInt(final DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new HttpCacheEntrySerializationException("Malformed length prefix");
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        writeVarInt(out, b.length);
+        out.write(b);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        int len = readVarInt(in);
+        if (len > MAX_STRING_LENGTH) {
+            throw new HttpCacheEntrySerializationException("String too long: " + len);
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    private static void writeNullableString(final DataOutputStream out, final String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            writeString(out, s);
+        }
+    }
+
+    private static String readNullableString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    /**
+     * Exposes at most a given number of bytes of the underlying stream
+     * so that the body can be handed over to a {@link ResourceFactory}.
+     */
+    static class BoundedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(final InputStream in, final long len) {
+            super();
+            this.in = in;
+            this.remaining = len;
+        }
+
+        long getRemaining() {
+            return this.remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int b = this.in.read();
+            if (b != -1) {
+                this.remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int l = this.in.read(b, off, (int) Math.min(len, this.remaining));
+            if (l > 0) {
+                this.remaining -= l;
+            }
+            return l;
+        }
+
+        @Override
+        public void close() {
+            // the underlying stream is owned by the caller
+        }
+
+    }
+
+}
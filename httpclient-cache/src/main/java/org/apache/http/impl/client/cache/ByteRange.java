@@ -0,0 +1,182 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import org.apache.http.annotation.Immutable;
+
+/**
+ * A single, absolute byte range of a representation, as used by the
+ * {@code Range} and {@code Content-Range} headers. Only single ranges are
+ * understood; multiple ranges are treated as if no range was given.
+ *
+ * @since 4.3
+ */
+@Immutable
+class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes";
+
+    /**
+     * Returned by {@link #parseRange(String, long)} for a syntactically valid
+     * range that does not overlap the representation.
+     */
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1, -1);
+
+    private final long first;
+    private final long last;
+    private final long instanceLength;
+
+    ByteRange(long first, long last, long instanceLength) {
+        this.first = first;
+        this.last = last;
+        this.instanceLength = instanceLength;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header against a representation
+     * of the given length.
+     *
+     * @return the requested range, {@link #UNSATISFIABLE}, or {@code null}
+     *   if the header is malformed or asks for more than one range
+     */
+    static ByteRange parseRange(String value, long length) {
+        if (value == null) {
+            return null;
+        }
+        String s = value.trim();
+        int eq = s.indexOf('=');
+        if (eq < 0 || !BYTES_UNIT.equalsIgnoreCase(s.substring(0, eq).trim())) {
+            return null;
+        }
+        String spec = s.substring(eq + 1).trim();
+        if (spec.indexOf(',') >= 0) {
+            return null;
+        }
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        String firstPart = spec.substring(0, dash).trim();
+        String lastPart = spec.substring(dash + 1).trim();
+        try {
+            if (firstPart.length() == 0) {
+                // suffix range: the final N bytes
+                long suffix = Long.parseLong(lastPart);
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                long first = Math.max(0, length - suffix);
+                return new ByteRange(first, length - 1, length);
+            }
+            long first = Long.parseLong(firstPart);
+            long last = lastPart.length() == 0 ? Long.MAX_VALUE : Long.parseLong(lastPart);
+            if (first < 0 || last < first) {
+                return null;
+            }
+            if (first >= length) {
+                return UNSATISFIABLE;
+            }
+            return new ByteRange(first, Math.min(last, length - 1), length);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the value of a {@code Content-Range} header such as
+     * {@code bytes 0-499/1234}.
+     *
+     * @return the range, or {@code null} if the header is malformed or the
+     *   instance length is not given
+     */
+    static ByteRange parseContentRange(String value) {
+        if (value == null) {
+            return null;
+        }
+        String s = value.trim();
+        if (!s.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        s = s.substring(BYTES_UNIT.length()).trim();
+        int dash = s.indexOf('-');
+        int slash = s.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(s.substring(0, dash).trim());
+            long last = Long.parseLong(s.substring(dash + 1, slash).trim());
+            long length = Long.parseLong(s.substring(slash + 1).trim());
+            if (first < 0 || last < first || last >= length) {
+                return null;
+            }
+            return new ByteRange(first, last, length);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    long getFirst() {
+        return first;
+    }
+
+    long getLast() {
+        return last;
+    }
+
+    long getLength() {
+        return last - first + 1;
+    }
+
+    long getInstanceLength() {
+        return instanceLength;
+    }
+
+    boolean contains(ByteRange other) {
+        return other.first >= first && other.last <= last;
+    }
+
+    boolean isComplete() {
+        return first == 0 && last == instanceLength - 1;
+    }
+
+    /**
+     * Formats this range as the value of a {@code Content-Range} header.
+     */
+    String toContentRange() {
+        return BYTES_UNIT + " " + first + "-" + last + "/" + instanceLength;
+    }
+
+    @Override
+    public String toString() {
+        return toContentRange();
+    }
+
+}
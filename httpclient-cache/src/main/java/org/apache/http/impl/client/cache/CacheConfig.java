@@ -80,6 +80,44 @@ package org.apache.http.impl.client.cache;
  * can be idle before being reclaimed}. You can also control the {@link
  * CacheConfig#setRevalidationQueueSize(int) size of the queue} used for
  * revalidations when there aren't enough workers to keep up with demand.</b>
+ * If the caching client is given a
+ * {@link java.util.concurrent.ScheduledExecutorService} instead, pending
+ * revalidations are run most requested first, and a revalidation that fails
+ * because the origin could not be reached or returned a server error is
+ * {@link CacheConfig#setRevalidationRetriesMax(int) retried} after an
+ * {@link CacheConfig#setRevalidationRetryDelayMillis(long) exponentially
+ * growing delay}.</p>
+ *
+ * <p><b>Refresh-ahead</b>. Background validation normally starts only once
+ * a request has found an entry stale. You can {@link
+ * CacheConfig#setRefreshAheadEnabled(boolean) enable refresh-ahead} to have
+ * an entry that was hit at least a {@link
+ * CacheConfig#setRefreshAheadMinHits(int) minimum number of times}
+ * revalidated in the background once it has used up a {@link
+ * CacheConfig#setRefreshAheadThreshold(float) given fraction} of its
+ * freshness lifetime. Refresh-ahead uses the background revalidation
+ * workers and has no effect if they are disabled.</p>
+ *
+ * <p><b>Streaming cache fill</b>. By default a cacheable response body is
+ * read completely into the cache before it is handed to the caller. You can
+ * {@link CacheConfig#setStreamingCacheFillEnabled(boolean) enable streaming
+ * cache fill} to have the body copied into the cache while the caller reads
+ * it instead; the entry is then stored only once the caller has read the
+ * whole body and it did not exceed the maximum object size.</p>
+ *
+ * <p><b>Byte ranges</b>. By default the cache neither stores nor serves
+ * partial content. You can {@link CacheConfig#setRangeSupportEnabled(boolean)
+ * enable range support} to have {@code Range} requests answered from cached
+ * entries and {@code 206 Partial Content} responses stored and merged.</p>
+ *
+ * <p><b>Uncacheable requests</b>. By default every request passes through
+ * the cache's protocol handling, even those whose responses can never be
+ * cached, such as {@code POST} or {@code PUT}. You can {@link
+ * CacheConfig#setUncacheableRequestBypassEnabled(boolean) enable the
+ * bypass} to have such requests sent to the backend as they are, without
+ * request rewriting, {@code Via} headers or cache statistics; only the
+ * cache entries they invalidate are flushed. The cache then no longer
+ * acts as a fully compliant HTTP/1.1 intermediary for these requests.</p>
  */
 public class CacheConfig {
 
@@ -131,6 +169,26 @@ public class CacheConfig {
      */
     public static final int DEFAULT_REVALIDATION_QUEUE_SIZE = 100;
 
+    /** Default maximum number of times a failed background revalidation
+     * is retried.
+     */
+    public static final int DEFAULT_REVALIDATION_RETRIES_MAX = 3;
+
+    /** Default delay in milliseconds before the first retry of a failed
+     * background revalidation.
+     */
+    public static final long DEFAULT_REVALIDATION_RETRY_DELAY_MILLIS = 1000L;
+
+    /** Default minimum number of hits on a cache entry before it is
+     * refreshed ahead of expiry.
+     */
+    public static final int DEFAULT_REFRESH_AHEAD_MIN_HITS = 3;
+
+    /** Default fraction of the freshness lifetime of a cache entry after
+     * which it is refreshed ahead of expiry.
+     */
+    public static final float DEFAULT_REFRESH_AHEAD_THRESHOLD = 0.8f;
+
     private long maxObjectSize = DEFAULT_MAX_OBJECT_SIZE_BYTES;
     private int maxCacheEntries = DEFAULT_MAX_CACHE_ENTRIES;
     private int maxUpdateRetries = DEFAULT_MAX_UPDATE_RETRIES;
@@ -142,6 +200,14 @@ public class CacheConfig {
     private int asynchronousWorkersCore = DEFAULT_ASYNCHRONOUS_WORKERS_CORE;
     private int asynchronousWorkerIdleLifetimeSecs = DEFAULT_ASYNCHRONOUS_WORKER_IDLE_LIFETIME_SECS;
     private int revalidationQueueSize = DEFAULT_REVALIDATION_QUEUE_SIZE;
+    private int revalidationRetriesMax = DEFAULT_REVALIDATION_RETRIES_MAX;
+    private long revalidationRetryDelayMillis = DEFAULT_REVALIDATION_RETRY_DELAY_MILLIS;
+    private boolean streamingCacheFillEnabled = false;
+    private boolean rangeSupportEnabled = false;
+    private boolean refreshAheadEnabled = false;
+    private int refreshAheadMinHits = DEFAULT_REFRESH_AHEAD_MIN_HITS;
+    private float refreshAheadThreshold = DEFAULT_REFRESH_AHEAD_THRESHOLD;
+    private boolean uncacheableRequestBypassEnabled = false;
 
     /**
      * Returns the current maximum response body size that will be cached.
@@ -367,5 +433,176 @@ public class CacheConfig {
         this.revalidationQueueSize = size;
     }
 
+    /**
+     * Returns the maximum number of times a failed background revalidation
+     * is retried.
+     *
+     * @since 4.3
+     */
+    public int getRevalidationRetriesMax() {
+        return revalidationRetriesMax;
+    }
+
+    /**
+     * Sets the maximum number of times a background revalidation is retried
+     * when the origin cannot be reached or responds with a server error.
+     * Retries are only made when background revalidations are run by a
+     * {@link java.util.concurrent.ScheduledExecutorService}.
+     *
+     * @since 4.3
+     */
+    public void setRevalidationRetriesMax(int retries) {
+        this.revalidationRetriesMax = retries;
+    }
+
+    /**
+     * Returns the delay in milliseconds before the first retry of a failed
+     * background revalidation.
+     *
+     * @since 4.3
+     */
+    public long getRevalidationRetryDelayMillis() {
+        return revalidationRetryDelayMillis;
+    }
+
+    /**
+     * Sets the delay in milliseconds before the first retry of a failed
+     * background revalidation. The delay doubles with every further retry.
+     *
+     * @since 4.3
+     */
+    public void setRevalidationRetryDelayMillis(long delay) {
+        this.revalidationRetryDelayMillis = delay;
+    }
+
+    /**
+     * Returns whether response bodies are copied into the cache while the
+     * caller reads them rather than before the response is returned.
+     *
+     * @since 4.3
+     */
+    public boolean isStreamingCacheFillEnabled() {
+        return streamingCacheFillEnabled;
+    }
+
+    /**
+     * Enables or disables streaming cache fill. When enabled, a cacheable
+     * response is returned to the caller as soon as its headers are
+     * available and its body is copied into the cache as it is consumed.
+     * The cache entry is stored only if the caller reads the body to the
+     * end and it fits within the {@link #setMaxObjectSize(long) maximum
+     * object size}; otherwise it is dropped.
+     *
+     * @since 4.3
+     */
+    public void setStreamingCacheFillEnabled(boolean streamingCacheFillEnabled) {
+        this.streamingCacheFillEnabled = streamingCacheFillEnabled;
+    }
+
+    /**
+     * Returns whether the cache supports the {@code Range} and
+     * {@code Content-Range} headers.
+     *
+     * @since 4.3
+     */
+    public boolean isRangeSupportEnabled() {
+        return rangeSupportEnabled;
+    }
+
+    /**
+     * Enables or disables support for byte ranges. When enabled, a request
+     * with a single byte range (optionally guarded by {@code If-Range}) is
+     * answered with the requested part of a cached entry, and cacheable
+     * {@code 206 Partial Content} responses with a strong entity tag are
+     * stored as fragments that are merged as further ranges arrive. A
+     * fragment that grows to cover the whole representation becomes a
+     * regular cache entry.
+     *
+     * @since 4.3
+     */
+    public void setRangeSupportEnabled(boolean rangeSupportEnabled) {
+        this.rangeSupportEnabled = rangeSupportEnabled;
+    }
+
+    /**
+     * Returns whether frequently hit cache entries are revalidated in the
+     * background before they expire.
+     *
+     * @since 4.3
+     */
+    public boolean isRefreshAheadEnabled() {
+        return refreshAheadEnabled;
+    }
+
+    /**
+     * Enables or disables refresh-ahead of frequently hit cache entries.
+     *
+     * @since 4.3
+     */
+    public void setRefreshAheadEnabled(boolean refreshAheadEnabled) {
+        this.refreshAheadEnabled = refreshAheadEnabled;
+    }
+
+    /**
+     * Returns the minimum number of hits on a cache entry before it is
+     * refreshed ahead of expiry.
+     *
+     * @since 4.3
+     */
+    public int getRefreshAheadMinHits() {
+        return refreshAheadMinHits;
+    }
+
+    /**
+     * Sets the minimum number of hits on a cache entry, counted since it
+     * was last refreshed, before it is refreshed ahead of expiry.
+     *
+     * @since 4.3
+     */
+    public void setRefreshAheadMinHits(int minHits) {
+        this.refreshAheadMinHits = minHits;
+    }
+
+    /**
+     * Returns the fraction of the freshness lifetime of a cache entry
+     * after which it is refreshed ahead of expiry.
+     *
+     * @since 4.3
+     */
+    public float getRefreshAheadThreshold() {
+        return refreshAheadThreshold;
+    }
+
+    /**
+     * Sets the fraction of the freshness lifetime of a cache entry, between
+     * 0 and 1, after which a frequently hit entry is refreshed ahead of
+     * expiry.
+     *
+     * @since 4.3
+     */
+    public void setRefreshAheadThreshold(float threshold) {
+        this.refreshAheadThreshold = threshold;
+    }
+
+    /**
+     * Returns whether requests whose responses can never be cached are
+     * sent straight to the backend.
+     *
+     * @since 4.3
+     */
+    public boolean isUncacheableRequestBypassEnabled() {
+        return uncacheableRequestBypassEnabled;
+    }
+
+    /**
+     * Enables or disables sending requests whose responses can never be
+     * cached straight to the backend, skipping the protocol handling of
+     * the cache apart from the invalidation of affected entries.
+     *
+     * @since 4.3
+     */
+    public void setUncacheableRequestBypassEnabled(boolean uncacheableRequestBypassEnabled) {
+        this.uncacheableRequestBypassEnabled = uncacheableRequestBypassEnabled;
+    }
 
 }
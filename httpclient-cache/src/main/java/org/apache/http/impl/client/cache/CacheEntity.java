@@ -26,6 +26,7 @@
  */
 package org.apache.http.impl.client.cache;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -36,18 +37,54 @@ import org.apache.http.HttpEntity;
 import org.apache.http.annotation.Immutable;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.Resource;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.protocol.HTTP;
 
 @Immutable
 class CacheEntity implements HttpEntity, Serializable {
 
-    private static final long serialVersionUID = -3467082284120936233L;
+    private static final long serialVersionUID = 2374823581604231487L;
 
     private final HttpCacheEntry cacheEntry;
+    private final long offset;
+    private final long length;
+    private final boolean deflated;
 
     public CacheEntity(final HttpCacheEntry cacheEntry) {
+        this(cacheEntry, 0, -1);
+    }
+
+    /**
+     * Creates an entity for the cached body as it is stored by a
+     * {@link CompressingResourceFactory}, sent with the {@code deflate}
+     * content coding.
+     */
+    CacheEntity(final HttpCacheEntry cacheEntry, boolean deflated) {
+        super();
+        this.cacheEntry = cacheEntry;
+        this.offset = 0;
+        this.length = -1;
+        this.deflated = deflated;
+    }
+
+    /**
+     * Creates an entity for the part of the cached body that starts at
+     * {@code offset} and is {@code length} bytes long.
+     */
+    CacheEntity(final HttpCacheEntry cacheEntry, long offset, long length) {
         super();
         this.cacheEntry = cacheEntry;
+        this.offset = offset;
+        this.length = length;
+        this.deflated = false;
+    }
+
+    private Resource getResource() {
+        Resource resource = this.cacheEntry.getResource();
+        if (this.deflated) {
+            return ((CompressedResource) resource).getCompressedResource();
+        }
+        return resource;
     }
 
     public Header getContentType() {
@@ -55,6 +92,9 @@ class CacheEntity implements HttpEntity, Serializable {
     }
 
     public Header getContentEncoding() {
+        if (this.deflated) {
+            return new BasicHeader(HTTP.CONTENT_ENCODING, "deflate");
+        }
         return this.cacheEntry.getFirstHeader(HTTP.CONTENT_ENCODING);
     }
 
@@ -67,19 +107,26 @@ class CacheEntity implements HttpEntity, Serializable {
     }
 
     public long getContentLength() {
-        Resource resource = this.cacheEntry.getResource();
+        if (this.length >= 0) {
+            return this.length;
+        }
+        Resource resource = getResource();
 		return (resource != null) ? resource.length() : 0L;
     }
 
     public InputStream getContent() throws IOException {
-        return this.cacheEntry.getResource().getInputStream();
+        InputStream instream = getResource().getInputStream();
+        if (this.length < 0) {
+            return instream;
+        }
+        return new SliceInputStream(instream, this.offset, this.length);
     }
 
     public void writeTo(final OutputStream outstream) throws IOException {
         if (outstream == null) {
             throw new IllegalArgumentException("Output stream may not be null");
         }
-        InputStream instream = this.cacheEntry.getResource().getInputStream();
+        InputStream instream = getContent();
         try {
             IOUtils.copy(instream, outstream);
         } finally {
@@ -94,6 +141,80 @@ class CacheEntity implements HttpEntity, Serializable {
     public void consumeContent() throws IOException {
     }
 
+    static class SliceInputStream extends FilterInputStream {
+
+        private long toSkip;
+        private long remaining;
+
+        SliceInputStream(final InputStream in, long offset, long length) {
+            super(in);
+            this.toSkip = offset;
+            this.remaining = length;
+        }
+
+        private void skipToOffset() throws IOException {
+            while (toSkip > 0) {
+                long n = in.skip(toSkip);
+                if (n <= 0) {
+                    if (in.read() == -1) {
+                        toSkip = 0;
+                        remaining = 0;
+                        return;
+                    }
+                    n = 1;
+                }
+                toSkip -= n;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            skipToOffset();
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            skipToOffset();
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            skipToOffset();
+            long skipped = in.skip(Math.min(n, remaining));
+            if (skipped > 0) {
+                remaining -= skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+    }
+
     @Override
     public Object clone() throws CloneNotSupportedException {
         return super.clone();
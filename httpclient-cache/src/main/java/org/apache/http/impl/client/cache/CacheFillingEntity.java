@@ -0,0 +1,190 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.annotation.NotThreadSafe;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.util.ByteArrayBuffer;
+
+/**
+ * Response entity that hands the origin response body to the caller while
+ * copying it into a buffer on the side. Once the caller has read the body
+ * to the end {@link #bodyComplete(byte[], int)} is invoked with the copy,
+ * provided the body did not grow beyond the size limit. Closing the stream
+ * early or exceeding the limit drops the copy.
+ *
+ * @since 4.3
+ */
+@NotThreadSafe
+abstract class CacheFillingEntity extends AbstractHttpEntity {
+
+    private static final int INITIAL_CAPACITY = 8192;
+
+    private final HttpEntity wrapped;
+    private final long maxBodySize;
+
+    private InputStream content;
+
+    CacheFillingEntity(final HttpEntity wrapped, final long maxBodySize) {
+        super();
+        this.wrapped = wrapped;
+        this.maxBodySize = maxBodySize;
+        setContentType(wrapped.getContentType());
+        setContentEncoding(wrapped.getContentEncoding());
+        setChunked(wrapped.isChunked());
+    }
+
+    /**
+     * Called once the body has been read to the end within the size limit.
+     *
+     * @param body buffer holding the body
+     * @param len length of the body
+     */
+    abstract void bodyComplete(byte[] body, int len);
+
+    public long getContentLength() {
+        return wrapped.getContentLength();
+    }
+
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    public boolean isStreaming() {
+        return true;
+    }
+
+    public InputStream getContent() throws IOException, IllegalStateException {
+        if (content == null) {
+            content = new TeeStream(wrapped.getContent());
+        }
+        return content;
+    }
+
+    public void writeTo(final OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        InputStream instream = getContent();
+        try {
+            int l;
+            byte[] tmp = new byte[2048];
+            while ((l = instream.read(tmp)) != -1) {
+                outstream.write(tmp, 0, l);
+            }
+        } finally {
+            instream.close();
+        }
+    }
+
+    class TeeStream extends FilterInputStream {
+
+        private ByteArrayBuffer copy;
+        private boolean done;
+
+        TeeStream(final InputStream in) {
+            super(in);
+            long len = wrapped.getContentLength();
+            if (len > maxBodySize) {
+                this.done = true;
+            } else {
+                long capacity = Math.min(len >= 0 ? len : maxBodySize, INITIAL_CAPACITY);
+                this.copy = new ByteArrayBuffer(Math.max((int) capacity, 1));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                complete();
+            } else if (!done) {
+                if (copy.length() + 1 > maxBodySize) {
+                    drop();
+                } else {
+                    copy.append(b);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                complete();
+            } else if (!done && n > 0) {
+                if (copy.length() + n > maxBodySize) {
+                    drop();
+                } else {
+                    copy.append(b, off, n);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // skipped bytes cannot be copied, so the entry is incomplete
+            drop();
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            drop();
+            super.close();
+        }
+
+        private void complete() {
+            if (!done) {
+                done = true;
+                ByteArrayBuffer body = copy;
+                copy = null;
+                bodyComplete(body.buffer(), body.length());
+            }
+        }
+
+        private void drop() {
+            done = true;
+            copy = null;
+        }
+
+    }
+
+}
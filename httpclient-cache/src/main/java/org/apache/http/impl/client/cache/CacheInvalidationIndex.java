@@ -0,0 +1,99 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.annotation.GuardedBy;
+import org.apache.http.annotation.ThreadSafe;
+
+/**
+ * Reverse index from a canonical request URI to the keys of all other
+ * cache entries that must be invalidated together with it: the keys of
+ * its variants and the keys of entries whose {@code Content-Location}
+ * refers to it. The index only records entries stored through this
+ * instance and is bounded in size, so it may be incomplete; variants it
+ * misses become unreachable anyway once their parent entry is removed.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+class CacheInvalidationIndex {
+
+    @GuardedBy("this")
+    private final LinkedHashMap<String, Set<String>> relatedKeys;
+
+    CacheInvalidationIndex(final int maxUris) {
+        super();
+        this.relatedKeys = new LinkedHashMap<String, Set<String>>(20, 0.75f, true) {
+
+            private static final long serialVersionUID = 8011367542245476613L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Set<String>> eldest) {
+                return size() > maxUris;
+            }
+
+        };
+    }
+
+    /**
+     * Records that the entry stored under the given key is to be
+     * invalidated together with the given URI.
+     */
+    synchronized void addRelatedKey(final String uri, final String key) {
+        if (uri.equals(key)) {
+            return;
+        }
+        Set<String> keys = this.relatedKeys.get(uri);
+        if (keys == null) {
+            keys = new LinkedHashSet<String>();
+            this.relatedKeys.put(uri, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Removes and returns the keys recorded for the given URI.
+     */
+    synchronized Set<String> removeRelatedKeys(final String uri) {
+        Set<String> keys = this.relatedKeys.remove(uri);
+        if (keys == null) {
+            return Collections.emptySet();
+        }
+        return keys;
+    }
+
+    synchronized int size() {
+        return this.relatedKeys.size();
+    }
+
+}
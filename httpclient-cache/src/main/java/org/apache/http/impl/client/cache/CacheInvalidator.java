@@ -29,7 +29,11 @@ package org.apache.http.impl.client.cache;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,6 +42,7 @@ import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
 import org.apache.http.client.cache.HeaderConstants;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheStorage;
@@ -56,6 +61,7 @@ class CacheInvalidator {
 
     private final HttpCacheStorage storage;
     private final CacheKeyGenerator cacheKeyGenerator;
+    private final CacheInvalidationIndex index;
 
     private final Log log = LogFactory.getLog(getClass());
 
@@ -69,8 +75,25 @@ class CacheInvalidator {
     public CacheInvalidator(
             final CacheKeyGenerator uriExtractor,
             final HttpCacheStorage storage) {
+        this(uriExtractor, storage, null);
+    }
+
+    /**
+     * Create a new {@link CacheInvalidator} that finds the variants and
+     * aliases of an invalidated URI in the given index instead of looking
+     * up its parent entry in the storage.
+     *
+     * @param uriExtractor Provides identifiers for the keys to store cache entries
+     * @param storage the cache to store items away in
+     * @param index related keys of cached URIs; may be {@code null}
+     */
+    CacheInvalidator(
+            final CacheKeyGenerator uriExtractor,
+            final HttpCacheStorage storage,
+            final CacheInvalidationIndex index) {
         this.cacheKeyGenerator = uriExtractor;
         this.storage = storage;
+        this.index = index;
     }
 
     /**
@@ -81,37 +104,76 @@ class CacheInvalidator {
      * @param req The HttpRequest to that host
      */
     public void flushInvalidatedCacheEntries(HttpHost host, HttpRequest req)  {
+        flushInvalidatedCacheEntries(host, req, Collections.<String>emptySet());
+    }
+
+    /**
+     * Remove cache entries from the cache that are no longer fresh or
+     * have been invalidated in some way, together with the given keys.
+     * All keys are removed with a single operation if the storage is a
+     * {@link BulkHttpCacheStorage}.
+     *
+     * @param host The backend host we are talking to
+     * @param req The HttpRequest to that host
+     * @param extraKeys further keys to remove if the request invalidates
+     */
+    void flushInvalidatedCacheEntries(HttpHost host, HttpRequest req,
+            Collection<String> extraKeys)  {
         if (requestShouldNotBeCached(req)) {
             log.debug("Request should not be cached");
 
             String theUri = cacheKeyGenerator.getURI(host, req);
+            Set<String> keys = new LinkedHashSet<String>();
 
-            HttpCacheEntry parent = getEntry(theUri);
+            if (index != null) {
+                keys.add(theUri);
+                keys.addAll(index.removeRelatedKeys(theUri));
+            } else {
+                HttpCacheEntry parent = getEntry(theUri);
 
-            log.debug("parent entry: " + parent);
+                log.debug("parent entry: " + parent);
 
-            if (parent != null) {
-                for (String variantURI : parent.getVariantMap().values()) {
-                    flushEntry(variantURI);
+                if (parent != null) {
+                    keys.addAll(parent.getVariantMap().values());
+                    keys.add(theUri);
                 }
-                flushEntry(theUri);
             }
+            keys.addAll(extraKeys);
+
             URL reqURL = getAbsoluteURL(theUri);
             if (reqURL == null) {
                 log.error("Couldn't transform request into valid URL");
-                return;
-            }
-            Header clHdr = req.getFirstHeader("Content-Location");
-            if (clHdr != null) {
-                String contentLocation = clHdr.getValue();
-                if (!flushAbsoluteUriFromSameHost(reqURL, contentLocation)) {
-                    flushRelativeUriFromSameHost(reqURL, contentLocation);
+            } else {
+                Header clHdr = req.getFirstHeader("Content-Location");
+                if (clHdr != null) {
+                    String contentLocation = clHdr.getValue();
+                    if (!addAbsoluteUriFromSameHost(keys, reqURL, contentLocation)) {
+                        addRelativeUriFromSameHost(keys, reqURL, contentLocation);
+                    }
+                }
+                Header lHdr = req.getFirstHeader("Location");
+                if (lHdr != null) {
+                    addAbsoluteUriFromSameHost(keys, reqURL, lHdr.getValue());
                 }
             }
-            Header lHdr = req.getFirstHeader("Location");
-            if (lHdr != null) {
-                flushAbsoluteUriFromSameHost(reqURL, lHdr.getValue());
+            flushEntries(keys);
+        }
+    }
+
+    private void flushEntries(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (storage instanceof BulkHttpCacheStorage && keys.size() > 1) {
+            try {
+                ((BulkHttpCacheStorage) storage).removeEntries(keys);
+            } catch (IOException ioe) {
+                log.warn("unable to flush cache entries", ioe);
             }
+            return;
+        }
+        for (String key : keys) {
+            flushEntry(key);
         }
     }
 
@@ -132,25 +194,29 @@ class CacheInvalidator {
         return null;
     }
 
-    protected void flushUriIfSameHost(URL requestURL, URL targetURL) {
+    protected void addUriIfSameHost(Set<String> keys, URL requestURL, URL targetURL) {
         URL canonicalTarget = getAbsoluteURL(cacheKeyGenerator.canonicalizeUri(targetURL.toString()));
         if (canonicalTarget == null) return;
         if (canonicalTarget.getAuthority().equalsIgnoreCase(requestURL.getAuthority())) {
-            flushEntry(canonicalTarget.toString());
+            String key = canonicalTarget.toString();
+            keys.add(key);
+            if (index != null) {
+                keys.addAll(index.removeRelatedKeys(key));
+            }
         }
     }
 
-    protected void flushRelativeUriFromSameHost(URL reqURL, String relUri) {
+    protected void addRelativeUriFromSameHost(Set<String> keys, URL reqURL, String relUri) {
         URL relURL = getRelativeURL(reqURL, relUri);
         if (relURL == null) return;
-        flushUriIfSameHost(reqURL, relURL);
+        addUriIfSameHost(keys, reqURL, relURL);
     }
 
 
-    protected boolean flushAbsoluteUriFromSameHost(URL reqURL, String uri) {
+    protected boolean addAbsoluteUriFromSameHost(Set<String> keys, URL reqURL, String uri) {
         URL absURL = getAbsoluteURL(uri);
         if (absURL == null) return false;
-        flushUriIfSameHost(reqURL,absURL);
+        addUriIfSameHost(keys, reqURL,absURL);
         return true;
     }
 
@@ -205,7 +271,9 @@ class CacheInvalidator {
         if (responseDateOlderThanEntryDate(response, entry)) return;
         if (!responseAndEntryEtagsDiffer(response, entry)) return;
 
-        flushUriIfSameHost(reqURL, canonURL);
+        Set<String> keys = new LinkedHashSet<String>();
+        addUriIfSameHost(keys, reqURL, canonURL);
+        flushEntries(keys);
     }
 
     private URL getContentLocationURL(URL reqURL, HttpResponse response) {
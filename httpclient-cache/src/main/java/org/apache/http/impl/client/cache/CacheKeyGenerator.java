@@ -36,22 +36,31 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.http.Consts;
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
-import org.apache.http.annotation.Immutable;
+import org.apache.http.annotation.ThreadSafe;
 import org.apache.http.client.cache.HeaderConstants;
 import org.apache.http.client.cache.HttpCacheEntry;
 
 /**
  * @since 4.1
  */
-@Immutable
+@ThreadSafe
 class CacheKeyGenerator {
 
+    private static final int MAX_CACHED_URIS = 1000;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final ConcurrentMap<String, String> canonicalUris =
+        new ConcurrentHashMap<String, String>();
+
     /**
      * For a given {@link HttpHost} and {@link HttpRequest} get a URI from the
      * pair that I can use as an identifier KEY into my HttpCache
@@ -61,13 +70,101 @@ class CacheKeyGenerator {
      * @return String the extracted URI
      */
     public String getURI(HttpHost host, HttpRequest req) {
-        if (isRelativeRequest(req)) {
-            return canonicalizeUri(String.format("%s%s", host.toString(), req.getRequestLine().getUri()));
+        String requestUri = req.getRequestLine().getUri();
+        if (isRelativeRequest(requestUri)) {
+            String uri = canonicalizeRelativeUri(host, requestUri);
+            if (uri != null) {
+                return uri;
+            }
+            return canonicalizeUri(host.toString() + requestUri);
         }
-        return canonicalizeUri(req.getRequestLine().getUri());
+        return canonicalizeUri(requestUri);
+    }
+
+    /**
+     * Builds the canonical form of a relative request URI in a single pass
+     * over the target host and the request URI. Returns {@code null} for
+     * URIs that may be changed by canonicalization beyond lower-casing the
+     * host name and adding the default port, such as URIs with escaped
+     * characters, dot segments or fragments; these are canonicalized by
+     * {@link #canonicalizeUri(String)}.
+     */
+    private String canonicalizeRelativeUri(HttpHost host, String requestUri) {
+        String scheme = host.getSchemeName();
+        int port = host.getPort();
+        if ("http".equals(scheme)) {
+            if (port == -1) port = 80;
+        } else if ("https".equals(scheme)) {
+            if (port == -1) port = 443;
+        } else {
+            return null;
+        }
+        String hostname = host.getHostName();
+        if (requestUri.startsWith("//")) {
+            return null;
+        }
+        boolean inQuery = false;
+        char prev = 0;
+        for (int i = 0; i < requestUri.length(); i++) {
+            char ch = requestUri.charAt(i);
+            if (ch == '?') {
+                inQuery = true;
+            } else if (inQuery) {
+                if (!isQueryChar(ch)) return null;
+            } else {
+                if (!isPathChar(ch)) return null;
+                if (ch == '.' && prev == '/') return null;
+            }
+            prev = ch;
+        }
+        StringBuilder buf = new StringBuilder(
+                scheme.length() + hostname.length() + requestUri.length() + 9);
+        buf.append(scheme).append("://");
+        for (int i = 0; i < hostname.length(); i++) {
+            char ch = hostname.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                ch = (char) (ch + ('a' - 'A'));
+            } else if (!(ch >= 'a' && ch <= 'z') && !(ch >= '0' && ch <= '9')
+                    && ch != '.' && ch != '-') {
+                return null;
+            }
+            buf.append(ch);
+        }
+        buf.append(':').append(port).append(requestUri);
+        return buf.toString();
+    }
+
+    private static boolean isPathChar(char ch) {
+        if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')) {
+            return true;
+        }
+        switch (ch) {
+        case '/': case '-': case '.': case '_': case '~': case '!': case '$':
+        case '&': case '\'': case '(': case ')': case '*': case ',': case ';':
+        case '=': case ':': case '@':
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isQueryChar(char ch) {
+        return isPathChar(ch) || ch == '?' || ch == '%' || ch == '+';
     }
 
     public String canonicalizeUri(String uri) {
+        String canonical = canonicalUris.get(uri);
+        if (canonical == null) {
+            canonical = parseAndCanonicalizeUri(uri);
+            if (canonicalUris.size() >= MAX_CACHED_URIS) {
+                canonicalUris.clear();
+            }
+            canonicalUris.put(uri, canonical);
+        }
+        return canonical;
+    }
+
+    private String parseAndCanonicalizeUri(String uri) {
         try {
             URL u = new URL(uri);
             String protocol = u.getProtocol().toLowerCase();
@@ -103,8 +200,7 @@ class CacheKeyGenerator {
         return port;
     }
 
-    private boolean isRelativeRequest(HttpRequest req) {
-        String requestUri = req.getRequestLine().getUri();
+    private boolean isRelativeRequest(String requestUri) {
         return ("*".equals(requestUri) || requestUri.startsWith("/"));
     }
 
@@ -158,25 +254,49 @@ class CacheKeyGenerator {
         }
         Collections.sort(variantHeaderNames);
 
-        StringBuilder buf;
-        try {
-            buf = new StringBuilder("{");
-            boolean first = true;
-            for (String headerName : variantHeaderNames) {
-                if (!first) {
-                    buf.append("&");
-                }
-                buf.append(URLEncoder.encode(headerName, Consts.UTF_8.name()));
-                buf.append("=");
-                buf.append(URLEncoder.encode(getFullHeaderValue(req.getHeaders(headerName)),
-                        Consts.UTF_8.name()));
-                first = false;
+        StringBuilder buf = new StringBuilder("{");
+        boolean first = true;
+        for (String headerName : variantHeaderNames) {
+            if (!first) {
+                buf.append("&");
             }
-            buf.append("}");
-        } catch (UnsupportedEncodingException uee) {
-            throw new RuntimeException("couldn't encode to UTF-8", uee);
+            appendEncoded(buf, headerName);
+            buf.append("=");
+            appendEncoded(buf, getFullHeaderValue(req.getHeaders(headerName)));
+            first = false;
         }
+        buf.append("}");
         return buf.toString();
     }
 
+    /**
+     * Appends the {@code application/x-www-form-urlencoded} form of the
+     * given value, encoding ASCII values directly and leaving any other
+     * value to {@link URLEncoder}.
+     */
+    private static void appendEncoded(StringBuilder buf, String value) {
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            if (value.charAt(i) >= 0x80) {
+                try {
+                    buf.append(URLEncoder.encode(value, Consts.UTF_8.name()));
+                } catch (UnsupportedEncodingException uee) {
+                    throw new RuntimeException("couldn't encode to UTF-8", uee);
+                }
+                return;
+            }
+        }
+        for (int i = 0; i < len; i++) {
+            char ch = value.charAt(i);
+            if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+                    || ch == '.' || ch == '-' || ch == '*' || ch == '_') {
+                buf.append(ch);
+            } else if (ch == ' ') {
+                buf.append('+');
+            } else {
+                buf.append('%').append(HEX_DIGITS[ch >> 4]).append(HEX_DIGITS[ch & 0x0f]);
+            }
+        }
+    }
+
 }
@@ -36,6 +36,7 @@ final class CacheMap extends LinkedHashMap<String, HttpCacheEntry> {
     private static final long serialVersionUID = -7750025207539768511L;
 
     private final int maxEntries;
+    private long evictionCount;
 
     CacheMap(int maxEntries) {
         super(20, 0.75f, true);
@@ -44,7 +45,15 @@ final class CacheMap extends LinkedHashMap<String, HttpCacheEntry> {
 
     @Override
     protected boolean removeEldestEntry(final Map.Entry<String, HttpCacheEntry> eldest) {
-        return size() > this.maxEntries;
+        if (size() > this.maxEntries) {
+            this.evictionCount++;
+            return true;
+        }
+        return false;
+    }
+
+    long getEvictionCount() {
+        return this.evictionCount;
     }
 
 }
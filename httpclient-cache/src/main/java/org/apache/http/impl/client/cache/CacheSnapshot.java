@@ -0,0 +1,179 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.annotation.Immutable;
+import org.apache.http.client.cache.EnumerableHttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializationException;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.ResourceFactory;
+
+/**
+ * Writes the entries of a cache storage to a stream and loads them back
+ * into another storage, so that a freshly started application can begin
+ * serving cache hits straight away, using a snapshot taken from a peer
+ * or written to disk before a restart.
+ * <p>
+ * A snapshot holds the cache keys together with the cache entries,
+ * response bodies included, in the compact format of
+ * {@link BinaryHttpCacheEntrySerializer}. Entries that are no longer fresh
+ * are left out when a snapshot is written and skipped when it is loaded.
+ * Loading stops at the last complete entry if the snapshot was truncated,
+ * for instance because the peer writing it went away.
+ *
+ * @since 4.3
+ */
+@Immutable
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x48435301; // 'H' 'C' 'S' 0x01
+    private static final int ENTRY = 1;
+    private static final int END = 0;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final BinaryHttpCacheEntrySerializer serializer;
+    private final CacheValidityPolicy validityPolicy;
+
+    /**
+     * Creates a snapshot reader and writer that loads response bodies
+     * using the given {@link ResourceFactory}.
+     */
+    public CacheSnapshot(final ResourceFactory resourceFactory) {
+        super();
+        this.serializer = new BinaryHttpCacheEntrySerializer(resourceFactory);
+        this.validityPolicy = new CacheValidityPolicy();
+    }
+
+    /**
+     * Creates a snapshot reader and writer that loads response bodies
+     * on the heap.
+     */
+    public CacheSnapshot() {
+        this(new HeapResourceFactory());
+    }
+
+    Date getCurrentDate() {
+        return new Date();
+    }
+
+    /**
+     * Writes the fresh entries of the given storage to a stream. The
+     * stream is flushed but not closed.
+     *
+     * @param storage the storage to take the snapshot of
+     * @param os where to write the snapshot
+     * @return the number of entries written
+     * @throws IOException
+     */
+    public int writeTo(final EnumerableHttpCacheStorage storage, final OutputStream os)
+            throws IOException {
+        if (storage == null) {
+            throw new IllegalArgumentException("Cache storage may not be null");
+        }
+        if (os == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        Date now = getCurrentDate();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        int count = 0;
+        for (Map.Entry<String, HttpCacheEntry> entry : storage.getAllEntries().entrySet()) {
+            if (!this.validityPolicy.isResponseFresh(entry.getValue(), now)) {
+                continue;
+            }
+            out.writeByte(ENTRY);
+            byte[] key = entry.getKey().getBytes("UTF-8");
+            out.writeInt(key.length);
+            out.write(key);
+            this.serializer.writeTo(entry.getValue(), out);
+            count++;
+        }
+        out.writeByte(END);
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Loads the entries of a snapshot into the given storage, skipping
+     * those that are no longer fresh. The stream is not closed.
+     *
+     * @param is the snapshot
+     * @param storage the storage to put the entries in
+     * @return the number of entries loaded
+     * @throws IOException if the snapshot cannot be read or the storage
+     *   cannot store the entries
+     */
+    public int readFrom(final InputStream is, final HttpCacheStorage storage)
+            throws IOException {
+        if (is == null) {
+            throw new IllegalArgumentException("Input stream may not be null");
+        }
+        if (storage == null) {
+            throw new IllegalArgumentException("Cache storage may not be null");
+        }
+        Date now = getCurrentDate();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC) {
+            throw new HttpCacheEntrySerializationException("Unrecognized cache snapshot format");
+        }
+        int count = 0;
+        try {
+            while (in.readUnsignedByte() == ENTRY) {
+                int len = in.readInt();
+                if (len < 0 || len > BinaryHttpCacheEntrySerializer.MAX_STRING_LENGTH) {
+                    throw new HttpCacheEntrySerializationException("Invalid cache key length: " + len);
+                }
+                byte[] key = new byte[len];
+                in.readFully(key);
+                HttpCacheEntry entry = this.serializer.readFrom(in);
+                if (this.validityPolicy.isResponseFresh(entry, now)) {
+                    storage.putEntry(new String(key, "UTF-8"), entry);
+                    count++;
+                }
+            }
+        } catch (EOFException ex) {
+            log.warn("Cache snapshot is truncated; loaded " + count + " entries");
+        }
+        return count;
+    }
+
+}
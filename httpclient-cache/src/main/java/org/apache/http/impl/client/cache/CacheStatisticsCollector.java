@@ -0,0 +1,253 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.http.HttpHost;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheStatistics;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheStorageStatistics;
+
+/**
+ * Lock-free implementation of {@link HttpCacheStatistics} updated by the
+ * caching client and {@link BasicHttpCache}.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+class CacheStatisticsCollector implements HttpCacheStatistics {
+
+    /** Upper bounds of the object size histogram buckets. */
+    static final long[] OBJECT_SIZE_BUCKET_LIMITS = {
+        1024L, 4 * 1024L, 16 * 1024L, 64 * 1024L,
+        256 * 1024L, 1024 * 1024L, 4 * 1024 * 1024L
+    };
+
+    /** Per-host statistics are kept for at most this many hosts. */
+    static final int MAX_HOSTS = 1000;
+
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheUpdates = new AtomicLong();
+    private final AtomicLong revalidationFailures = new AtomicLong();
+    private final AtomicLong staleResponses = new AtomicLong();
+    private final AtomicLong entriesStored = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+    private final AtomicLongArray responseStatuses =
+        new AtomicLongArray(CacheResponseStatus.values().length);
+    private final AtomicLongArray objectSizes =
+        new AtomicLongArray(OBJECT_SIZE_BUCKET_LIMITS.length + 1);
+    private final ConcurrentMap<String, CacheStatisticsCollector> hosts;
+
+    private volatile HttpCacheStorage storage;
+    private volatile AsynchronousValidator validator;
+
+    CacheStatisticsCollector() {
+        this(true);
+    }
+
+    private CacheStatisticsCollector(boolean trackHosts) {
+        super();
+        this.hosts = trackHosts
+            ? new ConcurrentHashMap<String, CacheStatisticsCollector>()
+            : null;
+    }
+
+    void setStorage(final HttpCacheStorage storage) {
+        this.storage = storage;
+    }
+
+    void setValidator(final AsynchronousValidator validator) {
+        this.validator = validator;
+    }
+
+    private CacheStatisticsCollector forHost(final HttpHost target) {
+        if (hosts == null || target == null) {
+            return null;
+        }
+        String key = target.toHostString();
+        CacheStatisticsCollector stats = hosts.get(key);
+        if (stats == null) {
+            if (hosts.size() >= MAX_HOSTS) {
+                return null;
+            }
+            CacheStatisticsCollector created = new CacheStatisticsCollector(false);
+            stats = hosts.putIfAbsent(key, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    void recordCacheHit(final HttpHost target) {
+        cacheHits.incrementAndGet();
+        CacheStatisticsCollector stats = forHost(target);
+        if (stats != null) {
+            stats.cacheHits.incrementAndGet();
+        }
+    }
+
+    void recordCacheMiss(final HttpHost target) {
+        cacheMisses.incrementAndGet();
+        CacheStatisticsCollector stats = forHost(target);
+        if (stats != null) {
+            stats.cacheMisses.incrementAndGet();
+        }
+    }
+
+    void recordCacheUpdate(final HttpHost target) {
+        cacheUpdates.incrementAndGet();
+        CacheStatisticsCollector stats = forHost(target);
+        if (stats != null) {
+            stats.cacheUpdates.incrementAndGet();
+        }
+    }
+
+    void recordRevalidationFailure(final HttpHost target) {
+        revalidationFailures.incrementAndGet();
+        CacheStatisticsCollector stats = forHost(target);
+        if (stats != null) {
+            stats.revalidationFailures.incrementAndGet();
+        }
+    }
+
+    void recordStaleResponse(final HttpHost target) {
+        staleResponses.incrementAndGet();
+        CacheStatisticsCollector stats = forHost(target);
+        if (stats != null) {
+            stats.staleResponses.incrementAndGet();
+        }
+    }
+
+    void recordResponseStatus(final HttpHost target, final CacheResponseStatus status) {
+        responseStatuses.incrementAndGet(status.ordinal());
+        CacheStatisticsCollector stats = forHost(target);
+        if (stats != null) {
+            stats.responseStatuses.incrementAndGet(status.ordinal());
+        }
+    }
+
+    void recordEntryStored(final HttpHost target, final long size) {
+        doRecordEntryStored(size);
+        CacheStatisticsCollector stats = forHost(target);
+        if (stats != null) {
+            stats.doRecordEntryStored(size);
+        }
+    }
+
+    private void doRecordEntryStored(final long size) {
+        entriesStored.incrementAndGet();
+        if (size < 0) {
+            return;
+        }
+        bytesStored.addAndGet(size);
+        int bucket = 0;
+        while (bucket < OBJECT_SIZE_BUCKET_LIMITS.length
+                && size >= OBJECT_SIZE_BUCKET_LIMITS[bucket]) {
+            bucket++;
+        }
+        objectSizes.incrementAndGet(bucket);
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getCacheUpdates() {
+        return cacheUpdates.get();
+    }
+
+    public long getRevalidationFailures() {
+        return revalidationFailures.get();
+    }
+
+    public long getStaleResponses() {
+        return staleResponses.get();
+    }
+
+    public long getResponseCount(final CacheResponseStatus status) {
+        return responseStatuses.get(status.ordinal());
+    }
+
+    public long getEvictions() {
+        HttpCacheStorage current = storage;
+        if (current instanceof HttpCacheStorageStatistics) {
+            return ((HttpCacheStorageStatistics) current).getEvictionCount();
+        }
+        return -1;
+    }
+
+    public long getEntriesStored() {
+        return entriesStored.get();
+    }
+
+    public long getBytesStored() {
+        return bytesStored.get();
+    }
+
+    public long[] getObjectSizeBucketLimits() {
+        return OBJECT_SIZE_BUCKET_LIMITS.clone();
+    }
+
+    public long[] getObjectSizeHistogram() {
+        long[] histogram = new long[objectSizes.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = objectSizes.get(i);
+        }
+        return histogram;
+    }
+
+    public int getRevalidationQueueDepth() {
+        AsynchronousValidator current = validator;
+        return current != null ? current.getQueueDepth() : 0;
+    }
+
+    public Set<String> getHosts() {
+        if (hosts == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(hosts.keySet());
+    }
+
+    public HttpCacheStatistics getHostStatistics(final String host) {
+        return hosts != null ? hosts.get(host) : null;
+    }
+
+}
@@ -32,11 +32,9 @@ import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpRequest;
 import org.apache.http.annotation.Immutable;
+import org.apache.http.client.cache.CacheEntryFreshness;
 import org.apache.http.client.cache.HeaderConstants;
 import org.apache.http.client.cache.HttpCacheEntry;
-import org.apache.http.impl.cookie.DateParseException;
-import org.apache.http.impl.cookie.DateUtils;
-import org.apache.http.protocol.HTTP;
 
 /**
  * @since 4.1
@@ -44,7 +42,7 @@ import org.apache.http.protocol.HTTP;
 @Immutable
 class CacheValidityPolicy {
 
-    public static final long MAX_AGE = 2147483648L;
+    public static final long MAX_AGE = CacheEntryFreshness.MAX_AGE;
 
     CacheValidityPolicy() {
         super();
@@ -113,30 +111,19 @@ class CacheValidityPolicy {
     }
 
     public boolean mustRevalidate(final HttpCacheEntry entry) {
-        return hasCacheControlDirective(entry, HeaderConstants.CACHE_CONTROL_MUST_REVALIDATE);
+        return entry.getFreshness().isMustRevalidate();
     }
 
     public boolean proxyRevalidate(final HttpCacheEntry entry) {
-        return hasCacheControlDirective(entry, HeaderConstants.CACHE_CONTROL_PROXY_REVALIDATE);
+        return entry.getFreshness().isProxyRevalidate();
     }
 
     public boolean mayReturnStaleWhileRevalidating(final HttpCacheEntry entry, Date now) {
-        for (Header h : entry.getHeaders(HeaderConstants.CACHE_CONTROL)) {
-            for(HeaderElement elt : h.getElements()) {
-                if (HeaderConstants.STALE_WHILE_REVALIDATE.equalsIgnoreCase(elt.getName())) {
-                    try {
-                        int allowedStalenessLifetime = Integer.parseInt(elt.getValue());
-                        if (getStalenessSecs(entry, now) <= allowedStalenessLifetime) {
-                            return true;
-                        }
-                    } catch (NumberFormatException nfe) {
-                        // skip malformed directive
-                    }
-                }
-            }
+        long allowedStalenessLifetime = entry.getFreshness().getStaleWhileRevalidate();
+        if (allowedStalenessLifetime < 0) {
+            return false;
         }
-
-        return false;
+        return getStalenessSecs(entry, now) <= allowedStalenessLifetime;
     }
 
     public boolean mayReturnStaleIfError(HttpRequest request,
@@ -144,8 +131,7 @@ class CacheValidityPolicy {
         long stalenessSecs = getStalenessSecs(entry, now);
         return mayReturnStaleIfError(request.getHeaders(HeaderConstants.CACHE_CONTROL),
                                      stalenessSecs)
-                || mayReturnStaleIfError(entry.getHeaders(HeaderConstants.CACHE_CONTROL),
-                                         stalenessSecs);
+                || stalenessSecs <= entry.getFreshness().getStaleIfError();
     }
 
     private boolean mayReturnStaleIfError(Header[] headers, long stalenessSecs) {
@@ -169,43 +155,19 @@ class CacheValidityPolicy {
     }
 
     protected Date getDateValue(final HttpCacheEntry entry) {
-        Header dateHdr = entry.getFirstHeader(HTTP.DATE_HEADER);
-        if (dateHdr == null)
-            return null;
-        try {
-            return DateUtils.parseDate(dateHdr.getValue());
-        } catch (DateParseException dpe) {
-            // ignore malformed date
-        }
-        return null;
+        return entry.getFreshness().getDateValue();
     }
 
     protected Date getLastModifiedValue(final HttpCacheEntry entry) {
-        Header dateHdr = entry.getFirstHeader(HeaderConstants.LAST_MODIFIED);
-        if (dateHdr == null)
-            return null;
-        try {
-            return DateUtils.parseDate(dateHdr.getValue());
-        } catch (DateParseException dpe) {
-            // ignore malformed date
-        }
-        return null;
+        return entry.getFreshness().getLastModifiedValue();
     }
 
     protected long getContentLengthValue(final HttpCacheEntry entry) {
-        Header cl = entry.getFirstHeader(HTTP.CONTENT_LEN);
-        if (cl == null)
-            return -1;
-
-        try {
-            return Long.parseLong(cl.getValue());
-        } catch (NumberFormatException ex) {
-            return -1;
-        }
+        return entry.getFreshness().getContentLength();
     }
 
     protected boolean hasContentLengthHeader(HttpCacheEntry entry) {
-        return null != entry.getFirstHeader(HTTP.CONTENT_LEN);
+        return entry.getFreshness().hasContentLength();
     }
 
     /**
@@ -230,20 +192,7 @@ class CacheValidityPolicy {
     }
 
     protected long getAgeValue(final HttpCacheEntry entry) {
-        long ageValue = 0;
-        for (Header hdr : entry.getHeaders(HeaderConstants.AGE)) {
-            long hdrAge;
-            try {
-                hdrAge = Long.parseLong(hdr.getValue());
-                if (hdrAge < 0) {
-                    hdrAge = MAX_AGE;
-                }
-            } catch (NumberFormatException nfe) {
-                hdrAge = MAX_AGE;
-            }
-            ageValue = (hdrAge > ageValue) ? hdrAge : ageValue;
-        }
-        return ageValue;
+        return entry.getFreshness().getAge();
     }
 
     protected long getCorrectedReceivedAgeSecs(final HttpCacheEntry entry) {
@@ -267,48 +216,16 @@ class CacheValidityPolicy {
     }
 
     protected long getMaxAge(final HttpCacheEntry entry) {
-        long maxage = -1;
-        for (Header hdr : entry.getHeaders(HeaderConstants.CACHE_CONTROL)) {
-            for (HeaderElement elt : hdr.getElements()) {
-                if (HeaderConstants.CACHE_CONTROL_MAX_AGE.equals(elt.getName())
-                        || "s-maxage".equals(elt.getName())) {
-                    try {
-                        long currMaxAge = Long.parseLong(elt.getValue());
-                        if (maxage == -1 || currMaxAge < maxage) {
-                            maxage = currMaxAge;
-                        }
-                    } catch (NumberFormatException nfe) {
-                        // be conservative if can't parse
-                        maxage = 0;
-                    }
-                }
-            }
-        }
-        return maxage;
+        return entry.getFreshness().getMaxAge();
     }
 
     protected Date getExpirationDate(final HttpCacheEntry entry) {
-        Header expiresHeader = entry.getFirstHeader(HeaderConstants.EXPIRES);
-        if (expiresHeader == null)
-            return null;
-        try {
-            return DateUtils.parseDate(expiresHeader.getValue());
-        } catch (DateParseException dpe) {
-            // malformed expires header
-        }
-        return null;
+        return entry.getFreshness().getExpiresValue();
     }
 
     public boolean hasCacheControlDirective(final HttpCacheEntry entry,
             final String directive) {
-        for (Header h : entry.getHeaders(HeaderConstants.CACHE_CONTROL)) {
-            for(HeaderElement elt : h.getElements()) {
-                if (directive.equalsIgnoreCase(elt.getName())) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return entry.getFreshness().hasCacheControlDirective(directive);
     }
 
     public long getStalenessSecs(HttpCacheEntry entry, Date now) {
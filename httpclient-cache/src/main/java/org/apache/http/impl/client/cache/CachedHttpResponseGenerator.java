@@ -29,13 +29,18 @@ package org.apache.http.impl.client.cache;
 import java.util.Date;
 
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
 import org.apache.http.annotation.Immutable;
+import org.apache.http.client.cache.CacheEntryFreshness;
 import org.apache.http.client.cache.HeaderConstants;
 import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.cookie.DateParseException;
 import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpResponse;
@@ -78,7 +83,94 @@ class CachedHttpResponseGenerator {
         addMissingContentLengthHeader(response, entity);
         response.setEntity(entity);
 
+        addAgeHeader(response, entry, now);
+        return response;
+    }
 
+    /**
+     * Generate a response carrying the whole cached body. If the body is
+     * held compressed by a {@link CompressingResourceFactory}, the origin
+     * sent it without a content coding and the request accepts the
+     * {@code deflate} coding, the body is sent in the compressed form it
+     * is stored in, saving both the decompression and the bandwidth.
+     *
+     * @param request the client request
+     * @param entry the cache entry to serve
+     * @return {@link HttpResponse} that was constructed
+     */
+    HttpResponse generateFullResponse(HttpRequest request, HttpCacheEntry entry) {
+        if (!(entry.getResource() instanceof CompressedResource)
+                || entry.getFirstHeader(HTTP.CONTENT_ENCODING) != null
+                || entry.getFirstHeader("Content-MD5") != null
+                || !acceptsDeflate(request)) {
+            return generateResponse(entry);
+        }
+        Date now = new Date();
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, entry
+                .getStatusCode(), entry.getReasonPhrase());
+
+        HttpEntity entity = new CacheEntity(entry, true);
+        response.setHeaders(entry.getAllHeaders());
+        response.removeHeaders(HTTP.TRANSFER_ENCODING);
+        response.setHeader(HTTP.CONTENT_LEN, Long.toString(entity.getContentLength()));
+        response.setHeader(entity.getContentEncoding());
+        response.setEntity(entity);
+
+        // the coded representation is not byte-for-byte the one the
+        // origin validated, so only a weak entity tag still applies
+        Header etag = response.getFirstHeader(HeaderConstants.ETAG);
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            response.setHeader(HeaderConstants.ETAG, "W/" + etag.getValue());
+        }
+        addVaryAcceptEncoding(response);
+        addAgeHeader(response, entry, now);
+        return response;
+    }
+
+    private boolean acceptsDeflate(HttpRequest request) {
+        float any = 0f;
+        for (Header header : request.getHeaders("Accept-Encoding")) {
+            for (HeaderElement elt : header.getElements()) {
+                String coding = elt.getName();
+                if ("deflate".equalsIgnoreCase(coding)) {
+                    return getQValue(elt) > 0f;
+                }
+                if ("*".equals(coding)) {
+                    any = getQValue(elt);
+                }
+            }
+        }
+        return any > 0f;
+    }
+
+    private float getQValue(HeaderElement elt) {
+        NameValuePair q = elt.getParameterByName("q");
+        if (q == null || q.getValue() == null) {
+            return 1f;
+        }
+        try {
+            return Float.parseFloat(q.getValue());
+        } catch (NumberFormatException ex) {
+            return 0f;
+        }
+    }
+
+    private void addVaryAcceptEncoding(HttpResponse response) {
+        StringBuilder vary = new StringBuilder();
+        for (Header header : response.getHeaders(HeaderConstants.VARY)) {
+            for (HeaderElement elt : header.getElements()) {
+                String name = elt.getName();
+                if ("*".equals(name) || "Accept-Encoding".equalsIgnoreCase(name)) {
+                    return;
+                }
+                vary.append(name).append(", ");
+            }
+        }
+        vary.append("Accept-Encoding");
+        response.setHeader(HeaderConstants.VARY, vary.toString());
+    }
+
+    private void addAgeHeader(HttpResponse response, HttpCacheEntry entry, Date now) {
         long age = this.validityStrategy.getCurrentAgeSecs(entry, now);
         if (age > 0) {
             if (age >= Integer.MAX_VALUE) {
@@ -87,10 +179,110 @@ class CachedHttpResponseGenerator {
                 response.setHeader(HeaderConstants.AGE, "" + ((int) age));
             }
         }
+    }
+
+    /**
+     * Generate a response to a request that may carry a {@code Range}
+     * header. A single satisfiable byte range of a complete cached body is
+     * answered with a 206 response, an unsatisfiable one with a 416
+     * response; in every other case, including a non-matching
+     * {@code If-Range} validator, the whole entry is returned.
+     *
+     * @param request the client request
+     * @param entry the cache entry to serve
+     * @return {@link HttpResponse} that was constructed
+     */
+    HttpResponse generateResponse(HttpRequest request, HttpCacheEntry entry) {
+        Header range = request.getFirstHeader(HeaderConstants.RANGE);
+        if (range == null
+                || entry.getStatusCode() != HttpStatus.SC_OK
+                || entry.getResource() == null
+                || !ifRangeMatches(request, entry)) {
+            return generateFullResponse(request, entry);
+        }
+        long length = entry.getResource().length();
+        ByteRange requested = ByteRange.parseRange(range.getValue(), length);
+        if (requested == null) {
+            return generateFullResponse(request, entry);
+        }
+        if (requested == ByteRange.UNSATISFIABLE) {
+            return generateRangeNotSatisfiableResponse(entry, length);
+        }
+        return generatePartialResponse(entry, requested, requested.getFirst());
+    }
 
+    /**
+     * Generate a 206 - Partial Content response for the given range of the
+     * representation, whose first byte is found at {@code offset} within
+     * the body of the cache entry.
+     *
+     * @param entry the cache entry holding the bytes
+     * @param range the range to send
+     * @param offset position of the first byte of the range in the entry body
+     * @return {@link HttpResponse} that was constructed
+     */
+    HttpResponse generatePartialResponse(HttpCacheEntry entry, ByteRange range, long offset) {
+        Date now = new Date();
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_PARTIAL_CONTENT, "Partial Content");
+        response.setHeaders(entry.getAllHeaders());
+        response.removeHeaders(HTTP.TRANSFER_ENCODING);
+        response.setHeader(HeaderConstants.CONTENT_RANGE, range.toContentRange());
+        response.setHeader(HTTP.CONTENT_LEN, Long.toString(range.getLength()));
+        response.setEntity(new CacheEntity(entry, offset, range.getLength()));
+        addAgeHeader(response, entry, now);
         return response;
     }
 
+    /**
+     * Generate a 416 - Requested Range Not Satisfiable response for a
+     * representation of the given length.
+     */
+    HttpResponse generateRangeNotSatisfiableResponse(HttpCacheEntry entry, long length) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Requested Range Not Satisfiable");
+        Header dateHeader = entry.getFirstHeader(HTTP.DATE_HEADER);
+        if (dateHeader == null) {
+             dateHeader = new BasicHeader(HTTP.DATE_HEADER, DateUtils.formatDate(new Date()));
+        }
+        response.addHeader(dateHeader);
+        response.setHeader(HeaderConstants.CONTENT_RANGE, "bytes */" + length);
+        response.setHeader(HTTP.CONTENT_LEN, "0");
+        return response;
+    }
+
+    /**
+     * Evaluates the {@code If-Range} header of a request against a cache
+     * entry. An entity tag matches only if both tags are strong and equal;
+     * a date matches only if it equals the {@code Last-Modified} date of the
+     * entry and that date is a strong validator.
+     *
+     * @return {@code true} if there is no {@code If-Range} header or it matches
+     */
+    boolean ifRangeMatches(HttpRequest request, HttpCacheEntry entry) {
+        Header ifRange = request.getFirstHeader(HeaderConstants.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        String value = ifRange.getValue().trim();
+        CacheEntryFreshness freshness = entry.getFreshness();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            String etag = freshness.getETag();
+            return etag != null && !etag.startsWith("W/") && etag.equals(value);
+        }
+        try {
+            long date = DateUtils.parseDate(value).getTime();
+            long lastModified = freshness.getLastModified();
+            long dateValue = freshness.getDate();
+            return lastModified != CacheEntryFreshness.NO_DATE
+                && dateValue != CacheEntryFreshness.NO_DATE
+                && lastModified == date
+                && dateValue - lastModified >= 60 * 1000L;
+        } catch (DateParseException ex) {
+            return false;
+        }
+    }
+
     /**
      * Generate a 304 - Not Modified response from a {@link CacheEntity}.  This should be
      * used to respond to conditional requests, when the entry exists or has been re-validated.
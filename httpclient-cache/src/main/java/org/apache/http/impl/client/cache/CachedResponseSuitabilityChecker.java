@@ -26,7 +26,9 @@
  */
 package org.apache.http.impl.client.cache;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,6 +57,7 @@ class CachedResponseSuitabilityChecker {
     private final boolean useHeuristicCaching;
     private final float heuristicCoefficient;
     private final long heuristicDefaultLifetime;
+    private final boolean rangeSupport;
     private final CacheValidityPolicy validityStrategy;
 
     CachedResponseSuitabilityChecker(final CacheValidityPolicy validityStrategy,
@@ -65,19 +68,21 @@ class CachedResponseSuitabilityChecker {
         this.useHeuristicCaching = config.isHeuristicCachingEnabled();
         this.heuristicCoefficient = config.getHeuristicCoefficient();
         this.heuristicDefaultLifetime = config.getHeuristicDefaultLifetime();
+        this.rangeSupport = config.isRangeSupportEnabled();
     }
 
     CachedResponseSuitabilityChecker(CacheConfig config) {
         this(new CacheValidityPolicy(), config);
     }
 
-    private boolean isFreshEnough(HttpCacheEntry entry, HttpRequest request, Date now) {
+    private boolean isFreshEnough(HttpCacheEntry entry, HeaderElement[] requestCacheControl,
+            Date now) {
         if (validityStrategy.isResponseFresh(entry, now)) return true;
         if (useHeuristicCaching &&
                 validityStrategy.isResponseHeuristicallyFresh(entry, now, heuristicCoefficient, heuristicDefaultLifetime))
             return true;
         if (originInsistsOnFreshness(entry)) return false;
-        long maxstale = getMaxStale(request);
+        long maxstale = getMaxStale(requestCacheControl);
         if (maxstale == -1) return false;
         return (maxstale > validityStrategy.getStalenessSecs(entry, now));
     }
@@ -89,25 +94,23 @@ class CachedResponseSuitabilityChecker {
             validityStrategy.hasCacheControlDirective(entry, "s-maxage");
     }
 
-    private long getMaxStale(HttpRequest request) {
+    private long getMaxStale(HeaderElement[] requestCacheControl) {
         long maxstale = -1;
-        for(Header h : request.getHeaders(HeaderConstants.CACHE_CONTROL)) {
-            for(HeaderElement elt : h.getElements()) {
-                if (HeaderConstants.CACHE_CONTROL_MAX_STALE.equals(elt.getName())) {
-                    if ((elt.getValue() == null || "".equals(elt.getValue().trim()))
-                            && maxstale == -1) {
-                        maxstale = Long.MAX_VALUE;
-                    } else {
-                        try {
-                            long val = Long.parseLong(elt.getValue());
-                            if (val < 0) val = 0;
-                            if (maxstale == -1 || val < maxstale) {
-                                maxstale = val;
-                            }
-                        } catch (NumberFormatException nfe) {
-                            // err on the side of preserving semantic transparency
-                            maxstale = 0;
+        for(HeaderElement elt : requestCacheControl) {
+            if (HeaderConstants.CACHE_CONTROL_MAX_STALE.equals(elt.getName())) {
+                if ((elt.getValue() == null || "".equals(elt.getValue().trim()))
+                        && maxstale == -1) {
+                    maxstale = Long.MAX_VALUE;
+                } else {
+                    try {
+                        long val = Long.parseLong(elt.getValue());
+                        if (val < 0) val = 0;
+                        if (maxstale == -1 || val < maxstale) {
+                            maxstale = val;
                         }
+                    } catch (NumberFormatException nfe) {
+                        // err on the side of preserving semantic transparency
+                        maxstale = 0;
                     }
                 }
             }
@@ -131,7 +134,8 @@ class CachedResponseSuitabilityChecker {
      */
     public boolean canCachedResponseBeUsed(HttpHost host, HttpRequest request, HttpCacheEntry entry, Date now) {
 
-        if (!isFreshEnough(entry, request, now)) {
+        HeaderElement[] requestCacheControl = getCacheControlElements(request);
+        if (!isFreshEnough(entry, requestCacheControl, now)) {
             log.trace("Cache entry was not fresh enough");
             return false;
         }
@@ -150,62 +154,60 @@ class CachedResponseSuitabilityChecker {
             return false;
         }
 
-        for (Header ccHdr : request.getHeaders(HeaderConstants.CACHE_CONTROL)) {
-            for (HeaderElement elt : ccHdr.getElements()) {
-                if (HeaderConstants.CACHE_CONTROL_NO_CACHE.equals(elt.getName())) {
-                    log.trace("Response contained NO CACHE directive, cache was not suitable");
-                    return false;
-                }
+        for (HeaderElement elt : requestCacheControl) {
+            if (HeaderConstants.CACHE_CONTROL_NO_CACHE.equals(elt.getName())) {
+                log.trace("Response contained NO CACHE directive, cache was not suitable");
+                return false;
+            }
 
-                if (HeaderConstants.CACHE_CONTROL_NO_STORE.equals(elt.getName())) {
-                    log.trace("Response contained NO STORE directive, cache was not suitable");
-                    return false;
-                }
+            if (HeaderConstants.CACHE_CONTROL_NO_STORE.equals(elt.getName())) {
+                log.trace("Response contained NO STORE directive, cache was not suitable");
+                return false;
+            }
 
-                if (HeaderConstants.CACHE_CONTROL_MAX_AGE.equals(elt.getName())) {
-                    try {
-                        int maxage = Integer.parseInt(elt.getValue());
-                        if (validityStrategy.getCurrentAgeSecs(entry, now) > maxage) {
-                            log.trace("Response from cache was NOT suitable due to max age");
-                            return false;
-                        }
-                    } catch (NumberFormatException ex) {
-                        // err conservatively
-                        log.debug("Response from cache was malformed" + ex.getMessage());
+            if (HeaderConstants.CACHE_CONTROL_MAX_AGE.equals(elt.getName())) {
+                try {
+                    int maxage = Integer.parseInt(elt.getValue());
+                    if (validityStrategy.getCurrentAgeSecs(entry, now) > maxage) {
+                        log.trace("Response from cache was NOT suitable due to max age");
                         return false;
                     }
+                } catch (NumberFormatException ex) {
+                    // err conservatively
+                    log.debug("Response from cache was malformed" + ex.getMessage());
+                    return false;
                 }
+            }
 
-                if (HeaderConstants.CACHE_CONTROL_MAX_STALE.equals(elt.getName())) {
-                    try {
-                        int maxstale = Integer.parseInt(elt.getValue());
-                        if (validityStrategy.getFreshnessLifetimeSecs(entry) > maxstale) {
-                            log.trace("Response from cache was not suitable due to Max stale freshness");
-                            return false;
-                        }
-                    } catch (NumberFormatException ex) {
-                        // err conservatively
-                        log.debug("Response from cache was malformed: " + ex.getMessage());
+            if (HeaderConstants.CACHE_CONTROL_MAX_STALE.equals(elt.getName())) {
+                try {
+                    int maxstale = Integer.parseInt(elt.getValue());
+                    if (validityStrategy.getFreshnessLifetimeSecs(entry) > maxstale) {
+                        log.trace("Response from cache was not suitable due to Max stale freshness");
                         return false;
                     }
+                } catch (NumberFormatException ex) {
+                    // err conservatively
+                    log.debug("Response from cache was malformed: " + ex.getMessage());
+                    return false;
                 }
+            }
 
-                if (HeaderConstants.CACHE_CONTROL_MIN_FRESH.equals(elt.getName())) {
-                    try {
-                        long minfresh = Long.parseLong(elt.getValue());
-                        if (minfresh < 0L) return false;
-                        long age = validityStrategy.getCurrentAgeSecs(entry, now);
-                        long freshness = validityStrategy.getFreshnessLifetimeSecs(entry);
-                        if (freshness - age < minfresh) {
-                            log.trace("Response from cache was not suitable due to min fresh " +
-                                    "freshness requirement");
-                            return false;
-                        }
-                    } catch (NumberFormatException ex) {
-                        // err conservatively
-                        log.debug("Response from cache was malformed: " + ex.getMessage());
+            if (HeaderConstants.CACHE_CONTROL_MIN_FRESH.equals(elt.getName())) {
+                try {
+                    long minfresh = Long.parseLong(elt.getValue());
+                    if (minfresh < 0L) return false;
+                    long age = validityStrategy.getCurrentAgeSecs(entry, now);
+                    long freshness = validityStrategy.getFreshnessLifetimeSecs(entry);
+                    if (freshness - age < minfresh) {
+                        log.trace("Response from cache was not suitable due to min fresh " +
+                                "freshness requirement");
                         return false;
                     }
+                } catch (NumberFormatException ex) {
+                    // err conservatively
+                    log.debug("Response from cache was malformed: " + ex.getMessage());
+                    return false;
                 }
             }
         }
@@ -214,6 +216,20 @@ class CachedResponseSuitabilityChecker {
         return true;
     }
 
+    private HeaderElement[] getCacheControlElements(HttpRequest request) {
+        Header[] headers = request.getHeaders(HeaderConstants.CACHE_CONTROL);
+        if (headers.length == 1) {
+            return headers[0].getElements();
+        }
+        List<HeaderElement> elements = new ArrayList<HeaderElement>();
+        for (Header h : headers) {
+            for (HeaderElement elt : h.getElements()) {
+                elements.add(elt);
+            }
+        }
+        return elements.toArray(new HeaderElement[elements.size()]);
+    }
+
     /**
      * Is this request the type of conditional request we support?
      * @param request The current httpRequest being made
@@ -251,7 +267,7 @@ class CachedResponseSuitabilityChecker {
     }
 
     private boolean hasUnsupportedConditionalHeaders(HttpRequest request) {
-        return (request.getFirstHeader(HeaderConstants.IF_RANGE) != null
+        return ((!rangeSupport && request.getFirstHeader(HeaderConstants.IF_RANGE) != null)
                 || request.getFirstHeader(HeaderConstants.IF_MATCH) != null
                 || hasValidDateField(request, HeaderConstants.IF_UNMODIFIED_SINCE));
     }
@@ -271,8 +287,7 @@ class CachedResponseSuitabilityChecker {
      * @return boolean does the etag validator match
      */
     private boolean etagValidatorMatches(HttpRequest request, HttpCacheEntry entry) {
-        Header etagHeader = entry.getFirstHeader(HeaderConstants.ETAG);
-        String etag = (etagHeader != null) ? etagHeader.getValue() : null;
+        String etag = entry.getFreshness().getETag();
         Header[] ifNoneMatch = request.getHeaders(HeaderConstants.IF_NONE_MATCH);
         if (ifNoneMatch != null) {
             for (Header h : ifNoneMatch) {
@@ -297,16 +312,7 @@ class CachedResponseSuitabilityChecker {
      * @return  boolean Does the last modified header match
      */
     private boolean lastModifiedValidatorMatches(HttpRequest request, HttpCacheEntry entry, Date now) {
-        Header lastModifiedHeader = entry.getFirstHeader(HeaderConstants.LAST_MODIFIED);
-        Date lastModified = null;
-        try {
-            if(lastModifiedHeader != null) {
-                lastModified = DateUtils.parseDate(lastModifiedHeader.getValue());
-            }
-        } catch (DateParseException dpe) {
-            // nop
-        }
-
+        Date lastModified = entry.getFreshness().getLastModifiedValue();
         if (lastModified == null) {
             return false;
         }
@@ -33,7 +33,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -56,6 +56,7 @@ import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.cache.CacheResponseStatus;
 import org.apache.http.client.cache.HeaderConstants;
 import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStatistics;
 import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.cache.ResourceFactory;
 import org.apache.http.client.methods.HttpUriRequest;
@@ -120,11 +121,9 @@ public class CachingHttpClient implements HttpClient {
      */
     public static final String CACHE_RESPONSE_STATUS = "http.cache.response.status";
 
-    private final static boolean SUPPORTS_RANGE_AND_CONTENT_RANGE_HEADERS = false;
-
-    private final AtomicLong cacheHits = new AtomicLong();
-    private final AtomicLong cacheMisses = new AtomicLong();
-    private final AtomicLong cacheUpdates = new AtomicLong();
+    private final CacheStatisticsCollector statistics = new CacheStatisticsCollector();
+    private final ThreadLocal<CacheResponseStatus[]> currentResponseStatus =
+        new ThreadLocal<CacheResponseStatus[]>();
 
     private final Map<ProtocolVersion, String> viaHeaders = new HashMap<ProtocolVersion, String>(4);
 
@@ -140,11 +139,14 @@ public class CachingHttpClient implements HttpClient {
 
     private final long maxObjectSizeBytes;
     private final boolean sharedCache;
+    private final boolean supportsRangeAndContentRangeHeaders;
+    private final boolean bypassUncacheableRequests;
 
     private final ResponseProtocolCompliance responseCompliance;
     private final RequestProtocolCompliance requestCompliance;
 
     private final AsynchronousValidator asynchRevalidator;
+    private final RefreshAheadScheduler refreshAhead;
 
     private final Log log = LogFactory.getLog(getClass());
 
@@ -152,6 +154,14 @@ public class CachingHttpClient implements HttpClient {
             HttpClient client,
             HttpCache cache,
             CacheConfig config) {
+        this(client, cache, config, null);
+    }
+
+    CachingHttpClient(
+            HttpClient client,
+            HttpCache cache,
+            CacheConfig config,
+            ScheduledExecutorService revalidationExecutor) {
         super();
         if (client == null) {
             throw new IllegalArgumentException("HttpClient may not be null");
@@ -164,10 +174,13 @@ public class CachingHttpClient implements HttpClient {
         }
         this.maxObjectSizeBytes = config.getMaxObjectSize();
         this.sharedCache = config.isSharedCache();
+        this.supportsRangeAndContentRangeHeaders = config.isRangeSupportEnabled();
+        this.bypassUncacheableRequests = config.isUncacheableRequestBypassEnabled();
         this.backend = client;
         this.responseCache = cache;
         this.validityPolicy = new CacheValidityPolicy();
-        this.responseCachingPolicy = new ResponseCachingPolicy(maxObjectSizeBytes, sharedCache);
+        this.responseCachingPolicy = new ResponseCachingPolicy(maxObjectSizeBytes, sharedCache,
+                supportsRangeAndContentRangeHeaders);
         this.responseGenerator = new CachedHttpResponseGenerator(this.validityPolicy);
         this.cacheableRequestPolicy = new CacheableRequestPolicy();
         this.suitabilityChecker = new CachedResponseSuitabilityChecker(this.validityPolicy, config);
@@ -176,7 +189,9 @@ public class CachingHttpClient implements HttpClient {
         this.responseCompliance = new ResponseProtocolCompliance();
         this.requestCompliance = new RequestProtocolCompliance();
 
-        this.asynchRevalidator = makeAsynchronousValidator(config);
+        this.asynchRevalidator = makeAsynchronousValidator(config, revalidationExecutor);
+        this.refreshAhead = makeRefreshAheadScheduler(config);
+        initStatistics();
     }
 
     /**
@@ -247,6 +262,41 @@ public class CachingHttpClient implements HttpClient {
                 config);
     }
 
+    /**
+     * Constructs a {@code CachingHttpClient} with the given caching options
+     * that stores cache entries in the provided storage backend and uses
+     * the given {@link HttpClient} for backend requests. Background
+     * revalidations are run by the given executor, which is shared with
+     * the caller and is not shut down by this client; see
+     * {@link CacheConfig#setRevalidationRetriesMax(int)}.
+     * @param client used to make origin requests
+     * @param resourceFactory how to manage cached response bodies
+     * @param storage where to store cache entries
+     * @param config cache module options
+     * @param revalidationExecutor runs background revalidations
+     *
+     * @since 4.3
+     */
+    public CachingHttpClient(
+            HttpClient client,
+            ResourceFactory resourceFactory,
+            HttpCacheStorage storage,
+            CacheConfig config,
+            ScheduledExecutorService revalidationExecutor) {
+        this(client,
+                new BasicHttpCache(resourceFactory, storage, config),
+                config,
+                checkRevalidationExecutor(revalidationExecutor));
+    }
+
+    private static ScheduledExecutorService checkRevalidationExecutor(
+            final ScheduledExecutorService revalidationExecutor) {
+        if (revalidationExecutor == null) {
+            throw new IllegalArgumentException("Revalidation executor may not be null");
+        }
+        return revalidationExecutor;
+    }
+
     /**
      * Constructs a {@code CachingHttpClient} with the given caching options
      * that stores cache entries in the provided storage backend and uses
@@ -278,6 +328,8 @@ public class CachingHttpClient implements HttpClient {
         CacheConfig config = new CacheConfig();
         this.maxObjectSizeBytes = config.getMaxObjectSize();
         this.sharedCache = config.isSharedCache();
+        this.supportsRangeAndContentRangeHeaders = config.isRangeSupportEnabled();
+        this.bypassUncacheableRequests = config.isUncacheableRequestBypassEnabled();
         this.backend = backend;
         this.validityPolicy = validityPolicy;
         this.responseCachingPolicy = responseCachingPolicy;
@@ -288,11 +340,30 @@ public class CachingHttpClient implements HttpClient {
         this.conditionalRequestBuilder = conditionalRequestBuilder;
         this.responseCompliance = responseCompliance;
         this.requestCompliance = requestCompliance;
-        this.asynchRevalidator = makeAsynchronousValidator(config);
+        this.asynchRevalidator = makeAsynchronousValidator(config, null);
+        this.refreshAhead = makeRefreshAheadScheduler(config);
+        initStatistics();
+    }
+
+    private void initStatistics() {
+        statistics.setValidator(asynchRevalidator);
+        if (responseCache instanceof BasicHttpCache) {
+            ((BasicHttpCache) responseCache).setStatisticsCollector(statistics);
+        }
+    }
+
+    private RefreshAheadScheduler makeRefreshAheadScheduler(CacheConfig config) {
+        if (asynchRevalidator != null && config.isRefreshAheadEnabled()) {
+            return new RefreshAheadScheduler(asynchRevalidator, validityPolicy, config);
+        }
+        return null;
     }
 
     private AsynchronousValidator makeAsynchronousValidator(
-            CacheConfig config) {
+            CacheConfig config, ScheduledExecutorService revalidationExecutor) {
+        if (revalidationExecutor != null) {
+            return new AsynchronousValidator(this, revalidationExecutor, config);
+        }
         if (config.getAsynchronousWorkersMax() > 0) {
             return new AsynchronousValidator(this, config);
         }
@@ -305,7 +376,7 @@ public class CachingHttpClient implements HttpClient {
      * @return the number of cache hits
      */
     public long getCacheHits() {
-        return cacheHits.get();
+        return statistics.getCacheHits();
     }
 
     /**
@@ -314,7 +385,7 @@ public class CachingHttpClient implements HttpClient {
      * @return the number of cache misses
      */
     public long getCacheMisses() {
-        return cacheMisses.get();
+        return statistics.getCacheMisses();
     }
 
     /**
@@ -323,7 +394,20 @@ public class CachingHttpClient implements HttpClient {
      * @return the number of cache revalidations
      */
     public long getCacheUpdates() {
-        return cacheUpdates.get();
+        return statistics.getCacheUpdates();
+    }
+
+    /**
+     * Returns the statistics of this cache: hits, misses, validations,
+     * responses by {@link CacheResponseStatus}, stored object sizes and
+     * their per-host breakdown, as well as storage evictions where the
+     * storage backend reports them.
+     * @return live view of the cache statistics
+     *
+     * @since 4.3
+     */
+    public HttpCacheStatistics getStatistics() {
+        return statistics;
     }
 
     public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
@@ -405,6 +489,46 @@ public class CachingHttpClient implements HttpClient {
 
     public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context)
             throws IOException {
+        if (bypassUncacheableRequests && isNeverCacheable(request)) {
+            return bypassCache(target, request, context);
+        }
+        CacheResponseStatus[] status = new CacheResponseStatus[1];
+        currentResponseStatus.set(status);
+        try {
+            HttpResponse response = handleRequest(target, request, context);
+            if (status[0] != null) {
+                statistics.recordResponseStatus(target, status[0]);
+            }
+            return response;
+        } finally {
+            currentResponseStatus.remove();
+        }
+    }
+
+    /**
+     * Only responses to {@code GET} requests are ever stored, so requests
+     * with any other method (apart from the {@code OPTIONS} requests the
+     * cache answers itself) cannot benefit from the cache.
+     */
+    private boolean isNeverCacheable(HttpRequest request) {
+        String method = request.getRequestLine().getMethod();
+        return !HeaderConstants.GET_METHOD.equals(method)
+            && !HeaderConstants.OPTIONS_METHOD.equals(method);
+    }
+
+    private HttpResponse bypassCache(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException {
+        if (context != null) {
+            context.setAttribute(CACHE_RESPONSE_STATUS, CacheResponseStatus.CACHE_MISS);
+        }
+        flushEntriesInvalidatedByRequest(target, request);
+        HttpResponse backendResponse = backend.execute(target, request, context);
+        responseCache.flushInvalidatedCacheEntriesFor(target, request, backendResponse);
+        return backendResponse;
+    }
+
+    private HttpResponse handleRequest(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException {
 
         // default response context
         setResponseStatus(context, CacheResponseStatus.CACHE_MISS);
@@ -432,6 +556,13 @@ public class CachingHttpClient implements HttpClient {
 
         HttpCacheEntry entry = satisfyFromCache(target, request);
         if (entry == null) {
+            if (supportsRangeAndContentRangeHeaders
+                    && request.containsHeader(HeaderConstants.RANGE)) {
+                HttpResponse out = satisfyRangeFromPartialEntry(target, request, context);
+                if (out != null) {
+                    return out;
+                }
+            }
             log.debug("Cache miss");
             return handleCacheMiss(target, request, context);
         }
@@ -447,7 +578,10 @@ public class CachingHttpClient implements HttpClient {
         Date now = getCurrentDate();
         if (suitabilityChecker.canCachedResponseBeUsed(target, request, entry, now)) {
             log.debug("Cache hit");
-            out = generateCachedResponse(request, context, entry, now);
+            out = generateCachedResponse(target, request, context, entry, now);
+            if (refreshAhead != null) {
+                refreshAhead.entryHit(target, request, context, entry, now);
+            }
         } else if (!mayCallBackend(request)) {
             log.debug("Cache entry not suitable but only-if-cached requested");
             out = generateGatewayTimeout(context);
@@ -476,7 +610,7 @@ public class CachingHttpClient implements HttpClient {
                 && !staleResponseNotAllowed(request, entry, now)
                 && validityPolicy.mayReturnStaleWhileRevalidating(entry, now)) {
                 log.trace("Serving stale with asynchronous revalidation");
-                final HttpResponse resp = generateCachedResponse(request, context, entry, now);
+                final HttpResponse resp = generateCachedResponse(target, request, context, entry, now);
 
                 asynchRevalidator.revalidateCacheEntry(target, request, context, entry);
 
@@ -484,12 +618,55 @@ public class CachingHttpClient implements HttpClient {
             }
             return revalidateCacheEntry(target, request, context, entry);
         } catch (IOException ioex) {
-            return handleRevalidationFailure(request, context, entry, now);
+            return handleRevalidationFailure(target, request, context, entry, now);
         } catch (ProtocolException e) {
             throw new ClientProtocolException(e);
         }
     }
 
+    private HttpResponse satisfyRangeFromPartialEntry(HttpHost target,
+            HttpRequest request, HttpContext context) {
+        HttpCacheEntry fragment = null;
+        try {
+            fragment = responseCache.getPartialCacheEntry(target, request);
+        } catch (IOException ioe) {
+            log.warn("Unable to retrieve partial entries from cache", ioe);
+        }
+        if (fragment == null) {
+            return null;
+        }
+        Header contentRange = fragment.getFirstHeader(HeaderConstants.CONTENT_RANGE);
+        ByteRange available = contentRange != null
+            ? ByteRange.parseContentRange(contentRange.getValue()) : null;
+        if (available == null) {
+            return null;
+        }
+        ByteRange requested = ByteRange.parseRange(
+                request.getFirstHeader(HeaderConstants.RANGE).getValue(),
+                available.getInstanceLength());
+        if (requested == null || requested == ByteRange.UNSATISFIABLE
+                || !available.contains(requested)
+                || !responseGenerator.ifRangeMatches(request, fragment)) {
+            return null;
+        }
+        Date now = getCurrentDate();
+        if (!suitabilityChecker.canCachedResponseBeUsed(target, request, fragment, now)) {
+            return null;
+        }
+        log.debug("Partial cache hit");
+        recordCacheHit(target, request);
+        HttpResponse out = responseGenerator.generatePartialResponse(fragment, requested,
+                requested.getFirst() - available.getFirst());
+        setResponseStatus(context, CacheResponseStatus.CACHE_HIT);
+        if (context != null) {
+            context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, target);
+            context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+            context.setAttribute(ExecutionContext.HTTP_RESPONSE, out);
+            context.setAttribute(ExecutionContext.HTTP_REQ_SENT, Boolean.TRUE);
+        }
+        return out;
+    }
+
     private HttpResponse handleCacheMiss(HttpHost target, HttpRequest request,
             HttpContext context) throws IOException {
         recordCacheMiss(target, request);
@@ -542,7 +719,7 @@ public class CachingHttpClient implements HttpClient {
     }
 
     private void recordCacheMiss(HttpHost target, HttpRequest request) {
-        cacheMisses.getAndIncrement();
+        statistics.recordCacheMiss(target);
         if (log.isTraceEnabled()) {
             RequestLine rl = request.getRequestLine();
             log.trace("Cache miss [host: " + target + "; uri: " + rl.getUri() + "]");
@@ -550,15 +727,15 @@ public class CachingHttpClient implements HttpClient {
     }
 
     private void recordCacheHit(HttpHost target, HttpRequest request) {
-        cacheHits.getAndIncrement();
+        statistics.recordCacheHit(target);
         if (log.isTraceEnabled()) {
             RequestLine rl = request.getRequestLine();
             log.trace("Cache hit [host: " + target + "; uri: " + rl.getUri() + "]");
         }
     }
 
-    private void recordCacheUpdate(HttpContext context) {
-        cacheUpdates.getAndIncrement();
+    private void recordCacheUpdate(HttpHost target, HttpContext context) {
+        statistics.recordCacheUpdate(target);
         setResponseStatus(context, CacheResponseStatus.VALIDATED);
     }
 
@@ -571,28 +748,32 @@ public class CachingHttpClient implements HttpClient {
         }
     }
 
-    private HttpResponse generateCachedResponse(HttpRequest request,
+    private HttpResponse generateCachedResponse(HttpHost target, HttpRequest request,
             HttpContext context, HttpCacheEntry entry, Date now) {
         final HttpResponse cachedResponse;
         if (request.containsHeader(HeaderConstants.IF_NONE_MATCH)
                 || request.containsHeader(HeaderConstants.IF_MODIFIED_SINCE)) {
             cachedResponse = responseGenerator.generateNotModifiedResponse(entry);
+        } else if (supportsRangeAndContentRangeHeaders) {
+            cachedResponse = responseGenerator.generateResponse(request, entry);
         } else {
-            cachedResponse = responseGenerator.generateResponse(entry);
+            cachedResponse = responseGenerator.generateFullResponse(request, entry);
         }
         setResponseStatus(context, CacheResponseStatus.CACHE_HIT);
         if (validityPolicy.getStalenessSecs(entry, now) > 0L) {
+            statistics.recordStaleResponse(target);
             cachedResponse.addHeader(HeaderConstants.WARNING,"110 localhost \"Response is stale\"");
         }
         return cachedResponse;
     }
 
-    private HttpResponse handleRevalidationFailure(HttpRequest request,
+    private HttpResponse handleRevalidationFailure(HttpHost target, HttpRequest request,
             HttpContext context, HttpCacheEntry entry, Date now) {
+        statistics.recordRevalidationFailure(target);
         if (staleResponseNotAllowed(request, entry, now)) {
             return generateGatewayTimeout(context);
         } else {
-            return unvalidatedCacheHit(context, entry);
+            return unvalidatedCacheHit(target, context, entry);
         }
     }
 
@@ -602,8 +783,9 @@ public class CachingHttpClient implements HttpClient {
                 HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout");
     }
 
-    private HttpResponse unvalidatedCacheHit(HttpContext context,
+    private HttpResponse unvalidatedCacheHit(HttpHost target, HttpContext context,
             HttpCacheEntry entry) {
+        statistics.recordStaleResponse(target);
         final HttpResponse cachedResponse = responseGenerator.generateResponse(entry);
         setResponseStatus(context, CacheResponseStatus.CACHE_HIT);
         cachedResponse.addHeader(HeaderConstants.WARNING, "111 localhost \"Revalidation failed\"");
@@ -676,6 +858,10 @@ public class CachingHttpClient implements HttpClient {
         if (context != null) {
             context.setAttribute(CACHE_RESPONSE_STATUS, value);
         }
+        CacheResponseStatus[] status = currentResponseStatus.get();
+        if (status != null) {
+            status[0] = value;
+        }
     }
 
     /**
@@ -685,7 +871,7 @@ public class CachingHttpClient implements HttpClient {
      * @return {@code true} if byte-range requests are supported
      */
     public boolean supportsRangeAndContentRangeHeaders() {
-        return SUPPORTS_RANGE_AND_CONTENT_RANGE_HEADERS;
+        return supportsRangeAndContentRangeHeaders;
     }
 
     /**
@@ -786,7 +972,7 @@ public class CachingHttpClient implements HttpClient {
                     matchedEntry);
         }
 
-        recordCacheUpdate(context);
+        recordCacheUpdate(target, context);
 
         HttpCacheEntry responseEntry = getUpdatedVariantEntry(target,
                 conditionalRequest, requestDate, responseDate, backendResponse,
@@ -864,7 +1050,7 @@ public class CachingHttpClient implements HttpClient {
 
         int statusCode = backendResponse.getStatusLine().getStatusCode();
         if (statusCode == HttpStatus.SC_NOT_MODIFIED || statusCode == HttpStatus.SC_OK) {
-            recordCacheUpdate(context);
+            recordCacheUpdate(target, context);
         }
 
         if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
@@ -881,6 +1067,7 @@ public class CachingHttpClient implements HttpClient {
             && !staleResponseNotAllowed(request, cacheEntry, getCurrentDate())
             && validityPolicy.mayReturnStaleIfError(request, cacheEntry, responseDate)) {
             final HttpResponse cachedResponse = responseGenerator.generateResponse(cacheEntry);
+            statistics.recordStaleResponse(target);
             cachedResponse.addHeader(HeaderConstants.WARNING, "110 localhost \"Response is stale\"");
             HttpEntity errorBody = backendResponse.getEntity();
             if (errorBody != null) EntityUtils.consume(errorBody);
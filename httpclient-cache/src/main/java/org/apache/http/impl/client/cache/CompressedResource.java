@@ -0,0 +1,80 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.annotation.Immutable;
+import org.apache.http.client.cache.Resource;
+
+/**
+ * Cache resource whose body is held by another {@link Resource} in
+ * zlib-wrapped deflate form, the format of the {@code deflate} HTTP
+ * content coding. The body is decompressed as it is read.
+ *
+ * @see CompressingResourceFactory
+ * @since 4.3
+ */
+@Immutable
+class CompressedResource implements Resource {
+
+    private static final long serialVersionUID = 4206713432512617537L;
+
+    private final Resource compressed;
+    private final long length;
+
+    CompressedResource(final Resource compressed, final long length) {
+        super();
+        this.compressed = compressed;
+        this.length = length;
+    }
+
+    /**
+     * Returns the resource holding the compressed body.
+     */
+    Resource getCompressedResource() {
+        return this.compressed;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return new InflaterInputStream(this.compressed.getInputStream());
+    }
+
+    /**
+     * Returns the length of the decompressed body.
+     */
+    public long length() {
+        return this.length;
+    }
+
+    public void dispose() {
+        this.compressed.dispose();
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+import org.apache.http.annotation.Immutable;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+
+/**
+ * {@link ResourceFactory} decorator that compresses response bodies before
+ * handing them to another factory for storage. Bodies are compressed with
+ * the deflate codec at a fast compression level, which typically shrinks
+ * text content such as HTML or JSON several times over, so the same memory,
+ * disk or memcached budget holds correspondingly more entries. Bodies that
+ * do not get smaller, such as images or content the origin already
+ * compressed, are stored as they are.
+ * <p>
+ * Compressed bodies are decompressed as they are read. When the client
+ * request accepts the {@code deflate} content coding, {@link CachingHttpClient}
+ * serves the compressed form directly instead.
+ *
+ * @since 4.3
+ */
+@Immutable
+public class CompressingResourceFactory implements ResourceFactory {
+
+    private final ResourceFactory backend;
+    private final int level;
+
+    /**
+     * Creates a factory that compresses bodies at the given deflate level.
+     * @param backend the factory used to store the (compressed) bodies
+     * @param level compression level, from {@link Deflater#BEST_SPEED} to
+     *   {@link Deflater#BEST_COMPRESSION}
+     */
+    public CompressingResourceFactory(final ResourceFactory backend, final int level) {
+        super();
+        if (backend == null) {
+            throw new IllegalArgumentException("Resource factory may not be null");
+        }
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.backend = backend;
+        this.level = level;
+    }
+
+    /**
+     * Creates a factory that compresses bodies favouring speed over
+     * compression ratio.
+     * @param backend the factory used to store the (compressed) bodies
+     */
+    public CompressingResourceFactory(final ResourceFactory backend) {
+        this(backend, Deflater.BEST_SPEED);
+    }
+
+    public Resource generate(
+            final String requestId,
+            final InputStream instream,
+            final InputLimit limit) throws IOException {
+        ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+        byte[] buf = new byte[2048];
+        long total = 0;
+        int l;
+        while ((l = instream.read(buf)) != -1) {
+            outstream.write(buf, 0, l);
+            total += l;
+            if (limit != null && total > limit.getValue()) {
+                limit.reached();
+                break;
+            }
+        }
+        byte[] body = outstream.toByteArray();
+        byte[] compressed = compress(body);
+        if (compressed == null) {
+            return this.backend.generate(requestId, new ByteArrayInputStream(body), null);
+        }
+        Resource resource = this.backend.generate(
+                requestId, new ByteArrayInputStream(compressed), null);
+        return new CompressedResource(resource, body.length);
+    }
+
+    /**
+     * Compresses the given body, returning {@code null} if the compressed
+     * form would not be smaller.
+     */
+    private byte[] compress(final byte[] body) {
+        if (body.length == 0) {
+            return null;
+        }
+        Deflater deflater = new Deflater(this.level);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            byte[] buf = new byte[body.length];
+            int len = 0;
+            while (!deflater.finished()) {
+                if (len == buf.length) {
+                    return null;
+                }
+                len += deflater.deflate(buf, len, buf.length - len);
+            }
+            if (len >= body.length) {
+                return null;
+            }
+            byte[] compressed = new byte[len];
+            System.arraycopy(buf, 0, compressed, 0, len);
+            return compressed;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public Resource copy(
+            final String requestId,
+            final Resource resource) throws IOException {
+        if (resource instanceof CompressedResource) {
+            CompressedResource compressed = (CompressedResource) resource;
+            return new CompressedResource(
+                    this.backend.copy(requestId, compressed.getCompressedResource()),
+                    compressed.length());
+        }
+        return this.backend.copy(requestId, resource);
+    }
+
+}
@@ -0,0 +1,852 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.annotation.GuardedBy;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializationException;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheStorageStatistics;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.client.cache.Resource;
+
+/**
+ * {@link HttpCacheStorage} implementation that persists cache entries in a
+ * directory on the local file system, so that the cache survives application
+ * restarts.
+ * <p>
+ * Every cache entry is stored as two files: the response metadata (status
+ * line, headers, variant map) in the compact format of
+ * {@link BinaryHttpCacheEntrySerializer}, and the raw response body, kept
+ * deflated if it was compressed by a {@link CompressingResourceFactory}.
+ * Bodies are handed out as {@link FileResource} instances and are never
+ * loaded into memory by the storage itself. When an entry is replaced or
+ * removed while its body is still referenced by a resource handed out
+ * earlier, deletion of the body file is deferred until that resource has
+ * been disposed of or garbage collected, so that pending readers are not
+ * cut short. An update that leaves the response body unchanged only
+ * rewrites the metadata file.
+ * <p>
+ * Entry files are read, written and deleted without holding the storage
+ * lock; concurrent updates of the same key are detected and retried up to
+ * {@link CacheConfig#getMaxUpdateRetries()} times. The mapping of cache
+ * keys to files is kept in memory and recorded in an append-only journal
+ * file. When the storage is opened the journal is replayed, a torn record
+ * left behind by a crash is discarded, entries whose files are missing are
+ * dropped and any file in the directory not referenced by a live entry is
+ * deleted. The journal is then rewritten to contain only the live entries.
+ * <p>
+ * The maximum number of cache entries is governed by
+ * {@link CacheConfig#getMaxCacheEntries()}; the least recently used entries
+ * are evicted first. The storage should be closed with {@link #shutdown()}
+ * when no longer needed. The cache directory MUST NOT be shared with other
+ * storage instances or {@link org.apache.http.client.cache.ResourceFactory}
+ * implementations.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+public class FileHttpCacheStorage implements BulkHttpCacheStorage, HttpCacheStorageStatistics {
+
+    static final String JOURNAL_FILE = "journal";
+
+    private static final String JOURNAL_TMP_FILE = "journal.tmp";
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String BODY_SUFFIX = ".body";
+
+    private static final int JOURNAL_MAGIC = 0x48434a01; // 'H' 'C' 'J' 0x01
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final File cacheDir;
+    private final int maxEntries;
+    private final int maxUpdateRetries;
+    private final BinaryHttpCacheEntrySerializer serializer;
+    private final BasicIdGenerator idgen;
+
+    @GuardedBy("this")
+    private final LinkedHashMap<String, String> index;
+    @GuardedBy("this")
+    private DataOutputStream journal;
+    @GuardedBy("this")
+    private int journalRecords;
+    @GuardedBy("this")
+    private long evictionCount;
+    /** Number of in-place metadata rewrites per entry id */
+    @GuardedBy("this")
+    private final Map<String, Integer> revisions;
+
+    private final ReferenceQueue<FileResource> morque;
+    /** Number of live resources handed out per body file id */
+    @GuardedBy("this")
+    private final Map<String, Integer> bodyRefCounts;
+    @GuardedBy("this")
+    private final Set<BodyReference> bodyRefs;
+    /** Ids of removed entries whose body files are still referenced */
+    @GuardedBy("this")
+    private final Set<String> doomed;
+
+    private volatile boolean shutdown;
+
+    /**
+     * Opens (or creates) a persistent cache in the given directory,
+     * recovering any entries stored there by a previous instance.
+     *
+     * @param cacheDir directory holding the cache files
+     * @param config cache configuration
+     * @throws IOException if the cache directory cannot be read or written
+     */
+    public FileHttpCacheStorage(final File cacheDir, final CacheConfig config) throws IOException {
+        super();
+        if (cacheDir == null) {
+            throw new IllegalArgumentException("Cache directory may not be null");
+        }
+        if (config == null) {
+            throw new IllegalArgumentException("Cache config may not be null");
+        }
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + cacheDir);
+        }
+        this.cacheDir = cacheDir;
+        this.maxEntries = config.getMaxCacheEntries();
+        this.maxUpdateRetries = config.getMaxUpdateRetries();
+        this.serializer = new BinaryHttpCacheEntrySerializer();
+        this.idgen = new BasicIdGenerator();
+        this.index = new LinkedHashMap<String, String>(20, 0.75f, true);
+        this.revisions = new HashMap<String, Integer>();
+        this.morque = new ReferenceQueue<FileResource>();
+        this.bodyRefCounts = new HashMap<String, Integer>();
+        this.bodyRefs = new HashSet<BodyReference>();
+        this.doomed = new HashSet<String>();
+        synchronized (this) {
+            recover();
+        }
+    }
+
+    private void ensureValidState() throws IllegalStateException {
+        if (this.shutdown) {
+            throw new IllegalStateException("Cache has been shut down");
+        }
+    }
+
+    private File getEntryFile(final String id) {
+        return new File(this.cacheDir, id + ENTRY_SUFFIX);
+    }
+
+    private File getBodyFile(final String id) {
+        return new File(this.cacheDir, id + BODY_SUFFIX);
+    }
+
+    private void recover() throws IOException {
+        File journalFile = new File(this.cacheDir, JOURNAL_FILE);
+        if (journalFile.exists()) {
+            replayJournal(journalFile);
+        }
+        for (Iterator<Map.Entry<String, String>> it = this.index.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            if (!getEntryFile(entry.getValue()).isFile()) {
+                this.log.debug("Dropping cache entry with missing data file: " + entry.getKey());
+                it.remove();
+            }
+        }
+        while (this.index.size() > this.maxEntries) {
+            this.index.remove(this.index.keySet().iterator().next());
+        }
+        collectGarbage();
+        rewriteJournal();
+    }
+
+    private void replayJournal(final File journalFile) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (in.readInt() != JOURNAL_MAGIC) {
+                this.log.warn("Ignoring unrecognized cache journal " + journalFile);
+                return;
+            }
+            for (;;) {
+                int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+                String key = in.readUTF();
+                if (op == OP_PUT) {
+                    this.index.put(key, in.readUTF());
+                } else if (op == OP_REMOVE) {
+                    this.index.remove(key);
+                } else {
+                    this.log.warn("Corrupt cache journal record; discarding the remainder");
+                    break;
+                }
+            }
+        } catch (EOFException ex) {
+            this.log.debug("Discarding incomplete trailing cache journal record");
+        } finally {
+            in.close();
+        }
+    }
+
+    private void collectGarbage() {
+        File[] files = this.cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Set<String> live = new HashSet<String>(this.index.values());
+        for (File file : files) {
+            String name = file.getName();
+            if (JOURNAL_FILE.equals(name) || JOURNAL_TMP_FILE.equals(name)) {
+                continue;
+            }
+            String id;
+            if (name.endsWith(ENTRY_SUFFIX)) {
+                id = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+            } else if (name.endsWith(BODY_SUFFIX)) {
+                id = name.substring(0, name.length() - BODY_SUFFIX.length());
+            } else {
+                continue;
+            }
+            if (!live.contains(id)) {
+                this.log.debug("Deleting orphaned cache file: " + name);
+                file.delete();
+            }
+        }
+    }
+
+    private void rewriteJournal() throws IOException {
+        if (this.journal != null) {
+            this.journal.close();
+            this.journal = null;
+        }
+        File tmp = new File(this.cacheDir, JOURNAL_TMP_FILE);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(JOURNAL_MAGIC);
+            for (Map.Entry<String, String> entry : this.index.entrySet()) {
+                out.write(OP_PUT);
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        File journalFile = new File(this.cacheDir, JOURNAL_FILE);
+        if (!tmp.renameTo(journalFile)) {
+            // Some platforms cannot rename over an existing file
+            journalFile.delete();
+            if (!tmp.renameTo(journalFile)) {
+                throw new IOException("Unable to replace cache journal " + journalFile);
+            }
+        }
+        this.journalRecords = this.index.size();
+        this.journal = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+    }
+
+    private void appendJournal(final int op, final String key, final String id) throws IOException {
+        this.journal.write(op);
+        this.journal.writeUTF(key);
+        if (id != null) {
+            this.journal.writeUTF(id);
+        }
+        this.journal.flush();
+        this.journalRecords++;
+        if (this.journalRecords > 2 * this.index.size() + 1000) {
+            rewriteJournal();
+        }
+    }
+
+    private static void delete(final List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private int revision(final String id) {
+        Integer revision = this.revisions.get(id);
+        return revision != null ? revision.intValue() : 0;
+    }
+
+    private void retain(final String id) {
+        Integer count = this.bodyRefCounts.get(id);
+        this.bodyRefCounts.put(id, Integer.valueOf(count != null ? count.intValue() + 1 : 1));
+    }
+
+    /**
+     * Drops one reference to the body of the given entry id. Returns
+     * <code>true</code> if the body belongs to a removed entry and may
+     * now be deleted.
+     */
+    private boolean release(final String id) {
+        Integer count = this.bodyRefCounts.get(id);
+        if (count == null || count.intValue() <= 1) {
+            this.bodyRefCounts.remove(id);
+            return this.doomed.remove(id);
+        }
+        this.bodyRefCounts.put(id, Integer.valueOf(count.intValue() - 1));
+        return false;
+    }
+
+    /**
+     * Forgets an entry id that is no longer mapped by the index. Its files
+     * are added to <code>garbage</code> for deletion once the lock has been
+     * released; a body file that is still referenced is kept until the last
+     * reference goes.
+     */
+    private void discard(final String id, final List<File> garbage) {
+        this.revisions.remove(id);
+        garbage.add(getEntryFile(id));
+        if (this.bodyRefCounts.containsKey(id)) {
+            this.doomed.add(id);
+        } else {
+            garbage.add(getBodyFile(id));
+        }
+    }
+
+    private void releaseBodyReference(final BodyReference ref, final List<File> garbage) {
+        if (this.bodyRefs.remove(ref) && release(ref.id)) {
+            garbage.add(getBodyFile(ref.id));
+        }
+    }
+
+    /**
+     * Releases references held by resources that have been garbage
+     * collected, collecting body files no longer needed.
+     */
+    private void purgeBodyReferences(final List<File> garbage) {
+        BodyReference ref;
+        while ((ref = (BodyReference) this.morque.poll()) != null) {
+            releaseBodyReference(ref, garbage);
+        }
+    }
+
+    private void dispose(final BodyReference ref) {
+        List<File> garbage = new ArrayList<File>(1);
+        synchronized (this) {
+            releaseBodyReference(ref, garbage);
+        }
+        ref.clear();
+        delete(garbage);
+    }
+
+    private String writeEntry(final HttpCacheEntry entry) throws IOException {
+        String id = this.idgen.generate();
+        try {
+            writeFiles(id, entry);
+        } catch (IOException ex) {
+            getEntryFile(id).delete();
+            getBodyFile(id).delete();
+            throw ex;
+        }
+        return id;
+    }
+
+    private void writeFiles(final String id, final HttpCacheEntry entry) throws IOException {
+        Resource resource = entry.getResource();
+        // The body is kept in its own file, compressed bodies in their
+        // compressed form
+        if (resource instanceof CompressedResource) {
+            Resource compressed = ((CompressedResource) resource).getCompressedResource();
+            OutputStream out = new FileOutputStream(getBodyFile(id));
+            IOUtils.copyAndClose(compressed.getInputStream(), out);
+        } else if (resource != null) {
+            OutputStream out = new FileOutputStream(getBodyFile(id));
+            IOUtils.copyAndClose(resource.getInputStream(), out);
+        }
+        writeMetadata(getEntryFile(id), entry);
+    }
+
+    private void writeMetadata(final File file, final HttpCacheEntry entry) throws IOException {
+        // The metadata only records whether there is a body and, if
+        // compressed, its decompressed length
+        Resource resource = entry.getResource();
+        Resource placeholder = null;
+        if (resource instanceof CompressedResource) {
+            placeholder = new CompressedResource(new HeapResource(new byte[0]), resource.length());
+        } else if (resource != null) {
+            placeholder = new HeapResource(new byte[0]);
+        }
+        HttpCacheEntry metadata = new HttpCacheEntry(
+                entry.getRequestDate(),
+                entry.getResponseDate(),
+                entry.getStatusLine(),
+                entry.getAllHeaders(),
+                placeholder,
+                entry.getVariantMap());
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            this.serializer.writeTo(metadata, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private HttpCacheEntry readEntry(final String id) throws IOException {
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(getEntryFile(id)));
+        } catch (FileNotFoundException ex) {
+            return null;
+        }
+        HttpCacheEntry metadata;
+        try {
+            metadata = this.serializer.readFrom(in);
+        } finally {
+            in.close();
+        }
+        Resource resource = null;
+        if (metadata.getResource() != null) {
+            File body = getBodyFile(id);
+            if (!body.isFile()) {
+                return null;
+            }
+            resource = new StoredResource(body, id);
+            if (metadata.getResource() instanceof CompressedResource) {
+                resource = new CompressedResource(resource, metadata.getResource().length());
+            }
+        }
+        return new HttpCacheEntry(
+                metadata.getRequestDate(),
+                metadata.getResponseDate(),
+                metadata.getStatusLine(),
+                metadata.getAllHeaders(),
+                resource,
+                metadata.getVariantMap());
+    }
+
+    private void install(
+            final String key, final String id, final List<File> garbage) throws IOException {
+        String previous = this.index.put(key, id);
+        appendJournal(OP_PUT, key, id);
+        if (previous != null) {
+            discard(previous, garbage);
+        }
+        while (this.index.size() > this.maxEntries) {
+            String eldest = this.index.keySet().iterator().next();
+            remove(eldest, garbage);
+            this.evictionCount++;
+        }
+    }
+
+    private void remove(final String key, final List<File> garbage) throws IOException {
+        String id = this.index.remove(key);
+        if (id != null) {
+            appendJournal(OP_REMOVE, key, null);
+            discard(id, garbage);
+        }
+    }
+
+    private boolean isCurrent(final Slot slot) {
+        String id = this.index.get(slot.key);
+        if (id == null) {
+            return slot.id == null;
+        }
+        return id.equals(slot.id) && revision(id) == slot.revision;
+    }
+
+    /**
+     * Looks up the entry id of the given key and keeps its body file from
+     * being deleted until {@link #unpin(Slot)} is called, so that the entry
+     * can be read without holding the lock.
+     */
+    private Slot pin(final String key) {
+        List<File> garbage = new ArrayList<File>();
+        Slot slot;
+        try {
+            synchronized (this) {
+                ensureValidState();
+                purgeBodyReferences(garbage);
+                String id = this.index.get(key);
+                if (id != null) {
+                    retain(id);
+                    slot = new Slot(key, id, revision(id));
+                } else {
+                    slot = new Slot(key, null, 0);
+                }
+            }
+        } finally {
+            delete(garbage);
+        }
+        return slot;
+    }
+
+    private void unpin(final Slot slot) {
+        if (slot.id == null) {
+            return;
+        }
+        boolean unused;
+        synchronized (this) {
+            unused = release(slot.id);
+        }
+        if (unused) {
+            getBodyFile(slot.id).delete();
+        }
+    }
+
+    private HttpCacheEntry read(final Slot slot) throws IOException {
+        HttpCacheEntry entry;
+        try {
+            entry = readEntry(slot.id);
+        } catch (HttpCacheEntrySerializationException ex) {
+            this.log.warn("Discarding corrupt cache entry: " + slot.key, ex);
+            entry = null;
+        } catch (EOFException ex) {
+            this.log.warn("Discarding truncated cache entry: " + slot.key, ex);
+            entry = null;
+        }
+        if (entry == null) {
+            // the files may be missing because the entry has just been
+            // replaced or removed; only drop the key if it is unchanged
+            List<File> garbage = new ArrayList<File>();
+            try {
+                synchronized (this) {
+                    if (!this.shutdown && isCurrent(slot)) {
+                        remove(slot.key, garbage);
+                    }
+                }
+            } finally {
+                delete(garbage);
+            }
+        }
+        return entry;
+    }
+
+    private HttpCacheEntry lookup(final String key) throws IOException {
+        Slot slot = pin(key);
+        if (slot.id == null) {
+            return null;
+        }
+        try {
+            return read(slot);
+        } finally {
+            unpin(slot);
+        }
+    }
+
+    /**
+     * Maps the key to a newly written entry, provided it still maps to
+     * the expected slot if one is given. Returns <code>false</code> if it
+     * does not, in which case the new entry's files are deleted again.
+     */
+    private boolean replace(
+            final String key, final Slot expected, final HttpCacheEntry entry) throws IOException {
+        String id = writeEntry(entry);
+        List<File> garbage = new ArrayList<File>();
+        try {
+            synchronized (this) {
+                if (this.shutdown || (expected != null && !isCurrent(expected))) {
+                    discard(id, garbage);
+                } else {
+                    purgeBodyReferences(garbage);
+                    install(key, id, garbage);
+                    return true;
+                }
+            }
+        } finally {
+            delete(garbage);
+        }
+        ensureValidState();
+        return false;
+    }
+
+    /**
+     * Replaces the metadata file of the entry the slot refers to, keeping
+     * its body file, if the key still maps to that slot.
+     */
+    private boolean rewrite(final Slot slot, final HttpCacheEntry entry) throws IOException {
+        File tmp = getEntryFile(this.idgen.generate());
+        boolean done = false;
+        try {
+            writeMetadata(tmp, entry);
+            synchronized (this) {
+                ensureValidState();
+                if (isCurrent(slot)) {
+                    File target = getEntryFile(slot.id);
+                    if (!tmp.renameTo(target)) {
+                        // Some platforms cannot rename over an existing file
+                        target.delete();
+                        if (!tmp.renameTo(target)) {
+                            throw new IOException("Unable to replace cache entry file " + target);
+                        }
+                    }
+                    this.revisions.put(slot.id, Integer.valueOf(slot.revision + 1));
+                    done = true;
+                }
+            }
+        } finally {
+            if (!done) {
+                tmp.delete();
+            }
+        }
+        return done;
+    }
+
+    public void putEntry(final String key, final HttpCacheEntry entry) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("Key may not be null");
+        }
+        if (entry == null) {
+            throw new IllegalArgumentException("Cache entry may not be null");
+        }
+        ensureValidState();
+        replace(key, null, entry);
+    }
+
+    public HttpCacheEntry getEntry(final String key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("Key may not be null");
+        }
+        return lookup(key);
+    }
+
+    public Map<String, HttpCacheEntry> getEntries(
+            final Collection<String> keys) throws IOException {
+        if (keys == null) {
+            throw new IllegalArgumentException("Keys may not be null");
+        }
+        Map<String, HttpCacheEntry> result = new HashMap<String, HttpCacheEntry>();
+        for (String key : keys) {
+            HttpCacheEntry entry = lookup(key);
+            if (entry != null) {
+                result.put(key, entry);
+            }
+        }
+        return result;
+    }
+
+    public void removeEntry(final String key) throws IOException {
+        if (key == null) {
+            throw new IllegalArgumentException("Key may not be null");
+        }
+        List<File> garbage = new ArrayList<File>();
+        try {
+            synchronized (this) {
+                ensureValidState();
+                purgeBodyReferences(garbage);
+                remove(key, garbage);
+            }
+        } finally {
+            delete(garbage);
+        }
+    }
+
+    public void removeEntries(final Collection<String> keys) throws IOException {
+        if (keys == null) {
+            throw new IllegalArgumentException("Keys may not be null");
+        }
+        List<File> garbage = new ArrayList<File>();
+        try {
+            synchronized (this) {
+                ensureValidState();
+                purgeBodyReferences(garbage);
+                for (String key : keys) {
+                    remove(key, garbage);
+                }
+            }
+        } finally {
+            delete(garbage);
+        }
+    }
+
+    public void updateEntry(
+            final String key,
+            final HttpCacheUpdateCallback callback) throws IOException, HttpCacheUpdateException {
+        if (key == null) {
+            throw new IllegalArgumentException("Key may not be null");
+        }
+        if (callback == null) {
+            throw new IllegalArgumentException("Callback may not be null");
+        }
+        int numRetries = 0;
+        do {
+            Slot slot = pin(key);
+            try {
+                HttpCacheEntry existing = slot.id != null ? read(slot) : null;
+                HttpCacheEntry updated = callback.update(existing);
+                if (updated == null) {
+                    return;
+                }
+                boolean done;
+                if (existing != null && updated.getResource() == existing.getResource()) {
+                    // the body is unchanged, keep its file
+                    done = rewrite(slot, updated);
+                } else {
+                    done = replace(key, slot, updated);
+                }
+                if (done) {
+                    return;
+                }
+            } finally {
+                unpin(slot);
+            }
+            numRetries++;
+        } while (numRetries <= this.maxUpdateRetries);
+        throw new HttpCacheUpdateException("Failed to update");
+    }
+
+    /**
+     * Returns the number of entries currently held by this cache.
+     */
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Returns the number of least recently used entries evicted so far
+     * by this instance. Entries dropped while recovering the journal are
+     * not counted.
+     *
+     * @since 4.3
+     */
+    public synchronized long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    /**
+     * Shuts down the cache, closing the journal. Cached entries remain on
+     * disk and will be recovered by the next instance opened on the same
+     * directory.
+     */
+    public synchronized void shutdown() throws IOException {
+        if (this.shutdown) {
+            return;
+        }
+        this.shutdown = true;
+        if (this.journal != null) {
+            this.journal.close();
+            this.journal = null;
+        }
+    }
+
+    /**
+     * Body of a stored entry. Deletion of the underlying file is deferred
+     * for as long as the resource, or a stream obtained from it, is
+     * reachable and has not been disposed of.
+     */
+    class StoredResource extends FileResource {
+
+        private static final long serialVersionUID = -5407464387040347367L;
+
+        private final transient BodyReference ref;
+
+        StoredResource(final File file, final String id) {
+            super(file);
+            synchronized (FileHttpCacheStorage.this) {
+                this.ref = new BodyReference(this, id, morque);
+                bodyRefs.add(this.ref);
+                retain(id);
+            }
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            return new FilterInputStream(super.getInputStream()) {
+
+                // keeps the resource reachable while the stream is in use
+                @SuppressWarnings("unused")
+                private final StoredResource resource = StoredResource.this;
+
+            };
+        }
+
+        /**
+         * Releases this handle on the body file. The file itself is only
+         * deleted once its entry has been removed from the storage.
+         */
+        @Override
+        public void dispose() {
+            FileHttpCacheStorage.this.dispose(this.ref);
+        }
+
+        private Object writeReplace() {
+            return new FileResource(getFile());
+        }
+
+    }
+
+    /**
+     * Entry id and revision a key was mapped to when it was looked up.
+     */
+    static class Slot {
+
+        final String key;
+        final String id;
+        final int revision;
+
+        Slot(final String key, final String id, final int revision) {
+            this.key = key;
+            this.id = id;
+            this.revision = revision;
+        }
+
+    }
+
+    static class BodyReference extends PhantomReference<FileResource> {
+
+        final String id;
+
+        BodyReference(
+                final FileResource resource, final String id, final ReferenceQueue<FileResource> q) {
+            super(resource, q);
+            this.id = id;
+        }
+
+    }
+
+}
@@ -76,6 +76,18 @@ interface HttpCache {
     HttpCacheEntry getCacheEntry(HttpHost host, HttpRequest request)
         throws IOException;
 
+    /**
+     * Retrieve the stored partial content fragment for the requested
+     * resource, if there is one.
+     * @param host
+     * @param request
+     * @return the fragment {@link HttpCacheEntry}, a 206 response carrying
+     *   a {@code Content-Range} header, or {@code null}
+     * @throws IOException
+     */
+    HttpCacheEntry getPartialCacheEntry(HttpHost host, HttpRequest request)
+        throws IOException;
+
     /**
      * Retrieve all variants from the cache, if there are no variants then an empty
      * {@link Map} is returned
@@ -29,12 +29,20 @@ package org.apache.http.impl.client.cache;
 import java.io.IOException;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
+import org.apache.http.client.cache.EnumerableHttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheStorageStatistics;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
 import org.apache.http.client.cache.Resource;
 
@@ -47,17 +55,23 @@ import org.apache.http.client.cache.Resource;
  * resource deallocation. The cache can be permanently shut down using {@link #shutdown()}
  * method. All resources associated with the entries used by the cache will be deallocated.
  *
+ * Several cache entries may share the same {@link Resource} instance (for instance,
+ * a parent entry and its variants). The cache keeps a reference count per resource
+ * and deallocates it only once all entries referring to it are no longer in use.
+ *
  * This {@link HttpCacheStorage} implementation is intended for use with {@link FileResource}
  * and similar.
  *
  * @since 4.1
  */
 @ThreadSafe
-public class ManagedHttpCacheStorage implements HttpCacheStorage {
+public class ManagedHttpCacheStorage implements BulkHttpCacheStorage, EnumerableHttpCacheStorage,
+        HttpCacheStorageStatistics {
 
     private final CacheMap entries;
     private final ReferenceQueue<HttpCacheEntry> morque;
     private final Set<ResourceReference> resources;
+    private final Map<Resource, Integer> resourceRefCounts;
 
     private volatile boolean shutdown;
 
@@ -66,6 +80,8 @@ public class ManagedHttpCacheStorage implements HttpCacheStorage {
         this.entries = new CacheMap(config.getMaxCacheEntries());
         this.morque = new ReferenceQueue<HttpCacheEntry>();
         this.resources = new HashSet<ResourceReference>();
+        // reference counts are kept per resource instance, whatever its equals()
+        this.resourceRefCounts = new IdentityHashMap<Resource, Integer>();
     }
 
     private void ensureValidState() throws IllegalStateException {
@@ -80,9 +96,23 @@ public class ManagedHttpCacheStorage implements HttpCacheStorage {
             // Must deallocate the resource when the entry is no longer in used
             ResourceReference ref = new ResourceReference(entry, this.morque);
             this.resources.add(ref);
+            Integer count = this.resourceRefCounts.get(resource);
+            this.resourceRefCounts.put(resource, count != null ? count + 1 : 1);
         }
     }
 
+    private boolean releaseResourceReference(final ResourceReference ref) {
+        this.resources.remove(ref);
+        Resource resource = ref.getResource();
+        Integer count = this.resourceRefCounts.get(resource);
+        if (count == null || count <= 1) {
+            this.resourceRefCounts.remove(resource);
+            return true;
+        }
+        this.resourceRefCounts.put(resource, count - 1);
+        return false;
+    }
+
     public void putEntry(final String url, final HttpCacheEntry entry) throws IOException {
         if (url == null) {
             throw new IllegalArgumentException("URL may not be null");
@@ -107,6 +137,23 @@ public class ManagedHttpCacheStorage implements HttpCacheStorage {
         }
     }
 
+    public Map<String, HttpCacheEntry> getEntries(final Collection<String> urls) throws IOException {
+        if (urls == null) {
+            throw new IllegalArgumentException("URLs may not be null");
+        }
+        ensureValidState();
+        Map<String, HttpCacheEntry> result = new HashMap<String, HttpCacheEntry>();
+        synchronized (this) {
+            for (String url : urls) {
+                HttpCacheEntry entry = this.entries.get(url);
+                if (entry != null) {
+                    result.put(url, entry);
+                }
+            }
+        }
+        return result;
+    }
+
     public void removeEntry(String url) throws IOException {
         if (url == null) {
             throw new IllegalArgumentException("URL may not be null");
@@ -119,6 +166,30 @@ public class ManagedHttpCacheStorage implements HttpCacheStorage {
         }
     }
 
+    public void removeEntries(final Collection<String> urls) throws IOException {
+        if (urls == null) {
+            throw new IllegalArgumentException("URLs may not be null");
+        }
+        ensureValidState();
+        synchronized (this) {
+            for (String url : urls) {
+                this.entries.remove(url);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of all entries in the cache.
+     *
+     * @since 4.3
+     */
+    public Map<String, HttpCacheEntry> getAllEntries() throws IOException {
+        ensureValidState();
+        synchronized (this) {
+            return new LinkedHashMap<String, HttpCacheEntry>(this.entries);
+        }
+    }
+
     public void updateEntry(
             final String url,
             final HttpCacheUpdateCallback callback) throws IOException {
@@ -139,16 +210,44 @@ public class ManagedHttpCacheStorage implements HttpCacheStorage {
         }
     }
 
+    /**
+     * Returns the number of least recently used entries evicted so far.
+     *
+     * @since 4.3
+     */
+    public long getEvictionCount() {
+        synchronized (this) {
+            return this.entries.getEvictionCount();
+        }
+    }
+
+    /**
+     * Enqueues one outstanding reference to the given resource instance,
+     * as if one of the entries holding it had been garbage collected.
+     * Returns <code>false</code> if there is none left to enqueue.
+     */
+    synchronized boolean enqueueReference(final Resource resource) {
+        for (ResourceReference ref: this.resources) {
+            if (ref.getResource() == resource && ref.enqueue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void cleanResources() {
         if (this.shutdown) {
             return;
         }
         ResourceReference ref;
         while ((ref = (ResourceReference) this.morque.poll()) != null) {
+            boolean unused;
             synchronized (this) {
-                this.resources.remove(ref);
+                unused = releaseResourceReference(ref);
+            }
+            if (unused) {
+                ref.getResource().dispose();
             }
-            ref.getResource().dispose();
         }
     }
 
@@ -159,10 +258,11 @@ public class ManagedHttpCacheStorage implements HttpCacheStorage {
         this.shutdown = true;
         synchronized (this) {
             this.entries.clear();
-            for (ResourceReference ref: this.resources) {
-                ref.getResource().dispose();
+            for (Resource resource: this.resourceRefCounts.keySet()) {
+                resource.dispose();
             }
             this.resources.clear();
+            this.resourceRefCounts.clear();
             while (this.morque.poll() != null) {
             }
         }
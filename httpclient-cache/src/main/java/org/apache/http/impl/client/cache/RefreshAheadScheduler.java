@@ -0,0 +1,137 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Counts the cache hits of every cache key and schedules a background
+ * revalidation of a frequently hit entry once it has used up a given
+ * fraction of its freshness lifetime, so that popular entries are
+ * refreshed before they become stale.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+class RefreshAheadScheduler {
+
+    private final AsynchronousValidator validator;
+    private final CacheValidityPolicy validityPolicy;
+    private final CacheKeyGenerator cacheKeyGenerator;
+    private final ConcurrentMap<String, AtomicInteger> hits;
+    private final int maxTrackedKeys;
+    private final int minHits;
+    private final float threshold;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    /**
+     * @param validator runs the background revalidations
+     * @param validityPolicy used to determine the age and freshness
+     *   lifetime of cache entries
+     * @param config specifies the {@link CacheConfig#getRefreshAheadMinHits()
+     *   number of hits} that make an entry eligible for refresh and the
+     *   {@link CacheConfig#getRefreshAheadThreshold() fraction of its
+     *   freshness lifetime} after which it is refreshed
+     */
+    RefreshAheadScheduler(
+            final AsynchronousValidator validator,
+            final CacheValidityPolicy validityPolicy,
+            final CacheConfig config) {
+        super();
+        this.validator = validator;
+        this.validityPolicy = validityPolicy;
+        this.cacheKeyGenerator = new CacheKeyGenerator();
+        this.hits = new ConcurrentHashMap<String, AtomicInteger>();
+        this.maxTrackedKeys = config.getMaxCacheEntries();
+        this.minHits = config.getRefreshAheadMinHits();
+        this.threshold = config.getRefreshAheadThreshold();
+    }
+
+    /**
+     * Records a hit on a fresh cache entry and schedules its revalidation
+     * if the entry is popular and close to expiry.
+     */
+    void entryHit(
+            final HttpHost target,
+            final HttpRequest request,
+            final HttpContext context,
+            final HttpCacheEntry entry,
+            final Date now) {
+        String key = cacheKeyGenerator.getVariantURI(target, request, entry);
+        int count = recordHit(key);
+        if (count < minHits) {
+            return;
+        }
+        long lifetime = validityPolicy.getFreshnessLifetimeSecs(entry);
+        if (lifetime <= 0) {
+            return;
+        }
+        long age = validityPolicy.getCurrentAgeSecs(entry, now);
+        if (age < lifetime * threshold) {
+            return;
+        }
+        // start counting afresh for the refreshed entry
+        hits.remove(key);
+        if (log.isDebugEnabled()) {
+            log.debug("Refreshing [" + key + "] ahead of expiry after " + count + " hits");
+        }
+        validator.revalidateCacheEntry(target, request, context, entry, count);
+    }
+
+    private int recordHit(final String key) {
+        AtomicInteger counter = hits.get(key);
+        if (counter == null) {
+            if (hits.size() >= maxTrackedKeys) {
+                // keep memory bounded; popular keys quickly catch up again
+                hits.clear();
+            }
+            AtomicInteger created = new AtomicInteger();
+            counter = hits.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter.incrementAndGet();
+    }
+
+    int getTrackedKeyCount() {
+        return hits.size();
+    }
+
+}
@@ -56,6 +56,7 @@ class ResponseCachingPolicy {
 
     private final long maxObjectSizeBytes;
     private final boolean sharedCache;
+    private final boolean partialContentCacheable;
     private final Log log = LogFactory.getLog(getClass());
     private static final Set<Integer> cacheableStatuses = 
     	new HashSet<Integer>(Arrays.asList(HttpStatus.SC_OK,
@@ -76,8 +77,24 @@ class ResponseCachingPolicy {
      * non-shared/private cache (false)
      */
     public ResponseCachingPolicy(long maxObjectSizeBytes, boolean sharedCache) {
+        this(maxObjectSizeBytes, sharedCache, false);
+    }
+
+    /**
+     * Define a cache policy that limits the size of things that should be stored
+     * in the cache to a maximum of {@link HttpResponse} bytes in size.
+     *
+     * @param maxObjectSizeBytes the size to limit items into the cache
+     * @param sharedCache whether to behave as a shared cache (true) or a
+     * non-shared/private cache (false)
+     * @param partialContentCacheable whether the cache supports the Range
+     * and Content-Range headers and may therefore store 206 responses
+     */
+    public ResponseCachingPolicy(long maxObjectSizeBytes, boolean sharedCache,
+            boolean partialContentCacheable) {
         this.maxObjectSizeBytes = maxObjectSizeBytes;
         this.sharedCache = sharedCache;
+        this.partialContentCacheable = partialContentCacheable;
     }
 
     /**
@@ -96,7 +113,13 @@ class ResponseCachingPolicy {
         }
         
         int status = response.getStatusLine().getStatusCode();
-        if (cacheableStatuses.contains(status)) {
+        if (status == HttpStatus.SC_PARTIAL_CONTENT && partialContentCacheable) {
+            // only single byte ranges can be stored and merged
+            if (response.getHeaders(HeaderConstants.CONTENT_RANGE).length != 1) {
+                return false;
+            }
+            cacheable = true;
+        } else if (cacheableStatuses.contains(status)) {
         	// these response codes MAY be cached
         	cacheable = true;
         } else if (uncacheableStatuses.contains(status)) {
@@ -0,0 +1,293 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.http.annotation.GuardedBy;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheStorageStatistics;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+import org.apache.http.impl.client.cache.memcached.KeyHashingScheme;
+import org.apache.http.impl.client.cache.memcached.SHA256KeyHashingScheme;
+
+/**
+ * {@link HttpCacheStorage} implementation that spreads entries across a
+ * number of delegate storages (shards), such as several
+ * {@link org.apache.http.impl.client.cache.memcached.MemcachedHttpCacheStorage}
+ * or {@link org.apache.http.impl.client.cache.ehcache.EhcacheHttpCacheStorage}
+ * instances, each talking to a different node.
+ * <p>
+ * Keys are assigned to shards through a consistent-hash ring. Every shard
+ * is placed on the ring at a number of points (virtual nodes) derived from
+ * its name with a {@link KeyHashingScheme}, and a key belongs to the first
+ * shard found clockwise from the point of the hashed key. Adding or
+ * removing a shard therefore only moves the keys of the ring segments that
+ * shard gains or loses, roughly one in N of them, and shard names rather
+ * than their order determine the placement, so applications configured
+ * with the same shards agree on where every key lives.
+ * <p>
+ * Bulk lookups and removals are split by shard and issued as one bulk
+ * operation per shard if that shard is a {@link BulkHttpCacheStorage}.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+public class ShardedHttpCacheStorage implements BulkHttpCacheStorage, HttpCacheStorageStatistics {
+
+    /** Default number of ring points per shard. */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final KeyHashingScheme keyHashingScheme;
+    private final int virtualNodes;
+
+    @GuardedBy("this")
+    private final Map<String, HttpCacheStorage> shards;
+
+    private volatile SortedMap<Long, HttpCacheStorage> ring;
+
+    /**
+     * Creates a sharded storage.
+     *
+     * @param shards the delegate storages, keyed by a name that identifies
+     *   each one across restarts and configuration changes
+     * @param virtualNodes number of points each shard is placed at on the ring
+     * @param keyHashingScheme scheme used to place shards and keys on the ring
+     */
+    public ShardedHttpCacheStorage(
+            final Map<String, ? extends HttpCacheStorage> shards,
+            final int virtualNodes,
+            final KeyHashingScheme keyHashingScheme) {
+        super();
+        if (shards == null) {
+            throw new IllegalArgumentException("Shards may not be null");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Number of virtual nodes must be positive");
+        }
+        if (keyHashingScheme == null) {
+            throw new IllegalArgumentException("Key hashing scheme may not be null");
+        }
+        this.keyHashingScheme = keyHashingScheme;
+        this.virtualNodes = virtualNodes;
+        this.shards = new LinkedHashMap<String, HttpCacheStorage>();
+        for (Map.Entry<String, ? extends HttpCacheStorage> entry : shards.entrySet()) {
+            checkShard(entry.getKey(), entry.getValue());
+            this.shards.put(entry.getKey(), entry.getValue());
+        }
+        if (this.shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        rebuildRing();
+    }
+
+    /**
+     * Creates a sharded storage with {@link #DEFAULT_VIRTUAL_NODES} ring
+     * points per shard, placed using SHA-256 hashes.
+     *
+     * @param shards the delegate storages, keyed by a name that identifies
+     *   each one across restarts and configuration changes
+     */
+    public ShardedHttpCacheStorage(final Map<String, ? extends HttpCacheStorage> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES, new SHA256KeyHashingScheme());
+    }
+
+    private static void checkShard(final String name, final HttpCacheStorage storage) {
+        if (name == null) {
+            throw new IllegalArgumentException("Shard name may not be null");
+        }
+        if (storage == null) {
+            throw new IllegalArgumentException("Shard storage may not be null");
+        }
+    }
+
+    /**
+     * Returns the position on the ring of the given string.
+     */
+    private long position(final String s) {
+        String hash = this.keyHashingScheme.hash(s);
+        // FNV-1a, so that any hashing scheme output maps to 64 well mixed bits
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < hash.length(); i++) {
+            h ^= hash.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private synchronized void rebuildRing() {
+        SortedMap<Long, HttpCacheStorage> newRing = new TreeMap<Long, HttpCacheStorage>();
+        for (Map.Entry<String, HttpCacheStorage> shard : this.shards.entrySet()) {
+            for (int i = 0; i < this.virtualNodes; i++) {
+                newRing.put(Long.valueOf(position(shard.getKey() + "#" + i)), shard.getValue());
+            }
+        }
+        this.ring = newRing;
+    }
+
+    /**
+     * Adds a shard, or replaces the storage of an existing shard with the
+     * same name. Only keys falling on the ring segments the new shard takes
+     * over are remapped; entries stored for them in other shards are simply
+     * no longer found and age out there.
+     *
+     * @param name name identifying the shard
+     * @param storage the delegate storage
+     */
+    public synchronized void addShard(final String name, final HttpCacheStorage storage) {
+        checkShard(name, storage);
+        this.shards.put(name, storage);
+        rebuildRing();
+    }
+
+    /**
+     * Removes a shard. Keys it held are remapped onto the remaining shards.
+     *
+     * @param name name identifying the shard
+     * @return the storage of the removed shard, or {@code null} if there
+     *   was no such shard
+     * @throws IllegalStateException if this is the last shard
+     */
+    public synchronized HttpCacheStorage removeShard(final String name) {
+        if (this.shards.size() == 1 && this.shards.containsKey(name)) {
+            throw new IllegalStateException("Cannot remove the last shard");
+        }
+        HttpCacheStorage storage = this.shards.remove(name);
+        if (storage != null) {
+            rebuildRing();
+        }
+        return storage;
+    }
+
+    /**
+     * Returns the shards by name.
+     */
+    public synchronized Map<String, HttpCacheStorage> getShards() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, HttpCacheStorage>(this.shards));
+    }
+
+    /**
+     * Returns the storage responsible for the given key.
+     */
+    HttpCacheStorage getShard(final String key) {
+        SortedMap<Long, HttpCacheStorage> current = this.ring;
+        SortedMap<Long, HttpCacheStorage> tail = current.tailMap(Long.valueOf(position(key)));
+        return tail.isEmpty() ? current.get(current.firstKey()) : tail.get(tail.firstKey());
+    }
+
+    private Map<HttpCacheStorage, List<String>> groupByShard(final Collection<String> keys) {
+        Map<HttpCacheStorage, List<String>> groups = new IdentityHashMap<HttpCacheStorage, List<String>>();
+        for (String key : keys) {
+            HttpCacheStorage shard = getShard(key);
+            List<String> group = groups.get(shard);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(shard, group);
+            }
+            group.add(key);
+        }
+        return groups;
+    }
+
+    public void putEntry(final String key, final HttpCacheEntry entry) throws IOException {
+        getShard(key).putEntry(key, entry);
+    }
+
+    public HttpCacheEntry getEntry(final String key) throws IOException {
+        return getShard(key).getEntry(key);
+    }
+
+    public Map<String, HttpCacheEntry> getEntries(final Collection<String> keys) throws IOException {
+        Map<String, HttpCacheEntry> result = new HashMap<String, HttpCacheEntry>();
+        for (Map.Entry<HttpCacheStorage, List<String>> group : groupByShard(keys).entrySet()) {
+            HttpCacheStorage shard = group.getKey();
+            if (shard instanceof BulkHttpCacheStorage) {
+                result.putAll(((BulkHttpCacheStorage) shard).getEntries(group.getValue()));
+            } else {
+                for (String key : group.getValue()) {
+                    HttpCacheEntry entry = shard.getEntry(key);
+                    if (entry != null) {
+                        result.put(key, entry);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public void removeEntry(final String key) throws IOException {
+        getShard(key).removeEntry(key);
+    }
+
+    public void removeEntries(final Collection<String> keys) throws IOException {
+        for (Map.Entry<HttpCacheStorage, List<String>> group : groupByShard(keys).entrySet()) {
+            HttpCacheStorage shard = group.getKey();
+            if (shard instanceof BulkHttpCacheStorage) {
+                ((BulkHttpCacheStorage) shard).removeEntries(group.getValue());
+            } else {
+                for (String key : group.getValue()) {
+                    shard.removeEntry(key);
+                }
+            }
+        }
+    }
+
+    public void updateEntry(
+            final String key,
+            final HttpCacheUpdateCallback callback) throws IOException, HttpCacheUpdateException {
+        getShard(key).updateEntry(key, callback);
+    }
+
+    /**
+     * Returns the total number of entries evicted by the shards that
+     * report evictions.
+     */
+    public long getEvictionCount() {
+        long count = 0;
+        for (HttpCacheStorage shard : getShards().values()) {
+            if (shard instanceof HttpCacheStorageStatistics) {
+                count += ((HttpCacheStorageStatistics) shard).getEvictionCount();
+            }
+        }
+        return count;
+    }
+
+}
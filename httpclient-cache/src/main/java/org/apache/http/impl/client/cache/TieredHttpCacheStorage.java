@@ -0,0 +1,376 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.annotation.GuardedBy;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheStorageStatistics;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.HttpCacheUpdateException;
+
+/**
+ * {@link HttpCacheStorage} implementation that fronts another, typically
+ * remote, storage backend (such as
+ * {@link org.apache.http.impl.client.cache.memcached.MemcachedHttpCacheStorage}
+ * or {@link org.apache.http.impl.client.cache.ehcache.EhcacheHttpCacheStorage})
+ * with a small in-memory first level cache of recently used entries.
+ * <p>
+ * Lookups are read-through: entries are served from the local cache when
+ * present and otherwise fetched from the backend and retained locally.
+ * Writes, updates and removals are write-through: they are always applied
+ * to the backend first and only then reflected locally, so entries flushed
+ * by the {@link CachingHttpClient} (for instance when an unsafe request
+ * invalidates them) are evicted from both levels.
+ * <p>
+ * When several applications share the same backend, updates made by one of
+ * them are not visible to the others until the corresponding local copy
+ * is evicted. A local time-to-live can be configured to bound how long a
+ * local copy may be served without consulting the backend.
+ * <p>
+ * Bulk lookups only consult the backend for keys missing locally, using a
+ * single bulk operation if the backend is a {@link BulkHttpCacheStorage}.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+public class TieredHttpCacheStorage implements BulkHttpCacheStorage, HttpCacheStorageStatistics {
+
+    private final HttpCacheStorage backend;
+    private final long localTimeToLive;
+
+    @GuardedBy("this")
+    private final LocalCacheMap local;
+
+    /**
+     * Generations of the keys currently being read from the backend. Writers
+     * bump the generation of a key before and after touching the backend so
+     * that a concurrent read does not bring a stale copy back locally.
+     */
+    @GuardedBy("this")
+    private final Map<String, Generation> generations;
+
+    /**
+     * Creates a tiered storage.
+     *
+     * @param backend the second level storage all operations are written through to
+     * @param maxLocalEntries maximum number of entries held in memory
+     * @param localTimeToLive maximum time in milliseconds an in-memory copy is
+     *   served without consulting the backend; {@code 0} to keep local copies
+     *   until they are evicted or invalidated
+     */
+    public TieredHttpCacheStorage(
+            final HttpCacheStorage backend,
+            final int maxLocalEntries,
+            final long localTimeToLive) {
+        super();
+        if (backend == null) {
+            throw new IllegalArgumentException("Backend storage may not be null");
+        }
+        if (maxLocalEntries < 0) {
+            throw new IllegalArgumentException("Maximum number of local entries may not be negative");
+        }
+        if (localTimeToLive < 0) {
+            throw new IllegalArgumentException("Local time to live may not be negative");
+        }
+        this.backend = backend;
+        this.localTimeToLive = localTimeToLive;
+        this.local = new LocalCacheMap(maxLocalEntries);
+        this.generations = new HashMap<String, Generation>();
+    }
+
+    /**
+     * Creates a tiered storage holding at most
+     * {@link CacheConfig#getMaxCacheEntries()} entries in memory without
+     * a local time-to-live.
+     *
+     * @param backend the second level storage all operations are written through to
+     * @param config cache configuration
+     */
+    public TieredHttpCacheStorage(final HttpCacheStorage backend, final CacheConfig config) {
+        this(backend, config.getMaxCacheEntries(), 0);
+    }
+
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    private synchronized HttpCacheEntry getLocal(final String key) {
+        LocalEntry localEntry = this.local.get(key);
+        if (localEntry == null) {
+            return null;
+        }
+        if (localEntry.expiry > 0 && localEntry.expiry <= getCurrentTime()) {
+            this.local.remove(key);
+            return null;
+        }
+        return localEntry.entry;
+    }
+
+    private synchronized void putLocal(final String key, final HttpCacheEntry entry) {
+        invalidate(key);
+        if (entry == null) {
+            return;
+        }
+        long expiry = this.localTimeToLive > 0 ? getCurrentTime() + this.localTimeToLive : 0;
+        this.local.put(key, new LocalEntry(entry, expiry));
+    }
+
+    private synchronized void removeLocal(final String key) {
+        invalidate(key);
+    }
+
+    @GuardedBy("this")
+    private void invalidate(final String key) {
+        this.local.remove(key);
+        Generation generation = this.generations.get(key);
+        if (generation != null) {
+            generation.value++;
+        }
+    }
+
+    /**
+     * Registers a read of the given key from the backend and returns
+     * the generation of the key the read started with.
+     */
+    private synchronized long beginRead(final String key) {
+        Generation generation = this.generations.get(key);
+        if (generation == null) {
+            generation = new Generation();
+            this.generations.put(key, generation);
+        }
+        generation.readers++;
+        return generation.value;
+    }
+
+    /**
+     * Completes a read of the given key from the backend, retaining the
+     * entry locally unless the key has been written or invalidated since
+     * the read started.
+     */
+    private synchronized void endRead(final String key, final long start, final HttpCacheEntry entry) {
+        Generation generation = this.generations.get(key);
+        boolean current = generation.value == start;
+        generation.readers--;
+        if (generation.readers == 0) {
+            this.generations.remove(key);
+        }
+        if (current && entry != null) {
+            long expiry = this.localTimeToLive > 0 ? getCurrentTime() + this.localTimeToLive : 0;
+            this.local.put(key, new LocalEntry(entry, expiry));
+        }
+    }
+
+    public void putEntry(final String key, final HttpCacheEntry entry) throws IOException {
+        removeLocal(key);
+        this.backend.putEntry(key, entry);
+        putLocal(key, entry);
+    }
+
+    public HttpCacheEntry getEntry(final String key) throws IOException {
+        HttpCacheEntry entry = getLocal(key);
+        if (entry != null) {
+            return entry;
+        }
+        long start = beginRead(key);
+        try {
+            entry = this.backend.getEntry(key);
+        } finally {
+            endRead(key, start, entry);
+        }
+        return entry;
+    }
+
+    public Map<String, HttpCacheEntry> getEntries(final Collection<String> keys) throws IOException {
+        Map<String, HttpCacheEntry> result = new HashMap<String, HttpCacheEntry>();
+        List<String> misses = new ArrayList<String>();
+        for (String key : keys) {
+            HttpCacheEntry entry = getLocal(key);
+            if (entry != null) {
+                result.put(key, entry);
+            } else {
+                misses.add(key);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        long[] starts = new long[misses.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = beginRead(misses.get(i));
+        }
+        Map<String, HttpCacheEntry> fetched = null;
+        try {
+            if (this.backend instanceof BulkHttpCacheStorage) {
+                fetched = ((BulkHttpCacheStorage) this.backend).getEntries(misses);
+            } else {
+                fetched = new HashMap<String, HttpCacheEntry>();
+                for (String key : misses) {
+                    HttpCacheEntry entry = this.backend.getEntry(key);
+                    if (entry != null) {
+                        fetched.put(key, entry);
+                    }
+                }
+            }
+        } finally {
+            for (int i = 0; i < starts.length; i++) {
+                String key = misses.get(i);
+                endRead(key, starts[i], fetched != null ? fetched.get(key) : null);
+            }
+        }
+        result.putAll(fetched);
+        return result;
+    }
+
+    public void removeEntry(final String key) throws IOException {
+        removeLocal(key);
+        this.backend.removeEntry(key);
+        removeLocal(key);
+    }
+
+    public void removeEntries(final Collection<String> keys) throws IOException {
+        synchronized (this) {
+            for (String key : keys) {
+                invalidate(key);
+            }
+        }
+        if (this.backend instanceof BulkHttpCacheStorage) {
+            ((BulkHttpCacheStorage) this.backend).removeEntries(keys);
+        } else {
+            for (String key : keys) {
+                this.backend.removeEntry(key);
+            }
+        }
+        synchronized (this) {
+            for (String key : keys) {
+                invalidate(key);
+            }
+        }
+    }
+
+    public void updateEntry(
+            final String key,
+            final HttpCacheUpdateCallback callback) throws IOException, HttpCacheUpdateException {
+        removeLocal(key);
+        final HttpCacheEntry[] result = new HttpCacheEntry[1];
+        this.backend.updateEntry(key, new HttpCacheUpdateCallback() {
+
+            public HttpCacheEntry update(final HttpCacheEntry existing) throws IOException {
+                HttpCacheEntry updated = callback.update(existing);
+                result[0] = updated;
+                return updated;
+            }
+
+        });
+        putLocal(key, result[0]);
+    }
+
+    /**
+     * Discards all entries held in memory. Entries in the backend
+     * storage are not affected.
+     */
+    public synchronized void clearLocal() {
+        this.local.clear();
+    }
+
+    /**
+     * Returns the number of entries evicted from the backend storage, if
+     * it reports evictions, or {@code 0} otherwise. Evictions from the
+     * in-memory level are reported by {@link #getLocalEvictionCount()}.
+     */
+    public long getEvictionCount() {
+        if (this.backend instanceof HttpCacheStorageStatistics) {
+            return ((HttpCacheStorageStatistics) this.backend).getEvictionCount();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of entries evicted from the in-memory level to
+     * stay within its maximum number of entries.
+     */
+    public synchronized long getLocalEvictionCount() {
+        return this.local.getEvictionCount();
+    }
+
+    static class LocalEntry {
+
+        final HttpCacheEntry entry;
+        final long expiry;
+
+        LocalEntry(final HttpCacheEntry entry, final long expiry) {
+            this.entry = entry;
+            this.expiry = expiry;
+        }
+
+    }
+
+    static class Generation {
+
+        long value;
+        int readers;
+
+    }
+
+    static class LocalCacheMap extends LinkedHashMap<String, LocalEntry> {
+
+        private static final long serialVersionUID = -2958632094427536484L;
+
+        private final int maxEntries;
+        private long evictionCount;
+
+        LocalCacheMap(final int maxEntries) {
+            super(20, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, LocalEntry> eldest) {
+            if (size() > this.maxEntries) {
+                this.evictionCount++;
+                return true;
+            }
+            return false;
+        }
+
+        long getEvictionCount() {
+            return this.evictionCount;
+        }
+
+    }
+
+}
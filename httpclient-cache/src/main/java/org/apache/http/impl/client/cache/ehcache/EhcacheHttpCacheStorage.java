@@ -29,13 +29,17 @@ package org.apache.http.impl.client.cache.ehcache;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheEntrySerializer;
-import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
 import org.apache.http.client.cache.HttpCacheUpdateException;
 import org.apache.http.impl.client.cache.CacheConfig;
@@ -53,12 +57,23 @@ import org.apache.http.impl.client.cache.DefaultHttpCacheEntrySerializer;
  * {@link CacheConfig#setMaxCacheEntries(int) maximum cache entries}
  * specified by a provided {@link CacheConfig}.</p>
  *
+ * <p>The default constructors use Java serialization for backwards
+ * compatibility with previously stored entries; using a
+ * {@link org.apache.http.impl.client.cache.BinaryHttpCacheEntrySerializer}
+ * via {@link #EhcacheHttpCacheStorage(Ehcache, CacheConfig, HttpCacheEntrySerializer)}
+ * is recommended for new deployments.</p>
+ *
  * <p>Please refer to the <a href="http://ehcache.org/documentation/index.html">
  * Ehcache documentation</a> for details on how to configure the Ehcache
  * itself.</p>
+ *
+ * <p>This backend holds no locks of its own; it relies on the concurrency
+ * of the Ehcache and its atomic {@code putIfAbsent} and {@code replace}
+ * operations, and serializes entries before handing them over.</p>
  * @since 4.1
  */
-public class EhcacheHttpCacheStorage implements HttpCacheStorage {
+@ThreadSafe
+public class EhcacheHttpCacheStorage implements BulkHttpCacheStorage {
 
     private final Ehcache cache;
     private final HttpCacheEntrySerializer serializer;
@@ -101,27 +116,53 @@ public class EhcacheHttpCacheStorage implements HttpCacheStorage {
         this.serializer = serializer;
     }
 
-    public synchronized void putEntry(String key, HttpCacheEntry entry) throws IOException {
+    private Element toElement(String key, HttpCacheEntry entry) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         serializer.writeTo(entry, bos);
-        cache.put(new Element(key, bos.toByteArray()));
+        return new Element(key, bos.toByteArray());
     }
 
-    public synchronized HttpCacheEntry getEntry(String key) throws IOException {
+    private HttpCacheEntry fromElement(Element e) throws IOException {
+        byte[] data = (byte[])e.getValue();
+        return serializer.readFrom(new ByteArrayInputStream(data));
+    }
+
+    public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+        cache.put(toElement(key, entry));
+    }
+
+    public HttpCacheEntry getEntry(String key) throws IOException {
         Element e = cache.get(key);
         if(e == null){
             return null;
         }
+        return fromElement(e);
+    }
 
-        byte[] data = (byte[])e.getValue();
-        return serializer.readFrom(new ByteArrayInputStream(data));
+    public Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException {
+        // Ehcache 2.2 has no multi-get; lookups are in-process, so
+        // retrieving the keys one by one costs no extra round trips
+        Map<String, HttpCacheEntry> entries = new HashMap<String, HttpCacheEntry>();
+        for (String key : keys) {
+            HttpCacheEntry entry = getEntry(key);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        return entries;
     }
 
-    public synchronized void removeEntry(String key) {
+    public void removeEntry(String key) {
         cache.remove(key);
     }
 
-    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback)
+    public void removeEntries(Collection<String> keys) {
+        for (String key : keys) {
+            cache.remove(key);
+        }
+    }
+
+    public void updateEntry(String key, HttpCacheUpdateCallback callback)
             throws IOException, HttpCacheUpdateException {
         int numRetries = 0;
         do{
@@ -129,28 +170,22 @@ public class EhcacheHttpCacheStorage implements HttpCacheStorage {
 
             HttpCacheEntry existingEntry = null;
             if(oldElement != null){
-                byte[] data = (byte[])oldElement.getValue();
-                existingEntry = serializer.readFrom(new ByteArrayInputStream(data));
+                existingEntry = fromElement(oldElement);
             }
 
             HttpCacheEntry updatedEntry = callback.update(existingEntry);
+            Element newElement = toElement(key, updatedEntry);
 
-            if (existingEntry == null) {
-                putEntry(key, updatedEntry);
-                return;
-            } else {
-                // Attempt to do a CAS replace, if we fail then retry
-                // While this operation should work fine within this instance, multiple instances
-                //  could trample each others' data
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                serializer.writeTo(updatedEntry, bos);
-                Element newElement = new Element(key, bos.toByteArray());
-                if (cache.replace(oldElement, newElement)) {
+            // Attempt an atomic insert or replace, if another writer got
+            // there first then retry against its entry
+            if (oldElement == null) {
+                if (cache.putIfAbsent(newElement) == null) {
                     return;
-                }else{
-                    numRetries++;
                 }
+            } else if (cache.replace(oldElement, newElement)) {
+                return;
             }
+            numRetries++;
         }while(numRetries <= maxUpdateRetries);
         throw new HttpCacheUpdateException("Failed to update");
     }
@@ -27,17 +27,39 @@
 package org.apache.http.impl.client.cache.memcached;
 
 import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
 
 /**
  * Default implementation of {@link MemcachedCacheEntryFactory}.
  */
 public class MemcachedCacheEntryFactoryImpl implements MemcachedCacheEntryFactory {
 
+    private final HttpCacheEntrySerializer serializer;
+
+    /**
+     * Creates a factory whose entries are serialized using the given
+     * {@link HttpCacheEntrySerializer}, for instance a
+     * {@link org.apache.http.impl.client.cache.BinaryHttpCacheEntrySerializer}.
+     *
+     * @since 4.3
+     */
+    public MemcachedCacheEntryFactoryImpl(final HttpCacheEntrySerializer serializer) {
+        super();
+        this.serializer = serializer;
+    }
+
+    /**
+     * Creates a factory whose entries use Java serialization.
+     */
+    public MemcachedCacheEntryFactoryImpl() {
+        this(null);
+    }
+
     public MemcachedCacheEntry getMemcachedCacheEntry(String key, HttpCacheEntry entry) {
-        return new MemcachedCacheEntryImpl(key, entry);
+        return new MemcachedCacheEntryImpl(key, entry, this.serializer);
     }
 
     public MemcachedCacheEntry getUnsetCacheEntry() {
-        return new MemcachedCacheEntryImpl(null, null);
+        return new MemcachedCacheEntryImpl(null, null, this.serializer);
     }
 }
@@ -28,27 +28,53 @@ package org.apache.http.impl.client.cache.memcached;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
 
 /**
- * Default implementation of {@link MemcachedCacheEntry}. This implementation
- * simply uses Java serialization to serialize the storage key followed by
- * the {@link HttpCacheEntry} into a byte array.
+ * Default implementation of {@link MemcachedCacheEntry}. By default this
+ * implementation simply uses Java serialization to serialize the storage key
+ * followed by the {@link HttpCacheEntry} into a byte array. If an
+ * {@link HttpCacheEntrySerializer} is given, the storage key is written as
+ * a length-prefixed UTF-8 string followed by the entry in the serializer's
+ * format instead. Using a compact serializer such as
+ * {@link org.apache.http.impl.client.cache.BinaryHttpCacheEntrySerializer}
+ * is recommended, as it is considerably cheaper than Java serialization.
  */
 public class MemcachedCacheEntryImpl implements MemcachedCacheEntry {
 
+    private final HttpCacheEntrySerializer serializer;
     private String key;
     private HttpCacheEntry httpCacheEntry;
 
-    public MemcachedCacheEntryImpl(String key, HttpCacheEntry httpCacheEntry) {
+    /**
+     * @since 4.3
+     */
+    public MemcachedCacheEntryImpl(String key, HttpCacheEntry httpCacheEntry,
+            HttpCacheEntrySerializer serializer) {
         this.key = key;
         this.httpCacheEntry = httpCacheEntry;
+        this.serializer = serializer;
+    }
+
+    public MemcachedCacheEntryImpl(String key, HttpCacheEntry httpCacheEntry) {
+        this(key, httpCacheEntry, null);
+    }
+
+    /**
+     * @since 4.3
+     */
+    public MemcachedCacheEntryImpl(HttpCacheEntrySerializer serializer) {
+        this(null, null, serializer);
     }
 
     public MemcachedCacheEntryImpl() {
+        this(null, null, null);
     }
 
     /* (non-Javadoc)
@@ -56,6 +82,17 @@ public class MemcachedCacheEntryImpl implements MemcachedCacheEntry {
      */
     synchronized public byte[] toByteArray() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (this.serializer != null) {
+            try {
+                DataOutputStream dos = new DataOutputStream(bos);
+                dos.writeUTF(this.key);
+                this.serializer.writeTo(this.httpCacheEntry, dos);
+                dos.close();
+            } catch (IOException ioe) {
+                throw new MemcachedSerializationException(ioe);
+            }
+            return bos.toByteArray();
+        }
         ObjectOutputStream oos;
         try {
             oos = new ObjectOutputStream(bos);
@@ -87,9 +124,22 @@ public class MemcachedCacheEntryImpl implements MemcachedCacheEntry {
      */
     synchronized public void set(byte[] bytes) {
         ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
-        ObjectInputStream ois;
         String s;
         HttpCacheEntry entry;
+        if (this.serializer != null) {
+            try {
+                DataInputStream dis = new DataInputStream(bis);
+                s = dis.readUTF();
+                entry = this.serializer.readFrom(dis);
+                dis.close();
+            } catch (IOException ioe) {
+                throw new MemcachedSerializationException(ioe);
+            }
+            this.key = s;
+            this.httpCacheEntry = entry;
+            return;
+        }
+        ObjectInputStream ois;
         try {
             ois = new ObjectInputStream(bis);
             s = (String)ois.readObject();
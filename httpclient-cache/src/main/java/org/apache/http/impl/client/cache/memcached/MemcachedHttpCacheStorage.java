@@ -28,6 +28,16 @@ package org.apache.http.impl.client.cache.memcached;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
@@ -37,10 +47,10 @@ import net.spy.memcached.OperationTimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.cache.BulkHttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheEntrySerializer;
 import org.apache.http.client.cache.HttpCacheUpdateException;
-import org.apache.http.client.cache.HttpCacheStorage;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
 import org.apache.http.impl.client.cache.CacheConfig;
 import org.apache.http.impl.client.cache.CachingHttpClient;
@@ -74,7 +84,22 @@ import org.apache.http.impl.client.cache.CachingHttpClient;
  * with the {@link HttpCacheEntry} so that we can re-check it on retrieval. There
  * is a default serialization scheme provided for this, although you can provide
  * your own implementations of {@link MemcachedCacheEntry} and
- * {@link MemcachedCacheEntryFactory} to customize this serialization.</p>
+ * {@link MemcachedCacheEntryFactory} to customize this serialization.
+ * Constructing the {@link MemcachedCacheEntryFactoryImpl} with a
+ * {@link org.apache.http.impl.client.cache.BinaryHttpCacheEntrySerializer}
+ * is recommended, as it produces much smaller payloads and is far cheaper
+ * to (de)serialize than the default Java serialization.</p>
+ *
+ * <p>By default every operation waits for its <i>memcached</i> round trip,
+ * up to the operation timeout of the client. A storage created with
+ * {@link #MemcachedHttpCacheStorage(MemcachedClientIF, CacheConfig,
+ * MemcachedCacheEntryFactory, KeyHashingScheme, long, int)} operates
+ * asynchronously instead: lookups wait at most the given timeout and are
+ * treated as cache misses if <i>memcached</i> does not answer in time,
+ * writes are not waited for at all, and the number of lookups and writes
+ * in flight is bounded so that a slow <i>memcached</i> cannot pile up
+ * pending operations. Lookups and writes beyond that bound are skipped.
+ * Deletions are always issued so that invalidations are not lost.</p>
  *
  * <p>Please refer to the <a href="http://code.google.com/p/memcached/wiki/NewStart">
  * memcached documentation</a> and in particular to the documentation for
@@ -84,7 +109,7 @@ import org.apache.http.impl.client.cache.CachingHttpClient;
  *
  * @since 4.1
  */
-public class MemcachedHttpCacheStorage implements HttpCacheStorage {
+public class MemcachedHttpCacheStorage implements BulkHttpCacheStorage {
 
     private static final Log log = LogFactory.getLog(MemcachedHttpCacheStorage.class);
     
@@ -92,6 +117,9 @@ public class MemcachedHttpCacheStorage implements HttpCacheStorage {
     private final KeyHashingScheme keyHashingScheme;
     private final MemcachedCacheEntryFactory memcachedCacheEntryFactory;
     private final int maxUpdateRetries;
+    private final long operationTimeout;
+    private final Semaphore inFlight;
+    private final Queue<Future<Boolean>> pendingWrites;
 
     /**
      * Create a storage backend talking to a <i>memcached</i> instance
@@ -157,12 +185,101 @@ public class MemcachedHttpCacheStorage implements HttpCacheStorage {
         this.maxUpdateRetries = config.getMaxUpdateRetries();
         this.memcachedCacheEntryFactory = memcachedCacheEntryFactory;
         this.keyHashingScheme = keyHashingScheme;
+        this.operationTimeout = 0;
+        this.inFlight = null;
+        this.pendingWrites = null;
     }
-    
+
+    /**
+     * Create an asynchronous storage backend using the given <i>memcached</i>
+     * client and applying the given cache configuration, serialization, and
+     * hashing mechanisms.
+     * @param client how to talk to <i>memcached</i>
+     * @param config apply HTTP cache-related options
+     * @param memcachedCacheEntryFactory Factory pattern used for obtaining
+     *   instances of alternative cache entry serialization mechanisms
+     * @param keyHashingScheme how to map higher-level logical "storage keys"
+     *   onto "cache keys" suitable for use with memcached
+     * @param operationTimeoutMillis how long to wait for a lookup before
+     *   treating it as a cache miss
+     * @param maxInFlightOperations maximum number of lookups and writes
+     *   waiting for <i>memcached</i> at any time
+     *
+     * @since 4.3
+     */
+    public MemcachedHttpCacheStorage(MemcachedClientIF client, CacheConfig config,
+            MemcachedCacheEntryFactory memcachedCacheEntryFactory,
+            KeyHashingScheme keyHashingScheme,
+            long operationTimeoutMillis, int maxInFlightOperations) {
+        if (operationTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Operation timeout must be positive");
+        }
+        if (maxInFlightOperations <= 0) {
+            throw new IllegalArgumentException("Maximum number of operations in flight must be positive");
+        }
+        this.client = client;
+        this.maxUpdateRetries = config.getMaxUpdateRetries();
+        this.memcachedCacheEntryFactory = memcachedCacheEntryFactory;
+        this.keyHashingScheme = keyHashingScheme;
+        this.operationTimeout = operationTimeoutMillis;
+        this.inFlight = new Semaphore(maxInFlightOperations);
+        this.pendingWrites = new ConcurrentLinkedQueue<Future<Boolean>>();
+    }
+
+    private boolean isAsync() {
+        return inFlight != null;
+    }
+
+    private boolean acquireOperation() {
+        if (inFlight.tryAcquire()) {
+            return true;
+        }
+        // writes are not waited for; release the permits of all those
+        // done, however long the writes issued before them take
+        for (Future<Boolean> write : pendingWrites) {
+            if (write.isDone() && pendingWrites.remove(write)) {
+                inFlight.release();
+            }
+        }
+        return inFlight.tryAcquire();
+    }
+
+    /**
+     * Waits for the result of an asynchronous operation.
+     * @return the result or {@code null} if the operation did not complete
+     *   within the operation timeout or failed
+     */
+    private <T> T await(Future<T> future, String key) {
+        try {
+            return future.get(operationTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(false);
+            log.debug("memcached operation on [" + key + "] timed out");
+        } catch (ExecutionException ex) {
+            log.debug("memcached operation on [" + key + "] failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
     public void putEntry(String url, HttpCacheEntry entry) throws IOException  {
         byte[] bytes = serializeEntry(url, entry);
         String key = getCacheKey(url);
         if (key == null) return;
+        if (isAsync()) {
+            if (!acquireOperation()) {
+                log.debug("Too many memcached operations in flight; not storing [" + url + "]");
+                return;
+            }
+            try {
+                pendingWrites.add(client.set(key, 0, bytes));
+            } catch (RuntimeException ex) {
+                inFlight.release();
+                throw ex;
+            }
+            return;
+        }
         try {
             client.set(key, 0, bytes);
         } catch (OperationTimeoutException ex) {
@@ -213,6 +330,21 @@ public class MemcachedHttpCacheStorage implements HttpCacheStorage {
     public HttpCacheEntry getEntry(String url) throws IOException {
         String key = getCacheKey(url);
         if (key == null) return null;
+        if (isAsync()) {
+            if (!acquireOperation()) {
+                return null;
+            }
+            Object value;
+            try {
+                Future<Object> future = client.asyncGet(key);
+                value = await(future, key);
+            } finally {
+                inFlight.release();
+            }
+            MemcachedCacheEntry mce = reconstituteEntry(value);
+            if (mce == null || !url.equals(mce.getStorageKey())) return null;
+            return mce.getHttpCacheEntry();
+        }
         try {
             MemcachedCacheEntry mce = reconstituteEntry(client.get(key));
             if (mce == null || !url.equals(mce.getStorageKey())) return null;
@@ -222,6 +354,52 @@ public class MemcachedHttpCacheStorage implements HttpCacheStorage {
         }
     }
 
+    /**
+     * Retrieves the cache entries stored under the given keys using
+     * a single <i>memcached</i> multi-get operation.
+     */
+    public Map<String, HttpCacheEntry> getEntries(Collection<String> urls) throws IOException {
+        Map<String, String> keys = new HashMap<String, String>();
+        for (String url : urls) {
+            String key = getCacheKey(url);
+            if (key != null) {
+                keys.put(key, url);
+            }
+        }
+        Map<String, HttpCacheEntry> entries = new HashMap<String, HttpCacheEntry>();
+        if (keys.isEmpty()) {
+            return entries;
+        }
+        try {
+            Map<String, Object> values;
+            if (isAsync()) {
+                if (!acquireOperation()) {
+                    return entries;
+                }
+                try {
+                    Future<Map<String, Object>> future = client.asyncGetBulk(keys.keySet());
+                    values = await(future, keys.keySet().toString());
+                } finally {
+                    inFlight.release();
+                }
+                if (values == null) {
+                    return entries;
+                }
+            } else {
+                values = client.getBulk(keys.keySet());
+            }
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                String url = keys.get(value.getKey());
+                MemcachedCacheEntry mce = reconstituteEntry(value.getValue());
+                if (url == null || mce == null || !url.equals(mce.getStorageKey())) continue;
+                entries.put(url, mce.getHttpCacheEntry());
+            }
+        } catch (OperationTimeoutException ex) {
+            throw new MemcachedOperationTimeoutException(ex);
+        }
+        return entries;
+    }
+
     public void removeEntry(String url) throws IOException {
         String key = getCacheKey(url);
         if (key == null) return;
@@ -232,6 +410,14 @@ public class MemcachedHttpCacheStorage implements HttpCacheStorage {
         }
     }
 
+    public void removeEntries(Collection<String> urls) throws IOException {
+        // deletes are asynchronous and pipelined by the memcached client,
+        // so issuing them back to back costs a single round trip
+        for (String url : urls) {
+            removeEntry(url);
+        }
+    }
+
     public void updateEntry(String url, HttpCacheUpdateCallback callback)
             throws HttpCacheUpdateException, IOException {
         int numRetries = 0;
@@ -241,7 +427,7 @@ public class MemcachedHttpCacheStorage implements HttpCacheStorage {
         }
         do {
             try {
-                CASValue<Object> v = client.gets(key);
+                CASValue<Object> v = isAsync() ? asyncGets(key) : client.gets(key);
                 MemcachedCacheEntry mce = (v == null) ? null
                         : reconstituteEntry(v.getValue());
                 if (mce != null && (!url.equals(mce.getStorageKey()))) {
@@ -257,8 +443,9 @@ public class MemcachedHttpCacheStorage implements HttpCacheStorage {
 
                 } else {
                     byte[] updatedBytes = serializeEntry(url, updatedEntry);
-                    CASResponse casResult = client.cas(key, v.getCas(),
-                            updatedBytes);
+                    CASResponse casResult = isAsync()
+                        ? asyncCas(key, v.getCas(), updatedBytes)
+                        : client.cas(key, v.getCas(), updatedBytes);
                     if (casResult != CASResponse.OK) {
                         numRetries++;
                     } else return;
@@ -270,4 +457,47 @@ public class MemcachedHttpCacheStorage implements HttpCacheStorage {
 
         throw new HttpCacheUpdateException("Failed to update");
     }
+
+    private CASValue<Object> asyncGets(String key) throws HttpCacheUpdateException {
+        if (!acquireOperation()) {
+            throw new HttpCacheUpdateException("Too many memcached operations in flight");
+        }
+        Future<CASValue<Object>> future = null;
+        try {
+            future = client.asyncGets(key);
+            return future.get(operationTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(false);
+            throw new HttpCacheUpdateException("Timed out reading [" + key + "]");
+        } catch (ExecutionException ex) {
+            throw new HttpCacheUpdateException("Failed to read [" + key + "]");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HttpCacheUpdateException("Interrupted reading [" + key + "]");
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private CASResponse asyncCas(String key, long cas, byte[] bytes) throws HttpCacheUpdateException {
+        if (!acquireOperation()) {
+            throw new HttpCacheUpdateException("Too many memcached operations in flight");
+        }
+        Future<CASResponse> future = null;
+        try {
+            future = client.asyncCAS(key, cas, bytes);
+            return future.get(operationTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(false);
+            throw new HttpCacheUpdateException("Timed out updating [" + key + "]");
+        } catch (ExecutionException ex) {
+            throw new HttpCacheUpdateException("Failed to update [" + key + "]");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HttpCacheUpdateException("Interrupted updating [" + key + "]");
+        } finally {
+            inFlight.release();
+        }
+    }
+
 }
@@ -29,6 +29,10 @@ package org.apache.http.client.cache;
 import static org.easymock.classextension.EasyMock.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -299,4 +303,67 @@ public class TestHttpCacheEntry {
         assertNotNull(entry.toString());
         assertFalse("".equals(entry.toString()));
     }
+
+    @Test
+    public void freshnessIsParsedFromResponseHeaders() {
+        Header[] headers = {
+                new BasicHeader("Date", DateUtils.formatDate(nineSecondsAgo)),
+                new BasicHeader("Last-Modified", DateUtils.formatDate(elevenSecondsAgo)),
+                new BasicHeader("Expires", "garbage"),
+                new BasicHeader("Age", "3"),
+                new BasicHeader("ETag", "\"etag\""),
+                new BasicHeader("Content-Length", "42"),
+                new BasicHeader("Cache-Control", "max-age=20, Must-Revalidate"),
+                new BasicHeader("Cache-Control", "s-maxage=10, stale-while-revalidate=15")
+        };
+        entry = makeEntry(headers);
+        CacheEntryFreshness freshness = entry.getFreshness();
+        assertEquals(nineSecondsAgo.getTime() / 1000L, freshness.getDate() / 1000L);
+        assertEquals(elevenSecondsAgo.getTime() / 1000L,
+                freshness.getLastModified() / 1000L);
+        assertEquals(CacheEntryFreshness.NO_DATE, freshness.getExpires());
+        assertNull(freshness.getExpiresValue());
+        assertEquals(3L, freshness.getAge());
+        assertEquals(10L, freshness.getMaxAge());
+        assertEquals(15L, freshness.getStaleWhileRevalidate());
+        assertEquals(-1L, freshness.getStaleIfError());
+        assertEquals("\"etag\"", freshness.getETag());
+        assertTrue(freshness.hasContentLength());
+        assertEquals(42L, freshness.getContentLength());
+        assertTrue(freshness.isMustRevalidate());
+        assertFalse(freshness.isProxyRevalidate());
+        assertTrue(freshness.hasCacheControlDirective("s-maxage"));
+    }
+
+    @Test
+    public void freshnessDefaultsWhenHeadersAreAbsent() {
+        entry = makeEntry(new Header[] {});
+        CacheEntryFreshness freshness = entry.getFreshness();
+        assertNull(freshness.getDateValue());
+        assertNull(freshness.getLastModifiedValue());
+        assertEquals(0L, freshness.getAge());
+        assertEquals(-1L, freshness.getMaxAge());
+        assertEquals(-1L, freshness.getStaleWhileRevalidate());
+        assertFalse(freshness.hasContentLength());
+        assertNull(freshness.getETag());
+        assertFalse(freshness.hasCacheControlDirective("no-cache"));
+    }
+
+    @Test
+    public void freshnessIsRestoredOnDeserialization() throws Exception {
+        Header[] headers = {
+                new BasicHeader("Cache-Control", "max-age=20")
+        };
+        entry = new HttpCacheEntry(elevenSecondsAgo, nineSecondsAgo,
+                statusLine, headers, null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(entry);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        HttpCacheEntry copy = (HttpCacheEntry) in.readObject();
+        assertNotNull(copy.getFreshness());
+        assertEquals(20L, copy.getFreshness().getMaxAge());
+    }
 }
@@ -0,0 +1,368 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Throughput benchmark of the main request paths through a
+ * {@link CachingHttpClient}: cache hits, cache misses, revalidations
+ * answered with {@code 304 Not Modified}, lookups of {@code Vary}
+ * variants and invalidation by unsafe requests. Every path is measured
+ * over heap resources in a {@link BasicHttpCacheStorage}, heap resources
+ * in a {@link ManagedHttpCacheStorage} and file resources from a
+ * {@link FileResourceFactory}, for a number of client threads. The backend
+ * is an in-process stub, so no network is involved.
+ * <p>
+ * For every combination the benchmark reports the throughput, the speedup
+ * over a single thread and, on JVMs that can measure per-thread allocation,
+ * the number of bytes allocated per operation.
+ * <p>
+ * This is not a unit test and is not run as part of the build. Run it from
+ * the test classpath with
+ * <pre>
+ * java org.apache.http.impl.client.cache.CachingHttpClientBenchmark [seconds [threads...]]
+ * </pre>
+ * where {@code seconds} is the measurement time of every combination
+ * (default 5) and {@code threads} the thread counts to measure
+ * (default 1 2 4 8).
+ */
+public class CachingHttpClientBenchmark {
+
+    enum Scenario { HIT, MISS, REVALIDATION, VARIANT, INVALIDATION }
+
+    enum Storage { BASIC, MANAGED, FILE }
+
+    private static final String[] LANGUAGES = { "en", "fr", "de", "es" };
+    private static final HttpHost HOST = new HttpHost("origin.example.com");
+
+    private static final int WARMUP = 0;
+    private static final int MEASURE = 1;
+    private static final int STOP = 2;
+
+    private static final Object THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final Method ALLOCATED_BYTES = getAllocatedBytesMethod();
+
+    private static Method getAllocatedBytesMethod() {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+            if (c.isInstance(THREAD_MX_BEAN)) {
+                return c.getMethod("getThreadAllocatedBytes", Long.TYPE);
+            }
+        } catch (Exception ex) {
+            // per-thread allocation is not measurable on this JVM
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the calling thread,
+     * or {@code -1} if this cannot be measured.
+     */
+    static long getAllocatedBytes() {
+        if (ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            Object bytes = ALLOCATED_BYTES.invoke(THREAD_MX_BEAN,
+                    Long.valueOf(Thread.currentThread().getId()));
+            return ((Long) bytes).longValue();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Origin stub: answers conditional requests with {@code 304} and
+     * everything else with a 1KB body that is fresh for an hour, except
+     * below {@code /revalidate} where responses are immediately stale and
+     * below {@code /variant} where they vary on {@code Accept-Language}.
+     */
+    static class OriginStub extends DummyHttpClient {
+
+        private final byte[] body = HttpTestUtils.getRandomBytes(1024);
+
+        @Override
+        public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) {
+            String uri = request.getRequestLine().getUri();
+            HttpResponse response;
+            if (request.containsHeader("If-None-Match")) {
+                response = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpStatus.SC_NOT_MODIFIED, "Not Modified");
+            } else {
+                response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+                response.setHeader("Content-Length", Integer.toString(body.length));
+                response.setEntity(new ByteArrayEntity(body));
+            }
+            response.setHeader("Date", DateUtils.formatDate(new Date()));
+            response.setHeader("ETag", "\"v1\"");
+            if (uri.startsWith("/revalidate")) {
+                response.setHeader("Cache-Control", "max-age=0");
+            } else {
+                response.setHeader("Cache-Control", "max-age=3600");
+            }
+            if (uri.startsWith("/variant")) {
+                response.setHeader("Vary", "Accept-Language");
+            }
+            return response;
+        }
+
+    }
+
+    private final Scenario scenario;
+    private final Storage storage;
+    private final HttpCacheStorage cacheStorage;
+    private final File cacheDir;
+    private final HttpClient client;
+
+    private volatile int phase;
+
+    CachingHttpClientBenchmark(final Scenario scenario, final Storage storage) throws IOException {
+        this.scenario = scenario;
+        this.storage = storage;
+        CacheConfig config = new CacheConfig();
+        ResourceFactory resourceFactory;
+        if (storage == Storage.FILE) {
+            this.cacheDir = File.createTempFile("cache", "");
+            this.cacheDir.delete();
+            this.cacheDir.mkdir();
+            resourceFactory = new FileResourceFactory(this.cacheDir);
+        } else {
+            this.cacheDir = null;
+            resourceFactory = new HeapResourceFactory();
+        }
+        if (storage == Storage.MANAGED) {
+            this.cacheStorage = new ManagedHttpCacheStorage(config);
+        } else {
+            this.cacheStorage = new BasicHttpCacheStorage(config);
+        }
+        this.client = new CachingHttpClient(new OriginStub(), resourceFactory,
+                this.cacheStorage, config);
+    }
+
+    private void execute(HttpRequest request) throws IOException {
+        HttpResponse response = this.client.execute(HOST, request);
+        EntityUtils.consume(response.getEntity());
+    }
+
+    private static HttpRequest get(String uri) {
+        return new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+    }
+
+    private void prime() throws IOException {
+        switch (this.scenario) {
+        case HIT:
+            execute(get("/hit"));
+            break;
+        case REVALIDATION:
+            execute(get("/revalidate"));
+            break;
+        case VARIANT:
+            for (String language : LANGUAGES) {
+                HttpRequest request = get("/variant");
+                request.setHeader("Accept-Language", language);
+                execute(request);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Runs one operation; {@code n} counts the operations of the thread.
+     */
+    private void operation(long thread, long n) throws IOException {
+        switch (this.scenario) {
+        case HIT:
+            execute(get("/hit"));
+            break;
+        case MISS:
+            execute(get("/miss/" + thread + "/" + n));
+            break;
+        case REVALIDATION:
+            execute(get("/revalidate"));
+            break;
+        case VARIANT:
+            HttpRequest request = get("/variant");
+            request.setHeader("Accept-Language", LANGUAGES[(int) (n % LANGUAGES.length)]);
+            execute(request);
+            break;
+        case INVALIDATION:
+            // fill an entry, then invalidate it
+            String uri = "/invalidate/" + thread + "/" + (n % 64);
+            execute(get(uri));
+            execute(new BasicHttpRequest("POST", uri, HttpVersion.HTTP_1_1));
+            break;
+        }
+    }
+
+    /**
+     * Measures the given number of threads, returning the number of
+     * operations per second and the bytes allocated per operation
+     * ({@code -1} if unknown).
+     */
+    double[] run(int threads, long warmupMillis, long measureMillis) throws Exception {
+        prime();
+        final long[] ops = new long[threads];
+        final long[] allocated = new long[threads];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        this.phase = WARMUP;
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            Thread worker = new Thread(new Runnable() {
+
+                public void run() {
+                    long n = 0;
+                    long count = 0;
+                    long allocStart = -1;
+                    try {
+                        int p;
+                        while ((p = phase) != STOP) {
+                            if (p == MEASURE && allocStart == -1) {
+                                allocStart = getAllocatedBytes();
+                            }
+                            operation(id, n++);
+                            if (p == MEASURE) {
+                                count++;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                    ops[id] = count;
+                    allocated[id] = allocStart >= 0 ? getAllocatedBytes() - allocStart : -1;
+                }
+
+            }, "benchmark-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        Thread.sleep(warmupMillis);
+        this.phase = MEASURE;
+        long start = System.nanoTime();
+        Thread.sleep(measureMillis);
+        this.phase = STOP;
+        long elapsed = System.nanoTime() - start;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(this.scenario + "/" + this.storage + " failed",
+                    failure.get());
+        }
+        long totalOps = 0;
+        long totalAllocated = 0;
+        for (int i = 0; i < threads; i++) {
+            totalOps += ops[i];
+            totalAllocated = (totalAllocated < 0 || allocated[i] < 0) ? -1
+                    : totalAllocated + allocated[i];
+        }
+        double throughput = totalOps * 1e9 / elapsed;
+        double bytesPerOp = (totalAllocated < 0 || totalOps == 0) ? -1
+                : (double) totalAllocated / totalOps;
+        return new double[] { throughput, bytesPerOp };
+    }
+
+    void shutdown() {
+        if (this.cacheStorage instanceof ManagedHttpCacheStorage) {
+            ((ManagedHttpCacheStorage) this.cacheStorage).shutdown();
+        }
+        if (this.cacheDir != null) {
+            File[] files = this.cacheDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            this.cacheDir.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long measureMillis = args.length > 0 ? Long.parseLong(args[0]) * 1000 : 5000;
+        long warmupMillis = Math.max(1000, measureMillis / 2);
+        int[] threadCounts;
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        } else {
+            threadCounts = new int[] { 1, 2, 4, 8 };
+        }
+
+        System.out.println(String.format("%-13s %-8s %7s %14s %8s %12s",
+                "scenario", "storage", "threads", "ops/s", "scaling", "bytes/op"));
+        for (Scenario scenario : Scenario.values()) {
+            for (Storage storage : Storage.values()) {
+                double baseline = -1;
+                for (int threads : threadCounts) {
+                    CachingHttpClientBenchmark benchmark =
+                        new CachingHttpClientBenchmark(scenario, storage);
+                    double[] result;
+                    try {
+                        result = benchmark.run(threads, warmupMillis, measureMillis);
+                    } finally {
+                        benchmark.shutdown();
+                    }
+                    if (baseline < 0) {
+                        baseline = result[0] / threads;
+                    }
+                    System.out.println(String.format("%-13s %-8s %7d %14.0f %8.2f %12s",
+                            scenario, storage, Integer.valueOf(threads),
+                            Double.valueOf(result[0]), Double.valueOf(result[0] / baseline),
+                            result[1] < 0 ? "n/a" : String.format("%.0f", Double.valueOf(result[1]))));
+                }
+            }
+        }
+    }
+
+}
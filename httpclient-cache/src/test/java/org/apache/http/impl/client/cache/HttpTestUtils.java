@@ -26,6 +26,8 @@
  */
 package org.apache.http.impl.client.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
 import java.util.Map;
@@ -41,6 +43,7 @@ import org.apache.http.HttpVersion;
 import org.apache.http.RequestLine;
 import org.apache.http.StatusLine;
 import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.Resource;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHeader;
@@ -284,6 +287,30 @@ public class HttpTestUtils {
         return new HttpCacheEntry(requestDate, responseDate, statusLine, headers, new HeapResource(bytes), variantMap);
     }
 
+    /** Generates text that compresses well.
+     *  @param nbytes length of the desired text
+     */
+    public static byte[] getCompressibleBytes(int nbytes) {
+        byte[] text = new byte[nbytes];
+        byte[] pattern = "{\"name\":\"value\",\"count\":42}".getBytes();
+        for (int i = 0; i < nbytes; i++) {
+            text[i] = pattern[i % pattern.length];
+        }
+        return text;
+    }
+
+    /** Makes a cache entry whose body is held by a {@link CompressedResource}. */
+    public static HttpCacheEntry makeCompressedCacheEntry(Header[] headers, byte[] bytes)
+            throws IOException {
+        Resource resource = new CompressingResourceFactory(new HeapResourceFactory()).generate(
+                "id", new ByteArrayInputStream(bytes), null);
+        Assert.assertTrue(resource instanceof CompressedResource);
+        Date now = new Date();
+        StatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        return new HttpCacheEntry(now, now, statusLine, headers, resource,
+                (Map<String,String>) null);
+    }
+
     public static HttpCacheEntry makeCacheEntry(Header[] headers, byte[] bytes) {
         Date now = new Date();
         return makeCacheEntry(now, now, headers, bytes);
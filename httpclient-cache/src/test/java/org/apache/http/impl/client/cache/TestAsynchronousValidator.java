@@ -27,15 +27,23 @@
 package org.apache.http.impl.client.cache;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
 import org.apache.http.Header;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolException;
 import org.apache.http.client.cache.HeaderConstants;
 import org.apache.http.client.cache.HttpCacheEntry;
@@ -191,6 +199,97 @@ public class TestAsynchronousValidator {
         }
     }
 
+    @Test
+    public void testScheduledRevalidationIsRetriedAfterFailure() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        CachingHttpClient client = new CachingHttpClient() {
+            @Override
+            HttpResponse revalidateCacheEntry(HttpHost target, HttpRequest request,
+                    HttpContext context, HttpCacheEntry cacheEntry) throws IOException {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IOException("origin down");
+                }
+                done.countDown();
+                return HttpTestUtils.make200Response();
+            }
+        };
+        CacheConfig config = new CacheConfig();
+        config.setRevalidationRetryDelayMillis(1L);
+        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+        try {
+            impl = new AsynchronousValidator(client, scheduler, config);
+            impl.revalidateCacheEntry(target, request, null, HttpTestUtils.makeCacheEntry());
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(0, impl.getScheduledIdentifiers().size());
+    }
+
+    @Test
+    public void testMostRequestedRevalidationRunsFirst() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CachingHttpClient client = new CachingHttpClient() {
+            @Override
+            HttpResponse revalidateCacheEntry(HttpHost target, HttpRequest request,
+                    HttpContext context, HttpCacheEntry cacheEntry) {
+                order.add(request.getRequestLine().getUri());
+                return HttpTestUtils.make200Response();
+            }
+        };
+        final CountDownLatch blocker = new CountDownLatch(1);
+        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            impl = new AsynchronousValidator(client, scheduler, new CacheConfig());
+            HttpCacheEntry entry = HttpTestUtils.makeCacheEntry();
+            impl.revalidateCacheEntry(target, new HttpGet("/cold"), null, entry);
+            for (int i = 0; i < 3; i++) {
+                impl.revalidateCacheEntry(target, new HttpGet("/hot"), null, entry);
+            }
+            Assert.assertEquals(2, impl.getQueueDepth());
+            blocker.countDown();
+        } finally {
+            scheduler.shutdown();
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2, order.size());
+        Assert.assertEquals("/hot", order.get(0));
+        Assert.assertEquals("/cold", order.get(1));
+    }
+
+    @Test
+    public void testScheduledRevalidationsAreBounded() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setRevalidationQueueSize(1);
+        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.shutdown();
+        impl = new AsynchronousValidator(new CachingHttpClient(), scheduler, config);
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry();
+
+        impl.revalidateCacheEntry(target, new HttpGet("/a"), null, entry);
+        Assert.assertEquals(0, impl.getQueueDepth());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testClientRejectsNullRevalidationExecutor() {
+        CacheConfig config = new CacheConfig();
+        config.setAsynchronousWorkersMax(1);
+        new CachingHttpClient(new DummyHttpClient(), new HeapResourceFactory(),
+                new BasicHttpCacheStorage(config), config, null);
+    }
+
     public void replayMocks() {
         EasyMock.replay(mockExecutor);
         EasyMock.replay(mockClient);
@@ -34,10 +34,14 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
@@ -49,6 +53,8 @@ import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.Resource;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.cookie.DateUtils;
@@ -214,6 +220,18 @@ public class TestBasicHttpCache {
         assertEquals(newVariantCacheKey, resultMap.get(newVariantKey));
     }
 
+    @Test
+    public void testCacheUpdateSharesResourceWithParentEntry() throws Exception {
+        final Map<String,String> existingVariants = new HashMap<String,String>();
+        existingVariants.put("existingVariantKey", "variantCacheKey");
+        final HttpCacheEntry parent = HttpTestUtils.makeCacheEntry(existingVariants);
+        final HttpCacheEntry variant = HttpTestUtils.makeCacheEntry();
+
+        HttpCacheEntry result = impl.doGetUpdatedParentEntry("parentCacheKey", parent, variant,
+                "newVariantKey", "newVariantCacheKey");
+        assertSame(parent.getResource(), result.getResource());
+    }
+
     @Test
     public void testStoreInCachePutsNonVariantEntryInPlace() throws Exception {
         HttpCacheEntry entry = HttpTestUtils.makeCacheEntry();
@@ -382,6 +400,99 @@ public class TestBasicHttpCache {
 
     }
 
+    @Test
+    public void testGetVariantCacheEntriesUsesBulkLookup() throws Exception {
+        final int[] singleLookups = new int[1];
+        BasicHttpCacheStorage storage = new BasicHttpCacheStorage(new CacheConfig()) {
+            @Override
+            public synchronized HttpCacheEntry getEntry(String url) throws IOException {
+                singleLookups[0]++;
+                return super.getEntry(url);
+            }
+        };
+        impl = new BasicHttpCache(new HeapResourceFactory(), storage, new CacheConfig());
+        HttpHost host = new HttpHost("foo.example.com");
+        String[] encodings = { "gzip", "identity", "deflate" };
+        for (int i = 0; i < encodings.length; i++) {
+            HttpRequest req = new HttpGet("http://foo.example.com/bar");
+            req.setHeader("Accept-Encoding", encodings[i]);
+            HttpResponse resp = HttpTestUtils.make200Response();
+            resp.setHeader("Date", DateUtils.formatDate(new Date()));
+            resp.setHeader("Cache-Control", "max-age=3600, public");
+            resp.setHeader("ETag", "\"etag" + i + "\"");
+            resp.setHeader("Vary", "Accept-Encoding");
+            impl.cacheAndReturnResponse(host, req, resp, new Date(), new Date());
+        }
+        HttpRequest req = new HttpGet("http://foo.example.com/bar");
+        req.setHeader("Accept-Encoding", "gzip");
+
+        singleLookups[0] = 0;
+        Map<String,Variant> variants = impl.getVariantCacheEntriesWithEtags(host, req);
+
+        assertEquals(3, variants.size());
+        assertEquals(1, singleLookups[0]);
+    }
+
+    @Test
+    public void testInvalidationRemovesAllVariantsInOneBulkOperation() throws Exception {
+        final int[] singleLookups = new int[1];
+        final int[] bulkRemovals = new int[1];
+        final Set<String> removed = new HashSet<String>();
+        BasicHttpCacheStorage storage = new BasicHttpCacheStorage(new CacheConfig()) {
+            @Override
+            public synchronized HttpCacheEntry getEntry(String url) throws IOException {
+                singleLookups[0]++;
+                return super.getEntry(url);
+            }
+            @Override
+            public synchronized void removeEntries(Collection<String> urls) throws IOException {
+                bulkRemovals[0]++;
+                removed.addAll(urls);
+                super.removeEntries(urls);
+            }
+        };
+        impl = new BasicHttpCache(new HeapResourceFactory(), storage, new CacheConfig());
+        HttpHost host = new HttpHost("foo.example.com");
+        String[] encodings = { "gzip", "identity", "deflate" };
+        for (int i = 0; i < encodings.length; i++) {
+            HttpRequest req = new HttpGet("http://foo.example.com/bar");
+            req.setHeader("Accept-Encoding", encodings[i]);
+            HttpResponse resp = HttpTestUtils.make200Response();
+            resp.setHeader("Date", DateUtils.formatDate(new Date()));
+            resp.setHeader("Cache-Control", "max-age=3600, public");
+            resp.setHeader("ETag", "\"etag" + i + "\"");
+            resp.setHeader("Vary", "Accept-Encoding");
+            impl.cacheAndReturnResponse(host, req, resp, new Date(), new Date());
+        }
+
+        singleLookups[0] = 0;
+        impl.flushInvalidatedCacheEntriesFor(host, new HttpPost("http://foo.example.com/bar"));
+
+        assertEquals(0, singleLookups[0]);
+        assertEquals(1, bulkRemovals[0]);
+        HttpRequest req = new HttpGet("http://foo.example.com/bar");
+        req.setHeader("Accept-Encoding", "gzip");
+        assertNull(impl.getCacheEntry(host, req));
+        assertEquals(4, removed.size());
+        assertTrue(storage.getEntries(removed).isEmpty());
+    }
+
+    @Test
+    public void testInvalidationRemovesContentLocationAliases() throws Exception {
+        HttpHost host = new HttpHost("foo.example.com");
+        HttpRequest req = new HttpGet("http://foo.example.com/bar");
+        HttpResponse resp = HttpTestUtils.make200Response();
+        resp.setHeader("Date", DateUtils.formatDate(new Date()));
+        resp.setHeader("Cache-Control", "max-age=3600, public");
+        resp.setHeader("Content-Location", "/bar.html");
+        impl.cacheAndReturnResponse(host, req, resp, new Date(), new Date());
+        assertNotNull(impl.getCacheEntry(host, req));
+
+        impl.flushInvalidatedCacheEntriesFor(host, new HttpPut("http://foo.example.com/bar.html"));
+
+        assertNull(impl.getCacheEntry(host, req));
+    }
+
     @Test
     public void testOriginalResponseWithNoContentSizeHeaderIsReleased() throws Exception {
         HttpHost host = new HttpHost("foo.example.com");
@@ -406,4 +517,131 @@ public class TestBasicHttpCache {
         assertTrue(inputStream.wasClosed());
     }
 
+    @Test
+    public void testStreamingCacheFillStoresEntryOnceBodyIsRead() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStreamingCacheFillEnabled(true);
+        impl = new BasicHttpCache(new HeapResourceFactory(), backing, config);
+        HttpHost host = new HttpHost("foo.example.com");
+        HttpRequest request = new HttpGet("http://foo.example.com/bar");
+
+        Date now = new Date();
+        HttpResponse originResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        byte[] body = HttpTestUtils.getRandomBytes(CacheConfig.DEFAULT_MAX_OBJECT_SIZE_BYTES - 1);
+        originResponse.setEntity(new ByteArrayEntity(body));
+        originResponse.setHeader("Cache-Control","public, max-age=3600");
+        originResponse.setHeader("Date", DateUtils.formatDate(now));
+        originResponse.setHeader("Content-Length", Integer.toString(body.length));
+
+        HttpResponse result = impl.cacheAndReturnResponse(host, request, originResponse, now, now);
+        assertEquals(0, backing.map.size());
+
+        Assert.assertArrayEquals(body, EntityUtils.toByteArray(result.getEntity()));
+        assertEquals(1, backing.map.size());
+        HttpCacheEntry entry = backing.map.get((new CacheKeyGenerator()).getURI(host, request));
+        assertEquals(body.length, entry.getResource().length());
+    }
+
+    @Test
+    public void testStreamingCacheFillDropsEntryIfBodyNotFullyRead() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setStreamingCacheFillEnabled(true);
+        impl = new BasicHttpCache(new HeapResourceFactory(), backing, config);
+        HttpHost host = new HttpHost("foo.example.com");
+        HttpRequest request = new HttpGet("http://foo.example.com/bar");
+
+        Date now = new Date();
+        HttpResponse originResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        originResponse.setEntity(new ByteArrayEntity(HttpTestUtils.getRandomBytes(1000)));
+        originResponse.setHeader("Cache-Control","public, max-age=3600");
+        originResponse.setHeader("Date", DateUtils.formatDate(now));
+
+        HttpResponse result = impl.cacheAndReturnResponse(host, request, originResponse, now, now);
+        InputStream instream = result.getEntity().getContent();
+        instream.read(new byte[10]);
+        instream.close();
+        assertEquals(0, backing.map.size());
+    }
+
+    private HttpResponse make206Response(Date date, int first, int last, int length) {
+        HttpResponse resp = new BasicHttpResponse(HttpVersion.HTTP_1_1,
+                HttpStatus.SC_PARTIAL_CONTENT, "Partial Content");
+        byte[] body = new byte[last - first + 1];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (first + i);
+        }
+        resp.setEntity(new ByteArrayEntity(body));
+        resp.setHeader("Date", DateUtils.formatDate(date));
+        resp.setHeader("Cache-Control", "max-age=3600");
+        resp.setHeader("ETag", "\"etag\"");
+        resp.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
+        resp.setHeader("Content-Length", Integer.toString(body.length));
+        return resp;
+    }
+
+    @Test
+    public void testPartialResponseIsStoredAsFragment() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setRangeSupportEnabled(true);
+        impl = new BasicHttpCache(new HeapResourceFactory(), backing, config);
+        HttpHost host = new HttpHost("foo.example.com");
+        HttpRequest request = new HttpGet("http://foo.example.com/bar");
+        request.setHeader("Range", "bytes=0-4");
+        Date now = new Date();
+
+        HttpResponse result = impl.cacheAndReturnResponse(host, request,
+                make206Response(now, 0, 4, 10), now, now);
+        assertEquals(HttpStatus.SC_PARTIAL_CONTENT, result.getStatusLine().getStatusCode());
+
+        assertNull(impl.getCacheEntry(host, request));
+        HttpCacheEntry fragment = impl.getPartialCacheEntry(host, request);
+        assertNotNull(fragment);
+        assertEquals("bytes 0-4/10", fragment.getFirstHeader("Content-Range").getValue());
+        assertEquals(5, fragment.getResource().length());
+    }
+
+    @Test
+    public void testAdjacentFragmentsAreMergedIntoCompleteEntry() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setRangeSupportEnabled(true);
+        impl = new BasicHttpCache(new HeapResourceFactory(), backing, config);
+        HttpHost host = new HttpHost("foo.example.com");
+        HttpRequest request = new HttpGet("http://foo.example.com/bar");
+        Date now = new Date();
+
+        impl.cacheAndReturnResponse(host, request, make206Response(now, 5, 9, 10), now, now);
+        impl.cacheAndReturnResponse(host, request, make206Response(now, 0, 6, 10), now, now);
+
+        assertNull(impl.getPartialCacheEntry(host, request));
+        HttpCacheEntry entry = impl.getCacheEntry(host, request);
+        assertNotNull(entry);
+        assertEquals(HttpStatus.SC_OK, entry.getStatusCode());
+        assertNull(entry.getFirstHeader("Content-Range"));
+        assertEquals("10", entry.getFirstHeader("Content-Length").getValue());
+        InputStream instream = entry.getResource().getInputStream();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, instream.read());
+        }
+        assertEquals(-1, instream.read());
+    }
+
+    @Test
+    public void testFragmentsWithDifferentEntityTagsAreNotMerged() throws Exception {
+        CacheConfig config = new CacheConfig();
+        config.setRangeSupportEnabled(true);
+        impl = new BasicHttpCache(new HeapResourceFactory(), backing, config);
+        HttpHost host = new HttpHost("foo.example.com");
+        HttpRequest request = new HttpGet("http://foo.example.com/bar");
+        Date now = new Date();
+
+        impl.cacheAndReturnResponse(host, request, make206Response(now, 0, 4, 10), now, now);
+        HttpResponse other = make206Response(now, 5, 9, 10);
+        other.setHeader("ETag", "\"other\"");
+        impl.cacheAndReturnResponse(host, request, other, now, now);
+
+        assertNull(impl.getCacheEntry(host, request));
+        assertEquals("bytes 5-9/10", impl.getPartialCacheEntry(host, request)
+                .getFirstHeader("Content-Range").getValue());
+    }
+
 }
@@ -0,0 +1,193 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializationException;
+import org.apache.http.client.cache.HttpCacheEntrySerializer;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBinaryHttpCacheEntrySerializer {
+
+    private HttpCacheEntrySerializer impl;
+
+    @Before
+    public void setUp() {
+        impl = new BinaryHttpCacheEntrySerializer();
+    }
+
+    private byte[] serialize(HttpCacheEntry entry) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        impl.writeTo(entry, out);
+        return out.toByteArray();
+    }
+
+    private byte[] resourceToBytes(Resource resource) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copyAndClose(resource.getInputStream(), out);
+        return out.toByteArray();
+    }
+
+    private HttpCacheEntry roundTrip(HttpCacheEntry entry) throws Exception {
+        return impl.readFrom(new ByteArrayInputStream(serialize(entry)));
+    }
+
+    @Test
+    public void testRoundTripPreservesEntry() throws Exception {
+        Map<String,String> variantMap = new HashMap<String,String>();
+        variantMap.put("{Accept-Encoding=gzip}", "{Accept-Encoding=gzip}http://foo.example.com/");
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(variantMap);
+
+        HttpCacheEntry result = roundTrip(entry);
+
+        assertEquals(entry.getRequestDate(), result.getRequestDate());
+        assertEquals(entry.getResponseDate(), result.getResponseDate());
+        assertEquals(entry.getProtocolVersion(), result.getProtocolVersion());
+        assertEquals(entry.getStatusCode(), result.getStatusCode());
+        assertEquals(entry.getReasonPhrase(), result.getReasonPhrase());
+        Header[] expected = entry.getAllHeaders();
+        Header[] actual = result.getAllHeaders();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getName(), actual[i].getName());
+            assertEquals(expected[i].getValue(), actual[i].getValue());
+        }
+        assertEquals(variantMap, result.getVariantMap());
+        assertArrayEquals(resourceToBytes(entry.getResource()),
+                resourceToBytes(result.getResource()));
+    }
+
+    @Test
+    public void testCommonHeaderNamesAreInterned() throws Exception {
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(new Header[] {
+                new BasicHeader(new String("Cache-Control"), "max-age=3600") });
+
+        HttpCacheEntry result = roundTrip(entry);
+
+        assertSame("Cache-Control", result.getAllHeaders()[0].getName());
+    }
+
+    @Test
+    public void testUncommonHeaderNamesAndNonAsciiValuesSurvive() throws Exception {
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(new Header[] {
+                new BasicHeader("X-Custom", "caf\u00e9 \u2603") });
+
+        HttpCacheEntry result = roundTrip(entry);
+
+        assertEquals("X-Custom", result.getAllHeaders()[0].getName());
+        assertEquals("caf\u00e9 \u2603", result.getAllHeaders()[0].getValue());
+    }
+
+    @Test
+    public void testEntryWithoutResourceOrReasonPhrase() throws Exception {
+        Date now = new Date();
+        HttpCacheEntry entry = new HttpCacheEntry(now, now,
+                new BasicStatusLine(new ProtocolVersion("HTTP", 1, 0), 304, null),
+                new Header[] {}, null);
+
+        HttpCacheEntry result = roundTrip(entry);
+
+        assertNull(result.getResource());
+        assertNull(result.getReasonPhrase());
+        assertSame(HttpVersion.HTTP_1_0, result.getProtocolVersion());
+        assertEquals(304, result.getStatusCode());
+    }
+
+    @Test
+    public void testIsMoreCompactThanJavaSerialization() throws Exception {
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DefaultHttpCacheEntrySerializer().writeTo(entry, out);
+
+        assertTrue(serialize(entry).length < out.toByteArray().length);
+    }
+
+    @Test(expected=HttpCacheEntrySerializationException.class)
+    public void testRejectsUnknownFormat() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DefaultHttpCacheEntrySerializer().writeTo(HttpTestUtils.makeCacheEntry(), out);
+        impl.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test(expected=HttpCacheEntrySerializationException.class)
+    public void testRejectsUnsupportedVersion() throws Exception {
+        byte[] bytes = serialize(HttpTestUtils.makeCacheEntry());
+        bytes[4] = (byte) 0x7f;
+        impl.readFrom(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void testCompressedBodyStaysCompressed() throws Exception {
+        byte[] body = HttpTestUtils.getCompressibleBytes(8192);
+        HttpCacheEntry entry = HttpTestUtils.makeCompressedCacheEntry(
+                HttpTestUtils.getStockHeaders(new Date()), body);
+
+        byte[] bytes = serialize(entry);
+        assertTrue(bytes.length < body.length / 4);
+
+        HttpCacheEntry result = impl.readFrom(new ByteArrayInputStream(bytes));
+        assertTrue(result.getResource() instanceof CompressedResource);
+        assertEquals(body.length, result.getResource().length());
+        assertArrayEquals(body, resourceToBytes(result.getResource()));
+        assertArrayEquals(
+                resourceToBytes(((CompressedResource) entry.getResource()).getCompressedResource()),
+                resourceToBytes(((CompressedResource) result.getResource()).getCompressedResource()));
+    }
+
+    @Test(expected=HttpCacheEntrySerializationException.class)
+    public void testRejectsOversizedStringLength() throws Exception {
+        byte[] bytes = serialize(HttpTestUtils.makeCacheEntry());
+        // replace the one byte length of the protocol name, which follows
+        // the magic number, the version and the two dates
+        int offset = 4 + 1 + 8 + 8;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(bytes, 0, offset);
+        out.write(new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 });
+        out.write(bytes, offset + 1, bytes.length - offset - 1);
+        impl.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestByteRange {
+
+    @Test
+    public void testParsesClosedRange() {
+        ByteRange range = ByteRange.parseRange("bytes=10-19", 100);
+        Assert.assertEquals(10, range.getFirst());
+        Assert.assertEquals(19, range.getLast());
+        Assert.assertEquals(10, range.getLength());
+        Assert.assertEquals("bytes 10-19/100", range.toContentRange());
+    }
+
+    @Test
+    public void testOpenRangeExtendsToEnd() {
+        ByteRange range = ByteRange.parseRange("bytes=90-", 100);
+        Assert.assertEquals(90, range.getFirst());
+        Assert.assertEquals(99, range.getLast());
+    }
+
+    @Test
+    public void testSuffixRangeSelectsFinalBytes() {
+        ByteRange range = ByteRange.parseRange("bytes=-30", 100);
+        Assert.assertEquals(70, range.getFirst());
+        Assert.assertEquals(99, range.getLast());
+    }
+
+    @Test
+    public void testLastBytePositionIsClampedToLength() {
+        ByteRange range = ByteRange.parseRange("bytes=50-500", 100);
+        Assert.assertEquals(99, range.getLast());
+    }
+
+    @Test
+    public void testRangeStartingBeyondEndIsUnsatisfiable() {
+        Assert.assertSame(ByteRange.UNSATISFIABLE, ByteRange.parseRange("bytes=100-", 100));
+        Assert.assertSame(ByteRange.UNSATISFIABLE, ByteRange.parseRange("bytes=-0", 100));
+    }
+
+    @Test
+    public void testMalformedOrMultipleRangesAreIgnored() {
+        Assert.assertNull(ByteRange.parseRange("bytes=0-10,20-30", 100));
+        Assert.assertNull(ByteRange.parseRange("bytes=20-10", 100));
+        Assert.assertNull(ByteRange.parseRange("items=0-10", 100));
+        Assert.assertNull(ByteRange.parseRange("bytes=a-b", 100));
+    }
+
+    @Test
+    public void testParsesContentRange() {
+        ByteRange range = ByteRange.parseContentRange("bytes 0-49/128");
+        Assert.assertEquals(0, range.getFirst());
+        Assert.assertEquals(49, range.getLast());
+        Assert.assertEquals(128, range.getInstanceLength());
+        Assert.assertFalse(range.isComplete());
+        Assert.assertTrue(ByteRange.parseContentRange("bytes 0-127/128").isComplete());
+    }
+
+    @Test
+    public void testContentRangeWithoutInstanceLengthIsRejected() {
+        Assert.assertNull(ByteRange.parseContentRange("bytes 0-49/*"));
+        Assert.assertNull(ByteRange.parseContentRange("bytes */128"));
+        Assert.assertNull(ByteRange.parseContentRange("bytes 0-200/128"));
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCacheFillingEntity {
+
+    private byte[] completed;
+
+    private CacheFillingEntity makeEntity(byte[] body, long length, long maxSize) {
+        InputStreamEntity wrapped = new InputStreamEntity(new ByteArrayInputStream(body), length);
+        return new CacheFillingEntity(wrapped, maxSize) {
+
+            @Override
+            void bodyComplete(byte[] buf, int len) {
+                completed = new byte[len];
+                System.arraycopy(buf, 0, completed, 0, len);
+            }
+
+        };
+    }
+
+    @Test
+    public void testBodyIsCopiedWhileCallerReads() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(5000);
+        CacheFillingEntity entity = makeEntity(body, -1, 8192);
+        Assert.assertFalse(entity.isRepeatable());
+        Assert.assertTrue(entity.isStreaming());
+
+        byte[] result = EntityUtils.toByteArray(entity);
+        Assert.assertArrayEquals(body, result);
+        Assert.assertArrayEquals(body, completed);
+    }
+
+    @Test
+    public void testBodyLargerThanLimitIsNotCopied() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(5000);
+        CacheFillingEntity entity = makeEntity(body, -1, 4096);
+
+        byte[] result = EntityUtils.toByteArray(entity);
+        Assert.assertArrayEquals(body, result);
+        Assert.assertNull(completed);
+    }
+
+    @Test
+    public void testPartiallyReadBodyIsNotCopied() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(5000);
+        CacheFillingEntity entity = makeEntity(body, body.length, 8192);
+
+        InputStream instream = entity.getContent();
+        Assert.assertEquals(100, instream.read(new byte[100]));
+        instream.close();
+        Assert.assertNull(completed);
+    }
+
+}
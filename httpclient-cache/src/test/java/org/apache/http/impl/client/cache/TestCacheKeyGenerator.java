@@ -372,4 +372,39 @@ public class TestCacheKeyGenerator {
         HttpRequest req2 = new BasicHttpRequest("GET", "/%7Esmith%2Fhome.html", HttpVersion.HTTP_1_1);
         Assert.assertEquals(extractor.getURI(host, req1), extractor.getURI(host, req2));
     }
+
+    @Test
+    public void testRelativeRequestKeysMatchCanonicalizedAbsoluteUris() {
+        String[] uris = {
+                "/", "/foo/bar.html", "/foo?bar=baz&x=%20y+z", "/a;b=c/d:e@f",
+                "/~smith/home.html", "/%7Esmith/home.html", "/foo/../bar", "/./foo",
+                "/foo#frag", "/foo?", "/foo bar", "//foo/bar", "/foo+bar", "/\u00e9t\u00e9"
+        };
+        HttpHost[] hosts = {
+                new HttpHost("Foo.Example.COM"),
+                new HttpHost("foo.example.com", 8080),
+                new HttpHost("foo.example.com", -1, "https"),
+                new HttpHost("foo.example.com", 80, "ftp")
+        };
+        for (HttpHost h : hosts) {
+            for (String uri : uris) {
+                HttpRequest req = new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+                Assert.assertEquals(h + uri, new CacheKeyGenerator().canonicalizeUri(h.toString() + uri),
+                        extractor.getURI(h, req));
+            }
+        }
+    }
+
+    @Test
+    public void testVariantKeyEncodesHeaderValues() {
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(new Header[] {
+                new BasicHeader("Vary", "Accept-Encoding, User-Agent")
+        });
+        HttpRequest req = new HttpGet("http://foo.example.com/");
+        req.addHeader("Accept-Encoding", "gzip, deflate");
+        req.addHeader("User-Agent", "caf\u00e9/1.0 (x=y)");
+        Assert.assertEquals("{Accept-Encoding=gzip%2C+deflate&User-Agent=caf%C3%A9%2F1.0+%28x%3Dy%29}",
+                extractor.getVariantKey(req, entry));
+    }
+
 }
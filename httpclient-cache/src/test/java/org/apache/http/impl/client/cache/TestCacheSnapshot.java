@@ -0,0 +1,179 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheEntrySerializationException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCacheSnapshot {
+
+    private CacheSnapshot impl;
+    private BasicHttpCacheStorage source;
+    private Date now;
+
+    @Before
+    public void setUp() {
+        impl = new CacheSnapshot();
+        source = new BasicHttpCacheStorage(new CacheConfig());
+        now = new Date();
+    }
+
+    private HttpCacheEntry makeEntry(String cacheControl, byte[] body) {
+        Header[] headers = {
+                new BasicHeader("Date", DateUtils.formatDate(now)),
+                new BasicHeader("Cache-Control", cacheControl) };
+        return HttpTestUtils.makeCacheEntry(headers, body);
+    }
+
+    private byte[] getBody(HttpCacheEntry entry) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copyAndClose(entry.getResource().getInputStream(), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testEntriesSurviveRoundTrip() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(256);
+        source.putEntry("foo", makeEntry("max-age=3600", body));
+        source.putEntry("bar", makeEntry("max-age=3600", HttpTestUtils.getRandomBytes(16)));
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        assertEquals(2, impl.writeTo(source, snapshot));
+
+        ManagedHttpCacheStorage target = new ManagedHttpCacheStorage(new CacheConfig());
+        assertEquals(2, impl.readFrom(new ByteArrayInputStream(snapshot.toByteArray()), target));
+
+        HttpCacheEntry loaded = target.getEntry("foo");
+        assertNotNull(loaded);
+        assertArrayEquals(body, getBody(loaded));
+        assertEquals("max-age=3600", loaded.getFirstHeader("Cache-Control").getValue());
+        assertNotNull(target.getEntry("bar"));
+    }
+
+    @Test
+    public void testStaleEntriesAreNotWritten() throws Exception {
+        source.putEntry("fresh", makeEntry("max-age=3600", new byte[0]));
+        source.putEntry("stale", makeEntry("max-age=0", new byte[0]));
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        assertEquals(1, impl.writeTo(source, snapshot));
+
+        BasicHttpCacheStorage target = new BasicHttpCacheStorage(new CacheConfig());
+        impl.readFrom(new ByteArrayInputStream(snapshot.toByteArray()), target);
+        assertNotNull(target.getEntry("fresh"));
+        assertNull(target.getEntry("stale"));
+    }
+
+    @Test
+    public void testEntriesExpiredSinceSnapshotAreNotLoaded() throws Exception {
+        source.putEntry("short", makeEntry("max-age=10", new byte[0]));
+        source.putEntry("long", makeEntry("max-age=3600", new byte[0]));
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        impl.writeTo(source, snapshot);
+
+        CacheSnapshot later = new CacheSnapshot() {
+            @Override
+            Date getCurrentDate() {
+                return new Date(now.getTime() + 60 * 1000L);
+            }
+        };
+        BasicHttpCacheStorage target = new BasicHttpCacheStorage(new CacheConfig());
+        assertEquals(1, later.readFrom(new ByteArrayInputStream(snapshot.toByteArray()), target));
+        assertNull(target.getEntry("short"));
+        assertNotNull(target.getEntry("long"));
+    }
+
+    @Test
+    public void testTruncatedSnapshotLoadsCompleteEntries() throws Exception {
+        source.putEntry("one", makeEntry("max-age=3600", HttpTestUtils.getRandomBytes(64)));
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        impl.writeTo(source, first);
+        source.putEntry("two", makeEntry("max-age=3600", HttpTestUtils.getRandomBytes(64)));
+        ByteArrayOutputStream both = new ByteArrayOutputStream();
+        impl.writeTo(source, both);
+
+        // cut the snapshot in the middle of the second entry
+        byte[] truncated = new byte[first.size() + 20];
+        System.arraycopy(both.toByteArray(), 0, truncated, 0, truncated.length);
+
+        BasicHttpCacheStorage target = new BasicHttpCacheStorage(new CacheConfig());
+        assertEquals(1, impl.readFrom(new ByteArrayInputStream(truncated), target));
+        assertNotNull(target.getEntry("one"));
+    }
+
+    @Test
+    public void testCompressedBodiesStayCompressed() throws Exception {
+        byte[] body = HttpTestUtils.getCompressibleBytes(8192);
+        Header[] headers = {
+                new BasicHeader("Date", DateUtils.formatDate(now)),
+                new BasicHeader("Cache-Control", "max-age=3600") };
+        source.putEntry("foo", HttpTestUtils.makeCompressedCacheEntry(headers, body));
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        assertEquals(1, impl.writeTo(source, snapshot));
+        assertTrue(snapshot.size() < body.length / 4);
+
+        BasicHttpCacheStorage target = new BasicHttpCacheStorage(new CacheConfig());
+        impl.readFrom(new ByteArrayInputStream(snapshot.toByteArray()), target);
+        HttpCacheEntry loaded = target.getEntry("foo");
+        assertTrue(loaded.getResource() instanceof CompressedResource);
+        assertArrayEquals(body, getBody(loaded));
+    }
+
+    @Test(expected=HttpCacheEntrySerializationException.class)
+    public void testRejectsOversizedKeyLength() throws Exception {
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        impl.writeTo(source, empty);
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        // the magic number, then an entry with an absurd key length
+        snapshot.write(empty.toByteArray(), 0, 4);
+        DataOutputStream out = new DataOutputStream(snapshot);
+        out.writeByte(1);
+        out.writeInt(Integer.MAX_VALUE);
+        out.flush();
+
+        impl.readFrom(new ByteArrayInputStream(snapshot.toByteArray()),
+                new BasicHttpCacheStorage(new CacheConfig()));
+    }
+
+}
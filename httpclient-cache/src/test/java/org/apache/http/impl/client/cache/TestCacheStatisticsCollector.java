@@ -0,0 +1,120 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheStatistics;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCacheStatisticsCollector {
+
+    private HttpHost host;
+    private CacheStatisticsCollector impl;
+
+    @Before
+    public void setUp() {
+        host = new HttpHost("foo.example.com");
+        impl = new CacheStatisticsCollector();
+    }
+
+    @Test
+    public void testCountsAreTrackedInTotalAndPerHost() {
+        impl.recordCacheHit(host);
+        impl.recordCacheHit(host);
+        impl.recordCacheMiss(host);
+        impl.recordCacheUpdate(new HttpHost("bar.example.com"));
+        impl.recordResponseStatus(host, CacheResponseStatus.CACHE_HIT);
+
+        assertEquals(2, impl.getCacheHits());
+        assertEquals(1, impl.getCacheMisses());
+        assertEquals(1, impl.getCacheUpdates());
+        assertEquals(1, impl.getResponseCount(CacheResponseStatus.CACHE_HIT));
+        assertEquals(0, impl.getResponseCount(CacheResponseStatus.CACHE_MISS));
+        assertEquals(2, impl.getHosts().size());
+
+        HttpCacheStatistics hostStats = impl.getHostStatistics(host.toHostString());
+        assertEquals(2, hostStats.getCacheHits());
+        assertEquals(1, hostStats.getCacheMisses());
+        assertEquals(0, hostStats.getCacheUpdates());
+        assertTrue(hostStats.getHosts().isEmpty());
+        assertNull(impl.getHostStatistics("baz.example.com"));
+    }
+
+    @Test
+    public void testObjectSizesAreBucketed() {
+        impl.recordEntryStored(host, 10);
+        impl.recordEntryStored(host, 1024);
+        impl.recordEntryStored(host, 10 * 1024 * 1024);
+        impl.recordEntryStored(host, -1);
+
+        long[] histogram = impl.getObjectSizeHistogram();
+        assertEquals(impl.getObjectSizeBucketLimits().length + 1, histogram.length);
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[1]);
+        assertEquals(1, histogram[histogram.length - 1]);
+        assertEquals(4, impl.getEntriesStored());
+        assertEquals(10 + 1024 + 10 * 1024 * 1024, impl.getBytesStored());
+    }
+
+    @Test
+    public void testPerHostStatisticsAreBounded() {
+        for (int i = 0; i < CacheStatisticsCollector.MAX_HOSTS + 10; i++) {
+            impl.recordCacheMiss(new HttpHost("host" + i + ".example.com"));
+        }
+        assertEquals(CacheStatisticsCollector.MAX_HOSTS, impl.getHosts().size());
+        assertEquals(CacheStatisticsCollector.MAX_HOSTS + 10, impl.getCacheMisses());
+    }
+
+    @Test
+    public void testReportsEvictionsOfStorage() throws Exception {
+        assertEquals(-1, impl.getEvictions());
+        CacheConfig config = new CacheConfig();
+        config.setMaxCacheEntries(1);
+        BasicHttpCacheStorage storage = new BasicHttpCacheStorage(config);
+        impl.setStorage(storage);
+        storage.putEntry("one", HttpTestUtils.makeCacheEntry());
+        storage.putEntry("two", HttpTestUtils.makeCacheEntry());
+        assertEquals(1, impl.getEvictions());
+    }
+
+    @Test
+    public void testBasicHttpCacheRecordsStoredEntries() throws Exception {
+        BasicHttpCache cache = new BasicHttpCache();
+        cache.setStatisticsCollector(impl);
+        cache.storeInCache(host, HttpTestUtils.makeDefaultRequest(),
+                HttpTestUtils.makeCacheEntry());
+        assertEquals(1, impl.getEntriesStored());
+        assertEquals(0, impl.getEvictions());
+    }
+
+}
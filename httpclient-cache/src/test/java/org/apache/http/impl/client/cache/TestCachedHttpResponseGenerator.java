@@ -26,13 +26,22 @@
  */
 package org.apache.http.impl.client.cache;
 
+import java.io.ByteArrayInputStream;
 import java.util.Date;
 
 import org.apache.http.Header;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
 import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.Resource;
 import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
 import org.easymock.classextension.EasyMock;
 import org.junit.Assert;
 import org.junit.Before;
@@ -152,4 +161,114 @@ public class TestCachedHttpResponseGenerator {
                         EasyMock.isA(Date.class))).andReturn(sec);
     }
 
+    @Test
+    public void testRangeRequestIsAnsweredWithPartialContent() throws Exception {
+        byte[] buf = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(buf);
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+        request.setHeader("Range", "bytes=2-5");
+
+        HttpResponse response = new CachedHttpResponseGenerator().generateResponse(request, entry);
+
+        Assert.assertEquals(HttpStatus.SC_PARTIAL_CONTENT, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("bytes 2-5/10", response.getFirstHeader("Content-Range").getValue());
+        Assert.assertEquals("4", response.getFirstHeader("Content-Length").getValue());
+        Assert.assertArrayEquals(new byte[] { 3, 4, 5, 6 },
+                EntityUtils.toByteArray(response.getEntity()));
+    }
+
+    @Test
+    public void testUnsatisfiableRangeIsAnsweredWith416() {
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(new byte[] { 1, 2, 3 });
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+        request.setHeader("Range", "bytes=10-");
+
+        HttpResponse response = new CachedHttpResponseGenerator().generateResponse(request, entry);
+
+        Assert.assertEquals(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                response.getStatusLine().getStatusCode());
+        Assert.assertEquals("bytes */3", response.getFirstHeader("Content-Range").getValue());
+    }
+
+    @Test
+    public void testNonMatchingIfRangeReturnsWholeEntity() {
+        Header[] hdrs = { new BasicHeader("ETag", "\"v2\"") };
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(hdrs, new byte[] { 1, 2, 3 });
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+        request.setHeader("Range", "bytes=0-1");
+        request.setHeader("If-Range", "\"v1\"");
+
+        HttpResponse response = new CachedHttpResponseGenerator().generateResponse(request, entry);
+
+        Assert.assertEquals(HttpStatus.SC_OK, response.getStatusLine().getStatusCode());
+        Assert.assertNull(response.getFirstHeader("Content-Range"));
+    }
+
+    @Test
+    public void testMatchingStrongIfRangeReturnsPartialContent() {
+        Header[] hdrs = { new BasicHeader("ETag", "\"v1\"") };
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(hdrs, new byte[] { 1, 2, 3 });
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+        request.setHeader("Range", "bytes=0-1");
+        request.setHeader("If-Range", "\"v1\"");
+
+        HttpResponse response = new CachedHttpResponseGenerator().generateResponse(request, entry);
+
+        Assert.assertEquals(HttpStatus.SC_PARTIAL_CONTENT, response.getStatusLine().getStatusCode());
+    }
+
+    private HttpCacheEntry makeCompressedEntry(byte[] body, Header[] hdrs) throws Exception {
+        Resource resource = new CompressingResourceFactory(new HeapResourceFactory())
+            .generate("id", new ByteArrayInputStream(body), null);
+        Assert.assertTrue(resource instanceof CompressedResource);
+        StatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        return new HttpCacheEntry(now, now, statusLine, hdrs, resource, null);
+    }
+
+    @Test
+    public void testCompressedEntryIsDecompressedWithoutAcceptEncoding() throws Exception {
+        byte[] body = new byte[1024];
+        HttpCacheEntry entry = makeCompressedEntry(body, new Header[] {
+                new BasicHeader("ETag", "\"v1\"") });
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+
+        HttpResponse response = new CachedHttpResponseGenerator().generateFullResponse(request, entry);
+
+        Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+        Assert.assertEquals("1024", response.getFirstHeader("Content-Length").getValue());
+        Assert.assertEquals("\"v1\"", response.getFirstHeader("ETag").getValue());
+        Assert.assertArrayEquals(body, EntityUtils.toByteArray(response.getEntity()));
+    }
+
+    @Test
+    public void testCompressedEntryIsServedDeflatedWhenAccepted() throws Exception {
+        byte[] body = new byte[1024];
+        HttpCacheEntry entry = makeCompressedEntry(body, new Header[] {
+                new BasicHeader("ETag", "\"v1\""), new BasicHeader("Vary", "Accept-Language") });
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+        request.setHeader("Accept-Encoding", "gzip, deflate");
+
+        HttpResponse response = new CachedHttpResponseGenerator().generateFullResponse(request, entry);
+
+        Assert.assertEquals("deflate", response.getFirstHeader("Content-Encoding").getValue());
+        Assert.assertEquals("W/\"v1\"", response.getFirstHeader("ETag").getValue());
+        Assert.assertEquals("Accept-Language, Accept-Encoding",
+                response.getFirstHeader("Vary").getValue());
+        byte[] deflated = EntityUtils.toByteArray(response.getEntity());
+        Assert.assertTrue(deflated.length < body.length);
+        Assert.assertEquals(Integer.toString(deflated.length),
+                response.getFirstHeader("Content-Length").getValue());
+    }
+
+    @Test
+    public void testDeflateWithZeroQualityIsNotServedDeflated() throws Exception {
+        HttpCacheEntry entry = makeCompressedEntry(new byte[1024], new Header[0]);
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+        request.setHeader("Accept-Encoding", "*, deflate;q=0");
+
+        HttpResponse response = new CachedHttpResponseGenerator().generateFullResponse(request, entry);
+
+        Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+    }
+
 }
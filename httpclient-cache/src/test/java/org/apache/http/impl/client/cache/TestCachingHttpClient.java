@@ -458,7 +458,7 @@ public class TestCachingHttpClient {
         requestProtocolValidationIsCalled();
         getCacheEntryReturns(mockCacheEntry);
         cacheEntrySuitable(true);
-        responseIsGeneratedFromCache();
+        fullResponseIsGeneratedFromCache();
         requestIsFatallyNonCompliant(null);
         entryHasStaleness(0L);
 
@@ -863,7 +863,7 @@ public class TestCachingHttpClient {
         requestPolicyAllowsCaching(true);
         cacheEntrySuitable(true);
         getCacheEntryReturns(mockCacheEntry);
-        responseIsGeneratedFromCache();
+        fullResponseIsGeneratedFromCache();
         entryHasStaleness(0L);
 
         replayMocks();
@@ -1863,7 +1863,7 @@ public class TestCachingHttpClient {
         requestPolicyAllowsCaching(true);
         getCacheEntryReturns(entry);
         cacheEntrySuitable(true);
-        responseIsGeneratedFromCache();
+        fullResponseIsGeneratedFromCache();
         entryHasStaleness(0);
 
         replayMocks();
@@ -1910,6 +1910,38 @@ public class TestCachingHttpClient {
 		assertAllContextVariablesAreEqualTo(ctx, value);
 	}
 	
+    @Test
+    public void testBypassSendsUncacheableRequestToBackendUnchanged() throws Exception {
+        DummyHttpClient backend = new DummyHttpClient();
+        CacheConfig config = new CacheConfig();
+        config.setUncacheableRequestBypassEnabled(true);
+        impl = new CachingHttpClient(backend, config);
+        HttpRequest post = new BasicHttpRequest("POST", "/stuff", HttpVersion.HTTP_1_1);
+
+        impl.execute(host, post);
+
+        assertSame(post, backend.getCapturedRequest());
+        assertNull(post.getFirstHeader("Via"));
+    }
+
+    @Test
+    public void testBypassedRequestStillInvalidatesCachedEntry() throws Exception {
+        DummyHttpClient backend = new DummyHttpClient();
+        HttpResponse response = HttpTestUtils.make200Response();
+        response.setHeader("Cache-Control", "max-age=3600");
+        backend.setResponse(response);
+        CacheConfig config = new CacheConfig();
+        config.setUncacheableRequestBypassEnabled(true);
+        impl = new CachingHttpClient(backend, config);
+
+        impl.execute(host, request);
+        impl.execute(host, request);
+        assertEquals(1, backend.getExecutions());
+        impl.execute(host, new BasicHttpRequest("POST", "/stuff", HttpVersion.HTTP_1_1));
+        impl.execute(host, request);
+        assertEquals(3, backend.getExecutions());
+    }
+
 	@Test
 	public void testDoesNotSetConnectionInContextOnCacheHit() throws Exception {
 		DummyHttpClient backend = new DummyHttpClient();
@@ -2117,6 +2149,12 @@ public class TestCachingHttpClient {
                 (HttpCacheEntry)anyObject())).andReturn(mockCachedResponse);
     }
 
+    private void fullResponseIsGeneratedFromCache() {
+        expect(mockResponseGenerator.generateFullResponse(
+                (HttpRequest)anyObject(),
+                (HttpCacheEntry)anyObject())).andReturn(mockCachedResponse);
+    }
+
     private void handleBackendResponseReturnsResponse(HttpRequest request, HttpResponse response)
             throws IOException {
         expect(
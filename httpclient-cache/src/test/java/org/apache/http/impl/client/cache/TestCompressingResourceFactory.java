@@ -0,0 +1,118 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCompressingResourceFactory {
+
+    private CompressingResourceFactory impl;
+
+    @Before
+    public void setUp() {
+        impl = new CompressingResourceFactory(new HeapResourceFactory());
+    }
+
+    private static byte[] makeText(int nbytes) {
+        byte[] text = new byte[nbytes];
+        byte[] pattern = "{\"name\":\"value\",\"count\":42}".getBytes();
+        for (int i = 0; i < nbytes; i++) {
+            text[i] = pattern[i % pattern.length];
+        }
+        return text;
+    }
+
+    private static byte[] read(Resource resource) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copyAndClose(resource.getInputStream(), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCompressibleBodyIsStoredCompressed() throws Exception {
+        byte[] body = makeText(4096);
+        Resource resource = impl.generate("id", new ByteArrayInputStream(body), null);
+
+        assertTrue(resource instanceof CompressedResource);
+        Resource stored = ((CompressedResource) resource).getCompressedResource();
+        assertTrue(stored.length() < body.length / 4);
+        assertEquals(body.length, resource.length());
+        assertArrayEquals(body, read(resource));
+    }
+
+    @Test
+    public void testStoredFormUsesDeflateContentCoding() throws Exception {
+        byte[] body = makeText(1024);
+        CompressedResource resource = (CompressedResource) impl.generate(
+                "id", new ByteArrayInputStream(body), null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copyAndClose(new InflaterInputStream(
+                resource.getCompressedResource().getInputStream()), out);
+        assertArrayEquals(body, out.toByteArray());
+    }
+
+    @Test
+    public void testIncompressibleBodyIsStoredAsIs() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(1024);
+        Resource resource = impl.generate("id", new ByteArrayInputStream(body), null);
+
+        assertFalse(resource instanceof CompressedResource);
+        assertArrayEquals(body, read(resource));
+    }
+
+    @Test
+    public void testLimitAppliesToUncompressedLength() throws Exception {
+        InputLimit limit = new InputLimit(100);
+        impl.generate("id", new ByteArrayInputStream(makeText(4096)), limit);
+        assertTrue(limit.isReached());
+    }
+
+    @Test
+    public void testCopyKeepsBodyCompressed() throws Exception {
+        byte[] body = makeText(4096);
+        Resource resource = impl.generate("id", new ByteArrayInputStream(body), null);
+
+        Resource copy = impl.copy("copy", resource);
+
+        assertTrue(copy instanceof CompressedResource);
+        assertArrayEquals(body, read(copy));
+    }
+
+}
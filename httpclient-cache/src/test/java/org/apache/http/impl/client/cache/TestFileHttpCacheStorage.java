@@ -0,0 +1,356 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileHttpCacheStorage {
+
+    private File cacheDir;
+    private CacheConfig config;
+    private FileHttpCacheStorage impl;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = File.createTempFile("cachedir", "");
+        if (cacheDir.exists()) {
+            cacheDir.delete();
+        }
+        cacheDir.mkdir();
+        config = new CacheConfig();
+        impl = new FileHttpCacheStorage(cacheDir, config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        impl.shutdown();
+        File[] files = cacheDir.listFiles();
+        for (File file : files) {
+            file.delete();
+        }
+        cacheDir.delete();
+    }
+
+    private FileHttpCacheStorage reopen() throws Exception {
+        impl.shutdown();
+        impl = new FileHttpCacheStorage(cacheDir, config);
+        return impl;
+    }
+
+    private byte[] getBody(HttpCacheEntry entry) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copyAndClose(entry.getResource().getInputStream(), out);
+        return out.toByteArray();
+    }
+
+    private int countFiles() {
+        return cacheDir.listFiles().length;
+    }
+
+    @Test
+    public void testStoresAndRetrievesEntries() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(128);
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(body);
+        impl.putEntry("foo", entry);
+
+        HttpCacheEntry result = impl.getEntry("foo");
+        assertNotNull(result);
+        assertEquals(entry.getStatusCode(), result.getStatusCode());
+        assertEquals(entry.getAllHeaders().length, result.getAllHeaders().length);
+        assertArrayEquals(body, getBody(result));
+        assertNull(impl.getEntry("bar"));
+    }
+
+    @Test
+    public void testEntriesSurviveRestart() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(128);
+        Map<String,String> variantMap = new HashMap<String,String>();
+        variantMap.put("variant", "variantCacheKey");
+        Date now = new Date();
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry(now, now,
+                HttpTestUtils.getStockHeaders(now), body, variantMap));
+
+        reopen();
+
+        HttpCacheEntry result = impl.getEntry("foo");
+        assertNotNull(result);
+        assertArrayEquals(body, getBody(result));
+        assertEquals(variantMap, result.getVariantMap());
+    }
+
+    @Test
+    public void testRemovalSurvivesRestart() throws Exception {
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        impl.putEntry("bar", HttpTestUtils.makeCacheEntry());
+        impl.removeEntry("foo");
+
+        reopen();
+
+        assertNull(impl.getEntry("foo"));
+        assertNotNull(impl.getEntry("bar"));
+        assertEquals(1, impl.size());
+    }
+
+    @Test
+    public void testReplacingEntryDeletesOldFiles() throws Exception {
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        int files = countFiles();
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        assertEquals(files, countFiles());
+    }
+
+    @Test
+    public void testUpdateEntryAppliesCallback() throws Exception {
+        final HttpCacheEntry updated = HttpTestUtils.makeCacheEntry();
+        impl.updateEntry("foo", new HttpCacheUpdateCallback() {
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                assertNull(existing);
+                return updated;
+            }
+        });
+        assertArrayEquals(getBody(updated), getBody(impl.getEntry("foo")));
+    }
+
+    private Map<String, Long> getBodyFiles() {
+        Map<String, Long> bodies = new HashMap<String, Long>();
+        for (File file : cacheDir.listFiles()) {
+            if (file.getName().endsWith(".body")) {
+                bodies.put(file.getName(), Long.valueOf(file.length()));
+            }
+        }
+        return bodies;
+    }
+
+    @Test
+    public void testUpdateWithUnchangedBodyKeepsBodyFile() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(128);
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry(body));
+        Map<String, Long> bodies = getBodyFiles();
+        int files = countFiles();
+
+        final Map<String,String> variantMap = new HashMap<String,String>();
+        variantMap.put("variant", "variantCacheKey");
+        impl.updateEntry("foo", new HttpCacheUpdateCallback() {
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                return new HttpCacheEntry(existing.getRequestDate(), existing.getResponseDate(),
+                        existing.getStatusLine(), existing.getAllHeaders(),
+                        existing.getResource(), variantMap);
+            }
+        });
+
+        assertEquals(bodies, getBodyFiles());
+        assertEquals(files, countFiles());
+        HttpCacheEntry result = impl.getEntry("foo");
+        assertEquals(variantMap, result.getVariantMap());
+        assertArrayEquals(body, getBody(result));
+
+        reopen();
+
+        assertEquals(variantMap, impl.getEntry("foo").getVariantMap());
+    }
+
+    @Test
+    public void testUpdateIsRetriedAfterConcurrentChange() throws Exception {
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        final byte[] body = HttpTestUtils.getRandomBytes(128);
+        final int[] calls = new int[1];
+        impl.updateEntry("foo", new HttpCacheUpdateCallback() {
+            public HttpCacheEntry update(HttpCacheEntry existing) throws IOException {
+                calls[0]++;
+                if (calls[0] == 1) {
+                    // another writer gets in while the callback runs
+                    impl.putEntry("foo", HttpTestUtils.makeCacheEntry(body));
+                    return HttpTestUtils.makeCacheEntry();
+                }
+                assertEquals(body.length, existing.getResource().length());
+                return new HttpCacheEntry(existing.getRequestDate(), existing.getResponseDate(),
+                        existing.getStatusLine(), existing.getAllHeaders(),
+                        existing.getResource(), new HashMap<String,String>());
+            }
+        });
+
+        assertEquals(2, calls[0]);
+        assertArrayEquals(body, getBody(impl.getEntry("foo")));
+        // the entry written by the failed attempt has been deleted again
+        int entryFiles = 0;
+        for (File file : cacheDir.listFiles()) {
+            if (file.getName().endsWith(".entry")) {
+                entryFiles++;
+            }
+        }
+        assertEquals(1, entryFiles);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedEntries() throws Exception {
+        impl.shutdown();
+        config.setMaxCacheEntries(2);
+        impl = new FileHttpCacheStorage(cacheDir, config);
+        impl.putEntry("one", HttpTestUtils.makeCacheEntry());
+        impl.putEntry("two", HttpTestUtils.makeCacheEntry());
+        impl.getEntry("one");
+        impl.putEntry("three", HttpTestUtils.makeCacheEntry());
+
+        assertNotNull(impl.getEntry("one"));
+        assertNull(impl.getEntry("two"));
+        assertNotNull(impl.getEntry("three"));
+        // journal plus entry and body files for two entries
+        assertEquals(5, countFiles());
+        assertEquals(1, impl.getEvictionCount());
+    }
+
+    @Test
+    public void testDeletesOrphanedFilesOnStartup() throws Exception {
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        File orphan = new File(cacheDir, "orphan.body");
+        FileOutputStream out = new FileOutputStream(orphan);
+        out.write(HttpTestUtils.getRandomBytes(16));
+        out.close();
+
+        reopen();
+
+        assertFalse(orphan.exists());
+        assertNotNull(impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testRecoversFromTornJournalRecord() throws Exception {
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        impl.shutdown();
+        File journal = new File(cacheDir, FileHttpCacheStorage.JOURNAL_FILE);
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.seek(raf.length());
+        raf.write(new byte[] { 1, 0, 100, 'b', 'a' });
+        raf.close();
+
+        impl = new FileHttpCacheStorage(cacheDir, config);
+
+        assertNotNull(impl.getEntry("foo"));
+        assertEquals(1, impl.size());
+    }
+
+    @Test
+    public void testDropsEntriesWithMissingFiles() throws Exception {
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        impl.putEntry("bar", HttpTestUtils.makeCacheEntry());
+        impl.shutdown();
+        for (File file : cacheDir.listFiles()) {
+            if (file.getName().endsWith(".entry")) {
+                file.delete();
+                break;
+            }
+        }
+
+        impl = new FileHttpCacheStorage(cacheDir, config);
+
+        assertEquals(1, impl.size());
+        assertTrue(impl.getEntry("foo") != null || impl.getEntry("bar") != null);
+    }
+
+    @Test
+    public void testRemovalDoesNotBreakOpenBodyStream() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(8192);
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry(body));
+        HttpCacheEntry entry = impl.getEntry("foo");
+
+        InputStream in = entry.getResource().getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(in.read());
+        impl.removeEntry("foo");
+        IOUtils.copyAndClose(in, out);
+
+        assertArrayEquals(body, out.toByteArray());
+        assertNull(impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testRemovalDefersBodyDeletionForHandedOutResources() throws Exception {
+        byte[] body = HttpTestUtils.getRandomBytes(128);
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry(body));
+        HttpCacheEntry entry = impl.getEntry("foo");
+        int files = countFiles();
+
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        impl.removeEntry("foo");
+
+        // the superseded body is still readable, only its metadata is gone
+        assertArrayEquals(body, getBody(entry));
+        assertEquals(files - 1, countFiles());
+
+        Resource resource = entry.getResource();
+        resource.dispose();
+        resource.dispose();
+        impl.getEntry("foo");
+        // only the journal is left
+        assertEquals(1, countFiles());
+    }
+
+    @Test
+    public void testCompressedBodiesAreStoredCompressed() throws Exception {
+        byte[] body = HttpTestUtils.getCompressibleBytes(8192);
+        impl.putEntry("foo", HttpTestUtils.makeCompressedCacheEntry(
+                HttpTestUtils.getStockHeaders(new Date()), body));
+
+        long stored = 0;
+        for (File file : cacheDir.listFiles()) {
+            if (file.getName().endsWith(".body")) {
+                stored += file.length();
+            }
+        }
+        assertTrue(stored > 0 && stored < body.length / 4);
+
+        reopen();
+
+        HttpCacheEntry result = impl.getEntry("foo");
+        assertTrue(result.getResource() instanceof CompressedResource);
+        assertEquals(body.length, result.getResource().length());
+        assertArrayEquals(body, getBody(result));
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestManagedHttpCacheStorage {
+
+    private ManagedHttpCacheStorage impl;
+    // keeps every entry reachable so that only the test enqueues references
+    private List<HttpCacheEntry> entries;
+
+    @Before
+    public void setUp() {
+        impl = new ManagedHttpCacheStorage(new CacheConfig());
+        entries = new ArrayList<HttpCacheEntry>();
+    }
+
+    @After
+    public void tearDown() {
+        impl.shutdown();
+    }
+
+    /**
+     * Resource that considers all instances equal and records its disposal.
+     */
+    static class TrackingResource implements Resource {
+
+        private static final long serialVersionUID = 1L;
+
+        volatile boolean disposed;
+
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        public long length() {
+            return 0;
+        }
+
+        public void dispose() {
+            this.disposed = true;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof TrackingResource;
+        }
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+
+    }
+
+    private HttpCacheEntry makeEntry(Resource resource) {
+        Date now = new Date();
+        HttpCacheEntry entry = new HttpCacheEntry(now, now,
+                new BasicStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK"),
+                HttpTestUtils.getStockHeaders(now), resource);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Releases one of the entries holding the resource through the
+     * reference queue, as the garbage collector would.
+     */
+    private void collect(TrackingResource resource) {
+        assertTrue(impl.enqueueReference(resource));
+        impl.cleanResources();
+    }
+
+    private void putEntry(String key, Resource resource) throws Exception {
+        impl.putEntry(key, makeEntry(resource));
+    }
+
+    private void updateEntry(String key) throws Exception {
+        impl.updateEntry(key, new HttpCacheUpdateCallback() {
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                return makeEntry(existing.getResource());
+            }
+        });
+    }
+
+    @Test
+    public void testEqualResourcesAreCountedSeparately() throws Exception {
+        TrackingResource one = new TrackingResource();
+        TrackingResource two = new TrackingResource();
+        putEntry("one", one);
+        putEntry("two", two);
+
+        impl.removeEntry("one");
+        collect(one);
+
+        assertTrue(one.disposed);
+        assertFalse(two.disposed);
+    }
+
+    @Test
+    public void testSharedResourceIsDisposedAfterLastEntry() throws Exception {
+        TrackingResource shared = new TrackingResource();
+        putEntry("parent", shared);
+        // the updated copy replaces the parent but keeps its resource
+        updateEntry("parent");
+        collect(shared);
+
+        assertFalse(shared.disposed);
+
+        impl.removeEntry("parent");
+        collect(shared);
+
+        assertTrue(shared.disposed);
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRefreshAheadScheduler {
+
+    private HttpHost host;
+    private HttpRequest request;
+    private Date now;
+    private List<Integer> scheduled;
+    private CacheConfig config;
+    private RefreshAheadScheduler impl;
+
+    @Before
+    public void setUp() {
+        host = new HttpHost("foo.example.com");
+        request = new HttpGet("/");
+        now = new Date();
+        scheduled = new ArrayList<Integer>();
+        config = new CacheConfig();
+        config.setRefreshAheadMinHits(3);
+        config.setRefreshAheadThreshold(0.8f);
+        impl = newScheduler();
+    }
+
+    private RefreshAheadScheduler newScheduler() {
+        AsynchronousValidator validator = new AsynchronousValidator(null, (ExecutorService) null) {
+            @Override
+            void revalidateCacheEntry(HttpHost target, HttpRequest req,
+                    HttpContext context, HttpCacheEntry entry, int demand) {
+                scheduled.add(Integer.valueOf(demand));
+            }
+        };
+        return new RefreshAheadScheduler(validator, new CacheValidityPolicy(), config);
+    }
+
+    private HttpCacheEntry makeEntry(int ageSecs) {
+        Date date = new Date(now.getTime() - ageSecs * 1000L);
+        Header[] headers = {
+                new BasicHeader("Date", DateUtils.formatDate(date)),
+                new BasicHeader("Cache-Control", "max-age=100")
+        };
+        return HttpTestUtils.makeCacheEntry(date, date, headers);
+    }
+
+    @Test
+    public void testPopularEntryNearExpiryIsRefreshed() {
+        HttpCacheEntry entry = makeEntry(90);
+        impl.entryHit(host, request, null, entry, now);
+        impl.entryHit(host, request, null, entry, now);
+        assertEquals(0, scheduled.size());
+        impl.entryHit(host, request, null, entry, now);
+        assertEquals(1, scheduled.size());
+        assertEquals(3, scheduled.get(0).intValue());
+        assertEquals(0, impl.getTrackedKeyCount());
+    }
+
+    @Test
+    public void testYoungEntryIsNotRefreshed() {
+        HttpCacheEntry entry = makeEntry(10);
+        for (int i = 0; i < 10; i++) {
+            impl.entryHit(host, request, null, entry, now);
+        }
+        assertEquals(0, scheduled.size());
+    }
+
+    @Test
+    public void testEntryWithoutFreshnessLifetimeIsNotRefreshed() {
+        Header[] headers = { new BasicHeader("Date", DateUtils.formatDate(now)) };
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry(now, now, headers);
+        for (int i = 0; i < 10; i++) {
+            impl.entryHit(host, request, null, entry, now);
+        }
+        assertEquals(0, scheduled.size());
+    }
+
+    @Test
+    public void testTrackedKeysAreBounded() {
+        config.setMaxCacheEntries(2);
+        impl = newScheduler();
+        HttpCacheEntry entry = makeEntry(10);
+        impl.entryHit(host, new HttpGet("/a"), null, entry, now);
+        impl.entryHit(host, new HttpGet("/b"), null, entry, now);
+        impl.entryHit(host, new HttpGet("/c"), null, entry, now);
+        assertEquals(1, impl.getTrackedKeyCount());
+    }
+
+}
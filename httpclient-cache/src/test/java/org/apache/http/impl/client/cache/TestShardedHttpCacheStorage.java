@@ -0,0 +1,169 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.cache.BulkHttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShardedHttpCacheStorage {
+
+    private Map<String, SimpleHttpCacheStorage> shards;
+    private ShardedHttpCacheStorage impl;
+
+    @Before
+    public void setUp() {
+        shards = new LinkedHashMap<String, SimpleHttpCacheStorage>();
+        for (int i = 0; i < 4; i++) {
+            shards.put("node" + i, new SimpleHttpCacheStorage());
+        }
+        impl = new ShardedHttpCacheStorage(shards);
+    }
+
+    private static List<String> makeKeys(int n) {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < n; i++) {
+            keys.add("http://example.com:80/resource/" + i);
+        }
+        return keys;
+    }
+
+    @Test
+    public void testEntriesAreStoredInOneShard() throws Exception {
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry();
+        impl.putEntry("foo", entry);
+
+        int found = 0;
+        for (SimpleHttpCacheStorage shard : shards.values()) {
+            if (shard.map.containsKey("foo")) {
+                found++;
+            }
+        }
+        assertEquals(1, found);
+        assertSame(entry, impl.getEntry("foo"));
+        impl.removeEntry("foo");
+        assertNull(impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testKeysAreSpreadAcrossShards() throws Exception {
+        for (String key : makeKeys(4000)) {
+            impl.putEntry(key, HttpTestUtils.makeCacheEntry());
+        }
+        for (SimpleHttpCacheStorage shard : shards.values()) {
+            assertTrue(shard.map.size() > 500);
+            assertTrue(shard.map.size() < 1500);
+        }
+    }
+
+    @Test
+    public void testPlacementDependsOnShardNamesNotOrder() throws Exception {
+        Map<String, SimpleHttpCacheStorage> reversed = new LinkedHashMap<String, SimpleHttpCacheStorage>();
+        for (int i = 3; i >= 0; i--) {
+            reversed.put("node" + i, shards.get("node" + i));
+        }
+        ShardedHttpCacheStorage other = new ShardedHttpCacheStorage(reversed);
+        for (String key : makeKeys(200)) {
+            assertSame(impl.getShard(key), other.getShard(key));
+        }
+    }
+
+    @Test
+    public void testAddingShardOnlyRemapsKeysToNewShard() throws Exception {
+        List<String> keys = makeKeys(4000);
+        Map<String, HttpCacheStorage> before = new HashMap<String, HttpCacheStorage>();
+        for (String key : keys) {
+            before.put(key, impl.getShard(key));
+        }
+        SimpleHttpCacheStorage added = new SimpleHttpCacheStorage();
+        impl.addShard("node4", added);
+
+        int moved = 0;
+        for (String key : keys) {
+            HttpCacheStorage shard = impl.getShard(key);
+            if (shard != before.get(key)) {
+                assertSame(added, shard);
+                moved++;
+            }
+        }
+        assertTrue(moved > 400);
+        assertTrue(moved < 1400);
+
+        impl.removeShard("node4");
+        for (String key : keys) {
+            assertSame(before.get(key), impl.getShard(key));
+        }
+    }
+
+    @Test
+    public void testBulkLookupIsIssuedOncePerShard() throws Exception {
+        final List<Collection<String>> calls = new ArrayList<Collection<String>>();
+        Map<String, HttpCacheStorage> bulkShards = new LinkedHashMap<String, HttpCacheStorage>();
+        for (int i = 0; i < 3; i++) {
+            bulkShards.put("node" + i, new BasicHttpCacheStorage(new CacheConfig()) {
+                @Override
+                public Map<String, HttpCacheEntry> getEntries(Collection<String> keys) throws IOException {
+                    calls.add(keys);
+                    return super.getEntries(keys);
+                }
+            });
+        }
+        ShardedHttpCacheStorage sharded = new ShardedHttpCacheStorage(bulkShards);
+        List<String> keys = makeKeys(30);
+        for (String key : keys) {
+            sharded.putEntry(key, HttpTestUtils.makeCacheEntry());
+        }
+
+        Map<String, HttpCacheEntry> result = sharded.getEntries(keys);
+
+        assertEquals(30, result.size());
+        assertEquals(3, calls.size());
+        for (Collection<String> call : calls) {
+            HttpCacheStorage shard = sharded.getShard(call.iterator().next());
+            assertTrue(shard instanceof BulkHttpCacheStorage);
+            for (String key : call) {
+                assertSame(shard, sharded.getShard(key));
+            }
+        }
+    }
+
+}
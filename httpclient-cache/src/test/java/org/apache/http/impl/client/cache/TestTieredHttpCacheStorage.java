@@ -0,0 +1,263 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.client.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTieredHttpCacheStorage {
+
+    private SimpleHttpCacheStorage backend;
+    private TieredHttpCacheStorage impl;
+    private long now;
+
+    @Before
+    public void setUp() {
+        backend = new SimpleHttpCacheStorage();
+        now = 1000L;
+        impl = new TieredHttpCacheStorage(backend, 2, 0) {
+            @Override
+            long getCurrentTime() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testPutWritesThroughToBackend() throws Exception {
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry();
+        impl.putEntry("foo", entry);
+        assertSame(entry, backend.map.get("foo"));
+        assertSame(entry, impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testGetReadsThroughAndRetainsLocally() throws Exception {
+        HttpCacheEntry entry = HttpTestUtils.makeCacheEntry();
+        backend.map.put("foo", entry);
+        assertSame(entry, impl.getEntry("foo"));
+
+        backend.map.clear();
+        assertSame(entry, impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testRemoveInvalidatesBothLevels() throws Exception {
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        impl.removeEntry("foo");
+        assertNull(backend.map.get("foo"));
+        assertNull(impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testUpdateIsAppliedToBackendAndReflectedLocally() throws Exception {
+        final HttpCacheEntry original = HttpTestUtils.makeCacheEntry();
+        final HttpCacheEntry updated = HttpTestUtils.makeCacheEntry();
+        impl.putEntry("foo", original);
+        impl.updateEntry("foo", new HttpCacheUpdateCallback() {
+            public HttpCacheEntry update(HttpCacheEntry existing) {
+                assertSame(original, existing);
+                return updated;
+            }
+        });
+        assertSame(updated, backend.map.get("foo"));
+        backend.map.clear();
+        assertSame(updated, impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testFailedBackendWriteIsNotCachedLocally() throws Exception {
+        impl = new TieredHttpCacheStorage(new SimpleHttpCacheStorage() {
+            @Override
+            public void putEntry(String key, HttpCacheEntry entry) throws IOException {
+                throw new IOException("backend down");
+            }
+        }, 2, 0);
+        try {
+            impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        } catch (IOException expected) {
+        }
+        assertNull(impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testBulkGetOnlyFetchesLocalMissesFromBackend() throws Exception {
+        HttpCacheEntry one = HttpTestUtils.makeCacheEntry();
+        HttpCacheEntry two = HttpTestUtils.makeCacheEntry();
+        impl.putEntry("one", one);
+        backend.map.put("two", two);
+        backend.map.remove("one");
+
+        Map<String, HttpCacheEntry> result = impl.getEntries(Arrays.asList("one", "two", "three"));
+
+        assertEquals(2, result.size());
+        assertSame(one, result.get("one"));
+        assertSame(two, result.get("two"));
+        backend.map.clear();
+        assertSame(two, impl.getEntry("two"));
+    }
+
+    @Test
+    public void testLocalEntriesAreBounded() throws Exception {
+        HttpCacheEntry one = HttpTestUtils.makeCacheEntry();
+        impl.putEntry("one", one);
+        impl.putEntry("two", HttpTestUtils.makeCacheEntry());
+        impl.putEntry("three", HttpTestUtils.makeCacheEntry());
+        HttpCacheEntry refreshed = HttpTestUtils.makeCacheEntry();
+        backend.map.put("one", refreshed);
+        assertSame(refreshed, impl.getEntry("one"));
+    }
+
+    @Test
+    public void testCountsLocalEvictions() throws Exception {
+        impl.putEntry("one", HttpTestUtils.makeCacheEntry());
+        impl.putEntry("two", HttpTestUtils.makeCacheEntry());
+        assertEquals(0, impl.getLocalEvictionCount());
+        impl.putEntry("three", HttpTestUtils.makeCacheEntry());
+        assertEquals(1, impl.getLocalEvictionCount());
+        assertEquals(0, impl.getEvictionCount());
+    }
+
+    @Test
+    public void testLocalCopiesExpireAfterTimeToLive() throws Exception {
+        impl = new TieredHttpCacheStorage(backend, 2, 500L) {
+            @Override
+            long getCurrentTime() {
+                return now;
+            }
+        };
+        impl.putEntry("foo", HttpTestUtils.makeCacheEntry());
+        HttpCacheEntry refreshed = HttpTestUtils.makeCacheEntry();
+        backend.map.put("foo", refreshed);
+        now += 499L;
+        assertNotSame(refreshed, impl.getEntry("foo"));
+        now += 1L;
+        assertSame(refreshed, impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testRemovalDuringSlowBackendReadIsNotUndone() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final SimpleHttpCacheStorage slowBackend = new SimpleHttpCacheStorage() {
+            @Override
+            public HttpCacheEntry getEntry(String key) throws IOException {
+                HttpCacheEntry entry = super.getEntry(key);
+                if (reading.getCount() > 0) {
+                    reading.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex.toString());
+                    }
+                }
+                return entry;
+            }
+        };
+        slowBackend.map.put("foo", HttpTestUtils.makeCacheEntry());
+        impl = new TieredHttpCacheStorage(slowBackend, 2, 0);
+
+        final HttpCacheEntry[] read = new HttpCacheEntry[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    read[0] = impl.getEntry("foo");
+                } catch (IOException ex) {
+                }
+            }
+        };
+        reader.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        impl.removeEntry("foo");
+        proceed.countDown();
+        reader.join(5000);
+
+        assertNotNull(read[0]);
+        assertNull(slowBackend.map.get("foo"));
+        assertNull(impl.getEntry("foo"));
+    }
+
+    @Test
+    public void testWriteDuringSlowBackendReadKeepsWrittenEntry() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final SimpleHttpCacheStorage slowBackend = new SimpleHttpCacheStorage() {
+            @Override
+            public HttpCacheEntry getEntry(String key) throws IOException {
+                HttpCacheEntry entry = super.getEntry(key);
+                if (reading.getCount() > 0) {
+                    reading.countDown();
+                    try {
+                        proceed.await();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex.toString());
+                    }
+                }
+                return entry;
+            }
+        };
+        HttpCacheEntry original = HttpTestUtils.makeCacheEntry();
+        slowBackend.map.put("foo", original);
+        impl = new TieredHttpCacheStorage(slowBackend, 2, 0);
+
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    impl.getEntry("foo");
+                } catch (IOException ex) {
+                }
+            }
+        };
+        reader.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        HttpCacheEntry written = HttpTestUtils.makeCacheEntry();
+        impl.putEntry("foo", written);
+        proceed.countDown();
+        reader.join(5000);
+
+        slowBackend.map.clear();
+        assertSame(written, impl.getEntry("foo"));
+    }
+
+}
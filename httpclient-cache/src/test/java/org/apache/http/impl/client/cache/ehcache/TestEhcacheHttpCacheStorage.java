@@ -145,7 +145,35 @@ public class TestEhcacheHttpCacheStorage extends TestCase {
 
         // put new entry
         mockSerializer.writeTo(EasyMock.same(updatedValue), EasyMock.isA(OutputStream.class));
-        mockCache.put(element);
+        EasyMock.expect(mockCache.putIfAbsent(element)).andReturn(null);
+
+        replayMocks();
+        impl.updateEntry(key, callback);
+        verifyMocks();
+    }
+
+    @Test
+    public void testCacheUpdateRetriesWhenEntryIsConcurrentlyAdded() throws IOException, HttpCacheUpdateException {
+        final String key = "foo";
+        final HttpCacheEntry existingValue = HttpTestUtils.makeCacheEntry();
+        final HttpCacheEntry updatedValue = HttpTestUtils.makeCacheEntry();
+
+        Element existingElement = new Element(key, new byte[]{});
+
+        HttpCacheUpdateCallback callback = new HttpCacheUpdateCallback(){
+            public HttpCacheEntry update(HttpCacheEntry old){
+                return updatedValue;
+            }
+        };
+
+        // no entry at first, but another writer adds one before us
+        EasyMock.expect(mockCache.get(key)).andReturn(null);
+        EasyMock.expect(mockCache.putIfAbsent(EasyMock.isA(Element.class))).andReturn(existingElement);
+
+        // retry against the entry the other writer stored
+        EasyMock.expect(mockCache.get(key)).andReturn(existingElement);
+        EasyMock.expect(mockSerializer.readFrom(EasyMock.isA(InputStream.class))).andReturn(existingValue);
+        EasyMock.expect(mockCache.replace(EasyMock.same(existingElement), EasyMock.isA(Element.class))).andReturn(true);
 
         replayMocks();
         impl.updateEntry(key, callback);
@@ -32,6 +32,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.impl.client.cache.BinaryHttpCacheEntrySerializer;
 import org.apache.http.impl.client.cache.DefaultHttpCacheEntrySerializer;
 import org.apache.http.impl.client.cache.HttpTestUtils;
 import org.junit.Before;
@@ -85,6 +86,22 @@ public class TestMemcachedCacheEntryImpl {
         assertEquivalent(entry, impl.getHttpCacheEntry());
     }
     
+    @Test
+    public void canBeReconstitutedUsingSerializer() throws Exception {
+        BinaryHttpCacheEntrySerializer serializer = new BinaryHttpCacheEntrySerializer();
+        impl = new MemcachedCacheEntryImpl("foo", entry, serializer);
+        byte[] bytes = impl.toByteArray();
+        impl = new MemcachedCacheEntryImpl(serializer);
+        impl.set(bytes);
+
+        assertEquals("foo", impl.getStorageKey());
+        ByteArrayOutputStream bos1 = new ByteArrayOutputStream();
+        serializer.writeTo(entry, bos1);
+        ByteArrayOutputStream bos2 = new ByteArrayOutputStream();
+        serializer.writeTo(impl.getHttpCacheEntry(), bos2);
+        assertArrayEquals(bos1.toByteArray(), bos2.toByteArray());
+    }
+
     @Test(expected=MemcachedSerializationException.class)
     public void cannotReconstituteFromGarbage() {
         impl = new MemcachedCacheEntryImpl();
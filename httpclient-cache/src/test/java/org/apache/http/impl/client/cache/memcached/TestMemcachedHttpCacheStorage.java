@@ -28,12 +28,23 @@ package org.apache.http.impl.client.cache.memcached;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import junit.framework.TestCase;
 import net.spy.memcached.CASResponse;
 import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClientIF;
 import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.GetFuture;
 
 import org.apache.http.client.cache.HttpCacheEntry;
 import org.apache.http.client.cache.HttpCacheUpdateCallback;
@@ -198,6 +209,57 @@ public class TestMemcachedHttpCacheStorage extends TestCase {
         assertSame(cacheEntry, resultingEntry);
     }
     
+    @Test
+    public void testBulkGetUsesSingleMultiGet() throws IOException {
+        final String url1 = "foo";
+        final String url2 = "bar";
+        final String url3 = "baz";
+        byte[] serialized = HttpTestUtils.getRandomBytes(128);
+        final HttpCacheEntry cacheEntry = HttpTestUtils.makeCacheEntry();
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("key1", serialized);
+
+        EasyMock.expect(mockKeyHashingScheme.hash(url1)).andReturn("key1");
+        EasyMock.expect(mockKeyHashingScheme.hash(url2)).andReturn("key2");
+        EasyMock.expect(mockKeyHashingScheme.hash(url3))
+            .andThrow(new MemcachedKeyHashingException(new Exception()));
+        EasyMock.expect(mockMemcachedClient.getBulk(
+                EasyMock.eq(new HashSet<String>(Arrays.asList("key1", "key2")))))
+            .andReturn(values);
+        EasyMock.expect(mockMemcachedCacheEntryFactory.getUnsetCacheEntry())
+            .andReturn(mockMemcachedCacheEntry);
+        mockMemcachedCacheEntry.set(serialized);
+        EasyMock.expect(mockMemcachedCacheEntry.getStorageKey()).andReturn(url1);
+        EasyMock.expect(mockMemcachedCacheEntry.getHttpCacheEntry()).andReturn(cacheEntry);
+
+        replayMocks();
+        Map<String, HttpCacheEntry> result = impl.getEntries(Arrays.asList(url1, url2, url3));
+        verifyMocks();
+        assertEquals(1, result.size());
+        assertSame(cacheEntry, result.get(url1));
+    }
+
+    @Test
+    public void testBulkGetIgnoresEntriesWithMismatchedStorageKey() throws IOException {
+        final String url = "foo";
+        byte[] serialized = HttpTestUtils.getRandomBytes(128);
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("key", serialized);
+
+        EasyMock.expect(mockKeyHashingScheme.hash(url)).andReturn("key");
+        EasyMock.expect(mockMemcachedClient.getBulk(
+                EasyMock.<Collection<String>>anyObject())).andReturn(values);
+        EasyMock.expect(mockMemcachedCacheEntryFactory.getUnsetCacheEntry())
+            .andReturn(mockMemcachedCacheEntry);
+        mockMemcachedCacheEntry.set(serialized);
+        EasyMock.expect(mockMemcachedCacheEntry.getStorageKey()).andReturn("not-foo");
+
+        replayMocks();
+        Map<String, HttpCacheEntry> result = impl.getEntries(Arrays.asList(url));
+        verifyMocks();
+        assertTrue(result.isEmpty());
+    }
+
     @Test
     public void testTreatsNoneByteArrayFromMemcachedAsCacheMiss() throws UnsupportedEncodingException,
             IOException {
@@ -575,4 +637,191 @@ public class TestMemcachedHttpCacheStorage extends TestCase {
         }
         verifyMocks();
     }
+
+    private MemcachedHttpCacheStorage makeAsyncStorage(int maxInFlight) {
+        return new MemcachedHttpCacheStorage(mockMemcachedClient, new CacheConfig(),
+                mockMemcachedCacheEntryFactory, mockKeyHashingScheme, 50L, maxInFlight);
+    }
+
+    private static FutureTask<Boolean> makeWriteFuture(boolean done) {
+        FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() {
+                return Boolean.TRUE;
+            }
+        });
+        if (done) {
+            future.run();
+        }
+        return future;
+    }
+
+    @Test
+    public void testAsyncLookupTimeoutIsTreatedAsMiss() throws Exception {
+        impl = makeAsyncStorage(1);
+        final String url = "foo";
+        final String key = "key";
+        @SuppressWarnings("unchecked")
+        GetFuture<Object> future = org.easymock.classextension.EasyMock.createNiceMock(GetFuture.class);
+
+        EasyMock.expect(mockKeyHashingScheme.hash(url)).andReturn(key);
+        EasyMock.expect(mockMemcachedClient.asyncGet(key)).andReturn(future);
+        EasyMock.expect(future.get(50L, TimeUnit.MILLISECONDS))
+            .andThrow(new TimeoutException());
+        EasyMock.expect(future.cancel(false)).andReturn(true);
+
+        replayMocks();
+        org.easymock.classextension.EasyMock.replay(future);
+        assertNull(impl.getEntry(url));
+        verifyMocks();
+        org.easymock.classextension.EasyMock.verify(future);
+    }
+
+    @Test
+    public void testAsyncWritesAreBoundedByOperationsInFlight() throws Exception {
+        impl = makeAsyncStorage(1);
+        final String url = "foo";
+        final String key = "key";
+        final HttpCacheEntry value = HttpTestUtils.makeCacheEntry();
+        byte[] serialized = HttpTestUtils.getRandomBytes(128);
+
+        EasyMock.expect(mockMemcachedCacheEntryFactory.getMemcachedCacheEntry(url, value))
+            .andReturn(mockMemcachedCacheEntry).times(2);
+        EasyMock.expect(mockMemcachedCacheEntry.toByteArray())
+            .andReturn(serialized).times(2);
+        EasyMock.expect(mockKeyHashingScheme.hash(url)).andReturn(key).times(2);
+        EasyMock.expect(mockMemcachedClient.set(key, 0, serialized))
+            .andReturn(makeWriteFuture(false)).once();
+
+        replayMocks();
+        impl.putEntry(url, value);
+        impl.putEntry(url, value);
+        verifyMocks();
+    }
+
+    @Test
+    public void testCompletedAsyncWritesReleaseTheirSlot() throws Exception {
+        impl = makeAsyncStorage(1);
+        final String url = "foo";
+        final String key = "key";
+        final HttpCacheEntry value = HttpTestUtils.makeCacheEntry();
+        byte[] serialized = HttpTestUtils.getRandomBytes(128);
+
+        EasyMock.expect(mockMemcachedCacheEntryFactory.getMemcachedCacheEntry(url, value))
+            .andReturn(mockMemcachedCacheEntry).times(2);
+        EasyMock.expect(mockMemcachedCacheEntry.toByteArray())
+            .andReturn(serialized).times(2);
+        EasyMock.expect(mockKeyHashingScheme.hash(url)).andReturn(key).times(2);
+        EasyMock.expect(mockMemcachedClient.set(key, 0, serialized))
+            .andReturn(makeWriteFuture(true)).times(2);
+
+        replayMocks();
+        impl.putEntry(url, value);
+        impl.putEntry(url, value);
+        verifyMocks();
+    }
+
+    @Test
+    public void testStuckAsyncWriteDoesNotHoldBackLaterSlots() throws Exception {
+        impl = makeAsyncStorage(2);
+        final String url = "foo";
+        final String key = "key";
+        final HttpCacheEntry value = HttpTestUtils.makeCacheEntry();
+        byte[] serialized = HttpTestUtils.getRandomBytes(128);
+
+        EasyMock.expect(mockMemcachedCacheEntryFactory.getMemcachedCacheEntry(url, value))
+            .andReturn(mockMemcachedCacheEntry).times(4);
+        EasyMock.expect(mockMemcachedCacheEntry.toByteArray())
+            .andReturn(serialized).times(4);
+        EasyMock.expect(mockKeyHashingScheme.hash(url)).andReturn(key).times(4);
+        // the first write never completes, the ones after it do
+        EasyMock.expect(mockMemcachedClient.set(key, 0, serialized))
+            .andReturn(makeWriteFuture(false))
+            .andReturn(makeWriteFuture(true))
+            .andReturn(makeWriteFuture(true))
+            .andReturn(makeWriteFuture(true));
+
+        replayMocks();
+        impl.putEntry(url, value);
+        impl.putEntry(url, value);
+        impl.putEntry(url, value);
+        impl.putEntry(url, value);
+        verifyMocks();
+    }
+
+    @Test
+    public void testAsyncGetsTimeoutCancelsOperation() throws Exception {
+        impl = makeAsyncStorage(1);
+        final String url = "foo";
+        final String key = "key";
+        @SuppressWarnings("unchecked")
+        Future<CASValue<Object>> future = EasyMock.createMock(Future.class);
+        HttpCacheUpdateCallback callback = EasyMock.createMock(HttpCacheUpdateCallback.class);
+
+        EasyMock.expect(mockKeyHashingScheme.hash(url)).andReturn(key);
+        EasyMock.expect(mockMemcachedClient.asyncGets(key)).andReturn(future);
+        EasyMock.expect(future.get(50L, TimeUnit.MILLISECONDS))
+            .andThrow(new TimeoutException());
+        EasyMock.expect(future.cancel(false)).andReturn(true);
+
+        replayMocks();
+        EasyMock.replay(future, callback);
+        try {
+            impl.updateEntry(url, callback);
+            fail("should have thrown exception");
+        } catch (HttpCacheUpdateException expected) {
+        }
+        verifyMocks();
+        EasyMock.verify(future, callback);
+    }
+
+    @Test
+    public void testAsyncCasTimeoutCancelsOperation() throws Exception {
+        impl = makeAsyncStorage(1);
+        final String url = "foo";
+        final String key = "key";
+        final HttpCacheEntry existing = HttpTestUtils.makeCacheEntry();
+        final HttpCacheEntry updated = HttpTestUtils.makeCacheEntry();
+        final byte[] oldBytes = HttpTestUtils.getRandomBytes(128);
+        final byte[] newBytes = HttpTestUtils.getRandomBytes(128);
+        CASValue<Object> casValue = new CASValue<Object>(1, oldBytes);
+        @SuppressWarnings("unchecked")
+        Future<CASValue<Object>> getsFuture = EasyMock.createMock(Future.class);
+        @SuppressWarnings("unchecked")
+        Future<CASResponse> casFuture = EasyMock.createMock(Future.class);
+
+        HttpCacheUpdateCallback callback = new HttpCacheUpdateCallback() {
+            public HttpCacheEntry update(HttpCacheEntry old) {
+                assertSame(existing, old);
+                return updated;
+            }
+        };
+
+        EasyMock.expect(mockKeyHashingScheme.hash(url)).andReturn(key);
+        EasyMock.expect(mockMemcachedClient.asyncGets(key)).andReturn(getsFuture);
+        EasyMock.expect(getsFuture.get(50L, TimeUnit.MILLISECONDS)).andReturn(casValue);
+        EasyMock.expect(mockMemcachedCacheEntryFactory.getUnsetCacheEntry())
+            .andReturn(mockMemcachedCacheEntry);
+        mockMemcachedCacheEntry.set(oldBytes);
+        EasyMock.expect(mockMemcachedCacheEntry.getStorageKey()).andReturn(url);
+        EasyMock.expect(mockMemcachedCacheEntry.getHttpCacheEntry()).andReturn(existing);
+        EasyMock.expect(mockMemcachedCacheEntryFactory.getMemcachedCacheEntry(url, updated))
+            .andReturn(mockMemcachedCacheEntry2);
+        EasyMock.expect(mockMemcachedCacheEntry2.toByteArray()).andReturn(newBytes);
+        EasyMock.expect(
+                mockMemcachedClient.asyncCAS(EasyMock.eq(key), EasyMock.eq(casValue.getCas()),
+                        EasyMock.aryEq(newBytes))).andReturn(casFuture);
+        EasyMock.expect(casFuture.get(50L, TimeUnit.MILLISECONDS))
+            .andThrow(new TimeoutException());
+        EasyMock.expect(casFuture.cancel(false)).andReturn(true);
+
+        replayMocks();
+        EasyMock.replay(getsFuture, casFuture);
+        try {
+            impl.updateEntry(url, callback);
+            fail("should have thrown exception");
+        } catch (HttpCacheUpdateException expected) {
+        }
+        verifyMocks();
+        EasyMock.verify(getsFuture, casFuture);
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.conn.socket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+import org.apache.http.HttpHost;
+import org.apache.http.annotation.Immutable;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Socket factory for plain (unencrypted) sockets backed by a
+ * blocking {@link SocketChannel}. Channel backed sockets can be layered
+ * over by {@link org.apache.http.conn.ssl.SSLEngineSocketFactory}, for
+ * instance when tunnelling through a proxy.
+ *
+ * @since 4.3
+ */
+@Immutable
+public class ChannelSocketFactory implements ConnectionSocketFactory {
+
+    public static final ChannelSocketFactory INSTANCE = new ChannelSocketFactory();
+
+    public static ChannelSocketFactory getSocketFactory() {
+        return INSTANCE;
+    }
+
+    public ChannelSocketFactory() {
+        super();
+    }
+
+    public Socket createSocket(final HttpContext context) throws IOException {
+        return SocketChannel.open().socket();
+    }
+
+    public Socket connectSocket(
+            final int connectTimeout,
+            final Socket socket,
+            final HttpHost host,
+            final InetSocketAddress remoteAddress,
+            final InetSocketAddress localAddress,
+            final HttpContext context) throws IOException, ConnectTimeoutException {
+        Socket sock = socket != null ? socket : createSocket(context);
+        if (localAddress != null) {
+            sock.bind(localAddress);
+        }
+        try {
+            sock.connect(remoteAddress, connectTimeout);
+        } catch (SocketTimeoutException ex) {
+            throw new ConnectTimeoutException(host, remoteAddress);
+        }
+        return sock;
+    }
+
+}
@@ -27,21 +27,27 @@
 
 package org.apache.http.conn.ssl;
 
-import org.apache.http.annotation.Immutable;
+import org.apache.http.annotation.GuardedBy;
+import org.apache.http.annotation.ThreadSafe;
 
 import org.apache.http.conn.util.InetAddressUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 import javax.net.ssl.SSLException;
@@ -51,10 +57,17 @@ import javax.net.ssl.SSLSocket;
 /**
  * Abstract base class for all standard {@link X509HostnameVerifier}
  * implementations.
+ * <p/>
+ * Subclasses may opt into a bounded cache of positive verification results
+ * keyed by the SHA-256 fingerprint of the certificate and the host name, so
+ * that repeated connections to the same host skip the extraction and
+ * matching of certificate names until the certificate expires. Failed
+ * verifications are never cached. The standard strict and browser
+ * compatible verifiers do so.
  *
  * @since 4.0
  */
-@Immutable
+@ThreadSafe
 public abstract class AbstractVerifier implements X509HostnameVerifier {
 
     /**
@@ -76,8 +89,35 @@ public abstract class AbstractVerifier implements X509HostnameVerifier {
         Arrays.sort(BAD_COUNTRY_2LDS);
     }
 
+    /**
+     * Default number of verification results cached by the standard
+     * verifiers.
+     *
+     * @since 4.3
+     */
+    protected final static int DEFAULT_CACHE_SIZE = 256;
+
+    private final VerificationCache cache;
+
     public AbstractVerifier() {
+        this(0);
+    }
+
+    /**
+     * Creates a verifier that remembers at most <code>cacheSize</code>
+     * positive verification results. A value of <code>0</code> disables
+     * the cache.
+     *
+     * @param cacheSize maximum number of cached verification results
+     *
+     * @since 4.3
+     */
+    protected AbstractVerifier(int cacheSize) {
         super();
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size may not be negative");
+        }
+        this.cache = cacheSize > 0 ? new VerificationCache(cacheSize) : null;
     }
 
     public final void verify(String host, SSLSocket ssl)
@@ -142,9 +182,27 @@ public abstract class AbstractVerifier implements X509HostnameVerifier {
 
     public final void verify(String host, X509Certificate cert)
           throws SSLException {
+        VerificationKey key = null;
+        if (this.cache != null && host != null) {
+            key = VerificationKey.create(host, cert);
+            if (key != null && this.cache.contains(key, getCurrentTime())) {
+                return;
+            }
+        }
         String[] cns = getCNs(cert);
         String[] subjectAlts = getSubjectAlts(cert, host);
         verify(host, cns, subjectAlts);
+        if (key != null) {
+            this.cache.put(key, cert.getNotAfter().getTime());
+        }
+    }
+
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    int getCachedResultCount() {
+        return this.cache != null ? this.cache.size() : 0;
     }
 
     public final void verify(final String host, final String[] cns,
@@ -362,4 +420,96 @@ public abstract class AbstractVerifier implements X509HostnameVerifier {
                     InetAddressUtils.isIPv6Address(hostname));
     }
 
+    /**
+     * Identifies a verified (certificate, host name) pair.
+     */
+    static final class VerificationKey {
+
+        private final byte[] fingerprint;
+        private final String host;
+        private final int hash;
+
+        private VerificationKey(final byte[] fingerprint, final String host) {
+            this.fingerprint = fingerprint;
+            this.host = host;
+            this.hash = 31 * Arrays.hashCode(fingerprint) + host.hashCode();
+        }
+
+        /**
+         * Returns <code>null</code> if the certificate cannot be fingerprinted.
+         */
+        static VerificationKey create(final String host, final X509Certificate cert) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                return new VerificationKey(digest.digest(cert.getEncoded()), host);
+            } catch (NoSuchAlgorithmException ex) {
+                return null;
+            } catch (CertificateEncodingException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof VerificationKey) {
+                VerificationKey that = (VerificationKey) obj;
+                return this.host.equals(that.host)
+                    && Arrays.equals(this.fingerprint, that.fingerprint);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+    }
+
+    /**
+     * LRU map of verified keys to the expiry time of their certificate.
+     */
+    static final class VerificationCache {
+
+        @GuardedBy("this")
+        private final LinkedHashMap<VerificationKey, Long> map;
+
+        VerificationCache(final int maxEntries) {
+            this.map = new LinkedHashMap<VerificationKey, Long>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<VerificationKey, Long> eldest) {
+                    return size() > maxEntries;
+                }
+
+            };
+        }
+
+        synchronized boolean contains(final VerificationKey key, final long now) {
+            Long expiry = this.map.get(key);
+            if (expiry == null) {
+                return false;
+            }
+            if (now > expiry.longValue()) {
+                this.map.remove(key);
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void put(final VerificationKey key, final long expiry) {
+            this.map.put(key, Long.valueOf(expiry));
+        }
+
+        synchronized int size() {
+            return this.map.size();
+        }
+
+    }
+
 }
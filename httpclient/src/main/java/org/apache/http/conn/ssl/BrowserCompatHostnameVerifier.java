@@ -29,7 +29,7 @@ package org.apache.http.conn.ssl;
 
 import javax.net.ssl.SSLException;
 
-import org.apache.http.annotation.Immutable;
+import org.apache.http.annotation.ThreadSafe;
 
 /**
  * The HostnameVerifier that works the same way as Curl and Firefox.
@@ -44,9 +44,13 @@ import org.apache.http.annotation.Immutable;
  *
  * @since 4.0
  */
-@Immutable
+@ThreadSafe
 public class BrowserCompatHostnameVerifier extends AbstractVerifier {
 
+    public BrowserCompatHostnameVerifier() {
+        super(DEFAULT_CACHE_SIZE);
+    }
+
     public final void verify(
             final String host,
             final String[] cns,
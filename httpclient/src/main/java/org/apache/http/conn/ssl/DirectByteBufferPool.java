@@ -0,0 +1,105 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.conn.ssl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.annotation.ThreadSafe;
+
+/**
+ * Bounded pool of direct {@link ByteBuffer}s of a fixed capacity. Direct
+ * buffers are expensive to allocate and are only reclaimed by the garbage
+ * collector, so buffers released by closed connections are kept for reuse
+ * by new ones. Requests for buffers larger than the pooled capacity are
+ * served with a fresh allocation that is simply dropped on release.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+class DirectByteBufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+    private final AtomicInteger pooled;
+
+    DirectByteBufferPool(final int bufferSize, final int maxPooled) {
+        super();
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size may not be negative or zero");
+        }
+        if (maxPooled < 0) {
+            throw new IllegalArgumentException("Max pooled buffers may not be negative");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+        this.pooled = new AtomicInteger(0);
+    }
+
+    /**
+     * Returns a cleared buffer with a capacity of at least <code>minSize</code>.
+     */
+    ByteBuffer acquire(final int minSize) {
+        if (minSize <= this.bufferSize) {
+            ByteBuffer buffer = this.buffers.poll();
+            if (buffer != null) {
+                this.pooled.decrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+            return ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        return ByteBuffer.allocateDirect(minSize);
+    }
+
+    /**
+     * Hands a buffer back to the pool. The buffer must not be used by
+     * the caller afterwards.
+     */
+    void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != this.bufferSize) {
+            return;
+        }
+        if (this.pooled.incrementAndGet() <= this.maxPooled) {
+            this.buffers.add(buffer);
+        } else {
+            this.pooled.decrementAndGet();
+        }
+    }
+
+    int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    int getPooledCount() {
+        return this.pooled.get();
+    }
+
+}
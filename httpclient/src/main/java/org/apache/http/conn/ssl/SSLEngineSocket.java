@@ -0,0 +1,745 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.conn.ssl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.annotation.NotThreadSafe;
+
+/**
+ * {@link SSLSocket} implementation that runs an {@link SSLEngine} over a
+ * plain connected socket. Encrypted records are written straight to the
+ * socket's {@link SocketChannel}, if it has one, and read through the
+ * socket's input stream so that the socket timeout is still honoured.
+ * Network and application data are staged in direct buffers borrowed from
+ * a {@link DirectByteBufferPool} only while a read, write or handshake
+ * needs them; an idle socket holds no buffers.
+ * <p>
+ * Like {@link SSLSocket} instances created by the JSSE this class expects
+ * to be used by one thread at a time; {@link #close()} may be called
+ * concurrently in order to abort a blocked read.
+ *
+ * @since 4.3
+ */
+@NotThreadSafe
+class SSLEngineSocket extends SSLSocket {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Socket socket;
+    private final SSLEngine engine;
+    private final DirectByteBufferPool pool;
+    private final ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final ReentrantLock lock;
+    private final List<HandshakeCompletedListener> listeners;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    // network data received from the peer, kept in write mode; null when empty
+    private ByteBuffer netIn;
+    // network data to be sent to the peer, kept in write mode; null when empty
+    private ByteBuffer netOut;
+    // decrypted application data, kept in read mode; null when empty
+    private ByteBuffer appIn;
+
+    private volatile boolean handshakeDone;
+    private volatile boolean closed;
+
+    SSLEngineSocket(
+            final Socket socket,
+            final SSLEngine engine,
+            final DirectByteBufferPool pool) throws IOException {
+        super();
+        this.socket = socket;
+        this.engine = engine;
+        this.pool = pool;
+        this.in = Channels.newChannel(socket.getInputStream());
+        SocketChannel channel = socket.getChannel();
+        this.out = channel != null ? channel : Channels.newChannel(socket.getOutputStream());
+        this.lock = new ReentrantLock();
+        this.listeners = new ArrayList<HandshakeCompletedListener>();
+        this.inputStream = new SSLInputStream();
+        this.outputStream = new SSLOutputStream();
+    }
+
+    SSLEngine getEngine() {
+        return this.engine;
+    }
+
+    private void ensureOpen() throws SocketException {
+        if (this.closed) {
+            throw new SocketException("Socket is closed");
+        }
+    }
+
+    private ByteBuffer enlarge(final ByteBuffer buffer, final int minSize) {
+        ByteBuffer larger = this.pool.acquire(minSize);
+        buffer.flip();
+        larger.put(buffer);
+        this.pool.release(buffer);
+        return larger;
+    }
+
+    /**
+     * Hands buffers back to the pool once they have been drained, or
+     * regardless of their content if the socket has been closed.
+     */
+    private void releaseBuffers() {
+        boolean all = this.closed;
+        if (this.netIn != null && (all || this.netIn.position() == 0)) {
+            this.pool.release(this.netIn);
+            this.netIn = null;
+        }
+        if (this.netOut != null) {
+            this.pool.release(this.netOut);
+            this.netOut = null;
+        }
+        if (this.appIn != null && (all || !this.appIn.hasRemaining())) {
+            this.pool.release(this.appIn);
+            this.appIn = null;
+        }
+    }
+
+    int getBufferCount() {
+        this.lock.lock();
+        try {
+            return (this.netIn != null ? 1 : 0)
+                + (this.netOut != null ? 1 : 0)
+                + (this.appIn != null ? 1 : 0);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private int fill() throws IOException {
+        if (this.netIn == null) {
+            this.netIn = this.pool.acquire(this.engine.getSession().getPacketBufferSize());
+        } else if (!this.netIn.hasRemaining()) {
+            this.netIn = enlarge(this.netIn,
+                    this.netIn.capacity() + this.engine.getSession().getPacketBufferSize());
+        }
+        return this.in.read(this.netIn);
+    }
+
+    private void flush() throws IOException {
+        this.netOut.flip();
+        try {
+            while (this.netOut.hasRemaining()) {
+                this.out.write(this.netOut);
+            }
+        } finally {
+            this.pool.release(this.netOut);
+            this.netOut = null;
+        }
+    }
+
+    private SSLEngineResult wrap(final ByteBuffer src) throws IOException {
+        for (;;) {
+            if (this.netOut == null) {
+                this.netOut = this.pool.acquire(this.engine.getSession().getPacketBufferSize());
+            }
+            SSLEngineResult result = this.engine.wrap(src, this.netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                this.netOut = enlarge(this.netOut,
+                        this.netOut.capacity() + this.engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            flush();
+            return result;
+        }
+    }
+
+    private SSLEngineResult unwrap() throws IOException {
+        for (;;) {
+            if (this.appIn == null) {
+                this.appIn = this.pool.acquire(this.engine.getSession().getApplicationBufferSize());
+            } else {
+                this.appIn.compact();
+            }
+            SSLEngineResult result;
+            try {
+                if (this.netIn != null) {
+                    this.netIn.flip();
+                    try {
+                        result = this.engine.unwrap(this.netIn, this.appIn);
+                    } finally {
+                        this.netIn.compact();
+                    }
+                } else {
+                    result = this.engine.unwrap(EMPTY, this.appIn);
+                }
+            } finally {
+                this.appIn.flip();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                this.appIn.compact();
+                this.appIn = enlarge(this.appIn,
+                        this.appIn.position() + this.engine.getSession().getApplicationBufferSize());
+                this.appIn.flip();
+                continue;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Drives the handshake for as long as the engine asks for it. Returns
+     * <code>false</code> if the peer closed the connection.
+     */
+    private boolean processHandshake() throws IOException {
+        for (;;) {
+            HandshakeStatus status = this.engine.getHandshakeStatus();
+            switch (status) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = this.engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                if (wrap(EMPTY).getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                    handshakeCompleted();
+                }
+                break;
+            case NEED_UNWRAP:
+                SSLEngineResult result = unwrap();
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    if (fill() == -1) {
+                        throw new SSLException("Connection closed by peer during handshake");
+                    }
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return false;
+                } else if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                    handshakeCompleted();
+                }
+                break;
+            default:
+                return true;
+            }
+        }
+    }
+
+    private void handshakeCompleted() {
+        this.handshakeDone = true;
+        List<HandshakeCompletedListener> copy;
+        synchronized (this.listeners) {
+            if (this.listeners.isEmpty()) {
+                return;
+            }
+            copy = new ArrayList<HandshakeCompletedListener>(this.listeners);
+        }
+        HandshakeCompletedEvent event = new HandshakeCompletedEvent(this, this.engine.getSession());
+        for (HandshakeCompletedListener listener: copy) {
+            listener.handshakeCompleted(event);
+        }
+    }
+
+    /**
+     * Runs a handshake while holding the lock. If the peer closes the
+     * connection instead of completing it the socket is closed.
+     */
+    private void handshake() throws IOException {
+        ensureOpen();
+        try {
+            this.engine.beginHandshake();
+            if (!processHandshake()) {
+                close();
+                throw new SSLException("Connection closed by peer during handshake");
+            }
+        } finally {
+            releaseBuffers();
+        }
+    }
+
+    private void ensureHandshake() throws IOException {
+        if (this.handshakeDone) {
+            return;
+        }
+        this.lock.lock();
+        try {
+            // another thread may have completed the handshake meanwhile
+            if (!this.handshakeDone) {
+                handshake();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void startHandshake() throws IOException {
+        this.lock.lock();
+        try {
+            handshake();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    int read(final byte[] b, final int off, final int len) throws IOException {
+        ensureHandshake();
+        this.lock.lock();
+        try {
+            ensureOpen();
+            while (this.appIn == null || !this.appIn.hasRemaining()) {
+                if (this.engine.isInboundDone()) {
+                    return -1;
+                }
+                SSLEngineResult result = unwrap();
+                switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (fill() == -1) {
+                        try {
+                            this.engine.closeInbound();
+                        } catch (SSLException ignore) {
+                            // peer did not send close_notify; treat as end of stream
+                        }
+                        return -1;
+                    }
+                    break;
+                case CLOSED:
+                    return -1;
+                default:
+                    if (!processHandshake()) {
+                        return -1;
+                    }
+                }
+            }
+            int n = Math.min(len, this.appIn.remaining());
+            this.appIn.get(b, off, n);
+            return n;
+        } finally {
+            releaseBuffers();
+            this.lock.unlock();
+        }
+    }
+
+    int available() {
+        this.lock.lock();
+        try {
+            return this.appIn != null ? this.appIn.remaining() : 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureHandshake();
+        this.lock.lock();
+        try {
+            ensureOpen();
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            while (src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SocketException("Socket is closed");
+                }
+                processHandshake();
+            }
+        } finally {
+            releaseBuffers();
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.engine.closeOutbound();
+        // do not wait on a thread blocked in read; closing the socket will release it
+        boolean locked = this.lock.tryLock();
+        try {
+            if (locked && this.handshakeDone && !this.socket.isClosed()) {
+                try {
+                    while (!this.engine.isOutboundDone()) {
+                        if (wrap(EMPTY).bytesProduced() == 0) {
+                            break;
+                        }
+                    }
+                } catch (IOException ignore) {
+                    // the peer may have gone already
+                }
+            }
+        } finally {
+            try {
+                this.socket.close();
+            } finally {
+                if (locked) {
+                    // a thread blocked in read releases the buffers itself
+                    releaseBuffers();
+                    this.lock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        ensureOpen();
+        return this.inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        ensureOpen();
+        return this.outputStream;
+    }
+
+    @Override
+    public SSLSession getSession() {
+        if (!this.handshakeDone && !this.closed) {
+            try {
+                ensureHandshake();
+            } catch (IOException ex) {
+                // return the invalid session as SSLSocket implementations do
+            }
+        }
+        return this.engine.getSession();
+    }
+
+    @Override
+    public void addHandshakeCompletedListener(final HandshakeCompletedListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener may not be null");
+        }
+        synchronized (this.listeners) {
+            this.listeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeHandshakeCompletedListener(final HandshakeCompletedListener listener) {
+        synchronized (this.listeners) {
+            if (!this.listeners.remove(listener)) {
+                throw new IllegalArgumentException("Listener is not registered");
+            }
+        }
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return this.engine.getSupportedCipherSuites();
+    }
+
+    @Override
+    public String[] getEnabledCipherSuites() {
+        return this.engine.getEnabledCipherSuites();
+    }
+
+    @Override
+    public void setEnabledCipherSuites(final String[] suites) {
+        this.engine.setEnabledCipherSuites(suites);
+    }
+
+    @Override
+    public String[] getSupportedProtocols() {
+        return this.engine.getSupportedProtocols();
+    }
+
+    @Override
+    public String[] getEnabledProtocols() {
+        return this.engine.getEnabledProtocols();
+    }
+
+    @Override
+    public void setEnabledProtocols(final String[] protocols) {
+        this.engine.setEnabledProtocols(protocols);
+    }
+
+    @Override
+    public void setUseClientMode(final boolean mode) {
+        this.engine.setUseClientMode(mode);
+    }
+
+    @Override
+    public boolean getUseClientMode() {
+        return this.engine.getUseClientMode();
+    }
+
+    @Override
+    public void setNeedClientAuth(final boolean need) {
+        this.engine.setNeedClientAuth(need);
+    }
+
+    @Override
+    public boolean getNeedClientAuth() {
+        return this.engine.getNeedClientAuth();
+    }
+
+    @Override
+    public void setWantClientAuth(final boolean want) {
+        this.engine.setWantClientAuth(want);
+    }
+
+    @Override
+    public boolean getWantClientAuth() {
+        return this.engine.getWantClientAuth();
+    }
+
+    @Override
+    public void setEnableSessionCreation(final boolean flag) {
+        this.engine.setEnableSessionCreation(flag);
+    }
+
+    @Override
+    public boolean getEnableSessionCreation() {
+        return this.engine.getEnableSessionCreation();
+    }
+
+    @Override
+    public void connect(final SocketAddress endpoint, final int timeout) throws IOException {
+        throw new SocketException("Socket is already connected");
+    }
+
+    @Override
+    public void bind(final SocketAddress bindpoint) throws IOException {
+        throw new SocketException("Socket is already bound");
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return this.socket.getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return this.socket.getLocalAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return this.socket.getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.socket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return this.socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return this.socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        // the raw channel carries encrypted data only
+        return null;
+    }
+
+    @Override
+    public void setTcpNoDelay(final boolean on) throws SocketException {
+        this.socket.setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return this.socket.getTcpNoDelay();
+    }
+
+    @Override
+    public void setSoLinger(final boolean on, final int linger) throws SocketException {
+        this.socket.setSoLinger(on, linger);
+    }
+
+    @Override
+    public int getSoLinger() throws SocketException {
+        return this.socket.getSoLinger();
+    }
+
+    @Override
+    public void setSoTimeout(final int timeout) throws SocketException {
+        this.socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        return this.socket.getSoTimeout();
+    }
+
+    @Override
+    public void setSendBufferSize(final int size) throws SocketException {
+        this.socket.setSendBufferSize(size);
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        return this.socket.getSendBufferSize();
+    }
+
+    @Override
+    public void setReceiveBufferSize(final int size) throws SocketException {
+        this.socket.setReceiveBufferSize(size);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws SocketException {
+        return this.socket.getReceiveBufferSize();
+    }
+
+    @Override
+    public void setKeepAlive(final boolean on) throws SocketException {
+        this.socket.setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException {
+        return this.socket.getKeepAlive();
+    }
+
+    @Override
+    public void setReuseAddress(final boolean on) throws SocketException {
+        this.socket.setReuseAddress(on);
+    }
+
+    @Override
+    public boolean getReuseAddress() throws SocketException {
+        return this.socket.getReuseAddress();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        throw new UnsupportedOperationException("Input shutdown is not supported by SSL sockets");
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        throw new UnsupportedOperationException("Output shutdown is not supported by SSL sockets");
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.socket.isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return this.socket.isBound();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed || this.socket.isClosed();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return this.socket.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return this.socket.isOutputShutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "SSLEngineSocket[" + this.socket + "]";
+    }
+
+    class SSLInputStream extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int n = read(this.single, 0, 1);
+            return n == -1 ? -1 : this.single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return SSLEngineSocket.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return SSLEngineSocket.this.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            SSLEngineSocket.this.close();
+        }
+
+    }
+
+    class SSLOutputStream extends OutputStream {
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            SSLEngineSocket.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            SSLEngineSocket.this.close();
+        }
+
+    }
+
+}
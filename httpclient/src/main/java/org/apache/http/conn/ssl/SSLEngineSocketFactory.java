@@ -0,0 +1,180 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.conn.ssl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpHost;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Layered socket factory for TLS/SSL connections that performs the TLS
+ * protocol with an {@link SSLEngine} over a {@link SocketChannel} instead
+ * of relying on the JSSE socket implementation.
+ * <p>
+ * Encrypted and decrypted data are staged in direct
+ * {@link java.nio.ByteBuffer}s that are pooled by the factory and reused
+ * across connections, which keeps allocation rates flat under heavy
+ * connection churn. A connection only borrows buffers while it is reading,
+ * writing or handshaking, so idle pooled connections hold none. Outgoing
+ * records are written from direct buffers straight to the socket channel;
+ * incoming records are read through the socket's input stream so that the
+ * socket timeout is honoured, and are therefore still copied once from a
+ * heap array. Sockets returned by this factory are ordinary
+ * {@link SSLSocket} instances as far as the rest of HttpClient is
+ * concerned, so the factory can be registered for the <code>https</code>
+ * scheme in the same {@link org.apache.http.config.Registry} that is passed
+ * to the pooling connection manager:
+ * <pre>
+ * Registry&lt;ConnectionSocketFactory&gt; registry = RegistryBuilder.&lt;ConnectionSocketFactory&gt;create()
+ *     .register("http", ChannelSocketFactory.INSTANCE)
+ *     .register("https", new SSLEngineSocketFactory(sslcontext))
+ *     .build();
+ * </pre>
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+public class SSLEngineSocketFactory implements LayeredConnectionSocketFactory {
+
+    /**
+     * Default capacity of pooled buffers. Large enough to hold a TLS record
+     * of the maximum size.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 17 * 1024;
+
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 192;
+
+    private final SSLContext sslContext;
+    private final X509HostnameVerifier hostnameVerifier;
+    private final DirectByteBufferPool bufferPool;
+
+    public SSLEngineSocketFactory(
+            final SSLContext sslContext,
+            final X509HostnameVerifier hostnameVerifier,
+            final int bufferSize,
+            final int maxPooledBuffers) {
+        super();
+        if (sslContext == null) {
+            throw new IllegalArgumentException("SSL context may not be null");
+        }
+        this.sslContext = sslContext;
+        this.hostnameVerifier = hostnameVerifier;
+        this.bufferPool = new DirectByteBufferPool(bufferSize, maxPooledBuffers);
+    }
+
+    public SSLEngineSocketFactory(
+            final SSLContext sslContext, final X509HostnameVerifier hostnameVerifier) {
+        this(sslContext, hostnameVerifier, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+    public SSLEngineSocketFactory(final SSLContext sslContext) {
+        this(sslContext, SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+    }
+
+    public X509HostnameVerifier getHostnameVerifier() {
+        return this.hostnameVerifier;
+    }
+
+    DirectByteBufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Performs any custom initialization for a newly created SSLEngine
+     * (before the SSL handshake happens).
+     *
+     * The default implementation is a no-op, but could be overriden to, e.g.,
+     * call {@link SSLEngine#setEnabledCipherSuites(java.lang.String[])}.
+     */
+    protected void prepareEngine(final SSLEngine engine) throws IOException {
+    }
+
+    public Socket createSocket(final HttpContext context) throws IOException {
+        return SocketChannel.open().socket();
+    }
+
+    public Socket connectSocket(
+            final int connectTimeout,
+            final Socket socket,
+            final HttpHost host,
+            final InetSocketAddress remoteAddress,
+            final InetSocketAddress localAddress,
+            final HttpContext context) throws IOException, ConnectTimeoutException {
+        if (host == null) {
+            throw new IllegalArgumentException("HTTP host may not be null");
+        }
+        if (remoteAddress == null) {
+            throw new IllegalArgumentException("Remote address may not be null");
+        }
+        Socket sock = socket != null ? socket : createSocket(context);
+        if (localAddress != null) {
+            sock.bind(localAddress);
+        }
+        try {
+            sock.connect(remoteAddress, connectTimeout);
+        } catch (SocketTimeoutException ex) {
+            throw new ConnectTimeoutException(host, remoteAddress);
+        }
+        return createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
+    }
+
+    public Socket createLayeredSocket(
+            final Socket socket,
+            final String target,
+            final int port,
+            final HttpContext context) throws IOException, UnknownHostException {
+        SSLEngine engine = this.sslContext.createSSLEngine(target, port);
+        engine.setUseClientMode(true);
+        prepareEngine(engine);
+        SSLEngineSocket sslsock = new SSLEngineSocket(socket, engine, this.bufferPool);
+        try {
+            sslsock.startHandshake();
+            if (this.hostnameVerifier != null) {
+                this.hostnameVerifier.verify(target, sslsock);
+            }
+        } catch (IOException iox) {
+            // close the socket before re-throwing the exception
+            try { sslsock.close(); } catch (Exception x) { /*ignore*/ }
+            throw iox;
+        }
+        return sslsock;
+    }
+
+}
@@ -45,6 +45,8 @@ import org.apache.http.protocol.HttpContext;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -66,6 +68,7 @@ import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Layered socket factory for TLS/SSL connections.
@@ -137,6 +140,12 @@ import java.security.cert.CertificateException;
  *      </p>
  *     </li>
  *   </ul>
+ * <p>
+ * Sockets are always connected with the name of the target host, so the
+ * JSSE can resume TLS sessions cached for the host and port. The size and
+ * timeout of the client session cache can be set when the factory is
+ * created from an {@link SSLContext}; {@link #getFullHandshakeCount()} and
+ * {@link #getResumedHandshakeCount()} tell how effective the cache is.
  *
  * @since 4.0
  */
@@ -160,6 +169,8 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
 
     private final static char[] EMPTY_PASSWORD = "".toCharArray();
 
+    private final static String NULL_CIPHER_SUITE = "SSL_NULL_WITH_NULL_NULL";
+
     /**
      * Gets the default factory, which uses the default JSSE settings for initializing
      * the SSL context.
@@ -200,10 +211,14 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
     }
 
     private final javax.net.ssl.SSLSocketFactory socketfactory;
+    private final SSLSessionContext sessionContext;
     private final HostNameResolver nameResolver;
     // TODO: make final
     private volatile X509HostnameVerifier hostnameVerifier;
 
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
     private static SSLContext createSSLContext(
             String algorithm,
             final KeyStore keystore,
@@ -467,6 +482,7 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
             final SSLContext sslContext, final HostNameResolver nameResolver) {
         super();
         this.socketfactory = sslContext.getSocketFactory();
+        this.sessionContext = sslContext.getClientSessionContext();
         this.hostnameVerifier = BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
         this.nameResolver = nameResolver;
     }
@@ -476,11 +492,39 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
      */
     public SSLSocketFactory(
             final SSLContext sslContext, final X509HostnameVerifier hostnameVerifier) {
+        this(sslContext, hostnameVerifier, -1, -1);
+    }
+
+    /**
+     * Creates a factory and configures the client session cache of the
+     * given SSL context, which is shared by all factories created from it.
+     *
+     * @param sessionCacheSize maximum number of cached sessions, <code>0</code>
+     *   for no limit or a negative value to keep the JSSE default.
+     * @param sessionTimeout session lifetime in seconds, <code>0</code>
+     *   for no limit or a negative value to keep the JSSE default.
+     *
+     * @since 4.3
+     */
+    public SSLSocketFactory(
+            final SSLContext sslContext,
+            final X509HostnameVerifier hostnameVerifier,
+            final int sessionCacheSize,
+            final int sessionTimeout) {
         super();
         if (sslContext == null) {
             throw new IllegalArgumentException("SSL context may not be null");
         }
         this.socketfactory = sslContext.getSocketFactory();
+        this.sessionContext = sslContext.getClientSessionContext();
+        if (this.sessionContext != null) {
+            if (sessionCacheSize >= 0) {
+                this.sessionContext.setSessionCacheSize(sessionCacheSize);
+            }
+            if (sessionTimeout >= 0) {
+                this.sessionContext.setSessionTimeout(sessionTimeout);
+            }
+        }
         this.hostnameVerifier = hostnameVerifier;
         this.nameResolver = null;
     }
@@ -495,6 +539,7 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
             throw new IllegalArgumentException("SSL socket factory may not be null");
         }
         this.socketfactory = socketfactory;
+        this.sessionContext = null;
         this.hostnameVerifier = hostnameVerifier;
         this.nameResolver = null;
     }
@@ -620,6 +665,35 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
         return this.hostnameVerifier;
     }
 
+    /**
+     * Returns the client session context of the SSL context this factory
+     * was created from, or <code>null</code> if the factory was created from
+     * a {@link javax.net.ssl.SSLSocketFactory}.
+     *
+     * @since 4.3
+     */
+    public SSLSessionContext getClientSessionContext() {
+        return this.sessionContext;
+    }
+
+    /**
+     * Returns the number of handshakes that negotiated a new session.
+     *
+     * @since 4.3
+     */
+    public long getFullHandshakeCount() {
+        return this.fullHandshakes.get();
+    }
+
+    /**
+     * Returns the number of handshakes that resumed a cached session.
+     *
+     * @since 4.3
+     */
+    public long getResumedHandshakeCount() {
+        return this.resumedHandshakes.get();
+    }
+
     /**
      * @deprecated (4.1) Use {@link #connectSocket(Socket, InetSocketAddress, InetSocketAddress,
      *   HttpParams)}
@@ -706,13 +780,15 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
             sock.bind(localAddress);
         }
         try {
-            sock.connect(remoteAddress, connectTimeout);
+            sock.connect(withHostName(host, remoteAddress), connectTimeout);
         } catch (SocketTimeoutException ex) {
             throw new ConnectTimeoutException(host, remoteAddress);
         }
         // Setup SSL layering if necessary
         if (sock instanceof SSLSocket) {
-            verifyHostname((SSLSocket) sock, host.getHostName());
+            SSLSocket sslsock = (SSLSocket) sock;
+            handshake(sslsock);
+            verifyHostname(sslsock, host.getHostName());
         } else {
             sock = createLayeredSocket(sock, host.getHostName(), remoteAddress.getPort(), context);
         }
@@ -730,10 +806,48 @@ public class SSLSocketFactory implements LayeredConnectionSocketFactory, SchemeL
                 port,
                 true);
           prepareSocket(sslSocket);
+          handshake(sslSocket);
           verifyHostname(sslSocket, target);
           return sslSocket;
     }
 
+    /**
+     * The JSSE keys cached client sessions by the host name and port an
+     * unlayered socket gets connected to, taking the name from the address.
+     * Resolved addresses do not necessarily carry the name the target was
+     * resolved from, so attach it explicitly.
+     */
+    private static InetSocketAddress withHostName(
+            final HttpHost host, final InetSocketAddress remoteAddress) throws UnknownHostException {
+        InetAddress address = remoteAddress.getAddress();
+        if (address == null) {
+            return remoteAddress;
+        }
+        return new InetSocketAddress(
+                InetAddress.getByAddress(host.getHostName(), address.getAddress()),
+                remoteAddress.getPort());
+    }
+
+    /**
+     * Completes the handshake and counts whether it resumed a session.
+     * Handshake failures yield the null session, which the hostname
+     * verifier rejects.
+     */
+    private void handshake(final SSLSocket sslsock) {
+        long start = System.currentTimeMillis();
+        SSLSession session = sslsock.getSession();
+        if (session == null || NULL_CIPHER_SUITE.equals(session.getCipherSuite())) {
+            return;
+        }
+        // a resumed session was established by an earlier handshake
+        if (session.getCreationTime() < start) {
+            this.resumedHandshakes.incrementAndGet();
+        } else {
+            this.fullHandshakes.incrementAndGet();
+        }
+    }
+
+
     private void verifyHostname(final SSLSocket sslsock, final String hostname) throws IOException {
         if (this.hostnameVerifier != null) {
             try {
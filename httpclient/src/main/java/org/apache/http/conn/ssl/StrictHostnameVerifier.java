@@ -29,7 +29,7 @@ package org.apache.http.conn.ssl;
 
 import javax.net.ssl.SSLException;
 
-import org.apache.http.annotation.Immutable;
+import org.apache.http.annotation.ThreadSafe;
 
 /**
  * The Strict HostnameVerifier works the same way as Sun Java 1.4, Sun
@@ -51,9 +51,13 @@ import org.apache.http.annotation.Immutable;
  *
  * @since 4.0
  */
-@Immutable
+@ThreadSafe
 public class StrictHostnameVerifier extends AbstractVerifier {
 
+    public StrictHostnameVerifier() {
+        super(DEFAULT_CACHE_SIZE);
+    }
+
     public final void verify(
             final String host,
             final String[] cns,
@@ -28,11 +28,12 @@
 package org.apache.http.impl.conn;
 
 import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
-import org.apache.http.annotation.Immutable;
+import org.apache.http.annotation.ThreadSafe;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.conn.SchemePortResolver;
@@ -46,19 +47,41 @@ import org.apache.http.protocol.HttpContext;
  * is based on {@link org.apache.http.conn.params.ConnRoutePNames parameters}.
  * It will not make use of any Java system properties, nor of system or
  * browser proxy settings.
+ * <p/>
+ * If created with a positive route time to live, planned routes are cached
+ * per target host, local address and default proxy, and the same
+ * {@link HttpRoute} instance is returned for that target until the entry
+ * expires. Routes forced through request parameters are never cached.
+ * Subclasses whose {@link #determineProxy(HttpHost, HttpRequest, HttpContext)}
+ * depends on anything other than the target host should not enable
+ * the cache.
  *
  * @since 4.3
  */
-@Immutable
+@ThreadSafe
 @SuppressWarnings("deprecation")
 public class DefaultRoutePlanner implements HttpRoutePlanner {
 
     private final SchemePortResolver schemePortResolver;
+    private final RouteCache routeCache;
 
     public DefaultRoutePlanner(final SchemePortResolver schemePortResolver) {
+        this(schemePortResolver, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param schemePortResolver scheme port resolver
+     * @param routeTtl time to live of cached routes. A value of
+     *   <code>0</code> or less disables route caching
+     * @param tunit time unit of the time to live
+     */
+    public DefaultRoutePlanner(
+            final SchemePortResolver schemePortResolver,
+            final long routeTtl, final TimeUnit tunit) {
         super();
         this.schemePortResolver = schemePortResolver != null ? schemePortResolver :
             DefaultSchemePortResolver.INSTANCE;
+        this.routeCache = RouteCache.create(routeTtl, tunit);
     }
 
     public HttpRoute determineRoute(
@@ -81,9 +104,16 @@ public class DefaultRoutePlanner implements HttpRoutePlanner {
         HttpClientContext clientContext = HttpClientContext.adapt(context);
         RequestConfig config = clientContext.getRequestConfig();
         InetAddress local = config.getLocalAddress();
+        HttpHost defaultProxy = config.getDefaultProxy();
+        if (this.routeCache != null) {
+            route = this.routeCache.get(host, local, defaultProxy);
+            if (route != null) {
+                return route;
+            }
+        }
         HttpHost proxy = determineProxy(host, request, context);
         if (proxy == null) {
-            proxy = config.getDefaultProxy();
+            proxy = defaultProxy;
         }
 
         HttpHost target;
@@ -97,10 +127,18 @@ public class DefaultRoutePlanner implements HttpRoutePlanner {
         }
         boolean secure = target.getSchemeName().equalsIgnoreCase("https");
         if (proxy == null) {
-            return new HttpRoute(target, local, secure);
+            route = new HttpRoute(target, local, secure);
         } else {
-            return new HttpRoute(target, local, proxy, secure);
+            route = new HttpRoute(target, local, proxy, secure);
         }
+        if (this.routeCache != null) {
+            this.routeCache.put(host, local, defaultProxy, route);
+        }
+        return route;
+    }
+
+    RouteCache getRouteCache() {
+        return this.routeCache;
     }
 
     protected HttpHost determineProxy(
@@ -35,6 +35,7 @@ import java.net.ProxySelector;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.annotation.NotThreadSafe;
 import org.apache.http.HttpException;
@@ -78,9 +79,19 @@ public class ProxySelectorRoutePlanner implements HttpRoutePlanner {
     /** The scheme registry. */
     protected final SchemeRegistry schemeRegistry; // @ThreadSafe
 
-    /** The proxy selector to use, or <code>null</code> for system default. */
+    /**
+     * The proxy selector to use, or <code>null</code> for system default.
+     * Cached routes are discarded as soon as a different selector is
+     * found here, whether it was set through {@link #setProxySelector} or
+     * assigned directly.
+     */
     protected ProxySelector proxySelector;
 
+    private final RouteCache routeCache;
+
+    /** The selector the cached routes were planned with. */
+    private ProxySelector cachedSelector;
+
     /**
      * Creates a new proxy selector route planner.
      *
@@ -90,6 +101,25 @@ public class ProxySelectorRoutePlanner implements HttpRoutePlanner {
      */
     public ProxySelectorRoutePlanner(SchemeRegistry schreg,
                                      ProxySelector prosel) {
+        this(schreg, prosel, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new proxy selector route planner that caches planned
+     * routes per target host.
+     *
+     * @param schreg    the scheme registry
+     * @param prosel    the proxy selector, or
+     *                  <code>null</code> for the system default
+     * @param routeTtl  time to live of cached routes, or
+     *                  <code>0</code> to disable route caching
+     * @param tunit     time unit of the time to live
+     *
+     * @since 4.3
+     */
+    public ProxySelectorRoutePlanner(SchemeRegistry schreg,
+                                     ProxySelector prosel,
+                                     long routeTtl, TimeUnit tunit) {
 
         if (schreg == null) {
             throw new IllegalArgumentException
@@ -97,6 +127,7 @@ public class ProxySelectorRoutePlanner implements HttpRoutePlanner {
         }
         schemeRegistry = schreg;
         proxySelector  = prosel;
+        routeCache     = RouteCache.create(routeTtl, tunit);
     }
 
     /**
@@ -116,6 +147,9 @@ public class ProxySelectorRoutePlanner implements HttpRoutePlanner {
      */
     public void setProxySelector(ProxySelector prosel) {
         this.proxySelector = prosel;
+        if (this.routeCache != null) {
+            this.routeCache.clear();
+        }
     }
 
     public HttpRoute determineRoute(HttpHost target,
@@ -144,6 +178,19 @@ public class ProxySelectorRoutePlanner implements HttpRoutePlanner {
 
         final InetAddress local =
             ConnRouteParams.getLocalAddress(request.getParams());
+        if (this.routeCache != null) {
+            ProxySelector psel = this.proxySelector;
+            if (psel == null)
+                psel = ProxySelector.getDefault();
+            if (psel != this.cachedSelector) {
+                this.routeCache.clear();
+                this.cachedSelector = psel;
+            }
+            route = this.routeCache.get(target, local, null);
+            if (route != null)
+                return route;
+        }
+
         final HttpHost proxy = determineProxy(target, request, context);
 
         final Scheme schm =
@@ -157,6 +204,8 @@ public class ProxySelectorRoutePlanner implements HttpRoutePlanner {
         } else {
             route = new HttpRoute(target, local, proxy, secure);
         }
+        if (this.routeCache != null)
+            this.routeCache.put(target, local, null, route);
         return route;
     }
 
@@ -0,0 +1,171 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.annotation.Immutable;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.util.LangUtils;
+
+/**
+ * Time bound cache of planned routes shared by the route planner
+ * implementations. Routes are keyed by the target host as passed to the
+ * planner together with the local address and default proxy in effect,
+ * so that the same {@link HttpRoute} instance is handed out for all
+ * requests to the same target until the entry expires.
+ */
+@ThreadSafe
+class RouteCache {
+
+    static final int MAX_ENTRIES = 1024;
+
+    private final ConcurrentHashMap<RouteKey, Entry> map;
+    private final long ttl;
+
+    RouteCache(final long ttl, final TimeUnit tunit) {
+        super();
+        if (tunit == null) {
+            throw new IllegalArgumentException("Time unit may not be null");
+        }
+        this.map = new ConcurrentHashMap<RouteKey, Entry>();
+        this.ttl = tunit.toMillis(ttl);
+    }
+
+    /**
+     * Returns <code>null</code> if the time to live is not positive,
+     * which disables the cache.
+     */
+    static RouteCache create(final long ttl, final TimeUnit tunit) {
+        return ttl > 0 ? new RouteCache(ttl, tunit) : null;
+    }
+
+    HttpRoute get(final HttpHost target, final InetAddress local, final HttpHost proxy) {
+        RouteKey key = new RouteKey(target, local, proxy);
+        Entry entry = this.map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (getCurrentTime() >= entry.expiry) {
+            this.map.remove(key, entry);
+            return null;
+        }
+        return entry.route;
+    }
+
+    void put(
+            final HttpHost target, final InetAddress local, final HttpHost proxy,
+            final HttpRoute route) {
+        long now = getCurrentTime();
+        if (this.map.size() >= MAX_ENTRIES) {
+            purge(now);
+            if (this.map.size() >= MAX_ENTRIES) {
+                this.map.clear();
+            }
+        }
+        this.map.put(new RouteKey(target, local, proxy), new Entry(route, now + this.ttl));
+    }
+
+    void clear() {
+        this.map.clear();
+    }
+
+    int size() {
+        return this.map.size();
+    }
+
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    private void purge(final long now) {
+        Iterator<Map.Entry<RouteKey, Entry>> it = this.map.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now >= it.next().getValue().expiry) {
+                it.remove();
+            }
+        }
+    }
+
+    @Immutable
+    static final class Entry {
+
+        final HttpRoute route;
+        final long expiry;
+
+        Entry(final HttpRoute route, final long expiry) {
+            this.route = route;
+            this.expiry = expiry;
+        }
+
+    }
+
+    @Immutable
+    static final class RouteKey {
+
+        private final HttpHost target;
+        private final InetAddress local;
+        private final HttpHost proxy;
+
+        RouteKey(final HttpHost target, final InetAddress local, final HttpHost proxy) {
+            this.target = target;
+            this.local = local;
+            this.proxy = proxy;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof RouteKey) {
+                RouteKey that = (RouteKey) obj;
+                return this.target.equals(that.target)
+                    && LangUtils.equals(this.local, that.local)
+                    && LangUtils.equals(this.proxy, that.proxy);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = LangUtils.HASH_SEED;
+            hash = LangUtils.hashCode(hash, this.target);
+            hash = LangUtils.hashCode(hash, this.local);
+            hash = LangUtils.hashCode(hash, this.proxy);
+            return hash;
+        }
+
+    }
+
+}
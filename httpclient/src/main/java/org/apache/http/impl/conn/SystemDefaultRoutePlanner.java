@@ -33,11 +33,12 @@ import java.net.ProxySelector;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
-import org.apache.http.annotation.Immutable;
+import org.apache.http.annotation.ThreadSafe;
 import org.apache.http.conn.SchemePortResolver;
 import org.apache.http.conn.routing.HttpRoutePlanner;
 import org.apache.http.protocol.HttpContext;
@@ -50,10 +51,14 @@ import org.apache.http.protocol.HttpContext;
  * {@link org.apache.http.conn.params.ConnRoutePNames parameters},
  * though not the {@link
  * org.apache.http.conn.params.ConnRoutePNames#DEFAULT_PROXY DEFAULT_PROXY}.
+ * <p/>
+ * As {@link ProxySelector#select(URI)} can be expensive, for instance when
+ * backed by a proxy auto-config script, routes can be cached per target
+ * host for a given time to live.
  *
  * @since 4.3
  */
-@Immutable
+@ThreadSafe
 public class SystemDefaultRoutePlanner extends DefaultRoutePlanner {
 
     private final ProxySelector proxySelector;
@@ -61,7 +66,21 @@ public class SystemDefaultRoutePlanner extends DefaultRoutePlanner {
     public SystemDefaultRoutePlanner(
             final SchemePortResolver schemePortResolver,
             final ProxySelector proxySelector) {
-        super(schemePortResolver);
+        this(schemePortResolver, proxySelector, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param schemePortResolver scheme port resolver
+     * @param proxySelector proxy selector, the system default if <code>null</code>
+     * @param routeTtl time to live of cached routes. A value of
+     *   <code>0</code> or less disables route caching
+     * @param tunit time unit of the time to live
+     */
+    public SystemDefaultRoutePlanner(
+            final SchemePortResolver schemePortResolver,
+            final ProxySelector proxySelector,
+            final long routeTtl, final TimeUnit tunit) {
+        super(schemePortResolver, routeTtl, tunit);
         this.proxySelector = proxySelector != null ? proxySelector : ProxySelector.getDefault();
     }
 
@@ -0,0 +1,114 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.lang.reflect.Method;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.annotation.Immutable;
+
+/**
+ * Access to TLS application layer protocol negotiation (RFC 7301), which
+ * the JSSE exposes from Java 9 onwards only. The methods are looked up
+ * reflectively so the module still runs on older platforms, where ALPN is
+ * simply reported as unsupported.
+ *
+ * @since 4.3
+ */
+@Immutable
+final class Alpn {
+
+    private static final Method GET_SSL_PARAMETERS;
+    private static final Method SET_SSL_PARAMETERS;
+    private static final Method SET_APPLICATION_PROTOCOLS;
+    private static final Method GET_APPLICATION_PROTOCOL;
+
+    static {
+        Method getParams = null;
+        Method setParams = null;
+        Method setProtocols = null;
+        Method getProtocol = null;
+        try {
+            getParams = SSLSocket.class.getMethod("getSSLParameters");
+            Class<?> paramsClass = getParams.getReturnType();
+            setParams = SSLSocket.class.getMethod("setSSLParameters", paramsClass);
+            setProtocols = paramsClass.getMethod("setApplicationProtocols", String[].class);
+            getProtocol = SSLSocket.class.getMethod("getApplicationProtocol");
+        } catch (NoSuchMethodException ex) {
+            getParams = null;
+        } catch (SecurityException ex) {
+            getParams = null;
+        }
+        GET_SSL_PARAMETERS = getParams;
+        SET_SSL_PARAMETERS = setParams;
+        SET_APPLICATION_PROTOCOLS = setProtocols;
+        GET_APPLICATION_PROTOCOL = getProtocol;
+    }
+
+    private Alpn() {
+    }
+
+    static boolean isSupported() {
+        return GET_SSL_PARAMETERS != null;
+    }
+
+    /**
+     * Sets the protocols offered during the handshake, in order of
+     * preference. Returns <code>false</code> if ALPN is not supported.
+     */
+    static boolean setApplicationProtocols(final SSLSocket socket, final String... protocols) {
+        if (!isSupported()) {
+            return false;
+        }
+        try {
+            Object params = GET_SSL_PARAMETERS.invoke(socket);
+            SET_APPLICATION_PROTOCOLS.invoke(params, (Object) protocols);
+            SET_SSL_PARAMETERS.invoke(socket, params);
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the negotiated protocol, or <code>null</code> if none was
+     * negotiated or ALPN is not supported.
+     */
+    static String getApplicationProtocol(final SSLSocket socket) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            String protocol = (String) GET_APPLICATION_PROTOCOL.invoke(socket);
+            return protocol != null && protocol.length() > 0 ? protocol : null;
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+}
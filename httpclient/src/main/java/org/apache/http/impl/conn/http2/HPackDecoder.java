@@ -0,0 +1,187 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.annotation.NotThreadSafe;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * HPACK header block decoder (RFC 7541). A decoder holds the dynamic
+ * table state of one connection and must be fed every header block
+ * received on that connection, in order.
+ *
+ * @since 4.3
+ */
+@NotThreadSafe
+final class HPackDecoder {
+
+    private final HPackHeaderTable table;
+    private final int maxTableSizeLimit;
+    private final int maxHeaderListSize;
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    /**
+     * @param maxTableSizeLimit the table size advertised to the peer in
+     *   SETTINGS_HEADER_TABLE_SIZE.
+     * @param maxHeaderListSize the header list size advertised to the peer
+     *   in SETTINGS_MAX_HEADER_LIST_SIZE.
+     */
+    HPackDecoder(final int maxTableSizeLimit, final int maxHeaderListSize) {
+        super();
+        this.table = new HPackHeaderTable(maxTableSizeLimit);
+        this.maxTableSizeLimit = maxTableSizeLimit;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    HPackDecoder(final int maxTableSizeLimit) {
+        this(maxTableSizeLimit, Integer.MAX_VALUE);
+    }
+
+    HPackHeaderTable getTable() {
+        return this.table;
+    }
+
+    List<Header> decode(final byte[] b, final int off, final int len) throws Http2Exception {
+        this.buf = b;
+        this.pos = off;
+        this.limit = off + len;
+        try {
+            List<Header> headers = new ArrayList<Header>();
+            // table size updates may only precede the first header field
+            boolean headerSeen = false;
+            long listSize = 0;
+            while (this.pos < this.limit) {
+                int octet = this.buf[this.pos] & 0xff;
+                Header header;
+                if ((octet & 0x80) != 0) {
+                    header = getIndexed(readInt(7));
+                } else if ((octet & 0x40) != 0) {
+                    header = readLiteral(6);
+                    this.table.add(header);
+                } else if ((octet & 0x20) != 0) {
+                    if (headerSeen) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                                "Table size update after the start of the header block");
+                    }
+                    int maxSize = readInt(5);
+                    if (maxSize > this.maxTableSizeLimit) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                                "Table size update exceeds limit: " + maxSize);
+                    }
+                    this.table.setMaxSize(maxSize);
+                    continue;
+                } else {
+                    // literal without indexing or never indexed
+                    header = readLiteral(4);
+                }
+                headerSeen = true;
+                listSize += HPackHeaderTable.entrySize(header);
+                if (listSize > this.maxHeaderListSize) {
+                    throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM,
+                            "Header list exceeds limit: " + this.maxHeaderListSize);
+                }
+                headers.add(header);
+            }
+            return headers;
+        } finally {
+            this.buf = null;
+        }
+    }
+
+    private Header getIndexed(final int index) throws Http2Exception {
+        Header header = this.table.get(index);
+        if (header == null) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR,
+                    "Invalid header table index: " + index);
+        }
+        return header;
+    }
+
+    private Header readLiteral(final int prefix) throws Http2Exception {
+        int index = readInt(prefix);
+        String name = index == 0 ? readString() : getIndexed(index).getName();
+        String value = readString();
+        return new BasicHeader(name, value);
+    }
+
+    private int readByte() throws Http2Exception {
+        if (this.pos >= this.limit) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        }
+        return this.buf[this.pos++] & 0xff;
+    }
+
+    private int readInt(final int prefix) throws Http2Exception {
+        int mask = (1 << prefix) - 1;
+        int value = readByte() & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        int octet;
+        do {
+            if (shift > 21) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Integer overflow");
+            }
+            octet = readByte();
+            value += (octet & 0x7f) << shift;
+            shift += 7;
+        } while ((octet & 0x80) != 0);
+        return value;
+    }
+
+    private String readString() throws Http2Exception {
+        if (this.pos >= this.limit) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        }
+        boolean huffman = (this.buf[this.pos] & 0x80) != 0;
+        int len = readInt(7);
+        if (len > this.limit - this.pos) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        }
+        String s;
+        if (huffman) {
+            s = HPackHuffman.decode(this.buf, this.pos, len);
+        } else {
+            StringBuilder buffer = new StringBuilder(len);
+            for (int i = this.pos; i < this.pos + len; i++) {
+                buffer.append((char) (this.buf[i] & 0xff));
+            }
+            s = buffer.toString();
+        }
+        this.pos += len;
+        return s;
+    }
+
+}
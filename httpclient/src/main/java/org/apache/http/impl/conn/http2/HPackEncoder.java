@@ -0,0 +1,160 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.annotation.NotThreadSafe;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * HPACK header block encoder (RFC 7541). Header names are expected to be
+ * lower case already. Fields that tend to differ from one request to the
+ * next are never added to the dynamic table, and credentials are sent as
+ * never indexed literals so intermediaries do not index them either.
+ *
+ * @since 4.3
+ */
+@NotThreadSafe
+final class HPackEncoder {
+
+    private final HPackHeaderTable table;
+
+    private int pendingMaxSize;
+
+    HPackEncoder(final int maxTableSize) {
+        super();
+        this.table = new HPackHeaderTable(maxTableSize);
+        this.pendingMaxSize = -1;
+    }
+
+    HPackHeaderTable getTable() {
+        return this.table;
+    }
+
+    /**
+     * Applies the table size the peer advertised in
+     * SETTINGS_HEADER_TABLE_SIZE. The encoder never uses more than its
+     * initial table size even if the peer allows it.
+     */
+    void setMaxTableSize(final int maxSize) {
+        int newSize = Math.min(maxSize, HPackHeaderTable.DEFAULT_MAX_SIZE);
+        if (newSize != this.table.getMaxSize()) {
+            this.table.setMaxSize(newSize);
+            this.pendingMaxSize = newSize;
+        }
+    }
+
+    private static boolean isSensitive(final String name) {
+        return name.equals("authorization")
+            || name.equals("proxy-authorization")
+            || name.equals("cookie");
+    }
+
+    private static boolean isVolatile(final String name) {
+        return name.equals(":path")
+            || name.equals("content-length")
+            || name.equals("if-modified-since")
+            || name.equals("if-none-match")
+            || name.equals("range");
+    }
+
+    byte[] encode(final List<Header> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (this.pendingMaxSize >= 0) {
+            writeInt(out, 0x20, 5, this.pendingMaxSize);
+            this.pendingMaxSize = -1;
+        }
+        for (Header header: headers) {
+            String name = header.getName();
+            String value = header.getValue() != null ? header.getValue() : "";
+            if (isSensitive(name)) {
+                writeLiteral(out, 0x10, 4, name, value);
+                continue;
+            }
+            int index = this.table.findField(name, value);
+            if (index > 0) {
+                writeInt(out, 0x80, 7, index);
+                continue;
+            }
+            Header field = new BasicHeader(name, value);
+            if (!isVolatile(name)
+                    && HPackHeaderTable.entrySize(field) <= this.table.getMaxSize() / 2) {
+                writeLiteral(out, 0x40, 6, name, value);
+                this.table.add(field);
+            } else {
+                writeLiteral(out, 0x00, 4, name, value);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void writeLiteral(
+            final ByteArrayOutputStream out,
+            final int pattern, final int prefix,
+            final String name, final String value) {
+        int nameIndex = this.table.findName(name);
+        writeInt(out, pattern, prefix, nameIndex);
+        if (nameIndex == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+    }
+
+    static void writeInt(
+            final ByteArrayOutputStream out, final int pattern, final int prefix, final int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(pattern | value);
+            return;
+        }
+        out.write(pattern | mask);
+        int remaining = value - mask;
+        while (remaining >= 0x80) {
+            out.write((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        out.write(remaining);
+    }
+
+    static void writeString(final ByteArrayOutputStream out, final String s) {
+        int huffmanLength = HPackHuffman.encodedLength(s);
+        if (huffmanLength < s.length()) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            HPackHuffman.encode(s, out);
+        } else {
+            writeInt(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                out.write(ch <= 0xff ? ch : '?');
+            }
+        }
+    }
+
+}
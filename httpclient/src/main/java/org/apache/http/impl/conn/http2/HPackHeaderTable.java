@@ -0,0 +1,247 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.annotation.NotThreadSafe;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * HPACK index address space made of the static table followed by a
+ * dynamic table of bounded size (RFC 7541, section 2.3). Indexes are
+ * 1-based; the most recently added dynamic entry has the lowest dynamic
+ * index.
+ *
+ * @since 4.3
+ */
+@NotThreadSafe
+final class HPackHeaderTable {
+
+    static final int DEFAULT_MAX_SIZE = 4096;
+    static final int ENTRY_OVERHEAD = 32;
+
+    static final Header[] STATIC_TABLE = {
+        new BasicHeader(":authority", ""),
+        new BasicHeader(":method", "GET"),
+        new BasicHeader(":method", "POST"),
+        new BasicHeader(":path", "/"),
+        new BasicHeader(":path", "/index.html"),
+        new BasicHeader(":scheme", "http"),
+        new BasicHeader(":scheme", "https"),
+        new BasicHeader(":status", "200"),
+        new BasicHeader(":status", "204"),
+        new BasicHeader(":status", "206"),
+        new BasicHeader(":status", "304"),
+        new BasicHeader(":status", "400"),
+        new BasicHeader(":status", "404"),
+        new BasicHeader(":status", "500"),
+        new BasicHeader("accept-charset", ""),
+        new BasicHeader("accept-encoding", "gzip, deflate"),
+        new BasicHeader("accept-language", ""),
+        new BasicHeader("accept-ranges", ""),
+        new BasicHeader("accept", ""),
+        new BasicHeader("access-control-allow-origin", ""),
+        new BasicHeader("age", ""),
+        new BasicHeader("allow", ""),
+        new BasicHeader("authorization", ""),
+        new BasicHeader("cache-control", ""),
+        new BasicHeader("content-disposition", ""),
+        new BasicHeader("content-encoding", ""),
+        new BasicHeader("content-language", ""),
+        new BasicHeader("content-length", ""),
+        new BasicHeader("content-location", ""),
+        new BasicHeader("content-range", ""),
+        new BasicHeader("content-type", ""),
+        new BasicHeader("cookie", ""),
+        new BasicHeader("date", ""),
+        new BasicHeader("etag", ""),
+        new BasicHeader("expect", ""),
+        new BasicHeader("expires", ""),
+        new BasicHeader("from", ""),
+        new BasicHeader("host", ""),
+        new BasicHeader("if-match", ""),
+        new BasicHeader("if-modified-since", ""),
+        new BasicHeader("if-none-match", ""),
+        new BasicHeader("if-range", ""),
+        new BasicHeader("if-unmodified-since", ""),
+        new BasicHeader("last-modified", ""),
+        new BasicHeader("link", ""),
+        new BasicHeader("location", ""),
+        new BasicHeader("max-forwards", ""),
+        new BasicHeader("proxy-authenticate", ""),
+        new BasicHeader("proxy-authorization", ""),
+        new BasicHeader("range", ""),
+        new BasicHeader("referer", ""),
+        new BasicHeader("refresh", ""),
+        new BasicHeader("retry-after", ""),
+        new BasicHeader("server", ""),
+        new BasicHeader("set-cookie", ""),
+        new BasicHeader("strict-transport-security", ""),
+        new BasicHeader("transfer-encoding", ""),
+        new BasicHeader("user-agent", ""),
+        new BasicHeader("vary", ""),
+        new BasicHeader("via", ""),
+        new BasicHeader("www-authenticate", "")
+    };
+
+    private static final Map<String, Integer> STATIC_NAMES;
+    private static final Map<String, Integer> STATIC_FIELDS;
+
+    static {
+        STATIC_NAMES = new HashMap<String, Integer>();
+        STATIC_FIELDS = new HashMap<String, Integer>();
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            Header header = STATIC_TABLE[i];
+            STATIC_NAMES.put(header.getName(), Integer.valueOf(i + 1));
+            STATIC_FIELDS.put(header.getName() + '\0' + header.getValue(), Integer.valueOf(i + 1));
+        }
+    }
+
+    // circular buffer of dynamic entries; head is the newest
+    private Header[] entries;
+    private int head;
+    private int count;
+    private int size;
+    private int maxSize;
+
+    HPackHeaderTable(final int maxSize) {
+        super();
+        this.entries = new Header[16];
+        this.maxSize = maxSize;
+    }
+
+    static int entrySize(final Header header) {
+        return header.getName().length() + header.getValue().length() + ENTRY_OVERHEAD;
+    }
+
+    int length() {
+        return STATIC_TABLE.length + this.count;
+    }
+
+    int getSize() {
+        return this.size;
+    }
+
+    int getMaxSize() {
+        return this.maxSize;
+    }
+
+    int getDynamicCount() {
+        return this.count;
+    }
+
+    Header get(final int index) {
+        if (index < 1 || index > length()) {
+            return null;
+        }
+        if (index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1];
+        }
+        int i = index - STATIC_TABLE.length - 1;
+        return this.entries[(this.head + i) % this.entries.length];
+    }
+
+    void add(final Header header) {
+        int entrySize = entrySize(header);
+        if (entrySize > this.maxSize) {
+            // an entry larger than the table empties it
+            clear();
+            return;
+        }
+        evict(this.maxSize - entrySize);
+        if (this.count == this.entries.length) {
+            Header[] grown = new Header[this.entries.length * 2];
+            for (int i = 0; i < this.count; i++) {
+                grown[i] = this.entries[(this.head + i) % this.entries.length];
+            }
+            this.entries = grown;
+            this.head = 0;
+        }
+        this.head = (this.head - 1 + this.entries.length) % this.entries.length;
+        this.entries[this.head] = header;
+        this.count++;
+        this.size += entrySize;
+    }
+
+    void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    private void evict(final int targetSize) {
+        while (this.size > targetSize && this.count > 0) {
+            int tail = (this.head + this.count - 1) % this.entries.length;
+            this.size -= entrySize(this.entries[tail]);
+            this.entries[tail] = null;
+            this.count--;
+        }
+    }
+
+    private void clear() {
+        evict(0);
+    }
+
+    /**
+     * Returns the index of an entry matching both name and value, or
+     * <code>0</code> if there is none.
+     */
+    int findField(final String name, final String value) {
+        Integer index = STATIC_FIELDS.get(name + '\0' + value);
+        if (index != null) {
+            return index.intValue();
+        }
+        for (int i = 0; i < this.count; i++) {
+            Header header = this.entries[(this.head + i) % this.entries.length];
+            if (header.getName().equals(name) && header.getValue().equals(value)) {
+                return STATIC_TABLE.length + i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the index of an entry matching the name, or <code>0</code>
+     * if there is none.
+     */
+    int findName(final String name) {
+        Integer index = STATIC_NAMES.get(name);
+        if (index != null) {
+            return index.intValue();
+        }
+        for (int i = 0; i < this.count; i++) {
+            Header header = this.entries[(this.head + i) % this.entries.length];
+            if (header.getName().equals(name)) {
+                return STATIC_TABLE.length + i + 1;
+            }
+        }
+        return 0;
+    }
+
+}
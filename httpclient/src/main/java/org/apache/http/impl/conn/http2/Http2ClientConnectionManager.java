@@ -0,0 +1,858 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.annotation.GuardedBy;
+import org.apache.http.annotation.ThreadSafe;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Lookup;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.conn.SchemePortResolver;
+import org.apache.http.conn.SocketClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainSocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.conn.DefaultClientConnectionFactory;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.LangUtils;
+
+/**
+ * Connection manager that multiplexes concurrent exchanges over HTTP/2
+ * connections. All requests along a route share a single connection
+ * (or as many as {@link #setMaxConnectionsPerRoute(int)} permits), each
+ * exchange taking one stream slot. Leases wait for a slot when the
+ * server's <code>SETTINGS_MAX_CONCURRENT_STREAMS</code> limit has been
+ * reached on all connections of the route.
+ * <p>
+ * HTTP/2 is negotiated over TLS by ALPN, which requires Java 9 or newer.
+ * Plain routes speak HTTP/2 with prior knowledge only if
+ * {@link #setPriorKnowledge(boolean)} has been enabled. Routes through a
+ * proxy, routes on platforms without ALPN and targets that declined HTTP/2
+ * during negotiation are served by the fallback connection manager. The
+ * HTTP/1.1 connections on which a target declined HTTP/2 are kept alive
+ * and handed out again ahead of the fallback manager's own connections.
+ * <p>
+ * When a server sends GOAWAY its connection stops taking new streams and is
+ * closed once the streams in flight complete; subsequent requests open a
+ * new connection. Streams the server did not process fail with
+ * {@link org.apache.http.NoHttpResponseException} so they can be retried.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+public class Http2ClientConnectionManager implements HttpClientConnectionManager {
+
+    /** Default receive window of each stream. */
+    public static final int DEFAULT_WINDOW_SIZE = 1024 * 1024;
+
+    private static final String[] PROTOCOLS = new String[] { "h2", "http/1.1" };
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final Lookup<ConnectionSocketFactory> socketFactoryRegistry;
+    private final HttpClientConnectionManager fallback;
+    private final SchemePortResolver schemePortResolver;
+    private final DnsResolver dnsResolver;
+
+    @GuardedBy("this")
+    private final Map<HttpRoute, List<Http2Connection>> routeConnections;
+
+    @GuardedBy("this")
+    private final Map<HttpRoute, Integer> pendingConnects;
+
+    @GuardedBy("this")
+    private final Set<HttpHost> http11Targets;
+
+    /** HTTP/1.1 connections left over from failed HTTP/2 negotiation */
+    @GuardedBy("this")
+    private final Map<HttpRoute, LinkedList<IdleDelegate>> idleDelegates;
+
+    @GuardedBy("this")
+    private SocketConfig socketConfig;
+
+    @GuardedBy("this")
+    private int maxConnectionsPerRoute;
+
+    @GuardedBy("this")
+    private int windowSize;
+
+    @GuardedBy("this")
+    private boolean priorKnowledge;
+
+    @GuardedBy("this")
+    private boolean shutdown;
+
+    private static Registry<ConnectionSocketFactory> getDefaultRegistry() {
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainSocketFactory.getSocketFactory())
+                .register("https", SSLSocketFactory.getSocketFactory())
+                .build();
+    }
+
+    public Http2ClientConnectionManager(
+            final Lookup<ConnectionSocketFactory> socketFactoryRegistry,
+            final HttpClientConnectionManager fallback,
+            final SchemePortResolver schemePortResolver,
+            final DnsResolver dnsResolver) {
+        super();
+        if (socketFactoryRegistry == null) {
+            throw new IllegalArgumentException("Socket factory registry may not be null");
+        }
+        if (fallback == null) {
+            throw new IllegalArgumentException("Fallback connection manager may not be null");
+        }
+        this.socketFactoryRegistry = socketFactoryRegistry;
+        this.fallback = fallback;
+        this.schemePortResolver = schemePortResolver != null ? schemePortResolver :
+            DefaultSchemePortResolver.INSTANCE;
+        this.dnsResolver = dnsResolver != null ? dnsResolver :
+            SystemDefaultDnsResolver.INSTANCE;
+        this.routeConnections = new HashMap<HttpRoute, List<Http2Connection>>();
+        this.pendingConnects = new HashMap<HttpRoute, Integer>();
+        this.http11Targets = new HashSet<HttpHost>();
+        this.idleDelegates = new HashMap<HttpRoute, LinkedList<IdleDelegate>>();
+        this.socketConfig = SocketConfig.DEFAULT;
+        this.maxConnectionsPerRoute = 1;
+        this.windowSize = DEFAULT_WINDOW_SIZE;
+    }
+
+    public Http2ClientConnectionManager(
+            final Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+        this(socketFactoryRegistry,
+                new PoolingHttpClientConnectionManager(socketFactoryRegistry), null, null);
+    }
+
+    public Http2ClientConnectionManager() {
+        this(getDefaultRegistry());
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            shutdown();
+        } finally { // Make sure we call overridden method even if shutdown barfs
+            super.finalize();
+        }
+    }
+
+    public HttpClientConnectionManager getFallback() {
+        return this.fallback;
+    }
+
+    public synchronized SocketConfig getSocketConfig() {
+        return this.socketConfig;
+    }
+
+    public synchronized void setSocketConfig(final SocketConfig socketConfig) {
+        this.socketConfig = socketConfig != null ? socketConfig : SocketConfig.DEFAULT;
+    }
+
+    public synchronized int getMaxConnectionsPerRoute() {
+        return this.maxConnectionsPerRoute;
+    }
+
+    /**
+     * Sets the number of HTTP/2 connections opened per route. One is
+     * usually enough; more only help when a server limits concurrent
+     * streams severely.
+     */
+    public synchronized void setMaxConnectionsPerRoute(final int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("Max connections may not be negative or zero");
+        }
+        this.maxConnectionsPerRoute = max;
+        notifyAll();
+    }
+
+    public synchronized int getInitialWindowSize() {
+        return this.windowSize;
+    }
+
+    /**
+     * Sets the receive window advertised for each stream of new
+     * connections. The connection window is sized to a multiple of it.
+     */
+    public synchronized void setInitialWindowSize(final int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size may not be negative or zero");
+        }
+        this.windowSize = windowSize;
+    }
+
+    public synchronized boolean isPriorKnowledge() {
+        return this.priorKnowledge;
+    }
+
+    /**
+     * Enables HTTP/2 with prior knowledge (h2c) on routes without TLS.
+     * Servers on such routes must accept HTTP/2 without an upgrade; there
+     * is no way to fall back to HTTP/1.1 once the preface has been sent.
+     */
+    public synchronized void setPriorKnowledge(final boolean priorKnowledge) {
+        this.priorKnowledge = priorKnowledge;
+    }
+
+    synchronized boolean isMultiplexed(final HttpRoute route) {
+        if (route.getProxyHost() != null) {
+            return false;
+        }
+        if (this.http11Targets.contains(route.getTargetHost())) {
+            return false;
+        }
+        return route.isSecure() ? Alpn.isSupported() : this.priorKnowledge;
+    }
+
+    /**
+     * Returns the open connections of the route, dropping closed ones.
+     */
+    private List<Http2Connection> getConnections(final HttpRoute route) {
+        List<Http2Connection> list = this.routeConnections.get(route);
+        if (list == null) {
+            list = new ArrayList<Http2Connection>();
+            this.routeConnections.put(route, list);
+        }
+        Iterator<Http2Connection> it = list.iterator();
+        while (it.hasNext()) {
+            if (!it.next().isOpen()) {
+                it.remove();
+            }
+        }
+        return list;
+    }
+
+    synchronized int getConnectionCount(final HttpRoute route) {
+        return getConnections(route).size();
+    }
+
+    private int getPending(final HttpRoute route) {
+        Integer pending = this.pendingConnects.get(route);
+        return pending != null ? pending.intValue() : 0;
+    }
+
+    private void clearPending(final Http2StreamConnection conn) {
+        if (conn.pending) {
+            conn.pending = false;
+            HttpRoute route = conn.getRoute();
+            int pending = getPending(route) - 1;
+            if (pending > 0) {
+                this.pendingConnects.put(route, Integer.valueOf(pending));
+            } else {
+                this.pendingConnects.remove(route);
+            }
+            notifyAll();
+        }
+    }
+
+    public ConnectionRequest requestConnection(
+            final HttpRoute route,
+            final Object state) {
+        if (route == null) {
+            throw new IllegalArgumentException("Route may not be null");
+        }
+        if (!isMultiplexed(route)) {
+            HttpClientConnection delegate = takeIdleDelegate(route, state);
+            if (delegate != null) {
+                final Http2StreamConnection lease = new Http2StreamConnection(route);
+                lease.bind(delegate);
+                return new ConnectionRequest() {
+
+                    public boolean cancel() {
+                        return false;
+                    }
+
+                    public HttpClientConnection get(final long timeout, final TimeUnit tunit) {
+                        return lease;
+                    }
+
+                };
+            }
+            return this.fallback.requestConnection(route, state);
+        }
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("Connection request: " + route);
+        }
+        return new LeaseRequest(route);
+    }
+
+    /**
+     * Binds the connection to a free stream slot along its route, or marks
+     * it as pending a new connection if the route may open another one.
+     * Connections to targets known to speak HTTP/1.1 only are left unbound.
+     * Returns <code>false</code> if the deadline passed first.
+     */
+    synchronized boolean reserve(
+            final Http2StreamConnection conn,
+            final long deadline,
+            final LeaseRequest request) throws InterruptedException {
+        HttpRoute route = conn.getRoute();
+        for (;;) {
+            if (this.shutdown) {
+                throw new IllegalStateException("Connection pool shut down");
+            }
+            if (request != null && request.cancelled) {
+                throw new InterruptedException("Operation aborted");
+            }
+            int usable = 0;
+            for (Http2Connection candidate: getConnections(route)) {
+                if (candidate.tryReserve()) {
+                    conn.bind(candidate);
+                    return true;
+                }
+                if (candidate.isUsable()) {
+                    usable++;
+                }
+            }
+            if (this.http11Targets.contains(route.getTargetHost())) {
+                return true;
+            }
+            int pending = getPending(route);
+            if (usable + pending < this.maxConnectionsPerRoute) {
+                this.pendingConnects.put(route, Integer.valueOf(pending + 1));
+                conn.pending = true;
+                return true;
+            }
+            if (deadline == 0) {
+                wait();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+    }
+
+    public void releaseConnection(
+            final HttpClientConnection conn,
+            final Object state,
+            final long keepalive, final TimeUnit tunit) {
+        if (conn == null) {
+            throw new IllegalArgumentException("Connection may not be null");
+        }
+        if (!(conn instanceof Http2StreamConnection)) {
+            this.fallback.releaseConnection(conn, state, keepalive, tunit);
+            return;
+        }
+        Http2StreamConnection lease = (Http2StreamConnection) conn;
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("Releasing connection " + lease);
+        }
+        Http2Connection c = lease.getConnection();
+        if (c != null && keepalive > 0) {
+            c.expiry = System.currentTimeMillis() + tunit.toMillis(keepalive);
+        }
+        lease.release();
+        HttpClientConnection d = lease.unbindDelegate();
+        boolean keep = false;
+        synchronized (this) {
+            clearPending(lease);
+            if (d != null && d.isOpen() && !this.shutdown
+                    && this.http11Targets.contains(lease.getRoute().getTargetHost())) {
+                long now = System.currentTimeMillis();
+                long expiry = keepalive > 0 ? now + tunit.toMillis(keepalive) : Long.MAX_VALUE;
+                LinkedList<IdleDelegate> list = this.idleDelegates.get(lease.getRoute());
+                if (list == null) {
+                    list = new LinkedList<IdleDelegate>();
+                    this.idleDelegates.put(lease.getRoute(), list);
+                }
+                list.addFirst(new IdleDelegate(d, state, now, expiry));
+                keep = true;
+            }
+        }
+        if (d != null && !keep) {
+            close(d);
+        }
+    }
+
+    /**
+     * Takes an idle HTTP/1.1 connection of the route with a matching
+     * state, closing any that have expired.
+     */
+    private HttpClientConnection takeIdleDelegate(final HttpRoute route, final Object state) {
+        List<HttpClientConnection> closing = new ArrayList<HttpClientConnection>();
+        HttpClientConnection found = null;
+        synchronized (this) {
+            LinkedList<IdleDelegate> list = this.idleDelegates.get(route);
+            if (list != null) {
+                long now = System.currentTimeMillis();
+                Iterator<IdleDelegate> it = list.iterator();
+                while (it.hasNext()) {
+                    IdleDelegate idle = it.next();
+                    if (idle.expiry <= now || !idle.conn.isOpen()) {
+                        closing.add(idle.conn);
+                        it.remove();
+                    } else if (found == null && LangUtils.equals(idle.state, state)) {
+                        found = idle.conn;
+                        it.remove();
+                    }
+                }
+                if (list.isEmpty()) {
+                    this.idleDelegates.remove(route);
+                }
+            }
+        }
+        for (HttpClientConnection conn: closing) {
+            close(conn);
+        }
+        return found;
+    }
+
+    private void close(final HttpClientConnection conn) {
+        try {
+            conn.close();
+        } catch (IOException iox) {
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("I/O exception closing connection", iox);
+            }
+        }
+    }
+
+    private void closeDelegate(final Http2StreamConnection lease) {
+        HttpClientConnection d = lease.unbindDelegate();
+        if (d != null) {
+            close(d);
+        }
+    }
+
+    public void connect(
+            final HttpClientConnection conn,
+            final HttpHost host,
+            final InetAddress local,
+            final int connectTimeout,
+            final HttpContext context) throws IOException {
+        if (conn == null) {
+            throw new IllegalArgumentException("Connection may not be null");
+        }
+        if (host == null) {
+            throw new IllegalArgumentException("HTTP host may not be null");
+        }
+        if (!(conn instanceof Http2StreamConnection)) {
+            this.fallback.connect(conn, host, local, connectTimeout, context);
+            return;
+        }
+        Http2StreamConnection lease = (Http2StreamConnection) conn;
+        // whatever the lease was bound to is unusable or it would be open
+        lease.release();
+        closeDelegate(lease);
+        bind(lease, host, local, connectTimeout, context);
+        lease.setSocketTimeout(getSocketConfig().getSoTimeout());
+    }
+
+    private void bind(
+            final Http2StreamConnection lease,
+            final HttpHost host,
+            final InetAddress local,
+            final int connectTimeout,
+            final HttpContext context) throws IOException {
+        boolean pending;
+        synchronized (this) {
+            pending = lease.pending;
+        }
+        if (!pending) {
+            long deadline = connectTimeout > 0 ? System.currentTimeMillis() + connectTimeout : 0;
+            try {
+                if (!reserve(lease, deadline, null)) {
+                    throw new ConnectTimeoutException("Timeout waiting for an HTTP/2 stream");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an HTTP/2 stream");
+            }
+            if (lease.getConnection() != null) {
+                return;
+            }
+            synchronized (this) {
+                pending = lease.pending;
+            }
+        }
+        if (!pending) {
+            bindDelegate(lease, connectSocket(host, local, connectTimeout, context, false));
+            return;
+        }
+        try {
+            establish(lease, host, local, connectTimeout, context);
+        } finally {
+            synchronized (this) {
+                clearPending(lease);
+            }
+        }
+    }
+
+    private void establish(
+            final Http2StreamConnection lease,
+            final HttpHost host,
+            final InetAddress local,
+            final int connectTimeout,
+            final HttpContext context) throws IOException {
+        HttpRoute route = lease.getRoute();
+        Socket socket = connectSocket(host, local, connectTimeout, context, true);
+        boolean h2;
+        if (socket instanceof SSLSocket) {
+            SSLSocket sslSocket = (SSLSocket) socket;
+            // make sure the handshake has completed
+            sslSocket.getSession();
+            h2 = "h2".equals(Alpn.getApplicationProtocol(sslSocket));
+        } else {
+            h2 = !route.isSecure();
+        }
+        if (!h2) {
+            if (this.log.isDebugEnabled()) {
+                this.log.debug(host + " does not support HTTP/2; falling back to HTTP/1.1");
+            }
+            synchronized (this) {
+                this.http11Targets.add(route.getTargetHost());
+                notifyAll();
+            }
+            bindDelegate(lease, socket);
+            return;
+        }
+        int windowSize;
+        SocketConfig socketConfig;
+        synchronized (this) {
+            windowSize = this.windowSize;
+            socketConfig = this.socketConfig;
+        }
+        Http2Connection connection = new Http2Connection(socket, this, windowSize);
+        connection.start(connectTimeout > 0 ? connectTimeout : socketConfig.getSoTimeout());
+        boolean shutdown;
+        synchronized (this) {
+            shutdown = this.shutdown;
+            if (!shutdown) {
+                getConnections(route).add(connection);
+                clearPending(lease);
+                if (connection.tryReserve()) {
+                    lease.bind(connection);
+                }
+            }
+        }
+        if (shutdown) {
+            connection.shutdown();
+            throw new InterruptedIOException("Connection manager has been shut down");
+        }
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("Connection established " + connection);
+        }
+        if (lease.getConnection() == null) {
+            // the server does not permit any streams right now
+            long deadline = connectTimeout > 0 ? System.currentTimeMillis() + connectTimeout : 0;
+            try {
+                if (!reserve(lease, deadline, null) || lease.getConnection() == null) {
+                    throw new ConnectTimeoutException("Timeout waiting for an HTTP/2 stream");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an HTTP/2 stream");
+            }
+        }
+    }
+
+    private void bindDelegate(final Http2StreamConnection lease, final Socket socket) throws IOException {
+        SocketClientConnection conn = DefaultClientConnectionFactory.INSTANCE.create(
+                ConnectionConfig.DEFAULT);
+        conn.bind(socket);
+        lease.bind(conn);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Lookup<ConnectionSocketFactory> getSocketFactoryRegistry(final HttpContext context) {
+        Lookup<ConnectionSocketFactory> reg = null;
+        if (context != null) {
+            reg = (Lookup<ConnectionSocketFactory>) context.getAttribute(
+                    ClientContext.SOCKET_FACTORY_REGISTRY);
+        }
+        if (reg == null) {
+            reg = this.socketFactoryRegistry;
+        }
+        return reg;
+    }
+
+    private Socket connectSocket(
+            final HttpHost host,
+            final InetAddress local,
+            final int connectTimeout,
+            final HttpContext context,
+            final boolean offerHttp2) throws IOException {
+        Lookup<ConnectionSocketFactory> registry = getSocketFactoryRegistry(context);
+        ConnectionSocketFactory sf = registry.lookup(host.getSchemeName());
+        if (sf == null) {
+            throw new IOException("Unsupported scheme: " + host.getSchemeName());
+        }
+        SocketConfig socketConfig = getSocketConfig();
+        InetSocketAddress localAddress = local != null ? new InetSocketAddress(local, 0) : null;
+        InetAddress[] addresses = this.dnsResolver.resolve(host.getHostName());
+        int port = this.schemePortResolver.resolve(host);
+        for (int i = 0; i < addresses.length; i++) {
+            InetAddress address = addresses[i];
+            boolean last = i == addresses.length - 1;
+
+            Socket sock = sf.createSocket(context);
+            if (offerHttp2 && sock instanceof SSLSocket) {
+                Alpn.setApplicationProtocols((SSLSocket) sock, PROTOCOLS);
+            }
+            sock.setReuseAddress(socketConfig.isSoReuseAddress());
+
+            InetSocketAddress remoteAddress = new InetSocketAddress(address, port);
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("Connecting to " + remoteAddress);
+            }
+            try {
+                sock.setSoTimeout(socketConfig.getSoTimeout());
+                sock = sf.connectSocket(
+                        connectTimeout, sock, host, remoteAddress, localAddress, context);
+                sock.setTcpNoDelay(socketConfig.isTcpNoDelay());
+                sock.setKeepAlive(socketConfig.isSoKeepAlive());
+                int linger = socketConfig.getSoLinger();
+                if (linger >= 0) {
+                    sock.setSoLinger(linger > 0, linger);
+                }
+                return sock;
+            } catch (ConnectException ex) {
+                if (last) {
+                    throw new HttpHostConnectException(host, ex);
+                }
+            } catch (ConnectTimeoutException ex) {
+                if (last) {
+                    throw ex;
+                }
+            }
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("Connect to " + remoteAddress + " timed out. " +
+                        "Connection will be retried using another IP address");
+            }
+        }
+        throw new UnknownHostException(host.getHostName());
+    }
+
+    public void upgrade(
+            final HttpClientConnection conn,
+            final HttpHost host,
+            final HttpContext context) throws IOException {
+        if (conn == null) {
+            throw new IllegalArgumentException("Connection may not be null");
+        }
+        if (!(conn instanceof Http2StreamConnection)) {
+            this.fallback.upgrade(conn, host, context);
+            return;
+        }
+        throw new IllegalStateException("HTTP/2 connections cannot be layered");
+    }
+
+    public void closeIdleConnections(final long idletime, final TimeUnit tunit) {
+        if (tunit == null) {
+            throw new IllegalArgumentException("Time unit must not be null.");
+        }
+        this.fallback.closeIdleConnections(idletime, tunit);
+        long time = tunit.toMillis(idletime);
+        if (time < 0) {
+            time = 0;
+        }
+        closeIdle(System.currentTimeMillis() - time, false);
+    }
+
+    public void closeExpiredConnections() {
+        this.fallback.closeExpiredConnections();
+        closeIdle(System.currentTimeMillis(), true);
+    }
+
+    /**
+     * Closes connections without reserved stream slots that have been idle
+     * since the deadline or, if <code>expired</code> is set, whose keep-alive
+     * expired by then.
+     */
+    private void closeIdle(final long deadline, final boolean expired) {
+        List<Http2Connection> closing = new ArrayList<Http2Connection>();
+        List<HttpClientConnection> closingDelegates = new ArrayList<HttpClientConnection>();
+        synchronized (this) {
+            if (this.shutdown) {
+                return;
+            }
+            Iterator<LinkedList<IdleDelegate>> lists = this.idleDelegates.values().iterator();
+            while (lists.hasNext()) {
+                LinkedList<IdleDelegate> list = lists.next();
+                Iterator<IdleDelegate> it = list.iterator();
+                while (it.hasNext()) {
+                    IdleDelegate idle = it.next();
+                    if (expired ? idle.expiry <= deadline : idle.idleSince <= deadline) {
+                        closingDelegates.add(idle.conn);
+                        it.remove();
+                    }
+                }
+                if (list.isEmpty()) {
+                    lists.remove();
+                }
+            }
+            for (HttpRoute route: new ArrayList<HttpRoute>(this.routeConnections.keySet())) {
+                List<Http2Connection> list = getConnections(route);
+                Iterator<Http2Connection> it = list.iterator();
+                while (it.hasNext()) {
+                    Http2Connection c = it.next();
+                    long idleSince = c.getIdleSince();
+                    boolean close = expired
+                        ? idleSince != Long.MAX_VALUE && c.expiry <= deadline
+                        : idleSince <= deadline;
+                    if (close) {
+                        closing.add(c);
+                        it.remove();
+                    }
+                }
+                if (list.isEmpty()) {
+                    this.routeConnections.remove(route);
+                }
+            }
+        }
+        for (Http2Connection c: closing) {
+            if (this.log.isDebugEnabled()) {
+                this.log.debug("Closing connection " + c);
+            }
+            c.close();
+        }
+        for (HttpClientConnection conn: closingDelegates) {
+            close(conn);
+        }
+    }
+
+    public void shutdown() {
+        List<Http2Connection> closing = new ArrayList<Http2Connection>();
+        List<HttpClientConnection> closingDelegates = new ArrayList<HttpClientConnection>();
+        synchronized (this) {
+            if (this.shutdown) {
+                return;
+            }
+            this.shutdown = true;
+            for (List<Http2Connection> list: this.routeConnections.values()) {
+                closing.addAll(list);
+            }
+            this.routeConnections.clear();
+            for (List<IdleDelegate> list: this.idleDelegates.values()) {
+                for (IdleDelegate idle: list) {
+                    closingDelegates.add(idle.conn);
+                }
+            }
+            this.idleDelegates.clear();
+            notifyAll();
+        }
+        this.log.debug("Connection manager is shutting down");
+        for (Http2Connection c: closing) {
+            c.close();
+        }
+        for (HttpClientConnection conn: closingDelegates) {
+            close(conn);
+        }
+        this.fallback.shutdown();
+        this.log.debug("Connection manager shut down");
+    }
+
+    static class IdleDelegate {
+
+        final HttpClientConnection conn;
+        final Object state;
+        final long idleSince;
+        final long expiry;
+
+        IdleDelegate(
+                final HttpClientConnection conn,
+                final Object state,
+                final long idleSince,
+                final long expiry) {
+            super();
+            this.conn = conn;
+            this.state = state;
+            this.idleSince = idleSince;
+            this.expiry = expiry;
+        }
+
+    }
+
+    class LeaseRequest implements ConnectionRequest {
+
+        private final HttpRoute route;
+        volatile boolean cancelled;
+
+        LeaseRequest(final HttpRoute route) {
+            super();
+            this.route = route;
+        }
+
+        public boolean cancel() {
+            this.cancelled = true;
+            synchronized (Http2ClientConnectionManager.this) {
+                Http2ClientConnectionManager.this.notifyAll();
+            }
+            return true;
+        }
+
+        public HttpClientConnection get(
+                final long timeout,
+                final TimeUnit tunit) throws InterruptedException, ConnectionPoolTimeoutException {
+            Http2StreamConnection conn = new Http2StreamConnection(this.route);
+            long deadline = timeout > 0 ? System.currentTimeMillis() + tunit.toMillis(timeout) : 0;
+            if (!reserve(conn, deadline, this)) {
+                throw new ConnectionPoolTimeoutException("Timeout waiting for connection from pool");
+            }
+            return conn;
+        }
+
+    }
+
+}
@@ -0,0 +1,1014 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.annotation.GuardedBy;
+import org.apache.http.annotation.ThreadSafe;
+
+/**
+ * Client side of an HTTP/2 connection (RFC 7540) multiplexing any number
+ * of concurrent streams over one socket.
+ * <p>
+ * A dedicated reader thread decodes inbound frames and dispatches them to
+ * their streams. Outbound frames are written by the threads executing the
+ * exchanges while holding the write lock. Control frames produced by the
+ * reader thread (acknowledgements, window updates) are queued and written
+ * by whichever thread holds or next obtains the write lock, so the reader
+ * never stalls behind a writer blocked on a full socket buffer.
+ * <p>
+ * Lock order is write lock, then connection, then stream. The capacity
+ * monitor is notified whenever stream slots free up or the connection
+ * stops accepting new streams, and is never notified while holding the
+ * connection lock.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+class Http2Connection {
+
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    /** Limit on a received header block, advertised as SETTINGS_MAX_HEADER_LIST_SIZE. */
+    static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+    static final int SETTINGS_ENABLE_PUSH            = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE   = 0x6;
+
+    static final byte[] PREFACE;
+
+    static {
+        String s = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
+        PREFACE = new byte[s.length()];
+        for (int i = 0; i < s.length(); i++) {
+            PREFACE[i] = (byte) s.charAt(i);
+        }
+    }
+
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final String id;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Object capacityMonitor;
+    private final int windowSize;
+    private final int connectionWindowSize;
+    private final ReentrantLock writeLock;
+    private final ConcurrentLinkedQueue<Http2Frame> controlFrames;
+    private final HPackEncoder encoder;
+    private final HPackDecoder decoder;
+    private final Thread reader;
+
+    @GuardedBy("this")
+    private final Map<Integer, Http2Stream> streams;
+    @GuardedBy("this")
+    private int nextStreamId;
+    @GuardedBy("this")
+    private int reserved;
+    @GuardedBy("this")
+    private int maxConcurrentStreams;
+    @GuardedBy("this")
+    private int initialSendWindow;
+    @GuardedBy("this")
+    private int maxFrameSize;
+    @GuardedBy("this")
+    private int connSendWindow;
+    @GuardedBy("this")
+    private int connRecvWindow;
+    @GuardedBy("this")
+    private int connUnacknowledged;
+    @GuardedBy("this")
+    private boolean settingsReceived;
+    @GuardedBy("this")
+    private boolean goAway;
+    @GuardedBy("this")
+    private boolean closed;
+    @GuardedBy("this")
+    private IOException failure;
+    @GuardedBy("this")
+    private long idleSince;
+
+    private volatile int pendingHeaderTableSize;
+
+    /** Keep-alive expiry as last set by the manager. */
+    volatile long expiry = Long.MAX_VALUE;
+
+    // reader thread only
+    private int continuationStreamId;
+    private boolean continuationEndStream;
+    private ByteArrayOutputStream headerBlock;
+
+    Http2Connection(
+            final Socket socket,
+            final Object capacityMonitor,
+            final int windowSize) throws IOException {
+        super();
+        this.id = "http2-" + COUNTER.getAndIncrement();
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+        this.capacityMonitor = capacityMonitor;
+        this.windowSize = windowSize;
+        this.connectionWindowSize = (int) Math.min((long) windowSize * 16, MAX_WINDOW_SIZE);
+        this.writeLock = new ReentrantLock();
+        this.controlFrames = new ConcurrentLinkedQueue<Http2Frame>();
+        this.encoder = new HPackEncoder(HPackHeaderTable.DEFAULT_MAX_SIZE);
+        this.decoder = new HPackDecoder(HPackHeaderTable.DEFAULT_MAX_SIZE, MAX_HEADER_LIST_SIZE);
+        this.streams = new HashMap<Integer, Http2Stream>();
+        this.nextStreamId = 1;
+        this.maxConcurrentStreams = Integer.MAX_VALUE;
+        this.initialSendWindow = DEFAULT_WINDOW_SIZE;
+        this.maxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+        this.connSendWindow = DEFAULT_WINDOW_SIZE;
+        this.connRecvWindow = this.connectionWindowSize;
+        this.pendingHeaderTableSize = -1;
+        this.idleSince = System.currentTimeMillis();
+        this.reader = new Thread(new Runnable() {
+
+            public void run() {
+                readFrames();
+            }
+
+        }, this.id + "-reader");
+        this.reader.setDaemon(true);
+    }
+
+    String getId() {
+        return this.id;
+    }
+
+    Socket getSocket() {
+        return this.socket;
+    }
+
+    /**
+     * Sends the connection preface and waits for the server's initial
+     * SETTINGS frame.
+     */
+    void start(final int timeout) throws IOException {
+        byte[] settings = new byte[18];
+        putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, this.windowSize);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        this.writeLock.lock();
+        try {
+            this.out.write(PREFACE);
+            Http2Frame.write(this.out, Http2Frame.SETTINGS, 0, 0, settings, 0, settings.length);
+            if (this.connectionWindowSize > DEFAULT_WINDOW_SIZE) {
+                windowUpdate(0, this.connectionWindowSize - DEFAULT_WINDOW_SIZE).write(this.out);
+            }
+            this.out.flush();
+        } catch (IOException ex) {
+            shutdown();
+            throw ex;
+        } finally {
+            releaseWriteLock();
+        }
+        this.socket.setSoTimeout(0);
+        this.reader.start();
+        synchronized (this) {
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            while (!this.settingsReceived && !this.closed) {
+                try {
+                    if (deadline == 0) {
+                        wait();
+                    } else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    shutdown();
+                    throw new InterruptedIOException("Interrupted while waiting for server settings");
+                }
+            }
+            if (this.closed) {
+                throw closedException();
+            }
+        }
+        if (!isSettingsReceived()) {
+            shutdown();
+            throw new SocketTimeoutException("Timed out waiting for HTTP/2 server settings");
+        }
+        if (this.log.isDebugEnabled()) {
+            this.log.debug(this.id + ": connection established to " + this.socket.getRemoteSocketAddress());
+        }
+    }
+
+    private synchronized boolean isSettingsReceived() {
+        return this.settingsReceived;
+    }
+
+    private static void putSetting(final byte[] b, final int off, final int id, final int value) {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        Http2Frame.putInt(b, off + 2, value);
+    }
+
+    private static Http2Frame windowUpdate(final int streamId, final int increment) {
+        byte[] payload = new byte[4];
+        Http2Frame.putInt(payload, 0, increment);
+        return new Http2Frame(Http2Frame.WINDOW_UPDATE, 0, streamId, payload);
+    }
+
+    private IOException closedException() {
+        synchronized (this) {
+            IOException ex = new IOException("HTTP/2 connection is closed");
+            ex.initCause(this.failure);
+            return ex;
+        }
+    }
+
+    // ------------------------------------------------------------ writing
+
+    private void drainControlFrames() throws IOException {
+        Http2Frame frame;
+        boolean written = false;
+        while ((frame = this.controlFrames.poll()) != null) {
+            frame.write(this.out);
+            written = true;
+        }
+        if (written) {
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Releases the write lock after writing out any queued control frames.
+     * Frames queued by another thread while the lock was being released are
+     * written by this thread if it can get hold of the lock again.
+     */
+    private void releaseWriteLock() {
+        for (;;) {
+            try {
+                drainControlFrames();
+            } catch (IOException ex) {
+                this.controlFrames.clear();
+                shutdown();
+            }
+            this.writeLock.unlock();
+            if (this.controlFrames.isEmpty() || !this.writeLock.tryLock()) {
+                return;
+            }
+        }
+    }
+
+    private void sendControl(final Http2Frame frame) {
+        this.controlFrames.add(frame);
+        if (this.writeLock.tryLock()) {
+            releaseWriteLock();
+        }
+    }
+
+    /**
+     * Opens a new stream by sending its header block. Stream identifiers
+     * are allocated under the write lock so that streams are always opened
+     * in increasing order.
+     */
+    Http2Stream openStream(final List<Header> headers, final boolean endStream) throws IOException {
+        this.writeLock.lock();
+        try {
+            Http2Stream stream;
+            int frameSize;
+            synchronized (this) {
+                if (this.closed) {
+                    throw closedException();
+                }
+                if (this.goAway || this.nextStreamId < 0) {
+                    throw new NoHttpResponseException(
+                            "HTTP/2 connection is shutting down; request was not sent");
+                }
+                stream = new Http2Stream(
+                        this, this.nextStreamId, this.initialSendWindow, this.windowSize);
+                this.streams.put(Integer.valueOf(stream.getId()), stream);
+                this.nextStreamId += 2;
+                frameSize = this.maxFrameSize;
+            }
+            if (endStream) {
+                stream.markLocalEnded();
+            }
+            int tableSize = this.pendingHeaderTableSize;
+            if (tableSize >= 0) {
+                this.encoder.setMaxTableSize(tableSize);
+                this.pendingHeaderTableSize = -1;
+            }
+            byte[] block = this.encoder.encode(headers);
+            int off = 0;
+            boolean first = true;
+            do {
+                int len = Math.min(block.length - off, frameSize);
+                int flags = 0;
+                if (off + len == block.length) {
+                    flags |= Http2Frame.FLAG_END_HEADERS;
+                }
+                if (first && endStream) {
+                    flags |= Http2Frame.FLAG_END_STREAM;
+                }
+                Http2Frame.write(this.out,
+                        first ? Http2Frame.HEADERS : Http2Frame.CONTINUATION,
+                        flags, stream.getId(), block, off, len);
+                off += len;
+                first = false;
+            } while (off < block.length);
+            this.out.flush();
+            if (this.log.isDebugEnabled()) {
+                this.log.debug(this.id + ": opened stream " + stream.getId());
+            }
+            return stream;
+        } catch (Http2Exception ex) {
+            throw ex;
+        } catch (NoHttpResponseException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            shutdown();
+            throw ex;
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    /**
+     * Sends request body data, splitting it into frames that fit both the
+     * connection and the stream send windows and waiting for window updates
+     * when either is exhausted.
+     */
+    void sendData(
+            final Http2Stream stream,
+            final byte[] b, final int off, final int len,
+            final boolean endStream,
+            final int timeout) throws IOException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        int pos = off;
+        int remaining = len;
+        do {
+            int n;
+            synchronized (this) {
+                for (;;) {
+                    if (this.closed) {
+                        throw closedException();
+                    }
+                    IOException streamFailure = stream.getFailure();
+                    if (streamFailure != null) {
+                        throw streamFailure;
+                    }
+                    if (stream.isLocalEnded()) {
+                        // the server has already closed the stream
+                        return;
+                    }
+                    if (remaining == 0) {
+                        n = 0;
+                        break;
+                    }
+                    int window = Math.min(this.connSendWindow, stream.sendWindow);
+                    if (window > 0) {
+                        n = Math.min(Math.min(remaining, window), this.maxFrameSize);
+                        this.connSendWindow -= n;
+                        stream.sendWindow -= n;
+                        break;
+                    }
+                    awaitWindow(deadline);
+                }
+            }
+            boolean last = remaining == n;
+            this.writeLock.lock();
+            try {
+                Http2Frame.write(this.out, Http2Frame.DATA,
+                        last && endStream ? Http2Frame.FLAG_END_STREAM : 0,
+                        stream.getId(), b, pos, n);
+                this.out.flush();
+            } catch (IOException ex) {
+                shutdown();
+                throw ex;
+            } finally {
+                releaseWriteLock();
+            }
+            pos += n;
+            remaining -= n;
+        } while (remaining > 0);
+        if (endStream) {
+            stream.markLocalEnded();
+            if (stream.isRemoteEnded()) {
+                removeStream(stream);
+            }
+        }
+    }
+
+    private void awaitWindow(final long deadline) throws IOException {
+        try {
+            if (deadline == 0) {
+                wait();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for flow control window");
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flow control window");
+        }
+    }
+
+    void flush() throws IOException {
+        this.writeLock.lock();
+        try {
+            this.out.flush();
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    /**
+     * Called as the application consumes stream data; returns flow control
+     * credit to the server.
+     */
+    void consumed(final Http2Stream stream, final int n, final int streamCredit) {
+        if (streamCredit > 0) {
+            sendControl(windowUpdate(stream.getId(), streamCredit));
+        }
+        creditConnection(n);
+    }
+
+    private void creditConnection(final int n) {
+        int credit = 0;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.connUnacknowledged += n;
+            if (this.connUnacknowledged >= this.connectionWindowSize / 2) {
+                credit = this.connUnacknowledged;
+                this.connRecvWindow += credit;
+                this.connUnacknowledged = 0;
+            }
+        }
+        if (credit > 0) {
+            sendControl(windowUpdate(0, credit));
+        }
+    }
+
+    /**
+     * Ends the use of a stream by the application. Streams that are still
+     * open in either direction are reset with CANCEL; any data that will
+     * never be read is credited back to the connection.
+     */
+    void cancelStream(final Http2Stream stream) {
+        boolean reset = !(stream.isLocalEnded() && stream.isRemoteEnded());
+        boolean known;
+        synchronized (this) {
+            known = this.streams.remove(Integer.valueOf(stream.getId())) != null;
+            notifyAll();
+        }
+        int discarded = stream.fail(new InterruptedIOException("Stream cancelled"));
+        if (reset && known) {
+            byte[] payload = new byte[4];
+            Http2Frame.putInt(payload, 0, Http2Exception.CANCEL);
+            sendControl(new Http2Frame(Http2Frame.RST_STREAM, 0, stream.getId(), payload));
+        }
+        if (discarded > 0) {
+            creditConnection(discarded);
+        }
+        closeIfDrained();
+    }
+
+    private void removeStream(final Http2Stream stream) {
+        synchronized (this) {
+            this.streams.remove(Integer.valueOf(stream.getId()));
+        }
+        closeIfDrained();
+    }
+
+    // ------------------------------------------------------- stream slots
+
+    synchronized boolean isUsable() {
+        return !this.closed && !this.goAway && this.settingsReceived && this.nextStreamId > 0;
+    }
+
+    synchronized boolean isOpen() {
+        return !this.closed;
+    }
+
+    /**
+     * Reserves a stream slot for a lease if the server's concurrency limit
+     * permits.
+     */
+    synchronized boolean tryReserve() {
+        if (!isUsable() || this.reserved >= this.maxConcurrentStreams) {
+            return false;
+        }
+        this.reserved++;
+        return true;
+    }
+
+    void release() {
+        synchronized (this) {
+            this.reserved--;
+            if (this.reserved == 0) {
+                this.idleSince = System.currentTimeMillis();
+            }
+        }
+        closeIfDrained();
+        notifyCapacity();
+    }
+
+    synchronized int getReserved() {
+        return this.reserved;
+    }
+
+    synchronized int getMaxConcurrentStreams() {
+        return this.maxConcurrentStreams;
+    }
+
+    synchronized long getIdleSince() {
+        return this.reserved == 0 ? this.idleSince : Long.MAX_VALUE;
+    }
+
+    private void closeIfDrained() {
+        boolean drained;
+        synchronized (this) {
+            drained = this.goAway && !this.closed && this.reserved == 0 && this.streams.isEmpty();
+        }
+        if (drained) {
+            shutdown();
+        }
+    }
+
+    private void notifyCapacity() {
+        synchronized (this.capacityMonitor) {
+            this.capacityMonitor.notifyAll();
+        }
+    }
+
+    // ------------------------------------------------------------ closing
+
+    /**
+     * Closes the connection gracefully by sending GOAWAY before closing the
+     * socket.
+     */
+    void close() {
+        sendGoAway(Http2Exception.NO_ERROR);
+        shutdown();
+    }
+
+    void shutdown() {
+        fail(new InterruptedIOException("Connection has been shut down"));
+    }
+
+    private void sendGoAway(final int errorCode) {
+        byte[] payload = new byte[8];
+        Http2Frame.putInt(payload, 0, 0);
+        Http2Frame.putInt(payload, 4, errorCode);
+        sendControl(new Http2Frame(Http2Frame.GOAWAY, 0, 0, payload));
+    }
+
+    private void fail(final IOException cause) {
+        List<Http2Stream> active;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.failure = cause;
+            active = new ArrayList<Http2Stream>(this.streams.values());
+            this.streams.clear();
+            notifyAll();
+        }
+        if (this.log.isDebugEnabled()) {
+            this.log.debug(this.id + ": connection closed: " + cause.getMessage());
+        }
+        for (Http2Stream stream: active) {
+            stream.fail(cause);
+        }
+        try {
+            this.socket.close();
+        } catch (IOException ignore) {
+            // nothing to be done
+        }
+        notifyCapacity();
+    }
+
+    // ------------------------------------------------------------ reading
+
+    private void readFrames() {
+        try {
+            for (;;) {
+                Http2Frame frame = Http2Frame.read(this.in, Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+                if (frame == null) {
+                    throw new NoHttpResponseException("Connection closed by server");
+                }
+                handleFrame(frame);
+            }
+        } catch (Http2Exception ex) {
+            if (this.log.isDebugEnabled()) {
+                this.log.debug(this.id + ": protocol error: " + ex.getMessage());
+            }
+            sendGoAway(ex.getErrorCode());
+            fail(ex);
+        } catch (IOException ex) {
+            fail(ex);
+        } catch (RuntimeException ex) {
+            IOException ioex = new IOException("Unexpected failure reading HTTP/2 frames");
+            ioex.initCause(ex);
+            fail(ioex);
+        }
+    }
+
+    private static Http2Exception protocolError(final String message) {
+        return new Http2Exception(Http2Exception.PROTOCOL_ERROR, message);
+    }
+
+    private void handleFrame(final Http2Frame frame) throws IOException {
+        if (this.continuationStreamId != 0 && (frame.getType() != Http2Frame.CONTINUATION
+                || frame.getStreamId() != this.continuationStreamId)) {
+            throw protocolError("Expected CONTINUATION frame for stream " + this.continuationStreamId);
+        }
+        switch (frame.getType()) {
+        case Http2Frame.DATA:
+            onData(frame);
+            break;
+        case Http2Frame.HEADERS:
+            onHeaders(frame);
+            break;
+        case Http2Frame.CONTINUATION:
+            onContinuation(frame);
+            break;
+        case Http2Frame.RST_STREAM:
+            onRstStream(frame);
+            break;
+        case Http2Frame.SETTINGS:
+            onSettings(frame);
+            break;
+        case Http2Frame.PUSH_PROMISE:
+            throw protocolError("Server push has been disabled");
+        case Http2Frame.PING:
+            onPing(frame);
+            break;
+        case Http2Frame.GOAWAY:
+            onGoAway(frame);
+            break;
+        case Http2Frame.WINDOW_UPDATE:
+            onWindowUpdate(frame);
+            break;
+        default:
+            // PRIORITY and unknown frame types carry nothing we act upon
+        }
+    }
+
+    /**
+     * Returns the offset and length of the frame's content, stripped of
+     * padding and, for HEADERS, of priority information.
+     */
+    private static int[] content(final Http2Frame frame) throws Http2Exception {
+        byte[] payload = frame.getPayload();
+        int off = 0;
+        int len = payload.length;
+        int padding = 0;
+        if (frame.isFlagSet(Http2Frame.FLAG_PADDED)) {
+            if (len < 1) {
+                throw protocolError("Missing pad length");
+            }
+            padding = payload[0] & 0xff;
+            off++;
+            len--;
+        }
+        if (frame.getType() == Http2Frame.HEADERS && frame.isFlagSet(Http2Frame.FLAG_PRIORITY)) {
+            off += 5;
+            len -= 5;
+        }
+        len -= padding;
+        if (len < 0) {
+            throw protocolError("Padding exceeds frame payload");
+        }
+        return new int[] { off, len };
+    }
+
+    private Http2Stream getStream(final int streamId) throws Http2Exception {
+        if (streamId == 0) {
+            throw protocolError("Stream frame received on the connection stream");
+        }
+        synchronized (this) {
+            Http2Stream stream = this.streams.get(Integer.valueOf(streamId));
+            if (stream == null && ((streamId & 1) == 0 || streamId >= this.nextStreamId)) {
+                throw protocolError("Frame received for idle stream " + streamId);
+            }
+            return stream;
+        }
+    }
+
+    private void onData(final Http2Frame frame) throws IOException {
+        Http2Stream stream = getStream(frame.getStreamId());
+        int[] content = content(frame);
+        synchronized (this) {
+            this.connRecvWindow -= frame.getLength();
+            if (this.connRecvWindow < 0) {
+                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                        "Connection flow control window exceeded");
+            }
+        }
+        if (stream == null) {
+            creditConnection(frame.getLength());
+            return;
+        }
+        boolean endStream = frame.isFlagSet(Http2Frame.FLAG_END_STREAM);
+        int discarded = stream.onData(
+                frame.getPayload(), content[0], content[1], frame.getLength(), endStream);
+        if (discarded > 0) {
+            creditConnection(discarded);
+        }
+        if (endStream && stream.isLocalEnded()) {
+            removeStream(stream);
+        }
+    }
+
+    private void onHeaders(final Http2Frame frame) throws IOException {
+        if (frame.getStreamId() == 0) {
+            throw protocolError("HEADERS frame received on the connection stream");
+        }
+        int[] content = content(frame);
+        boolean endStream = frame.isFlagSet(Http2Frame.FLAG_END_STREAM);
+        if (frame.isFlagSet(Http2Frame.FLAG_END_HEADERS)) {
+            onHeaderBlock(frame.getStreamId(), frame.getPayload(), content[0], content[1], endStream);
+        } else {
+            this.continuationStreamId = frame.getStreamId();
+            this.continuationEndStream = endStream;
+            this.headerBlock = new ByteArrayOutputStream();
+            appendHeaderBlock(frame.getPayload(), content[0], content[1]);
+        }
+    }
+
+    private void onContinuation(final Http2Frame frame) throws IOException {
+        if (this.continuationStreamId == 0) {
+            throw protocolError("Unexpected CONTINUATION frame");
+        }
+        appendHeaderBlock(frame.getPayload(), 0, frame.getLength());
+        if (frame.isFlagSet(Http2Frame.FLAG_END_HEADERS)) {
+            byte[] block = this.headerBlock.toByteArray();
+            int streamId = this.continuationStreamId;
+            this.continuationStreamId = 0;
+            this.headerBlock = null;
+            onHeaderBlock(streamId, block, 0, block.length, this.continuationEndStream);
+        }
+    }
+
+    private void appendHeaderBlock(
+            final byte[] b, final int off, final int len) throws Http2Exception {
+        // an endless run of CONTINUATION frames must not buffer without bound
+        if (len > MAX_HEADER_LIST_SIZE - this.headerBlock.size()) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM,
+                    "Header block exceeds limit: " + MAX_HEADER_LIST_SIZE);
+        }
+        this.headerBlock.write(b, off, len);
+    }
+
+    private void onHeaderBlock(
+            final int streamId,
+            final byte[] b, final int off, final int len,
+            final boolean endStream) throws IOException {
+        // the block must be decoded even if the stream is gone to keep the
+        // dynamic table in sync with the server's
+        List<Header> headers = this.decoder.decode(b, off, len);
+        Http2Stream stream = getStream(streamId);
+        if (stream == null) {
+            return;
+        }
+        stream.onHeaders(headers, endStream);
+        if (endStream && stream.isLocalEnded()) {
+            removeStream(stream);
+        }
+    }
+
+    private void onRstStream(final Http2Frame frame) throws IOException {
+        if (frame.getLength() != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+        }
+        Http2Stream stream = getStream(frame.getStreamId());
+        if (stream == null) {
+            return;
+        }
+        int errorCode = Http2Frame.getInt(frame.getPayload(), 0);
+        synchronized (this) {
+            this.streams.remove(Integer.valueOf(stream.getId()));
+            notifyAll();
+        }
+        if (errorCode == Http2Exception.NO_ERROR && stream.isRemoteEnded()) {
+            // complete response; the server merely does not want the rest
+            // of the request body
+            stream.markLocalEnded();
+        } else {
+            IOException cause;
+            if (errorCode == Http2Exception.REFUSED_STREAM) {
+                cause = new NoHttpResponseException(
+                        "Stream " + stream.getId() + " refused by server");
+            } else {
+                cause = new Http2Exception(errorCode,
+                        "Stream " + stream.getId() + " reset by server; error code 0x"
+                        + Integer.toHexString(errorCode));
+            }
+            int discarded = stream.fail(cause);
+            if (discarded > 0) {
+                creditConnection(discarded);
+            }
+        }
+        closeIfDrained();
+    }
+
+    private void onSettings(final Http2Frame frame) throws IOException {
+        if (frame.getStreamId() != 0) {
+            throw protocolError("SETTINGS frame received on stream " + frame.getStreamId());
+        }
+        if (frame.isFlagSet(Http2Frame.FLAG_ACK)) {
+            if (frame.getLength() != 0) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS ack");
+            }
+            return;
+        }
+        if (frame.getLength() % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+        }
+        byte[] payload = frame.getPayload();
+        synchronized (this) {
+            for (int off = 0; off < payload.length; off += 6) {
+                int setting = ((payload[off] & 0xff) << 8) | (payload[off + 1] & 0xff);
+                int value = Http2Frame.getInt(payload, off + 2);
+                switch (setting) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    this.pendingHeaderTableSize = value < 0 ? Integer.MAX_VALUE : value;
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw protocolError("Invalid SETTINGS_ENABLE_PUSH value: " + value);
+                    }
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    this.maxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                                "Invalid SETTINGS_INITIAL_WINDOW_SIZE value");
+                    }
+                    int delta = value - this.initialSendWindow;
+                    for (Http2Stream stream: this.streams.values()) {
+                        long window = (long) stream.sendWindow + delta;
+                        if (window > MAX_WINDOW_SIZE) {
+                            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                                    "Stream flow control window overflow");
+                        }
+                        stream.sendWindow = (int) window;
+                    }
+                    this.initialSendWindow = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > Http2Frame.MAX_FRAME_SIZE_LIMIT) {
+                        throw protocolError("Invalid SETTINGS_MAX_FRAME_SIZE value: " + value);
+                    }
+                    this.maxFrameSize = value;
+                    break;
+                default:
+                    // SETTINGS_MAX_HEADER_LIST_SIZE is advisory; unknown settings are ignored
+                }
+            }
+            this.settingsReceived = true;
+            notifyAll();
+        }
+        sendControl(new Http2Frame(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, null));
+        notifyCapacity();
+    }
+
+    private void onPing(final Http2Frame frame) throws IOException {
+        if (frame.getStreamId() != 0) {
+            throw protocolError("PING frame received on stream " + frame.getStreamId());
+        }
+        if (frame.getLength() != 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid PING frame");
+        }
+        if (!frame.isFlagSet(Http2Frame.FLAG_ACK)) {
+            sendControl(new Http2Frame(Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.getPayload()));
+        }
+    }
+
+    private void onGoAway(final Http2Frame frame) throws IOException {
+        if (frame.getStreamId() != 0) {
+            throw protocolError("GOAWAY frame received on stream " + frame.getStreamId());
+        }
+        if (frame.getLength() < 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid GOAWAY frame");
+        }
+        int lastStreamId = Http2Frame.getInt(frame.getPayload(), 0) & 0x7fffffff;
+        int errorCode = Http2Frame.getInt(frame.getPayload(), 4);
+        if (this.log.isDebugEnabled()) {
+            this.log.debug(this.id + ": GOAWAY received; last stream " + lastStreamId
+                    + ", error code 0x" + Integer.toHexString(errorCode));
+        }
+        List<Http2Stream> refused = new ArrayList<Http2Stream>();
+        synchronized (this) {
+            this.goAway = true;
+            Iterator<Http2Stream> it = this.streams.values().iterator();
+            while (it.hasNext()) {
+                Http2Stream stream = it.next();
+                if (stream.getId() > lastStreamId) {
+                    refused.add(stream);
+                    it.remove();
+                }
+            }
+            notifyAll();
+        }
+        for (Http2Stream stream: refused) {
+            // the server did not process these; they can safely be retried
+            stream.fail(new NoHttpResponseException("Stream " + stream.getId()
+                    + " was not processed by server; connection is going away"));
+        }
+        notifyCapacity();
+        closeIfDrained();
+    }
+
+    private void onWindowUpdate(final Http2Frame frame) throws IOException {
+        if (frame.getLength() != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+        }
+        int increment = Http2Frame.getInt(frame.getPayload(), 0) & 0x7fffffff;
+        if (increment == 0) {
+            throw protocolError("Window increment of zero");
+        }
+        int streamId = frame.getStreamId();
+        Http2Stream stream = streamId != 0 ? getStream(streamId) : null;
+        synchronized (this) {
+            if (streamId == 0) {
+                if ((long) this.connSendWindow + increment > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                            "Connection flow control window overflow");
+                }
+                this.connSendWindow += increment;
+            } else if (stream != null) {
+                if ((long) stream.sendWindow + increment > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                            "Stream flow control window overflow");
+                }
+                stream.sendWindow += increment;
+            }
+            notifyAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.id + "[" + this.socket.getRemoteSocketAddress() + "]";
+    }
+
+}
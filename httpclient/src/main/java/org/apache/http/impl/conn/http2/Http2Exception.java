@@ -0,0 +1,70 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.IOException;
+
+import org.apache.http.annotation.Immutable;
+
+/**
+ * Signals an HTTP/2 error condition along with the error code that is
+ * reported to the peer in a RST_STREAM or GOAWAY frame.
+ *
+ * @since 4.3
+ */
+@Immutable
+class Http2Exception extends IOException {
+
+    private static final long serialVersionUID = -2583129722164431421L;
+
+    static final int NO_ERROR            = 0x0;
+    static final int PROTOCOL_ERROR      = 0x1;
+    static final int INTERNAL_ERROR      = 0x2;
+    static final int FLOW_CONTROL_ERROR  = 0x3;
+    static final int SETTINGS_TIMEOUT    = 0x4;
+    static final int STREAM_CLOSED       = 0x5;
+    static final int FRAME_SIZE_ERROR    = 0x6;
+    static final int REFUSED_STREAM      = 0x7;
+    static final int CANCEL              = 0x8;
+    static final int COMPRESSION_ERROR   = 0x9;
+    static final int CONNECT_ERROR       = 0xa;
+    static final int ENHANCE_YOUR_CALM   = 0xb;
+    static final int INADEQUATE_SECURITY = 0xc;
+    static final int HTTP_1_1_REQUIRED   = 0xd;
+
+    private final int errorCode;
+
+    Http2Exception(final int errorCode, final String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    int getErrorCode() {
+        return this.errorCode;
+    }
+
+}
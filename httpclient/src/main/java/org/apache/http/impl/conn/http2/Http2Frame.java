@@ -0,0 +1,190 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.annotation.Immutable;
+
+/**
+ * HTTP/2 frame as defined by RFC 7540, section 4.
+ *
+ * @since 4.3
+ */
+@Immutable
+final class Http2Frame {
+
+    static final int DATA          = 0x0;
+    static final int HEADERS       = 0x1;
+    static final int PRIORITY      = 0x2;
+    static final int RST_STREAM    = 0x3;
+    static final int SETTINGS      = 0x4;
+    static final int PUSH_PROMISE  = 0x5;
+    static final int PING          = 0x6;
+    static final int GOAWAY        = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION  = 0x9;
+
+    static final int FLAG_END_STREAM  = 0x01;
+    static final int FLAG_ACK         = 0x01;
+    static final int FLAG_END_HEADERS = 0x04;
+    static final int FLAG_PADDED      = 0x08;
+    static final int FLAG_PRIORITY    = 0x20;
+
+    static final int HEADER_LENGTH = 9;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+
+    static final byte[] EMPTY = new byte[0];
+
+    private final int type;
+    private final int flags;
+    private final int streamId;
+    private final byte[] payload;
+
+    Http2Frame(final int type, final int flags, final int streamId, final byte[] payload) {
+        super();
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload != null ? payload : EMPTY;
+    }
+
+    int getType() {
+        return this.type;
+    }
+
+    int getFlags() {
+        return this.flags;
+    }
+
+    boolean isFlagSet(final int flag) {
+        return (this.flags & flag) != 0;
+    }
+
+    int getStreamId() {
+        return this.streamId;
+    }
+
+    byte[] getPayload() {
+        return this.payload;
+    }
+
+    int getLength() {
+        return this.payload.length;
+    }
+
+    /**
+     * Reads a frame. Returns <code>null</code> if the end of the stream has
+     * been reached cleanly at a frame boundary.
+     */
+    static Http2Frame read(final InputStream in, final int maxFrameSize) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int n = in.read(header, 0, 1);
+        if (n == -1) {
+            return null;
+        }
+        readFully(in, header, 1, HEADER_LENGTH - 1);
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        if (length > maxFrameSize) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR,
+                    "Frame size " + length + " exceeds limit of " + maxFrameSize);
+        }
+        int type = header[3] & 0xff;
+        int flags = header[4] & 0xff;
+        int streamId = getInt(header, 5) & 0x7fffffff;
+        byte[] payload = EMPTY;
+        if (length > 0) {
+            payload = new byte[length];
+            readFully(in, payload, 0, length);
+        }
+        return new Http2Frame(type, flags, streamId, payload);
+    }
+
+    /**
+     * Writes the frame header followed by <code>len</code> payload bytes
+     * taken from <code>b</code>.
+     */
+    static void write(
+            final OutputStream out,
+            final int type, final int flags, final int streamId,
+            final byte[] b, final int off, final int len) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = (byte) (len >>> 16);
+        header[1] = (byte) (len >>> 8);
+        header[2] = (byte) len;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId & 0x7fffffff);
+        out.write(header);
+        if (len > 0) {
+            out.write(b, off, len);
+        }
+    }
+
+    void write(final OutputStream out) throws IOException {
+        write(out, this.type, this.flags, this.streamId, this.payload, 0, this.payload.length);
+    }
+
+    static int getInt(final byte[] b, final int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    static void putInt(final byte[] b, final int off, final int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static void readFully(
+            final InputStream in, final byte[] b, final int off, final int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n == -1) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            total += n;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("[type: ").append(this.type);
+        buffer.append("; flags: 0x").append(Integer.toHexString(this.flags));
+        buffer.append("; stream: ").append(this.streamId);
+        buffer.append("; length: ").append(this.payload.length).append("]");
+        return buffer.toString();
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.annotation.GuardedBy;
+import org.apache.http.annotation.ThreadSafe;
+
+/**
+ * Client side state of a single HTTP/2 stream. Inbound header blocks and
+ * data are queued by the connection's reader thread and taken by the
+ * thread executing the exchange. The send window is guarded by the owning
+ * {@link Http2Connection}; everything else by the stream itself.
+ *
+ * @since 4.3
+ */
+@ThreadSafe
+class Http2Stream {
+
+    private final Http2Connection connection;
+    private final int id;
+
+    /** Send window; guarded by the connection. */
+    int sendWindow;
+
+    @GuardedBy("this")
+    private final LinkedList<List<Header>> headerBlocks;
+    @GuardedBy("this")
+    private final LinkedList<byte[]> chunks;
+    @GuardedBy("this")
+    private int chunkOffset;
+    @GuardedBy("this")
+    private int buffered;
+    @GuardedBy("this")
+    private int recvWindow;
+    @GuardedBy("this")
+    private int unacknowledged;
+    @GuardedBy("this")
+    private boolean responseReceived;
+    @GuardedBy("this")
+    private boolean remoteEnded;
+    @GuardedBy("this")
+    private boolean localEnded;
+    @GuardedBy("this")
+    private IOException failure;
+
+    private final int windowSize;
+
+    Http2Stream(
+            final Http2Connection connection,
+            final int id,
+            final int sendWindow,
+            final int recvWindow) {
+        super();
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        this.recvWindow = recvWindow;
+        this.windowSize = recvWindow;
+        this.headerBlocks = new LinkedList<List<Header>>();
+        this.chunks = new LinkedList<byte[]>();
+    }
+
+    int getId() {
+        return this.id;
+    }
+
+    Http2Connection getConnection() {
+        return this.connection;
+    }
+
+    synchronized void onHeaders(final List<Header> headers, final boolean endStream) {
+        boolean response = false;
+        for (Header header: headers) {
+            if (header.getName().equals(":status")) {
+                response = true;
+                break;
+            }
+        }
+        // header blocks without a status after the final response are
+        // trailers, which are of no use to the blocking connection API
+        if (response && !this.responseReceived) {
+            this.headerBlocks.add(headers);
+        }
+        if (endStream) {
+            this.remoteEnded = true;
+        }
+        notifyAll();
+    }
+
+    synchronized void markResponseReceived() {
+        this.responseReceived = true;
+    }
+
+    /**
+     * Queues a data frame payload.
+     *
+     * @return the number of octets that were discarded rather than queued
+     *   and can be credited back to the connection right away.
+     */
+    synchronized int onData(
+            final byte[] b, final int off, final int len,
+            final int frameLength, final boolean endStream) throws Http2Exception {
+        this.recvWindow -= frameLength;
+        if (this.recvWindow < 0) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                    "Stream " + this.id + " exceeded its flow control window");
+        }
+        // padding is never handed to the application
+        int discarded = frameLength - len;
+        this.unacknowledged += discarded;
+        if (this.failure != null) {
+            discarded += len;
+        } else if (len > 0) {
+            byte[] chunk;
+            if (off == 0 && len == b.length) {
+                chunk = b;
+            } else {
+                chunk = new byte[len];
+                System.arraycopy(b, off, chunk, 0, len);
+            }
+            this.chunks.add(chunk);
+            this.buffered += len;
+        }
+        if (endStream) {
+            this.remoteEnded = true;
+        }
+        notifyAll();
+        return discarded;
+    }
+
+    /**
+     * Fails the stream. Returns the number of buffered octets that will
+     * never be read and should be credited back to the connection.
+     */
+    synchronized int fail(final IOException cause) {
+        if (this.failure == null) {
+            this.failure = cause;
+        }
+        int discarded = this.buffered;
+        this.chunks.clear();
+        this.chunkOffset = 0;
+        this.buffered = 0;
+        notifyAll();
+        return discarded;
+    }
+
+    synchronized IOException getFailure() {
+        return this.failure;
+    }
+
+    synchronized boolean isRemoteEnded() {
+        return this.remoteEnded;
+    }
+
+    synchronized boolean isLocalEnded() {
+        return this.localEnded;
+    }
+
+    synchronized void markLocalEnded() {
+        this.localEnded = true;
+    }
+
+    synchronized boolean isComplete() {
+        return (this.localEnded && this.remoteEnded && this.chunks.isEmpty())
+            || this.failure != null;
+    }
+
+    private static long deadline(final int timeout) {
+        return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+
+    private void await(final long deadline) throws IOException {
+        try {
+            if (deadline == 0) {
+                wait();
+            } else {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for stream " + this.id);
+        }
+    }
+
+    /**
+     * Waits up to <code>timeout</code> milliseconds for a response header
+     * block. Returns <code>false</code> if none arrived in time.
+     */
+    synchronized boolean awaitHeaders(final int timeout) throws IOException {
+        long deadline = deadline(timeout);
+        while (this.headerBlocks.isEmpty() && !this.remoteEnded && this.failure == null) {
+            try {
+                await(deadline);
+            } catch (SocketTimeoutException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next response header block, or returns <code>null</code>
+     * if the stream ended without one.
+     */
+    synchronized List<Header> takeHeaders(final int timeout) throws IOException {
+        long deadline = deadline(timeout);
+        for (;;) {
+            if (!this.headerBlocks.isEmpty()) {
+                return this.headerBlocks.removeFirst();
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            if (this.remoteEnded) {
+                return null;
+            }
+            await(deadline);
+        }
+    }
+
+    int read(final byte[] b, final int off, final int len, final int timeout) throws IOException {
+        int n;
+        int credit;
+        synchronized (this) {
+            long deadline = deadline(timeout);
+            for (;;) {
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+                if (!this.chunks.isEmpty()) {
+                    break;
+                }
+                if (this.remoteEnded) {
+                    return -1;
+                }
+                await(deadline);
+            }
+            byte[] chunk = this.chunks.getFirst();
+            n = Math.min(len, chunk.length - this.chunkOffset);
+            System.arraycopy(chunk, this.chunkOffset, b, off, n);
+            this.chunkOffset += n;
+            if (this.chunkOffset == chunk.length) {
+                this.chunks.removeFirst();
+                this.chunkOffset = 0;
+            }
+            this.buffered -= n;
+            this.unacknowledged += n;
+            credit = 0;
+            if (this.unacknowledged >= this.windowSize / 2 && !this.remoteEnded) {
+                credit = this.unacknowledged;
+                this.recvWindow += credit;
+                this.unacknowledged = 0;
+            }
+        }
+        this.connection.consumed(this, n, credit);
+        return n;
+    }
+
+    synchronized int available() {
+        return this.buffered;
+    }
+
+}
@@ -0,0 +1,573 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.ProtocolException;
+import org.apache.http.RequestLine;
+import org.apache.http.annotation.NotThreadSafe;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.HttpConnectionMetricsImpl;
+import org.apache.http.impl.conn.ConnectionShutdownException;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * Connection handed out by {@link Http2ClientConnectionManager}. Each
+ * instance holds a stream slot on a shared {@link Http2Connection} and maps
+ * the blocking {@link HttpClientConnection} contract onto one stream per
+ * request. Closing or shutting down the instance only ends its own stream;
+ * the underlying connection stays open for other exchanges.
+ * <p>
+ * If the server declined HTTP/2 during TLS negotiation the instance instead
+ * delegates to a plain HTTP/1.1 connection over the same socket.
+ *
+ * @since 4.3
+ */
+@NotThreadSafe
+class Http2StreamConnection implements HttpClientConnection, HttpInetConnection {
+
+    static final HttpVersion HTTP_2_0 = new HttpVersion(2, 0);
+
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>();
+
+    static {
+        CONNECTION_HEADERS.add("connection");
+        CONNECTION_HEADERS.add("keep-alive");
+        CONNECTION_HEADERS.add("proxy-connection");
+        CONNECTION_HEADERS.add("transfer-encoding");
+        CONNECTION_HEADERS.add("upgrade");
+        CONNECTION_HEADERS.add("host");
+    }
+
+    private final HttpRoute route;
+    private final HttpTransportMetricsImpl inMetrics;
+    private final HttpTransportMetricsImpl outMetrics;
+    private final HttpConnectionMetricsImpl metrics;
+
+    private volatile Http2Connection connection;
+    private volatile HttpClientConnection delegate;
+    private volatile Http2Stream stream;
+    private volatile int socketTimeout;
+
+    /** Whether a new connection is being established for this instance; guarded by the manager. */
+    boolean pending;
+
+    Http2StreamConnection(final HttpRoute route) {
+        super();
+        this.route = route;
+        this.inMetrics = new HttpTransportMetricsImpl();
+        this.outMetrics = new HttpTransportMetricsImpl();
+        this.metrics = new HttpConnectionMetricsImpl(this.inMetrics, this.outMetrics);
+    }
+
+    HttpRoute getRoute() {
+        return this.route;
+    }
+
+    Http2Connection getConnection() {
+        return this.connection;
+    }
+
+    HttpClientConnection getDelegate() {
+        return this.delegate;
+    }
+
+    synchronized void bind(final Http2Connection connection) {
+        this.connection = connection;
+    }
+
+    synchronized void bind(final HttpClientConnection delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Detaches the instance, returning the connection whose stream slot it
+     * held, if any.
+     */
+    synchronized Http2Connection unbind() {
+        Http2Connection c = this.connection;
+        this.connection = null;
+        return c;
+    }
+
+    synchronized HttpClientConnection unbindDelegate() {
+        HttpClientConnection d = this.delegate;
+        this.delegate = null;
+        return d;
+    }
+
+    private void endStream() {
+        Http2Stream s = this.stream;
+        this.stream = null;
+        if (s != null) {
+            s.getConnection().cancelStream(s);
+        }
+    }
+
+    /**
+     * Ends the current stream, if any, and gives the stream slot back.
+     */
+    void release() {
+        endStream();
+        Http2Connection c = unbind();
+        if (c != null) {
+            c.release();
+        }
+    }
+
+    private Http2Connection ensureConnection() {
+        Http2Connection c = this.connection;
+        if (c == null) {
+            throw new ConnectionShutdownException();
+        }
+        return c;
+    }
+
+    private Http2Stream ensureStream() {
+        Http2Stream s = this.stream;
+        if (s == null) {
+            throw new ConnectionShutdownException();
+        }
+        return s;
+    }
+
+    public void close() throws IOException {
+        release();
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            d.close();
+        }
+    }
+
+    public void shutdown() throws IOException {
+        release();
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            d.shutdown();
+        }
+    }
+
+    public boolean isOpen() {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            return d.isOpen();
+        }
+        Http2Connection c = this.connection;
+        if (c == null) {
+            return false;
+        }
+        Http2Stream s = this.stream;
+        if (s != null && !s.isComplete()) {
+            return c.isOpen();
+        }
+        return c.isUsable();
+    }
+
+    public boolean isStale() {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            return d.isStale();
+        }
+        return !isOpen();
+    }
+
+    public void setSocketTimeout(final int timeout) {
+        this.socketTimeout = timeout;
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            d.setSocketTimeout(timeout);
+        }
+    }
+
+    public int getSocketTimeout() {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            return d.getSocketTimeout();
+        }
+        return this.socketTimeout;
+    }
+
+    public HttpConnectionMetrics getMetrics() {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            return d.getMetrics();
+        }
+        return this.metrics;
+    }
+
+    private Socket getSocket() {
+        Http2Connection c = this.connection;
+        return c != null ? c.getSocket() : null;
+    }
+
+    private HttpInetConnection getInetDelegate() {
+        HttpClientConnection d = this.delegate;
+        return d instanceof HttpInetConnection ? (HttpInetConnection) d : null;
+    }
+
+    public InetAddress getLocalAddress() {
+        HttpInetConnection d = getInetDelegate();
+        if (d != null) {
+            return d.getLocalAddress();
+        }
+        Socket socket = getSocket();
+        return socket != null ? socket.getLocalAddress() : null;
+    }
+
+    public int getLocalPort() {
+        HttpInetConnection d = getInetDelegate();
+        if (d != null) {
+            return d.getLocalPort();
+        }
+        Socket socket = getSocket();
+        return socket != null ? socket.getLocalPort() : -1;
+    }
+
+    public InetAddress getRemoteAddress() {
+        HttpInetConnection d = getInetDelegate();
+        if (d != null) {
+            return d.getRemoteAddress();
+        }
+        Socket socket = getSocket();
+        return socket != null ? socket.getInetAddress() : null;
+    }
+
+    public int getRemotePort() {
+        HttpInetConnection d = getInetDelegate();
+        if (d != null) {
+            return d.getRemotePort();
+        }
+        Socket socket = getSocket();
+        return socket != null ? socket.getPort() : -1;
+    }
+
+    public void sendRequestHeader(final HttpRequest request) throws HttpException, IOException {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            d.sendRequestHeader(request);
+            return;
+        }
+        Http2Connection c = ensureConnection();
+        endStream();
+        boolean hasEntity = request instanceof HttpEntityEnclosingRequest
+            && ((HttpEntityEnclosingRequest) request).getEntity() != null;
+        this.stream = c.openStream(requestHeaders(request), !hasEntity);
+        this.metrics.incrementRequestCount();
+    }
+
+    private List<Header> requestHeaders(final HttpRequest request) throws ProtocolException {
+        RequestLine requestLine = request.getRequestLine();
+        String method = requestLine.getMethod();
+        if (method.equalsIgnoreCase("CONNECT")) {
+            throw new ProtocolException("CONNECT is not supported over HTTP/2");
+        }
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new BasicHeader(":method", method));
+        headers.add(new BasicHeader(":scheme", this.route.getTargetHost().getSchemeName()));
+        Header host = request.getFirstHeader(HTTP.TARGET_HOST);
+        headers.add(new BasicHeader(":authority",
+                host != null ? host.getValue() : this.route.getTargetHost().toHostString()));
+        headers.add(new BasicHeader(":path", getPath(requestLine.getUri())));
+        Header[] all = request.getAllHeaders();
+        for (int i = 0; i < all.length; i++) {
+            String name = all[i].getName().toLowerCase(Locale.US);
+            if (CONNECTION_HEADERS.contains(name)) {
+                continue;
+            }
+            if (name.equals("te") && !all[i].getValue().equalsIgnoreCase("trailers")) {
+                continue;
+            }
+            headers.add(new BasicHeader(name, all[i].getValue()));
+        }
+        return headers;
+    }
+
+    static String getPath(final String uri) {
+        if (uri.startsWith("/") || uri.equals("*")) {
+            return uri;
+        }
+        int i = uri.indexOf("://");
+        if (i > 0) {
+            int j = uri.indexOf('/', i + 3);
+            int k = uri.indexOf('?', i + 3);
+            if (j < 0 || (k >= 0 && k < j)) {
+                return k >= 0 ? "/" + uri.substring(k) : "/";
+            }
+            return uri.substring(j);
+        }
+        return uri.length() > 0 ? uri : "/";
+    }
+
+    public void sendRequestEntity(final HttpEntityEnclosingRequest request)
+            throws HttpException, IOException {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            d.sendRequestEntity(request);
+            return;
+        }
+        HttpEntity entity = request.getEntity();
+        if (entity == null) {
+            return;
+        }
+        OutputStream out = new StreamOutputStream(ensureStream());
+        entity.writeTo(out);
+        out.close();
+    }
+
+    public void flush() throws IOException {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            d.flush();
+            return;
+        }
+        ensureConnection().flush();
+    }
+
+    public boolean isResponseAvailable(final int timeout) throws IOException {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            return d.isResponseAvailable(timeout);
+        }
+        return ensureStream().awaitHeaders(timeout);
+    }
+
+    public HttpResponse receiveResponseHeader() throws HttpException, IOException {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            return d.receiveResponseHeader();
+        }
+        Http2Stream s = ensureStream();
+        List<Header> headers = s.takeHeaders(this.socketTimeout);
+        if (headers == null) {
+            throw new NoHttpResponseException("The target server failed to respond");
+        }
+        int status = -1;
+        for (Header header: headers) {
+            if (header.getName().equals(":status")) {
+                try {
+                    status = Integer.parseInt(header.getValue());
+                } catch (NumberFormatException ex) {
+                    throw new ProtocolException("Invalid response status: " + header.getValue());
+                }
+            }
+        }
+        if (status < 100 || status > 999) {
+            throw new ProtocolException("Missing or invalid response status");
+        }
+        if (status >= 200) {
+            s.markResponseReceived();
+            this.metrics.incrementResponseCount();
+        }
+        HttpResponse response = new BasicHttpResponse(new BasicStatusLine(HTTP_2_0, status,
+                EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.US)));
+        for (Header header: headers) {
+            if (!header.getName().startsWith(":")) {
+                response.addHeader(header);
+            }
+        }
+        return response;
+    }
+
+    public void receiveResponseEntity(final HttpResponse response) throws HttpException, IOException {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            d.receiveResponseEntity(response);
+            return;
+        }
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new StreamInputStream(ensureStream()));
+        long len = -1;
+        Header contentLength = response.getFirstHeader(HTTP.CONTENT_LEN);
+        if (contentLength != null) {
+            try {
+                len = Long.parseLong(contentLength.getValue().trim());
+            } catch (NumberFormatException ex) {
+                len = -1;
+            }
+        }
+        entity.setContentLength(len);
+        entity.setContentType(response.getFirstHeader(HTTP.CONTENT_TYPE));
+        entity.setContentEncoding(response.getFirstHeader(HTTP.CONTENT_ENCODING));
+        response.setEntity(entity);
+    }
+
+    @Override
+    public String toString() {
+        HttpClientConnection d = this.delegate;
+        if (d != null) {
+            return d.toString();
+        }
+        Http2Connection c = this.connection;
+        Http2Stream s = this.stream;
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(c != null ? c.toString() : "[Not bound]");
+        if (s != null) {
+            buffer.append(" stream ").append(s.getId());
+        }
+        return buffer.toString();
+    }
+
+    class StreamOutputStream extends OutputStream {
+
+        private final Http2Stream stream;
+        private final byte[] buffer;
+        private int count;
+        private boolean closed;
+
+        StreamOutputStream(final Http2Stream stream) {
+            super();
+            this.stream = stream;
+            this.buffer = new byte[Http2Frame.DEFAULT_MAX_FRAME_SIZE];
+        }
+
+        private void send(final byte[] b, final int off, final int len, final boolean end)
+                throws IOException {
+            this.stream.getConnection().sendData(this.stream, b, off, len, end, socketTimeout);
+            outMetrics.incrementBytesTransferred(len);
+        }
+
+        private void flushBuffer() throws IOException {
+            if (this.count > 0) {
+                send(this.buffer, 0, this.count, false);
+                this.count = 0;
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (this.count == this.buffer.length) {
+                flushBuffer();
+            }
+            this.buffer[this.count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (this.closed) {
+                throw new IOException("Attempted write to closed stream");
+            }
+            if (len >= this.buffer.length) {
+                flushBuffer();
+                send(b, off, len, false);
+                return;
+            }
+            if (len > this.buffer.length - this.count) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, this.buffer, this.count, len);
+            this.count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.closed) {
+                this.closed = true;
+                send(this.buffer, 0, this.count, true);
+                this.count = 0;
+            }
+        }
+
+    }
+
+    class StreamInputStream extends InputStream {
+
+        private final Http2Stream stream;
+        private boolean closed;
+
+        StreamInputStream(final Http2Stream stream) {
+            super();
+            this.stream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (this.closed) {
+                throw new IOException("Attempted read from closed stream");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int n = this.stream.read(b, off, len, socketTimeout);
+            if (n > 0) {
+                inMetrics.incrementBytesTransferred(n);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.closed ? 0 : this.stream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // unread content is discarded when the stream slot is released
+            this.closed = true;
+        }
+
+    }
+
+}
@@ -360,4 +360,97 @@ public class TestHostnameVerifier {
         Assert.assertArrayEquals(new String[] {"blah", " blah"}, AbstractVerifier.getCNs(cert));
     }
 
+    static class CountingVerifier extends AbstractVerifier {
+
+        int count;
+        long now = System.currentTimeMillis();
+
+        CountingVerifier() {
+            super();
+        }
+
+        CountingVerifier(int cacheSize) {
+            super(cacheSize);
+        }
+
+        public void verify(
+                final String host,
+                final String[] cns,
+                final String[] subjectAlts) throws SSLException {
+            this.count++;
+            verify(host, cns, subjectAlts, true);
+        }
+
+        @Override
+        long getCurrentTime() {
+            return this.now;
+        }
+
+    }
+
+    @Test
+    public void testVerificationResultsAreCached() throws Exception {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        X509Certificate foo = (X509Certificate) cf.generateCertificate(
+                new ByteArrayInputStream(CertificatesToPlayWith.X509_FOO));
+        // the same certificate decoded anew, as after a full handshake
+        X509Certificate fooAgain = (X509Certificate) cf.generateCertificate(
+                new ByteArrayInputStream(CertificatesToPlayWith.X509_FOO));
+        CountingVerifier verifier = new CountingVerifier(2);
+        verifier.now = foo.getNotBefore().getTime();
+
+        verifier.verify("foo.com", foo);
+        verifier.verify("foo.com", foo);
+        verifier.verify("foo.com", fooAgain);
+        Assert.assertEquals(1, verifier.count);
+        Assert.assertEquals(1, verifier.getCachedResultCount());
+
+        exceptionPlease(verifier, "bar.com", foo);
+        exceptionPlease(verifier, "bar.com", foo);
+        Assert.assertEquals(3, verifier.count);
+        Assert.assertEquals(1, verifier.getCachedResultCount());
+
+        verifier.now = foo.getNotAfter().getTime() + 1;
+        verifier.verify("foo.com", foo);
+        Assert.assertEquals(4, verifier.count);
+    }
+
+    @Test
+    public void testVerificationCacheIsBounded() throws Exception {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        X509Certificate wild = (X509Certificate) cf.generateCertificate(
+                new ByteArrayInputStream(CertificatesToPlayWith.X509_WILD_FOO));
+        CountingVerifier verifier = new CountingVerifier(2);
+        verifier.now = wild.getNotBefore().getTime();
+
+        verifier.verify("a.foo.com", wild);
+        verifier.verify("b.foo.com", wild);
+        verifier.verify("c.foo.com", wild);
+        Assert.assertEquals(2, verifier.getCachedResultCount());
+        verifier.verify("a.foo.com", wild);
+        Assert.assertEquals(4, verifier.count);
+        verifier.verify("c.foo.com", wild);
+        Assert.assertEquals(4, verifier.count);
+
+        CountingVerifier uncached = new CountingVerifier(0);
+        uncached.verify("a.foo.com", wild);
+        uncached.verify("a.foo.com", wild);
+        Assert.assertEquals(2, uncached.count);
+        Assert.assertEquals(0, uncached.getCachedResultCount());
+    }
+
+    @Test
+    public void testDefaultConstructorDoesNotCache() throws Exception {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        X509Certificate foo = (X509Certificate) cf.generateCertificate(
+                new ByteArrayInputStream(CertificatesToPlayWith.X509_FOO));
+        CountingVerifier verifier = new CountingVerifier();
+        verifier.now = foo.getNotBefore().getTime();
+
+        verifier.verify("foo.com", foo);
+        verifier.verify("foo.com", foo);
+        Assert.assertEquals(2, verifier.count);
+        Assert.assertEquals(0, verifier.getCachedResultCount());
+    }
+
 }
@@ -0,0 +1,280 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.conn.ssl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.ChannelSocketFactory;
+import org.apache.http.localserver.LocalServerTestBase;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SSLEngineSocketFactory}.
+ */
+public class TestSSLEngineSocketFactory extends LocalServerTestBase {
+
+    private SSLContext serverSSLContext;
+    private SSLContext clientSSLContext;
+
+    @Before
+    public void setUp() throws Exception {
+        ClassLoader cl = getClass().getClassLoader();
+        URL url = cl.getResource("test.keystore");
+        KeyStore keystore  = KeyStore.getInstance("jks");
+        char[] pwd = "nopassword".toCharArray();
+        keystore.load(url.openStream(), pwd);
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keystore);
+
+        KeyManagerFactory kmfactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        kmfactory.init(keystore, pwd);
+
+        this.serverSSLContext = SSLContext.getInstance("TLS");
+        this.serverSSLContext.init(kmfactory.getKeyManagers(), tmf.getTrustManagers(), null);
+
+        this.clientSSLContext = SSLContext.getInstance("TLS");
+        this.clientSSLContext.init(null, tmf.getTrustManagers(), null);
+
+        this.localServer = new LocalTestServer(this.serverSSLContext);
+        this.localServer.registerDefaultHandlers();
+
+        this.localServer.start();
+    }
+
+    @Override
+    protected HttpHost getServerHttp() {
+        InetSocketAddress address = this.localServer.getServiceAddress();
+        return new HttpHost(
+                address.getHostName(),
+                address.getPort(),
+                "https");
+    }
+
+    /**
+     * The test key store holds a DSA key, which cannot be used with TLS 1.3.
+     */
+    static class TLS12SocketFactory extends SSLEngineSocketFactory {
+
+        TLS12SocketFactory(final SSLContext sslContext, final X509HostnameVerifier verifier) {
+            super(sslContext, verifier);
+        }
+
+        @Override
+        protected void prepareEngine(final SSLEngine engine) {
+            List<String> protocols = new ArrayList<String>(
+                    Arrays.asList(engine.getEnabledProtocols()));
+            protocols.remove("TLSv1.3");
+            engine.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
+        }
+
+    }
+
+    private static String exchange(final Socket socket, final String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes("US-ASCII"));
+        out.flush();
+        InputStream in = socket.getInputStream();
+        StringBuilder buffer = new StringBuilder();
+        int ch;
+        while ((ch = in.read()) != -1) {
+            buffer.append((char) ch);
+        }
+        return buffer.toString();
+    }
+
+    @Test
+    public void testBasicSSL() throws Exception {
+        HttpHost host = new HttpHost("localhost", 443, "https");
+        HttpContext context = new BasicHttpContext();
+        TestSSLSocketFactory.TestX509HostnameVerifier hostVerifier =
+            new TestSSLSocketFactory.TestX509HostnameVerifier();
+        SSLEngineSocketFactory socketFactory = new TLS12SocketFactory(
+                this.clientSSLContext, hostVerifier);
+        Socket socket = socketFactory.createSocket(context);
+        Assert.assertNotNull(socket.getChannel());
+        InetSocketAddress remoteAddress = this.localServer.getServiceAddress();
+        SSLSocket sslsocket = (SSLSocket) socketFactory.connectSocket(
+                0, socket, host, remoteAddress, null, context);
+        SSLSession sslsession = sslsocket.getSession();
+
+        Assert.assertNotNull(sslsession);
+        Assert.assertNotNull(sslsession.getCipherSuite());
+        Assert.assertTrue(hostVerifier.isFired());
+        sslsocket.close();
+    }
+
+    @Test
+    public void testRequestResponseExchange() throws Exception {
+        HttpHost host = new HttpHost("localhost", 443, "https");
+        HttpContext context = new BasicHttpContext();
+        SSLEngineSocketFactory socketFactory = new TLS12SocketFactory(
+                this.clientSSLContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        InetSocketAddress remoteAddress = this.localServer.getServiceAddress();
+        Socket socket = socketFactory.connectSocket(0, null, host, remoteAddress, null, context);
+        socket.setSoTimeout(5000);
+        String response = exchange(socket,
+                "GET /random/20000 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        socket.close();
+
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200"));
+        Assert.assertTrue(response.length() > 20000);
+    }
+
+    @Test
+    public void testLayeringOverChannelSocket() throws Exception {
+        HttpHost host = new HttpHost("localhost", 443, "https");
+        HttpContext context = new BasicHttpContext();
+        InetSocketAddress remoteAddress = this.localServer.getServiceAddress();
+        Socket plain = ChannelSocketFactory.INSTANCE.connectSocket(
+                0, null, host, remoteAddress, null, context);
+        SSLEngineSocketFactory socketFactory = new TLS12SocketFactory(
+                this.clientSSLContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        Socket socket = socketFactory.createLayeredSocket(
+                plain, "localhost", remoteAddress.getPort(), context);
+        socket.setSoTimeout(5000);
+        String response = exchange(socket,
+                "GET /echo/ HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        socket.close();
+
+        Assert.assertTrue(response.startsWith("HTTP/1.1 200"));
+        Assert.assertTrue(plain.isClosed());
+    }
+
+    @Test
+    public void testBuffersAreReturnedToPoolOnClose() throws Exception {
+        HttpHost host = new HttpHost("localhost", 443, "https");
+        HttpContext context = new BasicHttpContext();
+        SSLEngineSocketFactory socketFactory = new TLS12SocketFactory(
+                this.clientSSLContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        InetSocketAddress remoteAddress = this.localServer.getServiceAddress();
+        DirectByteBufferPool pool = socketFactory.getBufferPool();
+        Assert.assertEquals(0, pool.getPooledCount());
+        Socket socket = socketFactory.connectSocket(0, null, host, remoteAddress, null, context);
+        socket.close();
+        int pooled = pool.getPooledCount();
+        Assert.assertTrue(pooled > 0);
+
+        // a second connection reuses the pooled buffers instead of allocating more
+        socket = socketFactory.connectSocket(0, null, host, remoteAddress, null, context);
+        Assert.assertEquals(pooled, pool.getPooledCount());
+        socket.close();
+        Assert.assertEquals(pooled, pool.getPooledCount());
+    }
+
+    @Test
+    public void testIdleSocketHoldsNoBuffers() throws Exception {
+        HttpHost host = new HttpHost("localhost", 443, "https");
+        HttpContext context = new BasicHttpContext();
+        SSLEngineSocketFactory socketFactory = new TLS12SocketFactory(
+                this.clientSSLContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        InetSocketAddress remoteAddress = this.localServer.getServiceAddress();
+        SSLEngineSocket socket = (SSLEngineSocket) socketFactory.connectSocket(
+                0, null, host, remoteAddress, null, context);
+        try {
+            Assert.assertEquals(0, socket.getBufferCount());
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /random/100 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+            Assert.assertEquals(0, socket.getBufferCount());
+
+            InputStream in = socket.getInputStream();
+            StringBuilder buffer = new StringBuilder();
+            while (buffer.indexOf("\r\n\r\n") == -1) {
+                buffer.append((char) in.read());
+            }
+            String head = buffer.toString();
+            Assert.assertTrue(head.startsWith("HTTP/1.1 200"));
+            Assert.assertTrue(head.indexOf("Content-Length: 100\r\n") != -1);
+            for (int i = 0; i < 100; i++) {
+                Assert.assertTrue(in.read() != -1);
+            }
+            // the response has been drained, the connection is idle
+            Assert.assertEquals(0, socket.getBufferCount());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(expected=SSLException.class)
+    public void testSSLTrustVerification() throws Exception {
+        HttpHost host = new HttpHost("localhost", 443, "https");
+        HttpContext context = new BasicHttpContext();
+        // Use default SSL context
+        SSLContext defaultsslcontext = SSLContext.getInstance("TLS");
+        defaultsslcontext.init(null, null, null);
+
+        SSLEngineSocketFactory socketFactory = new TLS12SocketFactory(defaultsslcontext,
+                SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+
+        Socket socket = socketFactory.createSocket(context);
+        InetSocketAddress remoteAddress = this.localServer.getServiceAddress();
+        socketFactory.connectSocket(0, socket, host, remoteAddress, null, context);
+    }
+
+    @Test
+    public void testBufferPoolIsBounded() throws Exception {
+        DirectByteBufferPool pool = new DirectByteBufferPool(1024, 1);
+        Assert.assertTrue(pool.acquire(512).isDirect());
+        Assert.assertEquals(1024, pool.acquire(512).capacity());
+        Assert.assertEquals(4096, pool.acquire(4096).capacity());
+        pool.release(pool.acquire(1024));
+        pool.release(pool.acquire(1024));
+        pool.release(ByteBuffer.allocateDirect(1024));
+        Assert.assertEquals(1, pool.getPooledCount());
+        pool.release(pool.acquire(4096));
+        Assert.assertEquals(1, pool.getPooledCount());
+    }
+
+}
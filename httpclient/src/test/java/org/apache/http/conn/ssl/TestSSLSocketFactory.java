@@ -28,12 +28,17 @@
 package org.apache.http.conn.ssl;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -194,4 +199,74 @@ public class TestSSLSocketFactory extends LocalServerTestBase {
         socketFactory.connectSocket(0, socket, host, remoteAddress, null, context);
     }
 
+    /**
+     * The DSA key of the test key store cannot be used with TLS 1.3.
+     */
+    static class TLS12SocketFactory extends SSLSocketFactory {
+
+        TLS12SocketFactory(final SSLContext sslContext, final X509HostnameVerifier verifier) {
+            super(sslContext, verifier);
+        }
+
+        @Override
+        protected void prepareSocket(final SSLSocket socket) throws IOException {
+            List<String> protocols = new ArrayList<String>(
+                    Arrays.asList(socket.getEnabledProtocols()));
+            protocols.remove("TLSv1.3");
+            socket.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
+        }
+
+    }
+
+    @Test
+    public void testSessionResumption() throws Exception {
+        HttpHost host = new HttpHost("localhost", 443, "https");
+        HttpContext context = new BasicHttpContext();
+        SSLSocketFactory socketFactory = new TLS12SocketFactory(
+                this.clientSSLContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        InetSocketAddress remoteAddress = this.localServer.getServiceAddress();
+        for (int i = 0; i < 3; i++) {
+            Socket socket = socketFactory.connectSocket(
+                    0, socketFactory.createSocket(context), host, remoteAddress, null, context);
+            socket.close();
+        }
+        Assert.assertEquals(1, socketFactory.getFullHandshakeCount());
+        Assert.assertEquals(2, socketFactory.getResumedHandshakeCount());
+    }
+
+    @Test
+    public void testSessionResumptionWithUnnamedAddress() throws Exception {
+        HttpHost host = new HttpHost("localhost", 443, "https");
+        HttpContext context = new BasicHttpContext();
+        SSLSocketFactory socketFactory = new TLS12SocketFactory(
+                this.clientSSLContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        InetSocketAddress address = this.localServer.getServiceAddress();
+
+        Socket plain = new Socket();
+        plain.connect(address);
+        Socket socket = socketFactory.createLayeredSocket(
+                plain, "localhost", address.getPort(), context);
+        socket.close();
+
+        // an address that does not carry the name of the host
+        InetSocketAddress remoteAddress = new InetSocketAddress(
+                InetAddress.getByAddress(address.getAddress().getAddress()), address.getPort());
+        socket = socketFactory.connectSocket(
+                0, socketFactory.createSocket(context), host, remoteAddress, null, context);
+        socket.close();
+
+        Assert.assertEquals(1, socketFactory.getFullHandshakeCount());
+        Assert.assertEquals(1, socketFactory.getResumedHandshakeCount());
+    }
+
+    @Test
+    public void testSessionCacheConfiguration() throws Exception {
+        SSLSocketFactory socketFactory = new SSLSocketFactory(
+                this.clientSSLContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER, 10, 60);
+        Assert.assertSame(this.clientSSLContext.getClientSessionContext(),
+                socketFactory.getClientSessionContext());
+        Assert.assertEquals(10, socketFactory.getClientSessionContext().getSessionCacheSize());
+        Assert.assertEquals(60, socketFactory.getClientSessionContext().getSessionTimeout());
+    }
+
 }
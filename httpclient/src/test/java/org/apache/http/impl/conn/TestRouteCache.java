@@ -0,0 +1,161 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RouteCache}.
+ */
+public class TestRouteCache {
+
+    private long now;
+    private RouteCache cache;
+
+    @Before
+    public void setup() {
+        now = 1000L;
+        cache = new RouteCache(500L, TimeUnit.MILLISECONDS) {
+
+            @Override
+            long getCurrentTime() {
+                return now;
+            }
+
+        };
+    }
+
+    @Test
+    public void testReturnsSameRoute() throws Exception {
+        HttpHost target = new HttpHost("somehost", 80, "http");
+        HttpRoute route = new HttpRoute(target);
+        cache.put(target, null, null, route);
+
+        Assert.assertSame(route, cache.get(new HttpHost("somehost", 80, "http"), null, null));
+        Assert.assertNull(cache.get(new HttpHost("somehost", 443, "https"), null, null));
+    }
+
+    @Test
+    public void testKeyedByLocalAddressAndProxy() throws Exception {
+        HttpHost target = new HttpHost("somehost", 80, "http");
+        HttpHost proxy = new HttpHost("proxy", 8080);
+        InetAddress local = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+        HttpRoute route = new HttpRoute(target, null, proxy, false);
+        cache.put(target, null, proxy, route);
+
+        Assert.assertSame(route, cache.get(target, null, proxy));
+        Assert.assertNull(cache.get(target, null, null));
+        Assert.assertNull(cache.get(target, local, proxy));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        HttpHost target = new HttpHost("somehost", 80, "http");
+        cache.put(target, null, null, new HttpRoute(target));
+
+        now += 499L;
+        Assert.assertNotNull(cache.get(target, null, null));
+        now += 1L;
+        Assert.assertNull(cache.get(target, null, null));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCacheIsBounded() throws Exception {
+        for (int i = 0; i < RouteCache.MAX_ENTRIES + 10; i++) {
+            HttpHost target = new HttpHost("host" + i, 80, "http");
+            cache.put(target, null, null, new HttpRoute(target));
+        }
+        Assert.assertTrue(cache.size() <= RouteCache.MAX_ENTRIES);
+    }
+
+    @Test
+    public void testNonPositiveTimeToLiveDisablesCache() throws Exception {
+        Assert.assertNull(RouteCache.create(0, TimeUnit.SECONDS));
+        Assert.assertNotNull(RouteCache.create(1, TimeUnit.SECONDS));
+    }
+
+    static class FixedProxySelector extends ProxySelector {
+
+        private final Proxy proxy;
+
+        FixedProxySelector(final Proxy proxy) {
+            this.proxy = proxy;
+        }
+
+        @Override
+        public List<Proxy> select(final URI uri) {
+            return Collections.singletonList(this.proxy);
+        }
+
+        @Override
+        public void connectFailed(final URI uri, final SocketAddress sa, final IOException ioe) {
+        }
+
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testProxySelectorRoutePlannerNoticesReplacedSelector() throws Exception {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+        ProxySelectorRoutePlanner planner = new ProxySelectorRoutePlanner(
+                schemeRegistry, new FixedProxySelector(Proxy.NO_PROXY), 1, TimeUnit.HOURS);
+        HttpHost target = new HttpHost("somehost", 80, "http");
+        BasicHttpRequest request = new BasicHttpRequest("GET", "/");
+
+        HttpRoute route = planner.determineRoute(target, request, null);
+        Assert.assertNull(route.getProxyHost());
+        Assert.assertSame(route, planner.determineRoute(target, request, null));
+
+        // a subclass may assign the protected field directly
+        planner.proxySelector = new FixedProxySelector(new Proxy(Proxy.Type.HTTP,
+                InetSocketAddress.createUnresolved("proxy", 8080)));
+        route = planner.determineRoute(target, request, null);
+        Assert.assertEquals(new HttpHost("proxy", 8080), route.getProxyHost());
+    }
+
+}
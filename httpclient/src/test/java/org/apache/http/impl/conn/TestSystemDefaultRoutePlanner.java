@@ -34,6 +34,7 @@ import java.net.ProxySelector;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
@@ -119,4 +120,38 @@ public class TestSystemDefaultRoutePlanner {
         Assert.assertEquals(isa1.getPort(), route.getProxyHost().getPort());
     }
 
+    @Test
+    public void testCachedRoute() throws Exception {
+        routePlanner = new SystemDefaultRoutePlanner(
+                schemePortResolver, proxySelector, 1, TimeUnit.MINUTES);
+        HttpHost target = new HttpHost("somehost", 80, "http");
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+
+        HttpContext context = new BasicHttpContext();
+        HttpRoute route1 = routePlanner.determineRoute(target, request, context);
+        HttpRoute route2 = routePlanner.determineRoute(
+                new HttpHost("somehost", 80, "http"), request, context);
+        HttpRoute route3 = routePlanner.determineRoute(
+                new HttpHost("otherhost", 80, "http"), request, context);
+
+        Assert.assertSame(route1, route2);
+        Assert.assertNotSame(route1, route3);
+        Mockito.verify(proxySelector).select(new URI("http://somehost:80"));
+        Mockito.verify(proxySelector).select(new URI("http://otherhost:80"));
+    }
+
+    @Test
+    public void testRoutesNotCachedByDefault() throws Exception {
+        HttpHost target = new HttpHost("somehost", 80, "http");
+        HttpRequest request = new BasicHttpRequest("GET", "/", HttpVersion.HTTP_1_1);
+
+        HttpContext context = new BasicHttpContext();
+        HttpRoute route1 = routePlanner.determineRoute(target, request, context);
+        HttpRoute route2 = routePlanner.determineRoute(target, request, context);
+
+        Assert.assertEquals(route1, route2);
+        Assert.assertNotSame(route1, route2);
+        Mockito.verify(proxySelector, Mockito.times(2)).select(new URI("http://somehost:80"));
+    }
+
 }
@@ -0,0 +1,536 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Minimal in-process HTTP/2 server speaking prior knowledge h2c. Requests are
+ * handed to a {@link Handler} on a thread of their own; responses honour the
+ * client's flow control windows. Inbound data is checked against the
+ * windows advertised by the server and credited back as soon as it arrives.
+ */
+public class Http2TestServer {
+
+    public interface Handler {
+
+        Response handle(String method, String path, byte[] body) throws Exception;
+
+    }
+
+    public static class Response {
+
+        final int status;
+        final byte[] body;
+
+        public Response(final int status, final byte[] body) {
+            super();
+            this.status = status;
+            this.body = body != null ? body : new byte[0];
+        }
+
+    }
+
+    private final Handler handler;
+    private final List<ServerConnection> connections;
+    private final AtomicInteger connectionCount;
+    private final AtomicInteger activeStreams;
+    private final AtomicInteger maxActiveStreams;
+    private final AtomicInteger flowControlViolations;
+
+    private volatile int maxConcurrentStreams = -1;
+    private volatile int streamsPerConnection;
+    private volatile int responseHeaderSize;
+    private volatile int goAwayErrorCode = -1;
+    private volatile ServerSocket serverSocket;
+
+    public Http2TestServer(final Handler handler) {
+        super();
+        this.handler = handler;
+        this.connections = new ArrayList<ServerConnection>();
+        this.connectionCount = new AtomicInteger();
+        this.activeStreams = new AtomicInteger();
+        this.maxActiveStreams = new AtomicInteger();
+        this.flowControlViolations = new AtomicInteger();
+    }
+
+    public void setMaxConcurrentStreams(final int max) {
+        this.maxConcurrentStreams = max;
+    }
+
+    /**
+     * Makes the server send GOAWAY once a connection has accepted the given
+     * number of streams.
+     */
+    public void setStreamsPerConnection(final int n) {
+        this.streamsPerConnection = n;
+    }
+
+    /**
+     * Makes the server add a filler header of the given length to every
+     * response, sending the header block in CONTINUATION frames as needed.
+     */
+    public void setResponseHeaderSize(final int n) {
+        this.responseHeaderSize = n;
+    }
+
+    /**
+     * Returns the error code of the last GOAWAY received from a client,
+     * or -1 if none has been received.
+     */
+    public int getGoAwayErrorCode() {
+        return this.goAwayErrorCode;
+    }
+
+    public int getConnectionCount() {
+        return this.connectionCount.get();
+    }
+
+    public int getMaxActiveStreams() {
+        return this.maxActiveStreams.get();
+    }
+
+    public int getFlowControlViolations() {
+        return this.flowControlViolations.get();
+    }
+
+    public void start() throws IOException {
+        this.serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    for (;;) {
+                        Socket socket = serverSocket.accept();
+                        ServerConnection conn = new ServerConnection(socket);
+                        synchronized (connections) {
+                            connections.add(conn);
+                        }
+                        connectionCount.incrementAndGet();
+                        Thread t = new Thread(conn);
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                } catch (IOException ex) {
+                    // server socket closed
+                }
+            }
+
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    public void stop() throws IOException {
+        this.serverSocket.close();
+        synchronized (this.connections) {
+            for (ServerConnection conn: this.connections) {
+                conn.close();
+            }
+        }
+    }
+
+    static class ServerStream {
+
+        final int id;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        List<Header> headers;
+        int sendWindow;
+        int recvWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+        boolean reset;
+
+        ServerStream(final int id, final int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+
+    }
+
+    class ServerConnection implements Runnable {
+
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final HPackDecoder decoder = new HPackDecoder(4096);
+        private final HPackEncoder encoder = new HPackEncoder(4096);
+        private final Object writeLock = new Object();
+        private final Map<Integer, ServerStream> streams = new HashMap<Integer, ServerStream>();
+
+        private int connSendWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+        private int connRecvWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+        private int initialSendWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+        private int accepted;
+        private boolean goAwaySent;
+        private boolean closed;
+
+        private int continuationStreamId;
+        private boolean continuationEndStream;
+        private ByteArrayOutputStream headerBlock;
+
+        ServerConnection(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public void run() {
+            try {
+                byte[] preface = new byte[Http2Connection.PREFACE.length];
+                int off = 0;
+                while (off < preface.length) {
+                    int n = this.in.read(preface, off, preface.length - off);
+                    if (n == -1) {
+                        return;
+                    }
+                    off += n;
+                }
+                byte[] settings = new byte[0];
+                int max = maxConcurrentStreams;
+                if (max >= 0) {
+                    settings = new byte[6];
+                    settings[1] = Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS;
+                    Http2Frame.putInt(settings, 2, max);
+                }
+                write(Http2Frame.SETTINGS, 0, 0, settings, 0, settings.length);
+                Http2Frame frame;
+                while ((frame = Http2Frame.read(this.in, Http2Frame.DEFAULT_MAX_FRAME_SIZE)) != null) {
+                    handleFrame(frame);
+                }
+            } catch (IOException ex) {
+                // connection closed
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                this.closed = true;
+                notifyAll();
+            }
+            try {
+                this.socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        private void write(
+                final int type, final int flags, final int streamId,
+                final byte[] b, final int off, final int len) throws IOException {
+            synchronized (this.writeLock) {
+                Http2Frame.write(this.out, type, flags, streamId, b, off, len);
+                this.out.flush();
+            }
+        }
+
+        private void windowUpdate(final int streamId, final int increment) throws IOException {
+            byte[] payload = new byte[4];
+            Http2Frame.putInt(payload, 0, increment);
+            write(Http2Frame.WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+        }
+
+        private void handleFrame(final Http2Frame frame) throws IOException {
+            switch (frame.getType()) {
+            case Http2Frame.SETTINGS:
+                if (!frame.isFlagSet(Http2Frame.FLAG_ACK)) {
+                    applySettings(frame.getPayload());
+                    write(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, null, 0, 0);
+                }
+                break;
+            case Http2Frame.HEADERS:
+                if (frame.isFlagSet(Http2Frame.FLAG_END_HEADERS)) {
+                    onHeaders(frame.getStreamId(), frame.getPayload(),
+                            frame.isFlagSet(Http2Frame.FLAG_END_STREAM));
+                } else {
+                    this.continuationStreamId = frame.getStreamId();
+                    this.continuationEndStream = frame.isFlagSet(Http2Frame.FLAG_END_STREAM);
+                    this.headerBlock = new ByteArrayOutputStream();
+                    this.headerBlock.write(frame.getPayload());
+                }
+                break;
+            case Http2Frame.CONTINUATION:
+                this.headerBlock.write(frame.getPayload());
+                if (frame.isFlagSet(Http2Frame.FLAG_END_HEADERS)) {
+                    onHeaders(this.continuationStreamId, this.headerBlock.toByteArray(),
+                            this.continuationEndStream);
+                }
+                break;
+            case Http2Frame.DATA:
+                onData(frame);
+                break;
+            case Http2Frame.WINDOW_UPDATE:
+                int increment = Http2Frame.getInt(frame.getPayload(), 0);
+                synchronized (this) {
+                    if (frame.getStreamId() == 0) {
+                        this.connSendWindow += increment;
+                    } else {
+                        ServerStream stream = this.streams.get(Integer.valueOf(frame.getStreamId()));
+                        if (stream != null) {
+                            stream.sendWindow += increment;
+                        }
+                    }
+                    notifyAll();
+                }
+                break;
+            case Http2Frame.RST_STREAM:
+                synchronized (this) {
+                    ServerStream stream = this.streams.get(Integer.valueOf(frame.getStreamId()));
+                    if (stream != null) {
+                        stream.reset = true;
+                    }
+                    notifyAll();
+                }
+                break;
+            case Http2Frame.PING:
+                if (!frame.isFlagSet(Http2Frame.FLAG_ACK)) {
+                    write(Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.getPayload(), 0, 8);
+                }
+                break;
+            case Http2Frame.GOAWAY:
+                goAwayErrorCode = Http2Frame.getInt(frame.getPayload(), 4);
+                close();
+                break;
+            default:
+            }
+        }
+
+        private synchronized void applySettings(final byte[] payload) {
+            for (int off = 0; off < payload.length; off += 6) {
+                int id = ((payload[off] & 0xff) << 8) | (payload[off + 1] & 0xff);
+                int value = Http2Frame.getInt(payload, off + 2);
+                if (id == Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE) {
+                    int delta = value - this.initialSendWindow;
+                    for (ServerStream stream: this.streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    this.initialSendWindow = value;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void onHeaders(final int streamId, final byte[] block, final boolean endStream)
+                throws IOException {
+            List<Header> headers = this.decoder.decode(block, 0, block.length);
+            ServerStream stream;
+            boolean goAway = false;
+            synchronized (this) {
+                if (this.goAwaySent) {
+                    return;
+                }
+                stream = new ServerStream(streamId, this.initialSendWindow);
+                stream.headers = headers;
+                this.streams.put(Integer.valueOf(streamId), stream);
+                this.accepted++;
+                int limit = streamsPerConnection;
+                if (limit > 0 && this.accepted >= limit) {
+                    this.goAwaySent = true;
+                    goAway = true;
+                }
+            }
+            if (goAway) {
+                byte[] payload = new byte[8];
+                Http2Frame.putInt(payload, 0, streamId);
+                write(Http2Frame.GOAWAY, 0, 0, payload, 0, 8);
+            }
+            if (endStream) {
+                dispatch(stream);
+            }
+        }
+
+        private void onData(final Http2Frame frame) throws IOException {
+            int len = frame.getLength();
+            ServerStream stream;
+            synchronized (this) {
+                stream = this.streams.get(Integer.valueOf(frame.getStreamId()));
+                this.connRecvWindow -= len;
+                if (this.connRecvWindow < 0) {
+                    flowControlViolations.incrementAndGet();
+                }
+                if (stream != null) {
+                    stream.recvWindow -= len;
+                    if (stream.recvWindow < 0) {
+                        flowControlViolations.incrementAndGet();
+                    }
+                    stream.body.write(frame.getPayload(), 0, len);
+                }
+            }
+            boolean endStream = frame.isFlagSet(Http2Frame.FLAG_END_STREAM);
+            if (len > 0) {
+                synchronized (this) {
+                    this.connRecvWindow += len;
+                    if (stream != null && !endStream) {
+                        stream.recvWindow += len;
+                    }
+                }
+                windowUpdate(0, len);
+                if (stream != null && !endStream) {
+                    windowUpdate(stream.id, len);
+                }
+            }
+            if (stream != null && endStream) {
+                dispatch(stream);
+            }
+        }
+
+        private void dispatch(final ServerStream stream) {
+            int active = activeStreams.incrementAndGet();
+            for (;;) {
+                int max = maxActiveStreams.get();
+                if (active <= max || maxActiveStreams.compareAndSet(max, active)) {
+                    break;
+                }
+            }
+            Thread t = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        String method = null;
+                        String path = null;
+                        for (Header header: stream.headers) {
+                            if (header.getName().equals(":method")) {
+                                method = header.getValue();
+                            } else if (header.getName().equals(":path")) {
+                                path = header.getValue();
+                            }
+                        }
+                        Response response;
+                        try {
+                            response = handler.handle(method, path, stream.body.toByteArray());
+                        } catch (Exception ex) {
+                            response = new Response(500, null);
+                        }
+                        activeStreams.decrementAndGet();
+                        respond(stream, response);
+                    } catch (IOException ex) {
+                        // connection closed
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done(stream);
+                    }
+                }
+
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void respond(final ServerStream stream, final Response response)
+                throws IOException, InterruptedException {
+            List<Header> headers = new ArrayList<Header>();
+            headers.add(new BasicHeader(":status", Integer.toString(response.status)));
+            headers.add(new BasicHeader("content-length", Integer.toString(response.body.length)));
+            int fillerSize = responseHeaderSize;
+            if (fillerSize > 0) {
+                StringBuilder filler = new StringBuilder(fillerSize);
+                for (int i = 0; i < fillerSize; i++) {
+                    filler.append('x');
+                }
+                headers.add(new BasicHeader("x-filler", filler.toString()));
+            }
+            synchronized (this.writeLock) {
+                byte[] block = this.encoder.encode(headers);
+                int type = Http2Frame.HEADERS;
+                int flags = response.body.length == 0 ? Http2Frame.FLAG_END_STREAM : 0;
+                int off = 0;
+                do {
+                    int n = Math.min(block.length - off, Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+                    if (off + n == block.length) {
+                        flags |= Http2Frame.FLAG_END_HEADERS;
+                    }
+                    Http2Frame.write(this.out, type, flags, stream.id, block, off, n);
+                    type = Http2Frame.CONTINUATION;
+                    flags = 0;
+                    off += n;
+                } while (off < block.length);
+                this.out.flush();
+            }
+            int pos = 0;
+            while (pos < response.body.length) {
+                int n;
+                synchronized (this) {
+                    while (!stream.reset && !this.closed
+                            && Math.min(this.connSendWindow, stream.sendWindow) <= 0) {
+                        wait();
+                    }
+                    if (stream.reset || this.closed) {
+                        return;
+                    }
+                    n = Math.min(response.body.length - pos,
+                            Math.min(Math.min(this.connSendWindow, stream.sendWindow),
+                                    Http2Frame.DEFAULT_MAX_FRAME_SIZE));
+                    this.connSendWindow -= n;
+                    stream.sendWindow -= n;
+                }
+                boolean last = pos + n == response.body.length;
+                write(Http2Frame.DATA, last ? Http2Frame.FLAG_END_STREAM : 0, stream.id,
+                        response.body, pos, n);
+                pos += n;
+            }
+        }
+
+        private void done(final ServerStream stream) {
+            boolean drained;
+            synchronized (this) {
+                this.streams.remove(Integer.valueOf(stream.id));
+                drained = this.goAwaySent && this.streams.isEmpty();
+            }
+            if (drained) {
+                // half close so that frames still in flight from the client
+                // do not cause the response data to be reset
+                synchronized (this.writeLock) {
+                    try {
+                        this.socket.shutdownOutput();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHPack {
+
+    private static byte[] decodeHex(final String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return b;
+    }
+
+    private static List<Header> decode(final HPackDecoder decoder, final String hex) throws Exception {
+        byte[] b = decodeHex(hex);
+        return decoder.decode(b, 0, b.length);
+    }
+
+    private static void assertHeaders(final List<Header> headers, final String... expected) {
+        Assert.assertEquals(expected.length / 2, headers.size());
+        for (int i = 0; i < headers.size(); i++) {
+            Assert.assertEquals(expected[i * 2], headers.get(i).getName());
+            Assert.assertEquals(expected[i * 2 + 1], headers.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void testDecodeRequestsWithoutHuffman() throws Exception {
+        // RFC 7541, C.3
+        HPackDecoder decoder = new HPackDecoder(4096);
+        assertHeaders(decode(decoder, "828684410f7777772e6578616d706c652e636f6d"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        Assert.assertEquals(57, decoder.getTable().getSize());
+        assertHeaders(decode(decoder, "828684be58086e6f2d6361636865"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        Assert.assertEquals(110, decoder.getTable().getSize());
+        assertHeaders(decode(decoder,
+                "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value");
+        Assert.assertEquals(164, decoder.getTable().getSize());
+    }
+
+    @Test
+    public void testDecodeRequestsWithHuffman() throws Exception {
+        // RFC 7541, C.4
+        HPackDecoder decoder = new HPackDecoder(4096);
+        assertHeaders(decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertHeaders(decode(decoder, "828684be5886a8eb10649cbf"),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertHeaders(decode(decoder,
+                "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value");
+        Assert.assertEquals(164, decoder.getTable().getSize());
+    }
+
+    @Test
+    public void testHuffmanEncoding() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HPackHuffman.encode("www.example.com", out);
+        Assert.assertArrayEquals(decodeHex("f1e3c2e5f23a6ba0ab90f4ff"), out.toByteArray());
+        Assert.assertEquals(12, HPackHuffman.encodedLength("www.example.com"));
+        byte[] b = out.toByteArray();
+        Assert.assertEquals("www.example.com", HPackHuffman.decode(b, 0, b.length));
+    }
+
+    @Test(expected=Http2Exception.class)
+    public void testInvalidIndex() throws Exception {
+        decode(new HPackDecoder(4096), "ff00");
+    }
+
+    @Test
+    public void testTableSizeUpdateAtStartOfBlock() throws Exception {
+        HPackDecoder decoder = new HPackDecoder(4096);
+        // two updates, as sent after the setting changed twice, then :method GET
+        assertHeaders(decode(decoder, "203fe11f82"), ":method", "GET");
+        Assert.assertEquals(4096, decoder.getTable().getMaxSize());
+    }
+
+    @Test
+    public void testTableSizeUpdateAfterHeaderField() throws Exception {
+        HPackDecoder decoder = new HPackDecoder(4096);
+        try {
+            decode(decoder, "8220");
+            Assert.fail("Http2Exception should have been thrown");
+        } catch (Http2Exception ex) {
+            Assert.assertEquals(Http2Exception.COMPRESSION_ERROR, ex.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testHeaderListSizeLimit() throws Exception {
+        // :method GET counts 42 octets, so the third indexed field exceeds 100
+        HPackDecoder decoder = new HPackDecoder(4096, 100);
+        assertHeaders(decode(decoder, "8282"), ":method", "GET", ":method", "GET");
+        try {
+            decode(decoder, "828282");
+            Assert.fail("Http2Exception should have been thrown");
+        } catch (Http2Exception ex) {
+            Assert.assertEquals(Http2Exception.ENHANCE_YOUR_CALM, ex.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        HPackEncoder encoder = new HPackEncoder(4096);
+        HPackDecoder decoder = new HPackDecoder(4096);
+        for (int i = 0; i < 50; i++) {
+            List<Header> headers = new ArrayList<Header>();
+            headers.add(new BasicHeader(":method", i % 2 == 0 ? "GET" : "POST"));
+            headers.add(new BasicHeader(":scheme", "https"));
+            headers.add(new BasicHeader(":authority", "www.example.com"));
+            headers.add(new BasicHeader(":path", "/resource/" + i));
+            headers.add(new BasicHeader("user-agent", "Apache-HttpClient"));
+            headers.add(new BasicHeader("authorization", "Basic dXNlcjpwYXNz"));
+            headers.add(new BasicHeader("x-request-id", "req-" + i + "-\u00e9"));
+            byte[] block = encoder.encode(headers);
+            List<Header> decoded = decoder.decode(block, 0, block.length);
+            Assert.assertEquals(headers.size(), decoded.size());
+            for (int j = 0; j < headers.size(); j++) {
+                Assert.assertEquals(headers.get(j).getName(), decoded.get(j).getName());
+                Assert.assertEquals(headers.get(j).getValue(), decoded.get(j).getValue());
+            }
+            Assert.assertEquals(encoder.getTable().getSize(), decoder.getTable().getSize());
+        }
+    }
+
+    @Test
+    public void testTableSizeUpdate() throws Exception {
+        HPackEncoder encoder = new HPackEncoder(4096);
+        HPackDecoder decoder = new HPackDecoder(4096);
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new BasicHeader("x-custom", "value"));
+        byte[] block = encoder.encode(headers);
+        decoder.decode(block, 0, block.length);
+        Assert.assertEquals(1, decoder.getTable().getDynamicCount());
+
+        encoder.setMaxTableSize(0);
+        block = encoder.encode(headers);
+        List<Header> decoded = decoder.decode(block, 0, block.length);
+        Assert.assertEquals("value", decoded.get(0).getValue());
+        Assert.assertEquals(0, decoder.getTable().getDynamicCount());
+        Assert.assertEquals(0, decoder.getTable().getMaxSize());
+    }
+
+}
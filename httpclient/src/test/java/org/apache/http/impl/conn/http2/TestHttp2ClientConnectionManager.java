@@ -0,0 +1,345 @@
+/*
+ * ====================================================================
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by many
+ * individuals on behalf of the Apache Software Foundation.  For more
+ * information on the Apache Software Foundation, please see
+ * <http://www.apache.org/>.
+ *
+ */
+package org.apache.http.impl.conn.http2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainSocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHttp2ClientConnectionManager {
+
+    private Http2TestServer server;
+    private Http2ClientConnectionManager mgr;
+    private CloseableHttpClient httpclient;
+    private HttpHost target;
+
+    @Before
+    public void setUp() throws Exception {
+        this.mgr = new Http2ClientConnectionManager();
+        this.mgr.setPriorKnowledge(true);
+        this.httpclient = HttpClients.custom().setConnectionManager(this.mgr).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        if (this.server != null) {
+            this.server.stop();
+        }
+    }
+
+    private void start(final Http2TestServer.Handler handler) throws Exception {
+        this.server = new Http2TestServer(handler);
+    }
+
+    private void listen() throws Exception {
+        this.server.start();
+        this.target = new HttpHost("localhost", this.server.getPort(), "http");
+    }
+
+    private byte[] execute(final HttpUriRequest request) throws Exception {
+        HttpResponse response = this.httpclient.execute(this.target, request);
+        Assert.assertEquals(Http2StreamConnection.HTTP_2_0,
+                response.getStatusLine().getProtocolVersion());
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        return EntityUtils.toByteArray(response.getEntity());
+    }
+
+    class Worker extends Thread {
+
+        private final HttpUriRequest request;
+        private volatile byte[] result;
+        private volatile Exception exception;
+
+        Worker(final HttpUriRequest request) {
+            super();
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.result = execute(this.request);
+            } catch (Exception ex) {
+                this.exception = ex;
+            }
+        }
+
+        byte[] getResult() throws Exception {
+            join(10000);
+            if (this.exception != null) {
+                throw this.exception;
+            }
+            return this.result;
+        }
+
+    }
+
+    @Test
+    public void testConcurrentRequestsShareConnection() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(10);
+        start(new Http2TestServer.Handler() {
+
+            public Http2TestServer.Response handle(
+                    final String method, final String path, final byte[] body) throws Exception {
+                latch.countDown();
+                // only completes if all requests are in flight at the same time
+                if (!latch.await(5, TimeUnit.SECONDS)) {
+                    return new Http2TestServer.Response(503, null);
+                }
+                return new Http2TestServer.Response(200, path.getBytes("US-ASCII"));
+            }
+
+        });
+        listen();
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < 10; i++) {
+            Worker worker = new Worker(new HttpGet("/stuff/" + i));
+            workers.add(worker);
+            worker.start();
+        }
+        for (int i = 0; i < workers.size(); i++) {
+            Assert.assertEquals("/stuff/" + i, new String(workers.get(i).getResult(), "US-ASCII"));
+        }
+        Assert.assertEquals(1, this.server.getConnectionCount());
+        Assert.assertEquals(1, this.mgr.getConnectionCount(new HttpRoute(this.target)));
+    }
+
+    @Test
+    public void testStreamLimitIsRespected() throws Exception {
+        start(new Http2TestServer.Handler() {
+
+            public Http2TestServer.Response handle(
+                    final String method, final String path, final byte[] body) throws Exception {
+                Thread.sleep(50);
+                return new Http2TestServer.Response(200, null);
+            }
+
+        });
+        this.server.setMaxConcurrentStreams(2);
+        listen();
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < 8; i++) {
+            Worker worker = new Worker(new HttpGet("/"));
+            workers.add(worker);
+            worker.start();
+        }
+        for (Worker worker: workers) {
+            Assert.assertNotNull(worker.getResult());
+        }
+        Assert.assertEquals(1, this.server.getConnectionCount());
+        Assert.assertEquals(2, this.server.getMaxActiveStreams());
+    }
+
+    @Test
+    public void testLargeBodiesAreFlowControlled() throws Exception {
+        start(new Http2TestServer.Handler() {
+
+            public Http2TestServer.Response handle(
+                    final String method, final String path, final byte[] body) throws Exception {
+                return new Http2TestServer.Response(200, body);
+            }
+
+        });
+        listen();
+        this.mgr.setInitialWindowSize(16 * 1024);
+        byte[] data = new byte[512 * 1024];
+        new Random(42).nextBytes(data);
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < 3; i++) {
+            HttpPost post = new HttpPost("/echo");
+            post.setEntity(new ByteArrayEntity(data));
+            Worker worker = new Worker(post);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Worker worker: workers) {
+            Assert.assertArrayEquals(data, worker.getResult());
+        }
+        Assert.assertEquals(0, this.server.getFlowControlViolations());
+        Assert.assertEquals(1, this.server.getConnectionCount());
+    }
+
+    @Test
+    public void testGoAwayLeadsToNewConnection() throws Exception {
+        start(new Http2TestServer.Handler() {
+
+            public Http2TestServer.Response handle(
+                    final String method, final String path, final byte[] body) throws Exception {
+                return new Http2TestServer.Response(200, path.getBytes("US-ASCII"));
+            }
+
+        });
+        this.server.setStreamsPerConnection(2);
+        listen();
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("/" + i, new String(execute(new HttpGet("/" + i)), "US-ASCII"));
+        }
+        Assert.assertEquals(3, this.server.getConnectionCount());
+    }
+
+    @Test
+    public void testHeaderBlockSpanningContinuationFrames() throws Exception {
+        start(new Http2TestServer.Handler() {
+
+            public Http2TestServer.Response handle(
+                    final String method, final String path, final byte[] body) throws Exception {
+                return new Http2TestServer.Response(200, path.getBytes("US-ASCII"));
+            }
+
+        });
+        this.server.setResponseHeaderSize(40 * 1024);
+        listen();
+        Assert.assertEquals("/stuff", new String(execute(new HttpGet("/stuff")), "US-ASCII"));
+    }
+
+    @Test
+    public void testOversizedHeaderBlockFailsConnection() throws Exception {
+        start(new Http2TestServer.Handler() {
+
+            public Http2TestServer.Response handle(
+                    final String method, final String path, final byte[] body) throws Exception {
+                return new Http2TestServer.Response(200, null);
+            }
+
+        });
+        this.server.setResponseHeaderSize(Http2Connection.MAX_HEADER_LIST_SIZE * 2);
+        listen();
+        try {
+            execute(new HttpGet("/"));
+            Assert.fail("IOException should have been thrown");
+        } catch (IOException expected) {
+        }
+        Assert.assertEquals(Http2Exception.ENHANCE_YOUR_CALM, this.server.getGoAwayErrorCode());
+    }
+
+    @Test
+    public void testHttp11FallbackConnectionIsReused() throws Exception {
+        Assume.assumeTrue(Alpn.isSupported());
+        URL url = getClass().getClassLoader().getResource("test.keystore");
+        KeyStore keystore  = KeyStore.getInstance("jks");
+        char[] pwd = "nopassword".toCharArray();
+        keystore.load(url.openStream(), pwd);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keystore);
+        KeyManagerFactory kmfactory = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        kmfactory.init(keystore, pwd);
+        SSLContext serverSSLContext = SSLContext.getInstance("TLS");
+        serverSSLContext.init(kmfactory.getKeyManagers(), tmf.getTrustManagers(), null);
+        SSLContext clientSSLContext = SSLContext.getInstance("TLS");
+        clientSSLContext.init(null, tmf.getTrustManagers(), null);
+
+        // an HTTP/1.1 only server
+        LocalTestServer localServer = new LocalTestServer(serverSSLContext);
+        localServer.registerDefaultHandlers();
+        localServer.start();
+        // the test key store holds a DSA key, which cannot be used with TLS 1.3
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainSocketFactory.getSocketFactory())
+            .register("https", new SSLSocketFactory(
+                    clientSSLContext, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER) {
+
+                @Override
+                protected void prepareSocket(final SSLSocket socket) {
+                    socket.setEnabledProtocols(new String[] { "TLSv1.2" });
+                }
+
+            })
+            .build();
+        Http2ClientConnectionManager connManager = new Http2ClientConnectionManager(registry);
+        CloseableHttpClient client = HttpClients.custom().setConnectionManager(connManager).build();
+        try {
+            InetSocketAddress address = localServer.getServiceAddress();
+            HttpHost host = new HttpHost("localhost", address.getPort(), "https");
+            for (int i = 0; i < 3; i++) {
+                HttpResponse response = client.execute(host, new HttpGet("/random/100"));
+                Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+                Assert.assertEquals(100, EntityUtils.toByteArray(response.getEntity()).length);
+            }
+            // the connection on which HTTP/2 was declined served all requests
+            Assert.assertEquals(1, localServer.getAcceptedConnectionCount());
+        } finally {
+            client.close();
+            localServer.stop();
+        }
+    }
+
+    @Test
+    public void testProxiedRoutesUseFallback() throws Exception {
+        HttpHost proxy = new HttpHost("proxy", 8080);
+        Assert.assertFalse(this.mgr.isMultiplexed(
+                new HttpRoute(new HttpHost("somehost", 80, "http"), null, proxy, false)));
+        Assert.assertTrue(this.mgr.isMultiplexed(new HttpRoute(new HttpHost("somehost", 80, "http"))));
+        this.mgr.setPriorKnowledge(false);
+        Assert.assertFalse(this.mgr.isMultiplexed(new HttpRoute(new HttpHost("somehost", 80, "http"))));
+    }
+
+    @Test
+    public void testRequestPath() {
+        Assert.assertEquals("/stuff?q=1", Http2StreamConnection.getPath("/stuff?q=1"));
+        Assert.assertEquals("/stuff", Http2StreamConnection.getPath("http://somehost/stuff"));
+        Assert.assertEquals("/", Http2StreamConnection.getPath("http://somehost"));
+        Assert.assertEquals("/?q=1", Http2StreamConnection.getPath("http://somehost?q=1"));
+        Assert.assertEquals("*", Http2StreamConnection.getPath("*"));
+    }
+
+}